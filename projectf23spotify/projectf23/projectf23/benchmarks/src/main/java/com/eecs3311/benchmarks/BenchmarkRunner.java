@@ -0,0 +1,60 @@
+package com.eecs3311.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+
+/**
+ * Runs the benchmarks with the same settings every time, so two result files can be compared line by line.
+ *
+ *   java -jar target/benchmarks.jar [benchmark regex] [results name]
+ *
+ * Every benchmark reports its allocation rate (gc.alloc.rate.norm is bytes per operation) next to its time. Results
+ * are written to results/[results name].json, the name defaults to the commit that was built.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : ".*";
+		String name = args.length > 1 ? args[1] : currentCommit();
+
+		new File("results").mkdirs();
+		Options options = new OptionsBuilder()
+				.include(include)
+				.exclude(BenchmarkRunner.class.getName())
+				.forks(2)
+				.warmupIterations(5)
+				.warmupTime(TimeValue.seconds(1))
+				.measurementIterations(5)
+				.measurementTime(TimeValue.seconds(1))
+				.jvmArgsAppend("-Xms2g", "-Xmx2g")
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("results/" + name + ".json")
+				.build();
+		new Runner(options).run();
+	}
+
+	private static String currentCommit() {
+		try {
+			Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").start();
+			try (BufferedReader output = new BufferedReader(new InputStreamReader(git.getInputStream()))) {
+				String commit = output.readLine();
+				if (git.waitFor() == 0 && commit != null) {
+					return commit.trim();
+				}
+			}
+		} catch (Exception e) {
+			// Not built from a checkout, fall through
+		}
+		return "local";
+	}
+}
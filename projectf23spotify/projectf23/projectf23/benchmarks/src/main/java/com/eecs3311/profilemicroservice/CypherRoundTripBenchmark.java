@@ -0,0 +1,219 @@
+package com.eecs3311.profilemicroservice;
+
+import org.neo4j.driver.v1.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares the statements the drivers used to send for each operation with the single statements that replaced them.
+ * Only the Neo4j part of each operation is timed, the calls to the song microservice are left out.
+ *
+ * Needs a running Neo4j, so it is not a JMH benchmark and BenchmarkRunner leaves it out. Run it from the benchmarks jar:
+ *
+ *   java -cp target/benchmarks.jar com.eecs3311.profilemicroservice.CypherRoundTripBenchmark [bolt uri] [user] [password] [iterations]
+ *
+ * Every node it creates is removed when it finishes.
+ */
+public class CypherRoundTripBenchmark {
+
+	private static final String PREFIX = "round-trip-benchmark-";
+	private static final int USERS = 100;
+
+	private interface Operation {
+		// Runs the operation for user i and returns the number of statements it sent
+		int run(Session session, int i);
+	}
+
+	public static void main(String[] args) {
+		String uri = args.length > 0 ? args[0] : "bolt://localhost:7687";
+		String user = args.length > 1 ? args[1] : "neo4j";
+		String password = args.length > 2 ? args[2] : "12345678";
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+		try (Driver driver = GraphDatabase.driver(uri, AuthTokens.basic(user, password), Config.builder().withoutEncryption().build());
+			 Session session = driver.session()) {
+			createFixture(session);
+			try {
+				System.out.printf("%-24s %-8s %10s %10s %10s %10s%n", "operation", "version", "statements", "mean us", "p50 us", "p99 us");
+
+				Operation follow = (s, i) -> consume(s.run(ProfileDriverImpl.FOLLOW_FRIEND, friendParams(i)));
+				Operation unfollow = (s, i) -> consume(s.run(ProfileDriverImpl.UNFOLLOW_FRIEND, friendParams(i)));
+				Operation like = (s, i) -> inTransaction(s, tx -> consume(tx.run(PlaylistDriverImpl.LIKE_SONG, songParams(i))));
+				Operation unlike = (s, i) -> inTransaction(s, tx -> consume(tx.run(PlaylistDriverImpl.UNLIKE_SONG, songParams(i))));
+
+				// Follows and likes are undone before each one so every iteration does the full write, and the reverse
+				compare(session, iterations, "followFriend", unfollow, CypherRoundTripBenchmark::legacyFollowFriend, follow);
+				compare(session, iterations, "unfollowFriend", follow, CypherRoundTripBenchmark::legacyUnfollowFriend, unfollow);
+				compare(session, iterations, "updateLastListenedSong", null, CypherRoundTripBenchmark::legacyUpdateLastListenedSong,
+						(s, i) -> consume(s.run(ProfileDriverImpl.USER_EXISTS, userParams(i)))
+								+ consume(s.run(ProfileDriverImpl.UPDATE_LAST_LISTENED_SONG, songParams(i))));
+				compare(session, iterations, "getMostRecentSong", null, CypherRoundTripBenchmark::legacyGetMostRecentSong,
+						(s, i) -> consume(s.run(ProfileDriverImpl.GET_MOST_RECENT_SONG, userParams(i))));
+				compare(session, iterations, "likeSong", unlike, CypherRoundTripBenchmark::legacyLikeSong, like);
+				compare(session, iterations, "unlikeSong", like, CypherRoundTripBenchmark::legacyUnlikeSong, unlike);
+			} finally {
+				session.run("MATCH (n) WHERE n.userName STARTS WITH $prefix OR n.plName STARTS WITH $prefix OR n.songId STARTS WITH $prefix " +
+						"DETACH DELETE n", Values.parameters("prefix", PREFIX)).consume();
+			}
+		}
+	}
+
+	private static void createFixture(Session session) {
+		for (int i = 0; i < USERS; i++) {
+			session.run("CREATE (user:profile {userName: $userName, fullName: $userName, password: 'benchmark'})-[:created]->" +
+					"(:playlist {plName: $plName})", Values.parameters("userName", PREFIX + i, "plName", PREFIX + i + "-favorites")).consume();
+		}
+	}
+
+	private static void compare(Session session, int iterations, String name, Operation setup, Operation legacy, Operation single) {
+		measure(session, iterations, name, "before", setup, legacy);
+		measure(session, iterations, name, "after", setup, single);
+	}
+
+	// setup runs untimed before every iteration, it may be null
+	private static void measure(Session session, int iterations, String name, String version, Operation setup, Operation operation) {
+		// Warm up the query plan cache and the connection before timing
+		for (int i = 0; i < Math.min(iterations, 200); i++) {
+			if (setup != null) {
+				setup.run(session, i % USERS);
+			}
+			operation.run(session, i % USERS);
+		}
+
+		long[] latencies = new long[iterations];
+		int statements = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (setup != null) {
+				setup.run(session, i % USERS);
+			}
+			long startedAt = System.nanoTime();
+			statements = operation.run(session, i % USERS);
+			latencies[i] = System.nanoTime() - startedAt;
+		}
+
+		Arrays.sort(latencies);
+		double mean = Arrays.stream(latencies).average().orElse(0) / 1000;
+		System.out.printf("%-24s %-8s %10d %10.0f %10d %10d%n", name, version, statements, mean,
+				latencies[iterations / 2] / 1000, latencies[(int) (iterations * 0.99)] / 1000);
+	}
+
+	// An explicit transaction adds a commit to the statements it runs
+	private static int inTransaction(Session session, ToIntFunction<Transaction> work) {
+		try (Transaction tx = session.beginTransaction()) {
+			int statements = work.applyAsInt(tx);
+			tx.success();
+			return statements + 1;
+		}
+	}
+
+	private static int consume(StatementResult result) {
+		result.list();
+		return 1;
+	}
+
+	// The statements below are the ones the drivers sent before they were collapsed
+
+	private static int legacyFollowFriend(Session session, int i) {
+		Map<String, Object> params = friendParams(i);
+		return inTransaction(session, tx -> {
+			StatementResult userResult = tx.run("MATCH (user:profile {userName: $userName}) RETURN user", params);
+			StatementResult friendResult = tx.run("MATCH (friend:profile {userName: $frndUserName}) RETURN friend", params);
+			if (!userResult.hasNext() || !friendResult.hasNext()) {
+				return 2;
+			}
+			consume(tx.run("MATCH (user:profile {userName: $userName}), (friend:profile {userName: $frndUserName}) " +
+					"MERGE (user)-[:FOLLOWS]->(friend)", params));
+			return 3;
+		});
+	}
+
+	private static int legacyUnfollowFriend(Session session, int i) {
+		Map<String, Object> params = friendParams(i);
+		return inTransaction(session, tx -> {
+			if (!tx.run("MATCH (user:profile {userName: $userName})-[r:FOLLOWS]->(friend:profile {userName: $frndUserName}) RETURN r", params).hasNext()) {
+				return 1;
+			}
+			consume(tx.run("MATCH (user:profile {userName: $userName})-[r:FOLLOWS]->(friend:profile {userName: $frndUserName}) DELETE r", params));
+			return 2;
+		});
+	}
+
+	private static int legacyUpdateLastListenedSong(Session session, int i) {
+		Map<String, Object> params = songParams(i);
+		return inTransaction(session, tx -> {
+			if (!tx.run("MATCH (user:profile {userName: $userName}) RETURN user", params).hasNext()) {
+				return 1;
+			}
+			consume(tx.run("MATCH (user:profile {userName: $userName}) " +
+					"OPTIONAL MATCH (user)-[r:LAST_LISTENED_TO]->(oldSong:song) " +
+					"DELETE r " +
+					"WITH user " +
+					"MERGE (newSong:song {songId: $songId}) " +
+					"MERGE (user)-[:LAST_LISTENED_TO]->(newSong)", params));
+			return 2;
+		});
+	}
+
+	private static int legacyGetMostRecentSong(Session session, int i) {
+		Map<String, Object> params = userParams(i);
+		return inTransaction(session, tx -> {
+			if (!tx.run("MATCH (user:profile {userName: $userName}) RETURN user", params).hasNext()) {
+				return 1;
+			}
+			consume(tx.run("MATCH (user:profile {userName: $userName})-[:LAST_LISTENED_TO]->(song:song) RETURN song.songId AS songId", params));
+			return 2;
+		});
+	}
+
+	private static int legacyLikeSong(Session session, int i) {
+		Map<String, Object> params = songParams(i);
+		return inTransaction(session, tx -> {
+			if (!tx.run("MATCH (user:profile {userName: $userName}) RETURN user", params).hasNext()) {
+				return 1;
+			}
+			if (tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName})-[:includes]->(song:song {songId: $songId}) RETURN song", params).hasNext()) {
+				return 2;
+			}
+			consume(tx.run("MERGE (song:song {songId: $songId}) RETURN song", params));
+			consume(tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName}), (song:song {songId: $songId}) " +
+					"MERGE (playlist)-[:includes]->(song)", params));
+			return 4;
+		});
+	}
+
+	private static int legacyUnlikeSong(Session session, int i) {
+		Map<String, Object> params = songParams(i);
+		return inTransaction(session, tx -> {
+			if (!tx.run("MATCH (user:profile {userName: $userName}) RETURN user", params).hasNext()) {
+				return 1;
+			}
+			if (!tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName})-[:includes]->(song:song {songId: $songId}) RETURN song", params).hasNext()) {
+				return 2;
+			}
+			consume(tx.run("MATCH (playlist:playlist {plName: $plName})-[r:includes]->(song:song {songId: $songId}) DELETE r", params));
+			return 3;
+		});
+	}
+
+	private static Map<String, Object> userParams(int i) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", PREFIX + i);
+		return params;
+	}
+
+	private static Map<String, Object> friendParams(int i) {
+		Map<String, Object> params = userParams(i);
+		params.put("frndUserName", PREFIX + (i + 1) % USERS);
+		return params;
+	}
+
+	private static Map<String, Object> songParams(int i) {
+		Map<String, Object> params = userParams(i);
+		params.put("plName", PREFIX + i + "-favorites");
+		params.put("songId", PREFIX + "song-" + i % 10);
+		return params;
+	}
+}
@@ -0,0 +1,81 @@
+package com.eecs3311.profilemicroservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response building in the profile service: the request URL, the DbQueryStatus and response map of a friends' feed,
+ * and serializing it as the message converter does. respond is all of it for getAllFriendFavouriteSongTitles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProfileResponseBenchmark {
+
+	@Param({"20"})
+	public int friends;
+
+	private MockHttpServletRequest request;
+	private ObjectMapper objectMapper;
+	private Map<String, List<String>> friendsSongs;
+	private ApiResponse response;
+
+	@Setup
+	public void createFeed() {
+		request = new MockHttpServletRequest("GET", "/getAllFriendFavouriteSongTitles/alice");
+		request.setServerPort(3002);
+
+		friendsSongs = new HashMap<>();
+		for (int i = 0; i < friends; i++) {
+			List<String> songTitles = new ArrayList<>();
+			for (int j = 0; j < 10; j++) {
+				songTitles.add("Song title " + (i * 10 + j));
+			}
+			friendsSongs.put("friend-" + i, songTitles);
+		}
+
+		objectMapper = new ObjectMapper();
+		response = setResponseStatus().getBody();
+	}
+
+	@Benchmark
+	public String getUrl() {
+		return Utils.getUrl(request);
+	}
+
+	@Benchmark
+	public DbQueryStatus buildDbQueryStatus() {
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Successfully retrieved songs liked by friends", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(friendsSongs);
+		return dbQueryStatus;
+	}
+
+	@Benchmark
+	public ResponseEntity<ApiResponse> setResponseStatus() {
+		ApiResponse response = new ApiResponse("http://localhost:3002/getAllFriendFavouriteSongTitles/alice");
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, friendsSongs);
+	}
+
+	@Benchmark
+	public byte[] serializeResponse() throws Exception {
+		return objectMapper.writeValueAsBytes(response);
+	}
+
+	@Benchmark
+	public byte[] respond() throws Exception {
+		ApiResponse response = new ApiResponse(Utils.getUrl(request));
+		return objectMapper.writeValueAsBytes(Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, friendsSongs).getBody());
+	}
+
+	// With profile.response.include-path turned off
+	@Benchmark
+	public byte[] respondWithoutPath() throws Exception {
+		ApiResponse response = new ApiResponse(null);
+		return objectMapper.writeValueAsBytes(Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, friendsSongs).getBody());
+	}
+}
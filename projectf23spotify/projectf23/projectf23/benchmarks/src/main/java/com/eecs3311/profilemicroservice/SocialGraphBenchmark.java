@@ -0,0 +1,158 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The paths that used to be Cypher traversals and are now served from memory: friends' feeds from {@link SocialGraph}
+ * and {@link FriendFeedStore}, follow counts, patching a follow in, recommendations, and building the graph from the
+ * records Neo4j returns. The graph is read from {@link StandInNeo4j}, the same seed always gives the same graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SocialGraphBenchmark {
+
+	@Param({"10000"})
+	public int users;
+
+	@Param({"50"})
+	public int followsPerUser;
+
+	@Param({"20"})
+	public int likesPerUser;
+
+	private StandInNeo4j neo4j;
+	private SocialGraph socialGraph;
+	private FriendFeedStore friendFeedStore;
+	private RecommendationEngine recommendationEngine;
+	private int next;
+
+	@Setup
+	public void buildGraph() {
+		int songs = users * 5;
+		Random random = new Random(42);
+		List<Object[]> userRows = new ArrayList<>();
+		List<Object[]> songRows = new ArrayList<>();
+		List<Object[]> followRows = new ArrayList<>();
+		List<Object[]> likeRows = new ArrayList<>();
+		Map<String, List<String>> follows = new HashMap<>();
+		Map<String, List<String>> likes = new HashMap<>();
+
+		for (int i = 0; i < songs; i++) {
+			songRows.add(new Object[] {"song-" + i});
+		}
+		for (int i = 0; i < users; i++) {
+			String userName = "user-" + i;
+			userRows.add(new Object[] {userName});
+			follows.put(userName, new ArrayList<>());
+			likes.put(userName, new ArrayList<>());
+			for (int j = 0; j < followsPerUser; j++) {
+				String friendUserName = "user-" + random.nextInt(users);
+				followRows.add(new Object[] {userName, friendUserName});
+				follows.get(userName).add(friendUserName);
+			}
+			for (int j = 0; j < likesPerUser; j++) {
+				String songId = "song-" + random.nextInt(songs);
+				likeRows.add(new Object[] {userName, songId});
+				likes.get(userName).add(songId);
+			}
+		}
+
+		neo4j = new StandInNeo4j()
+				.answer(SocialGraph.ALL_USERS, Collections.singletonList("userName"), userRows)
+				.answer(SocialGraph.ALL_SONGS, Collections.singletonList("songId"), songRows)
+				.answer(SocialGraph.ALL_FOLLOWS, Arrays.asList("userName", "friendUserName"), followRows)
+				.answer(SocialGraph.ALL_LIKES, Arrays.asList("userName", "songId"), likeRows);
+		socialGraph = newSocialGraph();
+		socialGraph.rebuild(neo4j::session);
+
+		friendFeedStore = new FriendFeedStore(Long.MAX_VALUE, Long.MAX_VALUE, TimeUnit.DAYS.toSeconds(1));
+		for (String userName : follows.keySet()) {
+			friendFeedStore.installUser(friendFeedStore.startLoad(), userName, follows.get(userName), likes.get(userName));
+		}
+
+		LatencyMetrics latencyMetrics = new LatencyMetrics(new SimpleMeterRegistry());
+		SongTitleCache songTitleCache = new SongTitleCache(new StandInSongServiceClient(latencyMetrics), 100000, 600, 60);
+		recommendationEngine = new RecommendationEngine(socialGraph, friendFeedStore, songTitleCache, latencyMetrics,
+				1.0, 0.5, 10000, 100, TimeUnit.SECONDS.toMillis(10), 4);
+	}
+
+	@TearDown
+	public void close() {
+		socialGraph.close();
+		recommendationEngine.close();
+	}
+
+	private String nextUser() {
+		next = (next + 1) % users;
+		return "user-" + next;
+	}
+
+	@Benchmark
+	public Map<String, Collection<String>> feedFromSocialGraph() {
+		return socialGraph.getFeed(nextUser());
+	}
+
+	@Benchmark
+	public Map<String, Collection<String>> feedFromFriendFeedStore() {
+		return friendFeedStore.getFeed(nextUser());
+	}
+
+	@Benchmark
+	public Map<String, Object> followCounts() {
+		return socialGraph.getFollowCounts(nextUser());
+	}
+
+	// Leaves the overlay as it found it, so every invocation patches the same edge in and out
+	@Benchmark
+	public void followThenUnfollow() {
+		String userName = nextUser();
+		socialGraph.followed(userName, "user-0");
+		socialGraph.unfollowed(userName, "user-0");
+	}
+
+	@Benchmark
+	public DbQueryStatus recommendedSongs() {
+		return recommendationEngine.getRecommendedSongs(nextUser(), 10);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public SocialGraph buildFromNeo4jRecords() {
+		SocialGraph rebuilt = newSocialGraph();
+		rebuilt.rebuild(neo4j::session);
+		rebuilt.close();
+		return rebuilt;
+	}
+
+	private static SocialGraph newSocialGraph() {
+		return new SocialGraph(true, Integer.MAX_VALUE, TimeUnit.DAYS.toMillis(1), TimeUnit.SECONDS.toMillis(5));
+	}
+
+	// Every song has a title, so recommendations never leave the process
+	private static final class StandInSongServiceClient extends SongServiceClient {
+
+		StandInSongServiceClient(LatencyMetrics latencyMetrics) {
+			super(latencyMetrics, "http://localhost:3001", 1000, 5000, 1, 1000, 1);
+		}
+
+		@Override
+		public CompletableFuture<String> getSongTitleById(String songId) {
+			return CompletableFuture.completedFuture("Title of " + songId);
+		}
+
+		@Override
+		public CompletableFuture<Map<String, String>> getSongTitlesByIds(Collection<String> songIds) {
+			Map<String, String> titles = new HashMap<>();
+			for (String songId : songIds) {
+				titles.put(songId, "Title of " + songId);
+			}
+			return CompletableFuture.completedFuture(titles);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.eecs3311.profilemicroservice;
+
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.driver.v1.exceptions.NoSuchRecordException;
+import org.neo4j.driver.v1.summary.ResultSummary;
+import org.neo4j.driver.v1.util.Function;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Answers Cypher statements with canned records instead of a Neo4j server. The records are the driver's own, so the
+ * code reading them does the same work it does with a real result, only the Bolt round trip is left out.
+ *
+ * The service's driver is created when ProfileMicroserviceApplication is loaded and fails without a server, so the
+ * benchmarks only use the classes that take their sessions from outside.
+ */
+class StandInNeo4j {
+
+	private final Map<String, List<Record>> results = new HashMap<>();
+
+	// Records with the given keys, each row holds one value per key
+	StandInNeo4j answer(String statement, List<String> keys, List<Object[]> rows) {
+		List<Record> records = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			Value[] values = new Value[row.length];
+			for (int i = 0; i < row.length; i++) {
+				values[i] = Values.value(row[i]);
+			}
+			records.add(new InternalRecord(keys, values));
+		}
+		results.put(statement, records);
+		return this;
+	}
+
+	// A session that runs the answered statements and nothing else
+	Session session() {
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "run":
+					List<Record> records = results.get((String) args[0]);
+					if (records == null) {
+						throw new UnsupportedOperationException("No stand-in result for " + args[0]);
+					}
+					return new Result(records);
+				case "close":
+					return null;
+				case "isOpen":
+					return true;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static final class Result implements StatementResult {
+		private final List<Record> records;
+		private int next;
+
+		Result(List<Record> records) {
+			this.records = records;
+		}
+
+		@Override
+		public List<String> keys() {
+			return records.isEmpty() ? Collections.emptyList() : records.get(0).keys();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < records.size();
+		}
+
+		@Override
+		public Record next() {
+			if (!hasNext()) {
+				throw new NoSuchRecordException("No more records");
+			}
+			return records.get(next++);
+		}
+
+		@Override
+		public Record single() {
+			if (records.size() - next != 1) {
+				throw new NoSuchRecordException("Expected a single record");
+			}
+			return next();
+		}
+
+		@Override
+		public Record peek() {
+			return hasNext() ? records.get(next) : null;
+		}
+
+		@Override
+		public Stream<Record> stream() {
+			return list().stream();
+		}
+
+		@Override
+		public List<Record> list() {
+			List<Record> rest = new ArrayList<>(records.subList(next, records.size()));
+			next = records.size();
+			return rest;
+		}
+
+		@Override
+		public <T> List<T> list(Function<Record, T> mapFunction) {
+			List<T> rest = new ArrayList<>();
+			while (hasNext()) {
+				rest.add(mapFunction.apply(next()));
+			}
+			return rest;
+		}
+
+		@Override
+		public ResultSummary consume() {
+			next = records.size();
+			return null;
+		}
+
+		@Override
+		public ResultSummary summary() {
+			return null;
+		}
+	}
+}
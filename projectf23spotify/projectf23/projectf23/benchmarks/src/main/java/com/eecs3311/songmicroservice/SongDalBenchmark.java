@@ -0,0 +1,82 @@
+package com.eecs3311.songmicroservice;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SongDalImpl's read, like and stream paths against {@link StandInMongoTemplate}, so only the work done in this
+ * service is measured and not the round trip to MongoDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SongDalBenchmark {
+
+	private static final int SONGS = 10000;
+
+	@Param({"25"})
+	public int titlesPerLookup;
+
+	private SongDalImpl songDal;
+	private String[] songIds;
+	private List<String> titleLookup;
+	private int next;
+
+	@Setup
+	public void insertSongs() {
+		StandInMongoTemplate db = new StandInMongoTemplate();
+		SongLeaderboard songLeaderboard = new SongLeaderboard(db, 100, TimeUnit.DAYS.toMillis(1));
+		StreamCountBuffer streamCountBuffer = new StreamCountBuffer(db, songLeaderboard, false, 1000, 1000, 10000, 30);
+		songDal = new SongDalImpl(db, streamCountBuffer, songLeaderboard, new SongSearchIndex(db, 5000, 100000, 100, 0.25));
+
+		songIds = new String[SONGS];
+		for (int i = 0; i < SONGS; i++) {
+			Song song = new Song("Song " + i, "Artist " + (i % 500), "Album " + (i % 2000));
+			db.insert(song);
+			songIds[i] = song.getId();
+		}
+
+		titleLookup = new ArrayList<>(titlesPerLookup);
+		for (int i = 0; i < titlesPerLookup; i++) {
+			titleLookup.add(songIds[i * (SONGS / titlesPerLookup)]);
+		}
+	}
+
+	private String nextSongId() {
+		next = (next + 1) % SONGS;
+		return songIds[next];
+	}
+
+	@Benchmark
+	public DbQueryStatus findSongById() {
+		return songDal.findSongById(nextSongId());
+	}
+
+	@Benchmark
+	public DbQueryStatus getSongTitleById() {
+		return songDal.getSongTitleById(nextSongId());
+	}
+
+	@Benchmark
+	public DbQueryStatus getSongTitlesByIds() {
+		return songDal.getSongTitlesByIds(titleLookup);
+	}
+
+	@Benchmark
+	public DbQueryStatus likeSong() {
+		return songDal.updateSongFavouritesCount(nextSongId(), false);
+	}
+
+	@Benchmark
+	public DbQueryStatus incrementStreamCount() {
+		return songDal.incrementStreamCount(nextSongId());
+	}
+
+	@Benchmark
+	public DbQueryStatus invalidSongId() {
+		return songDal.findSongById("not-an-object-id");
+	}
+}
@@ -0,0 +1,96 @@
+package com.eecs3311.songmicroservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work every song endpoint does around the database call: reading the request URL, building the DbQueryStatus and
+ * the response, and serializing it the way Spring's message converter does. respond is all of it for getSongById.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SongResponseBenchmark {
+
+	private Song song;
+	private MockHttpServletRequest request;
+	private ObjectMapper objectMapper;
+	private ApiResponse response;
+
+	@Setup
+	public void createSong() {
+		song = new Song("Bohemian Rhapsody", "Queen", "A Night at the Opera");
+		song.setId(new ObjectId());
+		song.setSongAmountFavourites(1234);
+		song.setStreamCount(567890);
+
+		request = new MockHttpServletRequest("GET", "/getSongById/" + song.getId());
+		request.setServerPort(3001);
+		request.setQueryString("fields=songName,songArtistFullName");
+
+		// Spring Boot's converter uses a default ObjectMapper with the same settings for these types
+		objectMapper = new ObjectMapper();
+		response = songResponse();
+	}
+
+	@Benchmark
+	public Map<String, String> getJsonRepresentation() {
+		return song.getJsonRepresentation();
+	}
+
+	@Benchmark
+	public String songToString() {
+		return song.toString();
+	}
+
+	@Benchmark
+	public String getPath() {
+		return Utils.getPath("GET", request);
+	}
+
+	@Benchmark
+	public DbQueryStatus buildDbQueryStatus() {
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Song found", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(song);
+		return dbQueryStatus;
+	}
+
+	@Benchmark
+	public ResponseEntity<ApiResponse> setResponseStatus() {
+		ApiResponse response = new ApiResponse("GET http://localhost:3001/getSongById/" + song.getId());
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, song);
+	}
+
+	@Benchmark
+	public byte[] serializeResponse() throws Exception {
+		return objectMapper.writeValueAsBytes(response);
+	}
+
+	@Benchmark
+	public byte[] respond() throws Exception {
+		return objectMapper.writeValueAsBytes(getSongById(Utils.getPath("GET", request)).getBody());
+	}
+
+	// With song.response.include-path turned off
+	@Benchmark
+	public byte[] respondWithoutPath() throws Exception {
+		return objectMapper.writeValueAsBytes(getSongById(null).getBody());
+	}
+
+	// What getSongById puts in its response body
+	private ApiResponse songResponse() {
+		return getSongById(Utils.getPath("GET", request)).getBody();
+	}
+
+	private ResponseEntity<ApiResponse> getSongById(String path) {
+		ApiResponse response = new ApiResponse(path);
+		response.setMessage("Song found");
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, song);
+	}
+}
@@ -0,0 +1,119 @@
+package com.eecs3311.songmicroservice;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A MongoTemplate that keeps songs in a map instead of sending anything to a server, so the benchmarks measure what
+ * SongDalImpl itself does: building queries and updates, mapping results and building responses. Only the calls
+ * SongDalImpl makes on its read, like and stream paths are answered, and only for queries on _id.
+ */
+class StandInMongoTemplate extends MongoTemplate {
+
+	private final Map<ObjectId, Song> songs = new ConcurrentHashMap<>();
+
+	StandInMongoTemplate() {
+		// The client never connects, nothing is sent through it
+		super(new MongoClient(new ServerAddress("localhost", 27017), MongoClientOptions.builder().build()), "benchmarks");
+	}
+
+	@Override
+	public <T> T insert(T objectToSave) {
+		Song song = (Song) objectToSave;
+		if (song._id == null) {
+			song.setId(new ObjectId());
+		}
+		songs.put(song._id, song);
+		return objectToSave;
+	}
+
+	@Override
+	public <T> T findById(Object id, Class<T> entityClass) {
+		return entityClass.cast(copy(songs.get(id)));
+	}
+
+	@Override
+	public <T> List<T> find(Query query, Class<T> entityClass) {
+		List<T> found = new ArrayList<>();
+		for (ObjectId id : ids(query)) {
+			Song song = songs.get(id);
+			if (song != null) {
+				found.add(entityClass.cast(copy(song)));
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public boolean exists(Query query, Class<?> entityClass) {
+		for (ObjectId id : ids(query)) {
+			if (songs.containsKey(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Applies $inc to the song and returns the new document, like returnNew(true)
+	@Override
+	public <T> T findAndModify(Query query, Update update, FindAndModifyOptions options, Class<T> entityClass) {
+		ObjectId id = ids(query).get(0);
+		Document inc = (Document) update.getUpdateObject().get("$inc");
+		Song[] updated = new Song[1];
+		songs.computeIfPresent(id, (ignored, song) -> {
+			Object favourites = inc.get("songAmountFavourites");
+			Object streams = inc.get("streamCount");
+			if (favourites != null) {
+				long count = song.getSongAmountFavourites() + ((Number) favourites).longValue();
+				if (count < 0) {
+					return song;
+				}
+				song.setSongAmountFavourites(count);
+			}
+			if (streams != null) {
+				song.setStreamCount(song.getStreamCount() + ((Number) streams).longValue());
+			}
+			updated[0] = copy(song);
+			return song;
+		});
+		return entityClass.cast(updated[0]);
+	}
+
+	// The _id of a query built with is() or in()
+	@SuppressWarnings("unchecked")
+	private static List<ObjectId> ids(Query query) {
+		Object id = query.getQueryObject().get("_id");
+		List<ObjectId> ids = new ArrayList<>();
+		if (id instanceof Document) {
+			ids.addAll((Collection<ObjectId>) ((Document) id).get("$in"));
+		} else {
+			ids.add((ObjectId) id);
+		}
+		return ids;
+	}
+
+	// Every read returns a new object, as a driver decoding a document would
+	private static Song copy(Song song) {
+		if (song == null) {
+			return null;
+		}
+		Song copy = new Song(song.getSongName(), song.getSongArtistFullName(), song.getSongAlbum());
+		copy.setId(song._id);
+		copy.setSongAmountFavourites(song.getSongAmountFavourites());
+		copy.setStreamCount(song.getStreamCount());
+		return copy;
+	}
+}
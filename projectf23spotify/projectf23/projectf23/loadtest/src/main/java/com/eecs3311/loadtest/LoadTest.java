@@ -0,0 +1,99 @@
+package com.eecs3311.loadtest;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the Postman collection against both services at a fixed open-loop rate and reports latency percentiles
+ * and error rates per operation, for example
+ *
+ *     java -jar target/loadtest.jar --mix=like-storm --rate=500 --duration-seconds=60
+ *
+ * By default the databases are in-process stand-ins and the services are started from their packaged jars, so a run
+ * needs nothing installed or running. With --external the services (and their databases) must already be running on
+ * localhost:3001 and localhost:3002.
+ */
+public class LoadTest {
+
+	private static final long STARTUP_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		options.put("mix", "read-heavy");
+		options.put("rate", "200");
+		options.put("duration-seconds", "60");
+		options.put("warmup-seconds", "15");
+		options.put("songs", "1000");
+		options.put("users", "200");
+		options.put("follows-per-user", "10");
+		options.put("likes-per-user", "20");
+		options.put("collection", "../../../../SPOTIFY MOCK PROJECT.postman_collection.json");
+		options.put("song-jar", "../song-microservice/target/song-microservice-0.0.1-SNAPSHOT.jar");
+		options.put("profile-jar", "../profile-microservice/target/profile-microservice-0.0.1-SNAPSHOT.jar");
+		options.put("results", "results");
+		options.put("external", "false");
+		for (String arg : args) {
+			String[] option = arg.replaceFirst("^--", "").split("=", 2);
+			if (!options.containsKey(option[0])) {
+				throw new IllegalArgumentException("Unknown option " + arg + ", options are " + options.keySet());
+			}
+			options.put(option[0], option.length == 2 ? option[1] : "true");
+		}
+
+		Mix mix = Mix.named(options.get("mix"));
+		int rate = Integer.parseInt(options.get("rate"));
+		int durationSeconds = Integer.parseInt(options.get("duration-seconds"));
+		int warmupSeconds = Integer.parseInt(options.get("warmup-seconds"));
+		File results = new File(options.get("results"));
+		results.mkdirs();
+		PostmanCollection collection = new PostmanCollection(Paths.get(options.get("collection")));
+
+		// The generator never waits for a response, so the dispatcher must not queue requests behind a small limit
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(4096);
+		dispatcher.setMaxRequestsPerHost(4096);
+		OkHttpClient client = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.readTimeout(1, TimeUnit.MINUTES)
+				.build();
+
+		File scratch = Files.createTempDirectory("loadtest").toFile();
+		StandIns standIns = null;
+		Services services = null;
+		try {
+			if (!Boolean.parseBoolean(options.get("external"))) {
+				standIns = new StandIns(new File(scratch, "neo4j"));
+				services = new Services(new File(options.get("song-jar")), new File(options.get("profile-jar")), results, scratch);
+				services.awaitReady(client, STARTUP_TIMEOUT_MS);
+				System.out.println("Services running, logs are in " + results);
+			}
+
+			TestData testData = new TestData(collection, client);
+			testData.seed(Integer.parseInt(options.get("songs")), Integer.parseInt(options.get("users")),
+					Integer.parseInt(options.get("follows-per-user")), Integer.parseInt(options.get("likes-per-user")));
+
+			System.out.println("Running " + mix.name + " at " + rate + " requests/s, " + warmupSeconds + " s warmup, "
+					+ durationSeconds + " s measured, against " + testData.getSongCount() + " songs and "
+					+ testData.getUserCount() + " users");
+			OpenLoopGenerator generator = new OpenLoopGenerator(client, testData, mix);
+			generator.run(rate, warmupSeconds, durationSeconds, new File(results, mix.name + ".hlog"));
+			generator.report(results, durationSeconds);
+		} finally {
+			if (services != null) {
+				services.close();
+			}
+			if (standIns != null) {
+				standIns.close();
+			}
+			client.dispatcher().executorService().shutdown();
+			client.connectionPool().evictAll();
+		}
+	}
+}
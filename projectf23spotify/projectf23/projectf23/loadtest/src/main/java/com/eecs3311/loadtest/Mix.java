@@ -0,0 +1,70 @@
+package com.eecs3311.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Weighted workload mixes, each picks the next operation at random in proportion to its weight.
+ */
+enum Mix {
+	// Browsing: song lookups and the friends' favourites feed, with the odd like
+	READ_HEAVY("read-heavy", new Object[][] {
+			{Operation.GET_SONG_BY_ID, 40},
+			{Operation.GET_SONG_TITLE_BY_ID, 20},
+			{Operation.GET_FRIENDS_SONGS, 25},
+			{Operation.GET_MOST_RECENT_SONG, 10},
+			{Operation.LIKE_SONG, 3},
+			{Operation.UNLIKE_SONG, 2}}),
+
+	// A release everyone likes at once, each like and unlike also updates the song's favourites count
+	LIKE_STORM("like-storm", new Object[][] {
+			{Operation.LIKE_SONG, 45},
+			{Operation.UNLIKE_SONG, 45},
+			{Operation.GET_FRIENDS_SONGS, 10}}),
+
+	// Everyone listening at once
+	STREAM_STORM("stream-storm", new Object[][] {
+			{Operation.UPDATE_LAST_LISTENED_SONG, 70},
+			{Operation.INCREMENT_STREAM_COUNT, 20},
+			{Operation.GET_MOST_RECENT_SONG, 10}});
+
+	final String name;
+	private final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+	private final Operation[] byWeight;
+
+	Mix(String name, Object[][] weights) {
+		this.name = name;
+		int total = 0;
+		for (Object[] weight : weights) {
+			this.weights.put((Operation) weight[0], (Integer) weight[1]);
+			total += (Integer) weight[1];
+		}
+
+		// One slot per unit of weight, so picking is a single array lookup
+		byWeight = new Operation[total];
+		int slot = 0;
+		for (Map.Entry<Operation, Integer> weight : this.weights.entrySet()) {
+			for (int i = 0; i < weight.getValue(); i++) {
+				byWeight[slot++] = weight.getKey();
+			}
+		}
+	}
+
+	Operation next(Random random) {
+		return byWeight[random.nextInt(byWeight.length)];
+	}
+
+	Map<Operation, Integer> getWeights() {
+		return weights;
+	}
+
+	static Mix named(String name) {
+		for (Mix mix : values()) {
+			if (mix.name.equals(name)) {
+				return mix;
+			}
+		}
+		throw new IllegalArgumentException("Unknown mix " + name + ", expected read-heavy, like-storm or stream-storm");
+	}
+}
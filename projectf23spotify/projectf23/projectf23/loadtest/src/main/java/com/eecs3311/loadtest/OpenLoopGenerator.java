@@ -0,0 +1,214 @@
+package com.eecs3311.loadtest;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a fixed rate whether or not earlier ones have been answered, as independent users would.
+ *
+ * Every request has an intended start time on the schedule, and its latency is measured from then rather than from
+ * when it was actually sent. A stall in the services then shows up in every request it delayed instead of just the
+ * one that was waiting, which is what a closed loop of waiting clients hides (coordinated omission).
+ */
+class OpenLoopGenerator {
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final double NANOS_PER_MS = 1_000_000.0;
+
+	private final OkHttpClient client;
+	private final TestData testData;
+	private final Mix mix;
+
+	private final Recorder totalRecorder = new Recorder(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+	private final Histogram total = new Histogram(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+	private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+	private final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+	private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	// Requests intended before this are warmup, their latencies are not recorded
+	private volatile long measureFromNanos;
+
+	OpenLoopGenerator(OkHttpClient client, TestData testData, Mix mix) {
+		this.client = client;
+		this.testData = testData;
+		this.mix = mix;
+		for (Operation operation : mix.getWeights().keySet()) {
+			recorders.put(operation, new Recorder(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS));
+			histograms.put(operation, new Histogram(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS));
+			errors.put(operation, new LongAdder());
+		}
+		// A like or unlike can turn into the other when the user has liked every song or none
+		for (Operation operation : new Operation[] {Operation.LIKE_SONG, Operation.UNLIKE_SONG}) {
+			recorders.putIfAbsent(operation, new Recorder(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS));
+			histograms.putIfAbsent(operation, new Histogram(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS));
+			errors.putIfAbsent(operation, new LongAdder());
+		}
+	}
+
+	/**
+	 * Runs the warmup then the measurement at the rate, writing each second's latencies to the interval log.
+	 */
+	void run(int ratePerSecond, int warmupSeconds, int durationSeconds, File intervalLog) throws Exception {
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+		long start = System.nanoTime();
+		measureFromNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		long end = measureFromNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+		Thread logger = new Thread(() -> logIntervals(intervalLog), "interval-log");
+		logger.setDaemon(true);
+		Random random = new Random(3311);
+
+		for (long i = 0; ; i++) {
+			long intendedStart = start + i * intervalNanos;
+			if (intendedStart >= end) {
+				break;
+			}
+			long wait;
+			while ((wait = intendedStart - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			if (intendedStart >= measureFromNanos && !logger.isAlive()) {
+				System.out.println("Warmup done, measuring for " + durationSeconds + " s");
+				logger.start();
+			}
+
+			TestData.Planned planned = testData.request(mix.next(random), random);
+			send(planned.operation, planned.request, intendedStart);
+		}
+
+		// Requests still in flight belong to the measurement, a stall at the end must not be cut off
+		long deadline = System.nanoTime() + MAX_LATENCY_NANOS;
+		while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		logger.interrupt();
+		logger.join();
+	}
+
+	private void send(Operation operation, Request request, long intendedStart) {
+		inFlight.incrementAndGet();
+		client.newCall(request).enqueue(new Callback() {
+			@Override
+			public void onResponse(Call call, Response response) {
+				try {
+					// Reading the body is part of the request
+					response.body().bytes();
+					record(operation, intendedStart, response.isSuccessful());
+				} catch (IOException e) {
+					record(operation, intendedStart, false);
+				} finally {
+					response.close();
+					inFlight.decrementAndGet();
+				}
+			}
+
+			@Override
+			public void onFailure(Call call, IOException e) {
+				record(operation, intendedStart, false);
+				inFlight.decrementAndGet();
+			}
+		});
+	}
+
+	private void record(Operation operation, long intendedStart, boolean successful) {
+		if (intendedStart < measureFromNanos) {
+			return;
+		}
+		long latency = Math.min(System.nanoTime() - intendedStart, MAX_LATENCY_NANOS);
+		recorders.get(operation).recordValue(latency);
+		totalRecorder.recordValue(latency);
+		if (!successful) {
+			errors.get(operation).increment();
+		}
+	}
+
+	// Writes the total and every operation's latencies once a second, tagged by operation, until interrupted
+	private void logIntervals(File intervalLog) {
+		try (PrintStream out = new PrintStream(intervalLog)) {
+			HistogramLogWriter writer = new HistogramLogWriter(out);
+			long startMs = System.currentTimeMillis();
+			writer.outputLogFormatVersion();
+			writer.outputStartTime(startMs);
+			writer.setBaseTime(startMs);
+			writer.outputLegend();
+
+			boolean running = true;
+			while (running) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				Histogram interval = totalRecorder.getIntervalHistogram();
+				total.add(interval);
+				writer.outputIntervalHistogram(interval);
+				for (Map.Entry<Operation, Recorder> recorder : recorders.entrySet()) {
+					interval = recorder.getValue().getIntervalHistogram();
+					histograms.get(recorder.getKey()).add(interval);
+					interval.setTag(recorder.getKey().name());
+					writer.outputIntervalHistogram(interval);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			throw new IllegalStateException("Could not write " + intervalLog, e);
+		}
+	}
+
+	/**
+	 * Prints a summary table and writes the full percentile distribution of the total and of each operation, in ms.
+	 */
+	void report(File resultsDirectory, int durationSeconds) throws IOException {
+		String format = "%-28s %9s %8s %8s %10s %10s %10s %10s%n";
+		System.out.printf(format, "operation", "requests", "errors", "error %", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+
+		long totalErrors = 0;
+		for (Map.Entry<Operation, Histogram> entry : histograms.entrySet()) {
+			long operationErrors = errors.get(entry.getKey()).sum();
+			totalErrors += operationErrors;
+			if (entry.getValue().getTotalCount() > 0) {
+				printRow(format, entry.getKey().name().toLowerCase(), entry.getValue(), operationErrors);
+				writeDistribution(entry.getValue(), new File(resultsDirectory, mix.name + "-" + entry.getKey().name().toLowerCase() + ".hgrm"));
+			}
+		}
+		printRow(format, "total", total, totalErrors);
+		writeDistribution(total, new File(resultsDirectory, mix.name + ".hgrm"));
+		System.out.printf("Achieved %.1f requests/s%n", total.getTotalCount() / (double) durationSeconds);
+	}
+
+	private static void printRow(String format, String name, Histogram histogram, long errors) {
+		long count = histogram.getTotalCount();
+		System.out.printf(format, name, count, errors, String.format("%.2f", count == 0 ? 0.0 : 100.0 * errors / count),
+				ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(99)),
+				ms(histogram.getValueAtPercentile(99.9)), ms(histogram.getMaxValue()));
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.2f", nanos / NANOS_PER_MS);
+	}
+
+	private static void writeDistribution(Histogram histogram, File file) throws IOException {
+		try (PrintStream out = new PrintStream(file)) {
+			histogram.outputPercentileDistribution(out, NANOS_PER_MS);
+		}
+	}
+}
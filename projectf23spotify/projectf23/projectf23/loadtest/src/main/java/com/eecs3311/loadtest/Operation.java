@@ -0,0 +1,23 @@
+package com.eecs3311.loadtest;
+
+/**
+ * The requests the load test sends, each named after the Postman collection request it is built from.
+ */
+enum Operation {
+	GET_SONG_BY_ID("Get Song By ID (Returns all song info)", Services.SONG_URL),
+	GET_SONG_TITLE_BY_ID("getsongtitlebyid", Services.SONG_URL),
+	INCREMENT_STREAM_COUNT("incrementstreamcount (NEW FEATURE)", Services.SONG_URL),
+	LIKE_SONG("Like", Services.PROFILE_URL),
+	UNLIKE_SONG("Unlike", Services.PROFILE_URL),
+	GET_FRIENDS_SONGS("GetAllFriendsSongs", Services.PROFILE_URL),
+	UPDATE_LAST_LISTENED_SONG("AddLastListenedToSong (NEW FEATURE)", Services.PROFILE_URL),
+	GET_MOST_RECENT_SONG("GETMOSTRECENTTRACK (NEW FEATURE)", Services.PROFILE_URL);
+
+	final String collectionName;
+	final String baseUrl;
+
+	Operation(String collectionName, String baseUrl) {
+		this.collectionName = collectionName;
+		this.baseUrl = baseUrl;
+	}
+}
@@ -0,0 +1,98 @@
+package com.eecs3311.loadtest;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The requests in the Postman collection, by name. Each is kept as a template: the load test swaps in real song ids
+ * and user names for the placeholder values in its path and body.
+ */
+class PostmanCollection {
+
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	private final Map<String, Template> requests = new HashMap<>();
+
+	PostmanCollection(Path file) throws IOException {
+		JSONObject collection = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		read(collection.getJSONArray("item"));
+	}
+
+	// Items can be nested in folders
+	private void read(JSONArray items) {
+		for (int i = 0; i < items.length(); i++) {
+			JSONObject item = items.getJSONObject(i);
+			if (item.has("item")) {
+				read(item.getJSONArray("item"));
+			} else {
+				requests.put(item.getString("name"), new Template(item.getJSONObject("request")));
+			}
+		}
+	}
+
+	Template get(String name) {
+		Template template = requests.get(name);
+		if (template == null) {
+			throw new IllegalArgumentException("The collection has no request named " + name);
+		}
+		return template;
+	}
+
+	static final class Template {
+		final String method;
+		final String path;
+		private final JSONObject body;
+
+		private Template(JSONObject request) {
+			method = request.getString("method");
+			Object url = request.get("url");
+			String raw = url instanceof JSONObject ? ((JSONObject) url).getString("raw") : url.toString();
+
+			// localhost:3001//incrementStreamCount/id becomes /incrementStreamCount/id, the host comes from the target
+			String withoutHost = raw.replaceFirst("^(https?://)?[^/]*", "");
+			path = withoutHost.replaceAll("/{2,}", "/").replaceAll("/$", "");
+
+			JSONObject requestBody = request.optJSONObject("body");
+			String rawBody = requestBody == null ? "" : requestBody.optString("raw", "").trim();
+			// Some bodies have // comments, which are not JSON
+			body = rawBody.isEmpty() ? null : new JSONObject(rawBody.replaceAll("(?m)//[^\\n\"]*$", ""));
+		}
+
+		/**
+		 * Builds the request against baseUrl. A non-null pathValue replaces the last path segment, and every body field
+		 * named in bodyValues is replaced, so the template's placeholders never reach the services.
+		 */
+		Request build(String baseUrl, String pathValue, Map<String, Object> bodyValues) {
+			String requestPath = path;
+			if (pathValue != null) {
+				requestPath = path.substring(0, path.lastIndexOf('/') + 1) + pathValue;
+			}
+
+			RequestBody requestBody = null;
+			if (body != null) {
+				JSONObject filled = new JSONObject(body.toString());
+				for (Iterator<String> keys = filled.keys(); keys.hasNext(); ) {
+					String key = keys.next();
+					if (bodyValues.containsKey(key)) {
+						filled.put(key, bodyValues.get(key));
+					}
+				}
+				requestBody = RequestBody.create(JSON, filled.toString());
+			} else if (!method.equals("GET") && !method.equals("DELETE")) {
+				requestBody = RequestBody.create(JSON, "");
+			}
+			return new Request.Builder().url(baseUrl + requestPath).method(method, requestBody).build();
+		}
+	}
+}
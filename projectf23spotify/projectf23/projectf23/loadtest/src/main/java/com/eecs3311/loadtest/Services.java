@@ -0,0 +1,82 @@
+package com.eecs3311.loadtest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs both services from their packaged jars as child processes, each logging to a file in the results directory.
+ * They are started exactly as they are deployed, only the listening history is kept in a scratch directory.
+ */
+class Services implements AutoCloseable {
+
+	static final String SONG_URL = "http://localhost:3001";
+	static final String PROFILE_URL = "http://localhost:3002";
+
+	private final List<Process> processes = new ArrayList<>();
+
+	Services(File songJar, File profileJar, File resultsDirectory, File scratchDirectory) throws IOException {
+		for (File jar : Arrays.asList(songJar, profileJar)) {
+			if (!jar.isFile()) {
+				throw new IOException(jar + " does not exist, build it with mvn package -DskipTests");
+			}
+		}
+
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		processes.add(new ProcessBuilder(java, "-jar", profileJar.getAbsolutePath(),
+				"--profile.listening-history.dir=" + new File(scratchDirectory, "listening-history").getAbsolutePath())
+				.redirectErrorStream(true)
+				.redirectOutput(new File(resultsDirectory, "profile-microservice.log"))
+				.start());
+		processes.add(new ProcessBuilder(java, "-jar", songJar.getAbsolutePath())
+				.redirectErrorStream(true)
+				.redirectOutput(new File(resultsDirectory, "song-microservice.log"))
+				.start());
+	}
+
+	// Waits until both services answer, fails if either exits or takes longer than the timeout
+	void awaitReady(OkHttpClient client, long timeoutMs) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for (String url : Arrays.asList(SONG_URL + "/getSongCacheStats", PROFILE_URL + "/getSocialGraphStats")) {
+			while (!answers(client, url)) {
+				for (Process process : processes) {
+					if (!process.isAlive()) {
+						throw new IllegalStateException("A service exited during startup, see its log in the results directory");
+					}
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("Timed out waiting for " + url);
+				}
+				Thread.sleep(500);
+			}
+		}
+	}
+
+	private static boolean answers(OkHttpClient client, String url) {
+		try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+			return response.isSuccessful();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		for (Process process : processes) {
+			process.destroy();
+		}
+		for (Process process : processes) {
+			if (!process.waitFor(30, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.eecs3311.loadtest;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.neo4j.harness.ServerControls;
+import org.neo4j.harness.TestServerBuilders;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+
+/**
+ * In-process stand-ins for the two databases, listening where the services expect them: an in-memory MongoDB on
+ * localhost:27017 and an embedded Neo4j with Bolt on localhost:7687. Both start empty and nothing outlives close().
+ */
+class StandIns implements AutoCloseable {
+
+	static final int MONGO_PORT = 27017;
+	static final int BOLT_PORT = 7687;
+
+	private final MongoServer mongo;
+	private final ServerControls neo4j;
+
+	StandIns(File workingDirectory) {
+		mongo = new MongoServer(new MemoryBackend());
+		mongo.bind(new InetSocketAddress("localhost", MONGO_PORT));
+
+		// Auth is off, the password the profile service sends is ignored
+		neo4j = TestServerBuilders.newInProcessBuilder(workingDirectory)
+				.withConfig("dbms.connector.bolt.listen_address", "localhost:" + BOLT_PORT)
+				.withConfig("dbms.connector.http.enabled", "false")
+				.withConfig("dbms.connector.https.enabled", "false")
+				.newServer();
+		System.out.println("Stand-ins running: MongoDB on localhost:" + MONGO_PORT + ", Neo4j on " + neo4j.boltURI());
+	}
+
+	@Override
+	public void close() {
+		neo4j.close();
+		mongo.shutdownNow();
+	}
+}
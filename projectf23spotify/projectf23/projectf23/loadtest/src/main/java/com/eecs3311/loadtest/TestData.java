@@ -0,0 +1,226 @@
+package com.eecs3311.loadtest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The songs, users, follows and likes the load test runs against. Seeding goes through the services' own endpoints,
+ * built from the same collection requests as the load, so both databases end up exactly as real traffic leaves them.
+ *
+ * After seeding, requests are only built from the generator thread, which is what keeps the liked sets consistent:
+ * a like always picks a song the user has not liked and an unlike one they have.
+ */
+class TestData {
+
+	private static final int SEED_THREADS = 16;
+	private static final int PAGE_SIZE = 1000;
+
+	private final PostmanCollection collection;
+	private final OkHttpClient client;
+	private final Random random = new Random(3311);
+
+	// Keeps user names unique across runs against the same databases
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+	private final List<String> songIds = new ArrayList<>();
+	private final List<String> userNames = new ArrayList<>();
+	private final Map<String, List<String>> likedSongs = new HashMap<>();
+
+	TestData(PostmanCollection collection, OkHttpClient client) {
+		this.collection = collection;
+		this.client = client;
+	}
+
+	void seed(int songs, int users, int followsPerUser, int likesPerUser) throws Exception {
+		List<Request> requests = new ArrayList<>();
+		for (int i = 0; i < songs; i++) {
+			requests.add(collection.get("addsong").build(Services.SONG_URL, null, body(
+					"songName", "Load test song " + runId + "-" + i,
+					"songArtistFullName", "Load test artist " + i % 100,
+					"songAlbum", "Load test album " + i % 250)));
+		}
+		sendAll("songs", requests);
+		readSongIds();
+
+		requests.clear();
+		for (int i = 0; i < users; i++) {
+			String userName = "loadtest-" + runId + "-" + i;
+			userNames.add(userName);
+			likedSongs.put(userName, new ArrayList<>());
+			requests.add(collection.get("Profile Microservice").build(Services.PROFILE_URL, null, body(
+					"userName", userName, "fullName", "Load Test User " + i, "password", "password123")));
+		}
+		sendAll("users", requests);
+
+		requests.clear();
+		for (String userName : userNames) {
+			for (String friendUserName : pick(userNames, Math.min(followsPerUser, users - 1), userName)) {
+				requests.add(collection.get("Follow Friend").build(Services.PROFILE_URL, null, body(
+						"userName", userName, "friendUserName", friendUserName)));
+			}
+		}
+		sendAll("follows", requests);
+
+		requests.clear();
+		for (String userName : userNames) {
+			for (String songId : pick(songIds, Math.min(likesPerUser, songIds.size()), null)) {
+				likedSongs.get(userName).add(songId);
+				requests.add(collection.get("Like").build(Services.PROFILE_URL, null, body(
+						"userName", userName, "songId", songId)));
+			}
+		}
+		sendAll("likes", requests);
+
+		// Every user has a most recent song, otherwise reading it is a 404
+		requests.clear();
+		for (String userName : userNames) {
+			requests.add(collection.get("AddLastListenedToSong (NEW FEATURE)").build(Services.PROFILE_URL, null, body(
+					"userName", userName, "songId", songIds.get(random.nextInt(songIds.size())))));
+		}
+		sendAll("listens", requests);
+	}
+
+	/**
+	 * Builds the next request for the operation from a random song and user.
+	 */
+	Planned request(Operation operation, Random random) {
+		PostmanCollection.Template template = collection.get(operation.collectionName);
+		String userName = userNames.get(random.nextInt(userNames.size()));
+		String songId = songIds.get(random.nextInt(songIds.size()));
+		List<String> liked = likedSongs.get(userName);
+
+		switch (operation) {
+			case GET_SONG_BY_ID:
+			case GET_SONG_TITLE_BY_ID:
+			case INCREMENT_STREAM_COUNT:
+				return new Planned(operation, template.build(operation.baseUrl, songId, Collections.emptyMap()));
+			case GET_FRIENDS_SONGS:
+			case GET_MOST_RECENT_SONG:
+				return new Planned(operation, template.build(operation.baseUrl, userName, Collections.emptyMap()));
+			case LIKE_SONG:
+				// With every song already liked the user unlikes one instead
+				if (liked.size() == songIds.size()) {
+					return request(Operation.UNLIKE_SONG, random);
+				}
+				while (liked.contains(songId)) {
+					songId = songIds.get(random.nextInt(songIds.size()));
+				}
+				liked.add(songId);
+				return new Planned(operation, template.build(operation.baseUrl, null, body("userName", userName, "songId", songId)));
+			case UNLIKE_SONG:
+				if (liked.isEmpty()) {
+					return request(Operation.LIKE_SONG, random);
+				}
+				songId = liked.remove(random.nextInt(liked.size()));
+				return new Planned(operation, template.build(operation.baseUrl, null, body("userName", userName, "songId", songId)));
+			case UPDATE_LAST_LISTENED_SONG:
+				return new Planned(operation, template.build(operation.baseUrl, null, body("userName", userName, "songId", songId)));
+			default:
+				throw new IllegalArgumentException("No request for " + operation);
+		}
+	}
+
+	// The operation can differ from the one asked for, a like becomes an unlike when the user has liked every song
+	static final class Planned {
+		final Operation operation;
+		final Request request;
+
+		private Planned(Operation operation, Request request) {
+			this.operation = operation;
+			this.request = request;
+		}
+	}
+
+	int getSongCount() {
+		return songIds.size();
+	}
+
+	int getUserCount() {
+		return userNames.size();
+	}
+
+	// Pages through every song, the stand-in only holds the seeded ones but a real database may hold more
+	private void readSongIds() throws IOException {
+		String after = "";
+		do {
+			Request request = new Request.Builder()
+					.url(Services.SONG_URL + "/getSongs?fields=songName&limit=" + PAGE_SIZE + after)
+					.build();
+			JSONObject page = new JSONObject(send(request)).getJSONObject("data");
+			JSONArray songs = page.getJSONArray("songs");
+			for (int i = 0; i < songs.length(); i++) {
+				songIds.add(songs.getJSONObject(i).getString("id"));
+			}
+			after = page.isNull("nextCursor") ? null : "&after=" + page.getString("nextCursor");
+		} while (after != null);
+
+		if (songIds.isEmpty()) {
+			throw new IllegalStateException("The song service has no songs");
+		}
+	}
+
+	private <T> List<T> pick(List<T> from, int count, T excluded) {
+		Set<T> picked = new HashSet<>();
+		while (picked.size() < count) {
+			T candidate = from.get(random.nextInt(from.size()));
+			if (!candidate.equals(excluded)) {
+				picked.add(candidate);
+			}
+		}
+		return new ArrayList<>(picked);
+	}
+
+	private void sendAll(String what, List<Request> requests) throws Exception {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(SEED_THREADS);
+		try {
+			List<Future<String>> responses = new ArrayList<>();
+			for (Request request : requests) {
+				responses.add(executor.submit(() -> send(request)));
+			}
+			for (Future<String> response : responses) {
+				response.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println("Seeded " + requests.size() + " " + what + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	// Seeding has to succeed for the results to mean anything, so any failure ends the run
+	private String send(Request request) throws IOException {
+		try (Response response = client.newCall(request).execute()) {
+			ResponseBody body = response.body();
+			String text = body == null ? "" : body.string();
+			if (!response.isSuccessful()) {
+				throw new IOException(request.method() + " " + request.url() + " returned " + response.code() + ": " + text);
+			}
+			return text;
+		}
+	}
+
+	private static Map<String, Object> body(Object... keysAndValues) {
+		Map<String, Object> body = new HashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			body.put((String) keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return body;
+	}
+}
@@ -0,0 +1,54 @@
+package com.eecs3311.profilemicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Times every controller endpoint from the moment the request reaches its handler until the response is complete.
+ * A request whose handler finishes asynchronously passes through the interceptor twice: the clock starts on the
+ * first pass and stops on the second. Responses with a 5xx status and handlers that throw count as errors.
+ */
+@Component
+public class EndpointMetricsInterceptor implements AsyncHandlerInterceptor, WebMvcConfigurer {
+
+	private static final String START_ATTRIBUTE = EndpointMetricsInterceptor.class.getName() + ".start";
+
+	private final LatencyMetrics.Family metrics;
+
+	@Autowired
+	public EndpointMetricsInterceptor(LatencyMetrics latencyMetrics) {
+		this.metrics = latencyMetrics.endpoints;
+	}
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(this);
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		if (handler instanceof HandlerMethod && request.getDispatcherType() == DispatcherType.REQUEST) {
+			request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+		}
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+		Object start = request.getAttribute(START_ATTRIBUTE);
+		if (start == null || !(handler instanceof HandlerMethod)) {
+			return;
+		}
+		// Removed so the error page dispatch that may follow is not timed as a second request
+		request.removeAttribute(START_ATTRIBUTE);
+		metrics.record(((HandlerMethod) handler).getMethod().getName(), (Long) start, ex != null || response.getStatus() >= 500);
+	}
+}
@@ -0,0 +1,215 @@
+package com.eecs3311.profilemicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.Record;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers favourites count changes to the song service. likeSong and unlikeSong write a favouritesDelta node in the
+ * same statement as the like, so the like commits without waiting on the song service and the change cannot be lost.
+ *
+ * Every poll the dispatcher claims up to batchSize pending deltas under a new batch id, sums them per song and sends
+ * them to the song service in one call. The deltas are only deleted once the song service accepts the batch, until
+ * then the same batch is retried with a growing delay. The song service ignores a batch it has already applied, so
+ * a retry after a timeout never counts a like twice. A batch whose dispatcher died is taken over, under the same id,
+ * once it has been claimed for longer than claimTimeoutMs.
+ */
+@Component
+public class FavouritesOutbox {
+
+	private static final Logger LOG = LogManager.getLogger(FavouritesOutbox.class);
+
+	// Claims are serialized on this node, so two dispatchers never claim the same deltas
+	static final String LOCK_CLAIMS =
+			"MERGE (lock:favouritesOutbox {name: 'dispatcher'}) SET lock.lockedAt = timestamp()";
+
+	static final String CLAIM_STALE_BATCH =
+			"MATCH (stale:favouritesDelta) WHERE stale.claimedAt < timestamp() - $claimTimeoutMs " +
+			"WITH stale.batchId AS batchId LIMIT 1 " +
+			"MATCH (delta:favouritesDelta {batchId: batchId}) " +
+			"SET delta.claimedAt = timestamp() " +
+			"RETURN batchId, delta.songId AS songId, sum(delta.delta) AS delta, count(delta) AS records";
+
+	static final String CLAIM_NEW_BATCH =
+			"MATCH (delta:favouritesDelta) WHERE delta.batchId IS NULL " +
+			"WITH delta ORDER BY delta.createdAt LIMIT $batchSize " +
+			"SET delta.batchId = $batchId, delta.claimedAt = timestamp() " +
+			"RETURN $batchId AS batchId, delta.songId AS songId, sum(delta.delta) AS delta, count(delta) AS records";
+
+	static final String DELETE_BATCH =
+			"MATCH (delta:favouritesDelta {batchId: $batchId}) DELETE delta";
+
+	private final Driver driver;
+	private final SongServiceClient songServiceClient;
+	private final LatencyMetrics.Family cypher;
+	private final long pollIntervalMs;
+	private final int batchSize;
+	private final long claimTimeoutMs;
+	private final long maxRetryDelayMs;
+	private final ScheduledExecutorService dispatcher;
+
+	// Only touched by the dispatcher thread
+	private Batch inFlight;
+	private int failedAttempts;
+	private long nextAttemptNanos;
+
+	private final AtomicLong deliveredBatches = new AtomicLong();
+	private final AtomicLong deliveredDeltas = new AtomicLong();
+	private final AtomicLong failedDeliveries = new AtomicLong();
+	private volatile int lastBatchSongs;
+	private volatile long lastDeliveryMs;
+
+	@Autowired
+	public FavouritesOutbox(SongServiceClient songServiceClient, LatencyMetrics latencyMetrics,
+							@Value("${profile.favourites-outbox.poll-interval-ms:500}") long pollIntervalMs,
+							@Value("${profile.favourites-outbox.batch-size:1000}") int batchSize,
+							@Value("${profile.favourites-outbox.claim-timeout-ms:10000}") long claimTimeoutMs,
+							@Value("${profile.favourites-outbox.max-retry-delay-ms:30000}") long maxRetryDelayMs) {
+		this(ProfileMicroserviceApplication.driver, songServiceClient, latencyMetrics, pollIntervalMs, batchSize, claimTimeoutMs, maxRetryDelayMs);
+		this.dispatcher.scheduleWithFixedDelay(this::dispatchQuietly, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Tests pass a driver of their own and call dispatch themselves, nothing is scheduled
+	FavouritesOutbox(Driver driver, SongServiceClient songServiceClient, LatencyMetrics latencyMetrics, long pollIntervalMs, int batchSize,
+					 long claimTimeoutMs, long maxRetryDelayMs) {
+		this.driver = driver;
+		this.songServiceClient = songServiceClient;
+		this.cypher = latencyMetrics.cypher;
+		this.pollIntervalMs = pollIntervalMs;
+		this.batchSize = batchSize;
+		this.claimTimeoutMs = claimTimeoutMs;
+		this.maxRetryDelayMs = maxRetryDelayMs;
+
+		this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "favourites-outbox-dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Delivers batches until the outbox is empty or a delivery fails
+	void dispatch() {
+		while (true) {
+			if (failedAttempts > 0 && System.nanoTime() < nextAttemptNanos) {
+				return;
+			}
+			if (inFlight == null) {
+				inFlight = claim();
+				if (inFlight == null) {
+					return;
+				}
+			}
+
+			long startedAt = System.nanoTime();
+			try {
+				if (!SongServiceClient.await(songServiceClient.updateSongFavouritesCounts(inFlight.batchId, inFlight.deltas))) {
+					throw new IllegalStateException("Song service rejected the batch");
+				}
+				try (Session session = driver.session()) {
+					cypher.time("DELETE_BATCH", () -> session.writeTransaction(tx -> tx.run(DELETE_BATCH, Values.parameters("batchId", inFlight.batchId)).consume()));
+				}
+			} catch (Exception e) {
+				// Whether or not the song service applied it, sending the same batch again is safe
+				failedDeliveries.incrementAndGet();
+				long retryDelayMs = retryDelayMs(failedAttempts);
+				failedAttempts++;
+				nextAttemptNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMs);
+				LOG.warn("Failed to deliver favourites batch {}, retrying in {}ms: {}", inFlight.batchId, retryDelayMs, e.getMessage());
+				return;
+			}
+
+			deliveredBatches.incrementAndGet();
+			deliveredDeltas.addAndGet(inFlight.records);
+			lastBatchSongs = inFlight.deltas.size();
+			lastDeliveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+			boolean full = inFlight.records >= batchSize;
+			inFlight = null;
+			failedAttempts = 0;
+
+			// A full batch means more deltas are probably waiting, a partial one means the outbox is empty
+			if (!full) {
+				return;
+			}
+		}
+	}
+
+	// Doubles from the poll interval with every failed attempt, up to maxRetryDelayMs
+	long retryDelayMs(int failedAttempts) {
+		return Math.min(maxRetryDelayMs, pollIntervalMs << Math.min(failedAttempts, 16));
+	}
+
+	// Takes over an abandoned batch if there is one, otherwise claims the oldest pending deltas. Returns null if there are none
+	private Batch claim() {
+		try (Session session = driver.session()) {
+			return session.writeTransaction(tx -> {
+				cypher.time("LOCK_CLAIMS", () -> tx.run(LOCK_CLAIMS).consume());
+
+				Batch batch = cypher.time("CLAIM_STALE_BATCH", () -> readBatch(tx.run(CLAIM_STALE_BATCH, Values.parameters("claimTimeoutMs", claimTimeoutMs))));
+				if (batch == null) {
+					batch = cypher.time("CLAIM_NEW_BATCH", () -> readBatch(tx.run(CLAIM_NEW_BATCH,
+							Values.parameters("batchId", UUID.randomUUID().toString(), "batchSize", batchSize))));
+				}
+				return batch;
+			});
+		}
+	}
+
+	private static Batch readBatch(StatementResult result) {
+		Batch batch = null;
+		while (result.hasNext()) {
+			Record record = result.next();
+			if (batch == null) {
+				batch = new Batch(record.get("batchId").asString());
+			}
+			batch.deltas.put(record.get("songId").asString(), record.get("delta").asLong());
+			batch.records += record.get("records").asLong();
+		}
+		return batch;
+	}
+
+	private void dispatchQuietly() {
+		try {
+			dispatch();
+		} catch (Exception e) {
+			// Claiming failed, the deltas stay in the outbox for the next poll
+			LOG.error("Error dispatching favourites deltas: {}", e.getMessage());
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("deliveredBatches", deliveredBatches.get());
+		stats.put("deliveredDeltas", deliveredDeltas.get());
+		stats.put("failedDeliveries", failedDeliveries.get());
+		stats.put("lastBatchSongs", lastBatchSongs);
+		stats.put("lastDeliveryMs", lastDeliveryMs);
+		return stats;
+	}
+
+	// Pending deltas are durable, anything not delivered yet is picked up after the restart
+	@PreDestroy
+	public void close() {
+		dispatcher.shutdownNow();
+	}
+
+	private static class Batch {
+		final String batchId;
+		final Map<String, Long> deltas = new HashMap<>();
+		long records;
+
+		Batch(String batchId) {
+			this.batchId = batchId;
+		}
+	}
+}
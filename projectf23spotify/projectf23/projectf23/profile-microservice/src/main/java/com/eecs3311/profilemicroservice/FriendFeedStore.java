@@ -0,0 +1,194 @@
+package com.eecs3311.profilemicroservice;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory copy of the graph behind getAllSongFriendsLike: who each user follows and which songs each user likes.
+ * A feed is put together from the two on every read, so a like only changes one entry however many followers the user
+ * has. Follows, unfollows, likes and unlikes are applied as they are committed, anything not in memory is loaded with a
+ * single traversal the next time a feed needs it.
+ *
+ * Both maps are bounded by the number of user names and song ids they hold, and an entry expires once it has gone
+ * unchanged for the ttl so writes made outside this instance are read again. Entries are never modified in place,
+ * every change replaces the set so reads need no locking.
+ */
+@Component
+public class FriendFeedStore {
+
+	private static final int STAMP_STRIPES = 1024;
+
+	private final Cache<String, Set<String>> follows;
+	private final Cache<String, Set<String>> likes;
+
+	// A load only installs what it read if no change to the same key was committed after the load started
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	@Autowired
+	public FriendFeedStore(@Value("${profile.friend-feed.max-follows:1000000}") long maxFollows,
+						   @Value("${profile.friend-feed.max-likes:5000000}") long maxLikes,
+						   @Value("${profile.friend-feed.ttl-seconds:600}") long ttlSeconds) {
+		this(maxFollows, maxLikes, ttlSeconds, Ticker.systemTicker());
+	}
+
+	// Tests pass a ticker of their own to move time forward
+	FriendFeedStore(long maxFollows, long maxLikes, long ttlSeconds, Ticker ticker) {
+		this.follows = Caffeine.newBuilder()
+				.maximumWeight(maxFollows)
+				.weigher((String userName, Set<String> friends) -> friends.size() + 1)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.ticker(ticker)
+				.build();
+		this.likes = Caffeine.newBuilder()
+				.maximumWeight(maxLikes)
+				.weigher((String userName, Set<String> songIds) -> songIds.size() + 1)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.ticker(ticker)
+				.build();
+	}
+
+	/**
+	 * Returns the song ids liked by each user the given user follows, or null if any part of the feed is not in memory.
+	 * Friends that like nothing are included with an empty set.
+	 */
+	public Map<String, Collection<String>> getFeed(String userName) {
+		Set<String> friends = follows.getIfPresent(userName);
+		if (friends == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+
+		Map<String, Collection<String>> feed = new HashMap<>();
+		for (String friend : friends) {
+			Set<String> friendLikes = likes.getIfPresent(friend);
+			if (friendLikes == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+			feed.put(friend, friendLikes);
+		}
+		hitCount.incrementAndGet();
+		return feed;
+	}
+
+	// The users the user follows, or null if they are not in memory
+	public Set<String> getFollows(String userName) {
+		return follows.getIfPresent(userName);
+	}
+
+	// The songs in the user's favourites, or null if they are not in memory
+	public Set<String> getLikes(String userName) {
+		return likes.getIfPresent(userName);
+	}
+
+	// Called before reading from the database, the result is passed to one of the install methods
+	public long startLoad() {
+		return clock.get();
+	}
+
+	// Installs a feed read from the database, skipping any entry that changed while it was being read
+	public synchronized void install(long loadStartedAt, String userName, Map<String, Collection<String>> friendsSongIds) {
+		install(follows, loadStartedAt, userName, friendsSongIds.keySet());
+		for (Map.Entry<String, Collection<String>> friendSongIds : friendsSongIds.entrySet()) {
+			install(likes, loadStartedAt, friendSongIds.getKey(), friendSongIds.getValue());
+		}
+	}
+
+	// Installs one user's follows and favourites read from the database
+	public synchronized void installUser(long loadStartedAt, String userName, Collection<String> friendUserNames, Collection<String> songIds) {
+		install(follows, loadStartedAt, userName, friendUserNames);
+		install(likes, loadStartedAt, userName, songIds);
+	}
+
+	private void install(Cache<String, Set<String>> cache, long loadStartedAt, String key, Collection<String> members) {
+		if (stamps.get(stripe(cache, key)) <= loadStartedAt) {
+			cache.put(key, Collections.unmodifiableSet(new HashSet<>(members)));
+		}
+	}
+
+	public void followed(String userName, String friendUserName) {
+		update(follows, userName, friendUserName, true);
+	}
+
+	public void unfollowed(String userName, String friendUserName) {
+		update(follows, userName, friendUserName, false);
+	}
+
+	public void liked(String userName, String songId) {
+		update(likes, userName, songId, true);
+	}
+
+	public void unliked(String userName, String songId) {
+		update(likes, userName, songId, false);
+	}
+
+	// Rare, so every liked set is checked rather than keeping an index from songs to the users that like them
+	public synchronized void songDeleted(String songId) {
+		stampAll();
+		for (String userName : likes.asMap().keySet()) {
+			likes.asMap().computeIfPresent(userName, (key, songIds) -> songIds.contains(songId) ? without(songIds, songId) : songIds);
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		long hits = hitCount.get();
+		long misses = missCount.get();
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("users", follows.estimatedSize());
+		stats.put("likers", likes.estimatedSize());
+		stats.put("hitCount", hits);
+		stats.put("missCount", misses);
+		stats.put("hitRate", hits + misses == 0 ? 1.0 : (double) hits / (hits + misses));
+		return stats;
+	}
+
+	private synchronized void update(Cache<String, Set<String>> cache, String key, String member, boolean add) {
+		stamps.set(stripe(cache, key), clock.incrementAndGet());
+		// Nothing to do if the key is not in memory, it is read from the database when it is next needed
+		cache.asMap().computeIfPresent(key, (ignored, members) -> add ? with(members, member) : without(members, member));
+	}
+
+	private void stampAll() {
+		long now = clock.incrementAndGet();
+		for (int i = 0; i < STAMP_STRIPES; i++) {
+			stamps.set(i, now);
+		}
+	}
+
+	// The two maps share the stamps, the cache is mixed in so a user's follows and likes land on different stripes
+	private int stripe(Cache<String, Set<String>> cache, String key) {
+		int hash = key.hashCode() * 31 + (cache == follows ? 0 : 1);
+		return (hash ^ (hash >>> 16)) & (STAMP_STRIPES - 1);
+	}
+
+	private static Set<String> with(Set<String> members, String member) {
+		if (members.contains(member)) {
+			return members;
+		}
+		Set<String> updated = new HashSet<>(members);
+		updated.add(member);
+		return Collections.unmodifiableSet(updated);
+	}
+
+	private static Set<String> without(Set<String> members, String member) {
+		if (!members.contains(member)) {
+			return members;
+		}
+		Set<String> updated = new HashSet<>(members);
+		updated.remove(member);
+		return Collections.unmodifiableSet(updated);
+	}
+}
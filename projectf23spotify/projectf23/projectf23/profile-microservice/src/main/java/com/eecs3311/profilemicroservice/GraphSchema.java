@@ -0,0 +1,106 @@
+package com.eecs3311.profilemicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.summary.Plan;
+
+import java.util.*;
+
+/**
+ * Indexes and uniqueness constraints for every property the drivers and the favourites outbox look nodes up by. A uniqueness constraint is
+ * backed by an index, so each one also turns the MATCH or MERGE on that property into an index seek.
+ *
+ * Run at startup after InitProfileDb and InitPlaylistDb. Every declaration runs in its own transaction and one that
+ * already exists is skipped, so it is safe to run against a database that is already set up. Afterwards the hot
+ * queries are planned with EXPLAIN and any of them that would still scan every node of a label is reported.
+ */
+public class GraphSchema {
+
+	private static final Logger LOG = LogManager.getLogger(GraphSchema.class);
+
+	private static final String[] DECLARATIONS = {
+			"CREATE CONSTRAINT ON (nProfile:profile) ASSERT nProfile.userName IS UNIQUE",
+			"CREATE CONSTRAINT ON (nSong:song) ASSERT nSong.songId IS UNIQUE",
+			"CREATE CONSTRAINT ON (nPlaylist:playlist) ASSERT nPlaylist.plName IS UNIQUE",
+			"CREATE CONSTRAINT ON (nOutbox:favouritesOutbox) ASSERT nOutbox.name IS UNIQUE",
+			"CREATE INDEX ON :favouritesDelta(batchId)"
+	};
+
+	private static final Set<String> SCAN_OPERATORS = new HashSet<>(Arrays.asList("NodeByLabelScan", "AllNodesScan"));
+
+	public static void initGraphSchema() {
+		initGraphSchema(ProfileMicroserviceApplication.driver);
+	}
+
+	// Tests pass a driver of their own, returns the scans in each hot query that could be planned
+	static Map<String, List<String>> initGraphSchema(Driver driver) {
+		for (String declaration : DECLARATIONS) {
+			try (Session session = driver.session()) {
+				session.writeTransaction(tx -> tx.run(declaration).consume());
+			} catch (Exception e) {
+				if (e.getMessage() != null && e.getMessage().contains("already exists")) {
+					LOG.info("Already declared: {}", declaration);
+				} else {
+					// Usually existing duplicates, lookups still work but fall back to a label scan
+					LOG.warn("Could not declare {}: {}", declaration, e.getMessage());
+				}
+			}
+		}
+
+		Map<String, List<String>> hotQueryScans = new LinkedHashMap<>();
+		try (Session session = driver.session()) {
+			// Index population is asynchronous, plans made before it is online would not use the index
+			session.run("CALL db.awaitIndexes(300)").consume();
+
+			for (Map.Entry<String, String> hotQuery : hotQueries().entrySet()) {
+				Plan plan = session.run("EXPLAIN " + hotQuery.getValue(), hotQueryParameters()).consume().plan();
+				List<String> scans = new ArrayList<>();
+				collectScans(plan, scans);
+				hotQueryScans.put(hotQuery.getKey(), scans);
+				if (scans.isEmpty()) {
+					LOG.info("{} uses index seeks", hotQuery.getKey());
+				} else {
+					LOG.warn("{} scans every node of a label: {}", hotQuery.getKey(), scans);
+				}
+			}
+		} catch (Exception e) {
+			LOG.warn("Could not check the query plans: {}", e.getMessage());
+		}
+		return hotQueryScans;
+	}
+
+	private static Map<String, String> hotQueries() {
+		Map<String, String> hotQueries = new LinkedHashMap<>();
+		hotQueries.put("followFriend", ProfileDriverImpl.FOLLOW_FRIEND);
+		hotQueries.put("unfollowFriend", ProfileDriverImpl.UNFOLLOW_FRIEND);
+		hotQueries.put("updateLastListenedSong", ProfileDriverImpl.UPDATE_LAST_LISTENED_SONG);
+		hotQueries.put("getMostRecentSong", ProfileDriverImpl.GET_MOST_RECENT_SONG);
+		hotQueries.put("getAllSongFriendsLike", ProfileDriverImpl.FRIENDS_LIKED_SONGS);
+		hotQueries.put("deleteSongFromNeo4j", ProfileDriverImpl.DELETE_SONG);
+		hotQueries.put("likeSong", PlaylistDriverImpl.LIKE_SONG);
+		hotQueries.put("unlikeSong", PlaylistDriverImpl.UNLIKE_SONG);
+		return hotQueries;
+	}
+
+	// EXPLAIN only plans the query, the values just have to be of the right type
+	private static Map<String, Object> hotQueryParameters() {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", "");
+		params.put("frndUserName", "");
+		params.put("plName", "");
+		params.put("songId", "");
+		return params;
+	}
+
+	private static void collectScans(Plan plan, List<String> scans) {
+		// Newer servers append the database name, as in NodeByLabelScan@neo4j
+		String operator = plan.operatorType().split("@")[0];
+		if (SCAN_OPERATORS.contains(operator)) {
+			scans.add(operator + " " + plan.identifiers());
+		}
+		for (Plan child : plan.children()) {
+			collectScans(child, scans);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms and error counters for the endpoints, the drivers, their Cypher statements and the calls to the
+ * song service, scraped from /metrics.
+ *
+ * Each timer is registered the first time its name is recorded and looked up by that name afterwards. Names are
+ * string constants, so recording reads the clock, finds the timer and updates it without allocating anything, which
+ * is what lets the metrics stay on under load. Timing a call adds the lambda that runs it, a stage the one callback
+ * it completes.
+ * When the request is being traced, see {@link Tracing}, everything but the endpoints is added to its trace as spans.
+ */
+@Component
+public class LatencyMetrics {
+
+	// Served feeds and counts take microseconds, the buckets have to start well below a millisecond to tell them apart
+	private static final Duration MINIMUM_EXPECTED_LATENCY = Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(50));
+	private static final Duration MAXIMUM_EXPECTED_LATENCY = Duration.ofSeconds(30);
+
+	private static final Predicate<Object> NEVER_FAILED = result -> false;
+
+	// Every controller endpoint, by handler method name
+	final Family endpoints;
+
+	// Every ProfileDriver and PlaylistDriver method, by method name
+	final Family drivers;
+
+	// Every Cypher statement outside startup, by the name of its constant, from sending it until its results are read.
+	// A statement that throws is timed up to the failure and counted as failed, on blocking and async paths alike
+	final Family cypher;
+
+	// Every call to the song service, by endpoint
+	final Family songService;
+
+	@Autowired
+	public LatencyMetrics(MeterRegistry registry) {
+		// The trace itself covers the endpoint, so endpoints are not spans
+		this.endpoints = new Family(registry, "endpoint", "endpoint", false);
+		this.drivers = new Family(registry, "profile.driver", "method", true);
+		this.cypher = new Family(registry, "cypher", "statement", true);
+		this.songService = new Family(registry, "song.service", "call", true);
+	}
+
+	/**
+	 * A latency timer and an error counter per name, published as name.latency and name.errors tagged with the name.
+	 */
+	static final class Family {
+		private final MeterRegistry registry;
+		private final String meterName;
+		private final String tagKey;
+		private final boolean traced;
+		private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, Counter> errors = new ConcurrentHashMap<>();
+
+		private Family(MeterRegistry registry, String meterName, String tagKey, boolean traced) {
+			this.registry = registry;
+			this.meterName = meterName;
+			this.tagKey = tagKey;
+			this.traced = traced;
+		}
+
+		// Records the time since startNanos, a System.nanoTime() read before the call, and counts it if it failed
+		void record(String name, long startNanos, boolean failed) {
+			record(traced ? Tracing.current() : null, name, startNanos, failed);
+		}
+
+		// For calls that finish on another thread, the trace is the one that was current when the call started
+		void record(Tracing.Trace trace, String name, long startNanos, boolean failed) {
+			long endNanos = System.nanoTime();
+			timer(name).record(endNanos - startNanos, TimeUnit.NANOSECONDS);
+			if (failed) {
+				Counter counter = errors.get(name);
+				if (counter == null) {
+					counter = errors.computeIfAbsent(name, this::registerCounter);
+				}
+				counter.increment();
+			}
+			if (traced && trace != null) {
+				trace.span(meterName, name, startNanos, endNanos, failed);
+			}
+		}
+
+		// Runs the work on the calling thread and records it, work that throws failed
+		<T> T time(String name, Supplier<T> work) {
+			return time(name, work, NEVER_FAILED);
+		}
+
+		// As above, work that returns a result the predicate accepts failed as well
+		<T> T time(String name, Supplier<T> work, Predicate<? super T> failed) {
+			long startNanos = System.nanoTime();
+			T result = null;
+			boolean threw = true;
+			try {
+				result = work.get();
+				threw = false;
+				return result;
+			} finally {
+				record(name, startNanos, threw || failed.test(result));
+			}
+		}
+
+		/**
+		 * Records the stage once it completes, a stage that completes exceptionally failed. Pass System.nanoTime() as
+		 * startNanos in the same call that creates the stage, arguments are evaluated left to right so the clock is
+		 * read before the work starts.
+		 */
+		<T> CompletionStage<T> time(String name, long startNanos, CompletionStage<T> stage) {
+			return time(name, startNanos, stage, NEVER_FAILED);
+		}
+
+		// As above, a stage that completes with a result the predicate accepts failed as well
+		<T> CompletionStage<T> time(String name, long startNanos, CompletionStage<T> stage, Predicate<? super T> failed) {
+			Tracing.Trace trace = traced ? Tracing.current() : null;
+			return Tracing.continueIn(trace, stage.whenComplete((result, error) ->
+					record(trace, name, startNanos, error != null || failed.test(result))));
+		}
+
+		Timer timer(String name) {
+			Timer timer = timers.get(name);
+			// Only the first call for a name registers, the method reference is not created on the lookup path
+			return timer != null ? timer : timers.computeIfAbsent(name, this::registerTimer);
+		}
+
+		private Timer registerTimer(String name) {
+			return Timer.builder(meterName + ".latency")
+					.tag(tagKey, name)
+					.publishPercentileHistogram()
+					.minimumExpectedValue(MINIMUM_EXPECTED_LATENCY)
+					.maximumExpectedValue(MAXIMUM_EXPECTED_LATENCY)
+					.register(registry);
+		}
+
+		private Counter registerCounter(String name) {
+			return Counter.builder(meterName + ".errors")
+					.tag(tagKey, name)
+					.register(registry);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package com.eecs3311.profilemicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Every play of every user, kept in an append-only log on disk so it survives restarts without any Neo4j writes.
+ * updateLastListenedSong only keeps the latest play, this keeps all of them.
+ *
+ * The log is split into fixed size segment files that are memory mapped, so an append is a copy into the page cache
+ * and the operating system writes it out in the background. Each record is
+ *
+ *   int length | long timestamp | short userName length | userName | short songId length | songId
+ *
+ * and the length is written last, so a record cut short by a crash reads as the end of the segment. Every user's
+ * records are indexed by their position in the log, in the order they were played, so the last n plays or the plays
+ * between two times are found without scanning other users' plays. The index is rebuilt by reading the segments at
+ * startup. Once there are more than maxSegments the oldest segment and its plays are dropped.
+ */
+@Component
+public class ListeningHistory {
+
+	private static final Logger LOG = LogManager.getLogger(ListeningHistory.class);
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_BYTES = 4 + 8 + 2 + 2;
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int maxSegments;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Open segments by number, the last one is appended to
+	private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+	// Each user's record positions in the order they were appended, see position()
+	private final Map<String, Positions> plays = new HashMap<>();
+	private int appendOffset;
+	private long lastTimestamp;
+	private long appendCount;
+
+	@Autowired
+	public ListeningHistory(@Value("${profile.listening-history.dir:listening-history}") String directory,
+							@Value("${profile.listening-history.segment-bytes:67108864}") int segmentBytes,
+							@Value("${profile.listening-history.max-segments:64}") int maxSegments) throws IOException {
+		this.directory = Paths.get(directory);
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = maxSegments;
+
+		Files.createDirectories(this.directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), map(file));
+			}
+		}
+		for (Map.Entry<Integer, MappedByteBuffer> segment : segments.entrySet()) {
+			appendOffset = index(segment.getKey(), segment.getValue());
+		}
+		if (segments.isEmpty()) {
+			roll();
+		}
+		LOG.info("Listening history loaded {} plays from {} segments", appendCount, segments.size());
+	}
+
+	// Records a play now. Cheap enough for the play path: a copy into mapped memory and one index entry
+	public void append(String userName, String songId) {
+		byte[] user = userName.getBytes(StandardCharsets.UTF_8);
+		byte[] song = songId.getBytes(StandardCharsets.UTF_8);
+		int length = HEADER_BYTES + user.length + song.length;
+		if (length > segmentBytes || user.length > Short.MAX_VALUE || song.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Play is too large to record");
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (appendOffset + length > segmentBytes) {
+				roll();
+			}
+			// Timestamps never go backwards within the log, so every user's plays stay sorted by time
+			long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+			MappedByteBuffer segment = segments.lastEntry().getValue();
+			int offset = appendOffset;
+			segment.putLong(offset + 4, timestamp);
+			segment.putShort(offset + 12, (short) user.length);
+			put(segment, offset + 14, user);
+			segment.putShort(offset + 14 + user.length, (short) song.length);
+			put(segment, offset + 16 + user.length, song);
+			segment.putInt(offset, length);
+
+			plays.computeIfAbsent(userName, ignored -> new Positions()).add(position(segments.lastKey(), offset));
+			appendOffset += length;
+			lastTimestamp = timestamp;
+			appendCount++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Up to limit of the user's plays from fromMs up to but not including toMs, most recent first. Each play is a map
+	 * with songId and playedAt in epoch milliseconds. A user with no plays gets an empty list.
+	 */
+	public List<Map<String, Object>> getPlays(String userName, long fromMs, long toMs, int limit) {
+		lock.readLock().lock();
+		try {
+			Positions positions = plays.get(userName);
+			List<Map<String, Object>> found = new ArrayList<>();
+			if (positions == null) {
+				return found;
+			}
+
+			// The first play at or after toMs, everything before it is in range until a play before fromMs
+			int end = firstAtOrAfter(positions, toMs);
+			for (int i = end - 1; i >= 0 && found.size() < limit; i--) {
+				long position = positions.get(i);
+				MappedByteBuffer segment = segments.get(segment(position));
+				int offset = offset(position);
+				long timestamp = segment.getLong(offset + 4);
+				if (timestamp < fromMs) {
+					break;
+				}
+
+				int userLength = segment.getShort(offset + 12);
+				int songLength = segment.getShort(offset + 14 + userLength);
+				Map<String, Object> play = new LinkedHashMap<>();
+				play.put("songId", get(segment, offset + 16 + userLength, songLength));
+				play.put("playedAt", timestamp);
+				found.add(play);
+			}
+			return found;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// The user's last n plays, most recent first
+	public List<Map<String, Object>> getLastPlays(String userName, int n) {
+		return getPlays(userName, Long.MIN_VALUE, Long.MAX_VALUE, n);
+	}
+
+	public Map<String, Object> getStats() {
+		lock.readLock().lock();
+		try {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("users", plays.size());
+			stats.put("segments", segments.size());
+			stats.put("firstSegment", segments.firstKey());
+			stats.put("bytes", (long) (segments.size() - 1) * segmentBytes + appendOffset);
+			stats.put("appendCount", appendCount);
+			return stats;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments.values()) {
+				segment.force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Starts a new segment, dropping the oldest one and its plays once there are too many
+	private void roll() {
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		try {
+			segments.put(number, map(directory.resolve(String.format("%010d", number) + SEGMENT_SUFFIX)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		appendOffset = 0;
+
+		while (segments.size() > maxSegments) {
+			int oldest = segments.pollFirstEntry().getKey();
+			plays.values().removeIf(positions -> positions.dropSegment(oldest));
+			try {
+				Files.deleteIfExists(directory.resolve(String.format("%010d", oldest) + SEGMENT_SUFFIX));
+			} catch (IOException e) {
+				LOG.error("Error deleting listening history segment {}: {}", oldest, e.getMessage());
+			}
+		}
+	}
+
+	// Mapping a file past its end grows it with zeros, which read as the end of the segment
+	private MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		}
+	}
+
+	// Adds every complete record in the segment to the index, returns where the next record would go
+	private int index(int number, MappedByteBuffer segment) {
+		int offset = 0;
+		while (offset + HEADER_BYTES <= segmentBytes) {
+			int length = segment.getInt(offset);
+			if (length < HEADER_BYTES || offset + length > segmentBytes) {
+				break;
+			}
+			int userLength = segment.getShort(offset + 12);
+			String userName = get(segment, offset + 14, userLength);
+			plays.computeIfAbsent(userName, ignored -> new Positions()).add(position(number, offset));
+			lastTimestamp = Math.max(lastTimestamp, segment.getLong(offset + 4));
+			appendCount++;
+			offset += length;
+		}
+		return offset;
+	}
+
+	// Binary search over the user's plays, which are in time order
+	private int firstAtOrAfter(Positions positions, long timestamp) {
+		int low = 0;
+		int high = positions.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			long position = positions.get(middle);
+			if (segments.get(segment(position)).getLong(offset(position) + 4) < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// The segment number in the high half and the offset in the segment in the low half
+	private static long position(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segment(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static int offset(long position) {
+		return (int) position;
+	}
+
+	// Absolute puts and gets so readers never move the shared buffer's position
+	private static void put(MappedByteBuffer segment, int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			segment.put(offset + i, bytes[i]);
+		}
+	}
+
+	private static String get(MappedByteBuffer segment, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = segment.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// A growable array of positions, a long each rather than a boxed Long per play
+	private static final class Positions {
+		private long[] positions = new long[4];
+		private int start;
+		private int end;
+
+		void add(long position) {
+			if (end == positions.length) {
+				// Plays dropped from the front make room before the array grows
+				long[] grown = new long[Math.max(4, (end - start) * 2)];
+				System.arraycopy(positions, start, grown, 0, end - start);
+				positions = grown;
+				end -= start;
+				start = 0;
+			}
+			positions[end++] = position;
+		}
+
+		long get(int index) {
+			return positions[start + index];
+		}
+
+		int size() {
+			return end - start;
+		}
+
+		// Drops the plays in a segment that is being deleted, which are always the oldest ones. Returns true if none are left
+		boolean dropSegment(int segment) {
+			while (start < end && segment(positions[start]) <= segment) {
+				start++;
+			}
+			return start == end;
+		}
+	}
+}
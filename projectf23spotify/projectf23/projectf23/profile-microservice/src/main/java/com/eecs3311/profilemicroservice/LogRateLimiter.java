@@ -0,0 +1,51 @@
+package com.eecs3311.profilemicroservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits a message that could be logged for every item or request to a number a second. A burst of up to that number
+ * gets through at once after a quiet spell, beyond that messages are spaced evenly. The ones held back are counted so
+ * the next one logged can say how many were left out.
+ *
+ * Check the level first, so a disabled message costs neither the check nor a count:
+ * {@code if (LOG.isDebugEnabled() && LIMIT.tryAcquire()) LOG.debug("...", ..., LIMIT.takeSuppressed())}
+ */
+final class LogRateLimiter {
+
+	private final long intervalNanos;
+	private final long burstNanos;
+
+	// When the next message would be allowed if none were allowed early, as System.nanoTime
+	private final AtomicLong nextAllowedNanos = new AtomicLong(System.nanoTime());
+	private final AtomicLong suppressed = new AtomicLong();
+
+	LogRateLimiter(int perSecond) {
+		this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+		this.burstNanos = intervalNanos * (perSecond - 1);
+	}
+
+	// Whether a message may be logged now, one that may not is counted as suppressed
+	boolean tryAcquire() {
+		return tryAcquire(System.nanoTime());
+	}
+
+	boolean tryAcquire(long nowNanos) {
+		while (true) {
+			long nextAllowed = nextAllowedNanos.get();
+			long from = nextAllowed - nowNanos > 0 ? nextAllowed : nowNanos;
+			if (from - nowNanos > burstNanos) {
+				suppressed.incrementAndGet();
+				return false;
+			}
+			if (nextAllowedNanos.compareAndSet(nextAllowed, from + intervalNanos)) {
+				return true;
+			}
+		}
+	}
+
+	// The number of messages suppressed since the last call
+	long takeSuppressed() {
+		return suppressed.getAndSet(0);
+	}
+}
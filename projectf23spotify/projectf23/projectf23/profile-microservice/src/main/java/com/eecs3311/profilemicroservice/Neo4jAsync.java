@@ -0,0 +1,93 @@
+package com.eecs3311.profilemicroservice;
+
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.Transaction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * Helpers for the asynchronous variants of the drivers. The stages returned by the Neo4j driver complete on its
+ * network threads, so nothing chained onto them may block: follow-up queries and song service calls are composed
+ * rather than waited for. Both helpers keep the request's trace current for the work and for what is chained onto
+ * them, and add the session and the transaction to it as spans.
+ */
+final class Neo4jAsync {
+
+	private Neo4jAsync() {
+	}
+
+	// Runs the work in a new session and closes the session once the work is done, whether or not it failed
+	static <T> CompletionStage<T> inSession(Driver driver, Function<Session, CompletionStage<T>> work) {
+		Tracing.Trace trace = Tracing.current();
+		long start = System.nanoTime();
+		Session session = driver.session();
+		return Tracing.continueIn(trace, run(work, session).handle((result, error) -> session.closeAsync()
+				.thenCompose(ignored -> {
+					span(trace, "session", start, error);
+					return complete(result, error);
+				}))
+				.thenCompose(Function.identity()));
+	}
+
+	/**
+	 * Runs the work in a transaction that is only committed if the work returns QUERY_OK, the same rule the blocking
+	 * drivers follow by only calling success() on that path. Anything else, including a failure, rolls it back.
+	 */
+	static CompletionStage<DbQueryStatus> inTransaction(Driver driver, Function<Transaction, CompletionStage<DbQueryStatus>> work) {
+		Tracing.Trace trace = Tracing.current();
+		return inSession(driver, session -> {
+			long start = System.nanoTime();
+			// The work starts on the thread that completes the begin, which is not the request's
+			return Tracing.continueIn(trace, session.beginTransactionAsync()).thenCompose(tx ->
+					run(work, tx).handle((dbQueryStatus, error) -> {
+						boolean commit = error == null && dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK;
+						CompletionStage<Void> end = commit ? tx.commitAsync() : tx.rollbackAsync();
+						return end.thenCompose(ignored -> {
+							span(trace, "transaction", start, error);
+							return complete(dbQueryStatus, error);
+						});
+					}).thenCompose(Function.identity()));
+		});
+	}
+
+	// Turns a failure into the same error status the blocking drivers return from their catch blocks
+	static CompletionStage<DbQueryStatus> recover(CompletionStage<DbQueryStatus> stage, String errorMessage) {
+		return stage.exceptionally(error -> new DbQueryStatus(errorMessage + unwrap(error).getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC));
+	}
+
+	// From opening the session or beginning the transaction until it is closed, committed or rolled back
+	private static void span(Tracing.Trace trace, String name, long startNanos, Throwable error) {
+		if (trace != null) {
+			trace.span("neo4j", name, startNanos, System.nanoTime(), error != null);
+		}
+	}
+
+	static Throwable unwrap(Throwable error) {
+		while (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error;
+	}
+
+	private static <S, T> CompletionStage<T> run(Function<S, CompletionStage<T>> work, S resource) {
+		try {
+			return work.apply(resource);
+		} catch (RuntimeException e) {
+			return complete(null, e);
+		}
+	}
+
+	private static <T> CompletionStage<T> complete(T result, Throwable error) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (error != null) {
+			future.completeExceptionally(unwrap(error));
+		} else {
+			future.complete(result);
+		}
+		return future;
+	}
+}
@@ -1,6 +1,12 @@
 package com.eecs3311.profilemicroservice;
 
+import java.util.concurrent.CompletionStage;
+
 public interface PlaylistDriver {
 	DbQueryStatus likeSong(String userName, String songId);
 	DbQueryStatus unlikeSong(String userName, String songId);
+
+	// Non-blocking variants, the stages complete on driver threads without holding the calling thread
+	CompletionStage<DbQueryStatus> likeSongAsync(String userName, String songId);
+	CompletionStage<DbQueryStatus> unlikeSongAsync(String userName, String songId);
 }
\ No newline at end of file
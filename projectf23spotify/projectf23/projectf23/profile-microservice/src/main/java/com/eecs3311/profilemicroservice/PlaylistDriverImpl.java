@@ -1,18 +1,68 @@
 package com.eecs3311.profilemicroservice;
 
 
-import okhttp3.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.Record;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 @Repository
 public class PlaylistDriverImpl implements PlaylistDriver {
 
-	Driver driver = ProfileMicroserviceApplication.driver;
+	private static final Logger LOG = LogManager.getLogger(PlaylistDriverImpl.class);
+
+	// Likes the song unless it is already liked, in the same statement that checks the user and their favourites playlist.
+	// The favourites count change is written to the outbox with the like, FavouritesOutbox delivers it to the song service
+	static final String LIKE_SONG =
+			"MATCH (user:profile {userName: $userName}) " +
+			"OPTIONAL MATCH (user)-[:created]->(playlist:playlist {plName: $plName}) " +
+			"OPTIONAL MATCH (playlist)-[existing:includes]->(:song {songId: $songId}) " +
+			"FOREACH (ignored IN CASE WHEN playlist IS NOT NULL AND existing IS NULL THEN [1] ELSE [] END | " +
+			"MERGE (song:song {songId: $songId}) " +
+			"MERGE (playlist)-[:includes]->(song) " +
+			"CREATE (:favouritesDelta {songId: $songId, delta: 1, createdAt: timestamp()})) " +
+			"RETURN playlist IS NOT NULL AS playlistExists, existing IS NOT NULL AS alreadyLiked LIMIT 1";
+
+	// Grouping on the user keeps the row count at zero when the user does not exist
+	static final String UNLIKE_SONG =
+			"MATCH (user:profile {userName: $userName}) " +
+			"OPTIONAL MATCH (user)-[:created]->(:playlist {plName: $plName})-[liked:includes]->(:song {songId: $songId}) " +
+			"WITH user, collect(liked) AS likes " +
+			"FOREACH (r IN likes | DELETE r) " +
+			"FOREACH (ignored IN CASE WHEN size(likes) > 0 THEN [1] ELSE [] END | " +
+			"CREATE (:favouritesDelta {songId: $songId, delta: -1, createdAt: timestamp()})) " +
+			"RETURN size(likes) AS removed";
+
+	private final Driver driver;
+
+	private final SongTitleCache songTitleCache;
+	private final FriendFeedStore friendFeedStore;
+	private final SocialGraph socialGraph;
+	private final LatencyMetrics.Family cypher;
+
+	@Autowired
+	public PlaylistDriverImpl(SongTitleCache songTitleCache, FriendFeedStore friendFeedStore, SocialGraph socialGraph, LatencyMetrics latencyMetrics) {
+		this(ProfileMicroserviceApplication.driver, songTitleCache, friendFeedStore, socialGraph, latencyMetrics);
+	}
+
+	// Tests pass a driver of their own, the application's one connects to Neo4j as soon as it is first used
+	PlaylistDriverImpl(Driver driver, SongTitleCache songTitleCache, FriendFeedStore friendFeedStore, SocialGraph socialGraph,
+					   LatencyMetrics latencyMetrics) {
+		this.driver = driver;
+		this.songTitleCache = songTitleCache;
+		this.friendFeedStore = friendFeedStore;
+		this.socialGraph = socialGraph;
+		this.cypher = latencyMetrics.cypher;
+	}
 
 	public static void InitPlaylistDb() {
 		String queryStr;
@@ -24,7 +74,9 @@ public class PlaylistDriverImpl implements PlaylistDriver {
 				trans.success();
 			} catch (Exception e) {
 				if (e.getMessage().contains("An equivalent constraint already exists")) {
-					System.out.println("INFO: Playlist constraint already exist (DB likely already initialized), should be OK to continue");
+					LOG.info("Playlist constraint already exist (DB likely already initialized), should be OK to continue");
+				} else if (e.getMessage().contains("requires Neo4j Enterprise Edition")) {
+					LOG.info("Playlist existence constraint needs Neo4j Enterprise Edition, continuing without it");
 				} else {
 					// something else, yuck, bye
 					throw e;
@@ -36,105 +88,121 @@ public class PlaylistDriverImpl implements PlaylistDriver {
 
 	@Override
 	public DbQueryStatus likeSong(String userName, String songId) {
+		// The like reaches the song service later through the outbox, so the song is checked here. Missing songs are cached too
+		try {
+			if (SongServiceClient.await(songTitleCache.getSongTitleById(songId)) == null) {
+				return new DbQueryStatus("Song not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+			}
+		} catch (IOException e) {
+			return new DbQueryStatus("Error calling song microservice: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+
 		try (Session session = driver.session()) {
 			try (Transaction tx = session.beginTransaction()) {
-				// Check if the user exists
-				StatementResult userResult = tx.run("MATCH (user:profile {userName: $userName}) RETURN user",
-						Values.parameters("userName", userName));
-				if (!userResult.hasNext()) {
+				List<Record> records = cypher.time("LIKE_SONG", () -> tx.run(LIKE_SONG,
+						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId)).list());
+				if (records.isEmpty()) {
 					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
 
-				// Check if the song is already liked by the user
-				StatementResult likeResult = tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName})-[:includes]->(song:song {songId: $songId}) RETURN song",
-						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId));
-				if (likeResult.hasNext()) {
-					return new DbQueryStatus("User already likes the song", DbQueryExecResult.QUERY_ERROR_GENERIC);
+				Record record = records.get(0);
+				if (!record.get("playlistExists").asBoolean()) {
+					return new DbQueryStatus("Favourites playlist not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
-
-				// Increment the song's favourites count using the song microservice
-				OkHttpClient httpClient = new OkHttpClient();
-				MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-				String json = "{\"songId\": \"" + songId + "\", \"shouldDecrement\": false}";
-				RequestBody body = RequestBody.create(JSON, json);
-				Request request = new Request.Builder()
-						.url("http://localhost:3001/updateSongFavouritesCount")
-						.put(body)
-						.build();
-
-				try (Response response = httpClient.newCall(request).execute()) {
-					if (!response.isSuccessful()) {
-						return new DbQueryStatus("Failed to increment song favourites count", DbQueryExecResult.QUERY_ERROR_GENERIC);
-					}
-				} catch (IOException e) {
-					return new DbQueryStatus("Error calling song microservice: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+				if (record.get("alreadyLiked").asBoolean()) {
+					return new DbQueryStatus("User already likes the song", DbQueryExecResult.QUERY_ERROR_GENERIC);
 				}
 
-				// Ensure the song node exists in Neo4j
-				tx.run("MERGE (song:song {songId: $songId}) RETURN song", Values.parameters("songId", songId));
-
-				// Create a LIKES relationship between the user and the song
-				tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName}), (song:song {songId: $songId}) " +
-								"MERGE (playlist)-[:includes]->(song)",
-						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId));
-
-				tx.success(); // Commit the transaction
-				return new DbQueryStatus("Song liked successfully", DbQueryExecResult.QUERY_OK);
+				tx.success(); // Commits the like together with its favourites delta
 			}
+			friendFeedStore.liked(userName, songId);
+			socialGraph.liked(userName, songId);
+			return new DbQueryStatus("Song liked successfully", DbQueryExecResult.QUERY_OK);
 		} catch (Exception e) {
 			return new DbQueryStatus("Error liking song: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
 
 
+	@Override
+	public CompletionStage<DbQueryStatus> likeSongAsync(String userName, String songId) {
+		return Neo4jAsync.recover(songTitleCache.getSongTitleById(songId).thenCompose(songTitle -> {
+			if (songTitle == null) {
+				return CompletableFuture.completedFuture(new DbQueryStatus("Song not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+			}
+			return likeSongInNeo4j(userName, songId);
+		}), "Error liking song: ");
+	}
+
+	private CompletionStage<DbQueryStatus> likeSongInNeo4j(String userName, String songId) {
+		return Neo4jAsync.inTransaction(driver, tx -> cypher.time("LIKE_SONG", System.nanoTime(), tx.runAsync(LIKE_SONG,
+						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId))
+						.thenCompose(StatementResultCursor::nextAsync))
+				.thenCompose(record -> {
+					if (record == null) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+					if (!record.get("playlistExists").asBoolean()) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("Favourites playlist not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+					if (record.get("alreadyLiked").asBoolean()) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User already likes the song", DbQueryExecResult.QUERY_ERROR_GENERIC));
+					}
+					return CompletableFuture.completedFuture(new DbQueryStatus("Song liked successfully", DbQueryExecResult.QUERY_OK));
+				})).thenApply(dbQueryStatus -> {
+					// Only applied once the transaction has committed
+					if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+						friendFeedStore.liked(userName, songId);
+						socialGraph.liked(userName, songId);
+					}
+					return dbQueryStatus;
+				});
+	}
+
+
 	@Override
 	public DbQueryStatus unlikeSong(String userName, String songId) {
 		try (Session session = driver.session()) {
 			try (Transaction tx = session.beginTransaction()) {
-				// Check if the user exists
-				StatementResult userResult = tx.run("MATCH (user:profile {userName: $userName}) RETURN user",
-						Values.parameters("userName", userName));
-				if (!userResult.hasNext()) {
+				List<Record> records = cypher.time("UNLIKE_SONG", () -> tx.run(UNLIKE_SONG,
+						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId)).list());
+				if (records.isEmpty()) {
 					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
-
-				// Check if the song is liked by the user
-				StatementResult likeResult = tx.run("MATCH (user:profile {userName: $userName})-[:created]->(playlist:playlist {plName: $plName})-[:includes]->(song:song {songId: $songId}) RETURN song",
-						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId));
-				if (!likeResult.hasNext()) {
+				if (records.get(0).get("removed").asLong() == 0) {
 					return new DbQueryStatus("User does not like the song", DbQueryExecResult.QUERY_ERROR_GENERIC);
 				}
 
-				// Decrement the song's favourites count using the song microservice
-				OkHttpClient httpClient = new OkHttpClient();
-				MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-				String json = "{\"songId\": \"" + songId + "\", \"shouldDecrement\": true}";
-				RequestBody body = RequestBody.create(JSON, json);
-				Request request = new Request.Builder()
-						.url("http://localhost:3001/updateSongFavouritesCount")
-						.put(body)
-						.build();
-
-				try (Response response = httpClient.newCall(request).execute()) {
-					if (!response.isSuccessful()) {
-						return new DbQueryStatus("Failed to decrement song favourites count", DbQueryExecResult.QUERY_ERROR_GENERIC);
-					}
-				} catch (IOException e) {
-					return new DbQueryStatus("Error calling song microservice: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
-				}
-
-				// Remove the LIKES relationship between the user and the song
-				tx.run("MATCH (playlist:playlist {plName: $plName})-[r:includes]->(song:song {songId: $songId}) DELETE r",
-						Values.parameters("plName", userName + "-favorites", "songId", songId));
-
-				tx.success(); // Commit the transaction
-				return new DbQueryStatus("Song unliked successfully", DbQueryExecResult.QUERY_OK);
+				tx.success(); // Commits the unlike together with its favourites delta
 			}
+			friendFeedStore.unliked(userName, songId);
+			socialGraph.unliked(userName, songId);
+			return new DbQueryStatus("Song unliked successfully", DbQueryExecResult.QUERY_OK);
 		} catch (Exception e) {
 			return new DbQueryStatus("Error unliking song: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
 
+	@Override
+	public CompletionStage<DbQueryStatus> unlikeSongAsync(String userName, String songId) {
+		return Neo4jAsync.recover(Neo4jAsync.inTransaction(driver, tx -> cypher.time("UNLIKE_SONG", System.nanoTime(), tx.runAsync(UNLIKE_SONG,
+						Values.parameters("userName", userName, "plName", userName + "-favorites", "songId", songId))
+						.thenCompose(StatementResultCursor::nextAsync))
+				.thenCompose(record -> {
+					if (record == null) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+					if (record.get("removed").asLong() == 0) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User does not like the song", DbQueryExecResult.QUERY_ERROR_GENERIC));
+					}
+					return CompletableFuture.completedFuture(new DbQueryStatus("Song unliked successfully", DbQueryExecResult.QUERY_OK));
+				})).thenApply(dbQueryStatus -> {
+					if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+						friendFeedStore.unliked(userName, songId);
+						socialGraph.unliked(userName, songId);
+					}
+					return dbQueryStatus;
+				}), "Error unliking song: ");
+	}
+
 }
@@ -1,6 +1,7 @@
 package com.eecs3311.profilemicroservice;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -13,16 +14,13 @@ import org.springframework.web.bind.annotation.RestController;
 import com.eecs3311.profilemicroservice.Utils;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import okhttp3.Call;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -36,173 +34,322 @@ public class ProfileController {
 	public static final String KEY_SONG_ID = "songId";
 
 	@Autowired
-	private final ProfileDriverImpl profileDriver;
+	private final ProfileDriver profileDriver;
+
+	@Autowired
+	private final PlaylistDriver playlistDriver;
+
+	@Autowired
+	private final SongTitleCache songTitleCache;
+
+	@Autowired
+	private final FavouritesOutbox favouritesOutbox;
+
+	@Autowired
+	private final FriendFeedStore friendFeedStore;
+
+	@Autowired
+	private final RecommendationEngine recommendationEngine;
+
+	@Autowired
+	private final SocialGraph socialGraph;
+
+	@Autowired
+	private final ListeningHistory listeningHistory;
 
 	@Autowired
-	private final PlaylistDriverImpl playlistDriver;
+	private final Tracing tracing;
 
-	OkHttpClient client = new OkHttpClient();
+	// When enabled the Neo4j endpoints free the request thread while they wait on the database or the song service
+	@Value("${profile.async.enabled:true}")
+	private boolean asyncEnabled;
 
-	public ProfileController(ProfileDriverImpl profileDriver, PlaylistDriverImpl playlistDriver) {
+	@Value("${profile.listening-history.max-limit:1000}")
+	private int maxListeningHistoryLimit;
+
+	// Whether responses echo the URL that was called, building it is most of what a served feed allocates
+	@Value("${profile.response.include-path:true}")
+	private boolean includePath;
+
+	public ProfileController(ProfileDriver profileDriver, PlaylistDriver playlistDriver, SongTitleCache songTitleCache,
+							 FavouritesOutbox favouritesOutbox, FriendFeedStore friendFeedStore, RecommendationEngine recommendationEngine,
+							 SocialGraph socialGraph, ListeningHistory listeningHistory, Tracing tracing) {
 		this.profileDriver = profileDriver;
 		this.playlistDriver = playlistDriver;
+		this.songTitleCache = songTitleCache;
+		this.favouritesOutbox = favouritesOutbox;
+		this.friendFeedStore = friendFeedStore;
+		this.recommendationEngine = recommendationEngine;
+		this.socialGraph = socialGraph;
+		this.listeningHistory = listeningHistory;
+		this.tracing = tracing;
+	}
+
+	// Runs the non-blocking variant of a driver call, or the blocking one on this thread when async mode is off
+	private CompletableFuture<DbQueryStatus> execute(Supplier<DbQueryStatus> blocking, Supplier<CompletionStage<DbQueryStatus>> nonBlocking) {
+		if (!asyncEnabled) {
+			return CompletableFuture.completedFuture(blocking.get());
+		}
+		return nonBlocking.get().toCompletableFuture();
+	}
+
+	// The path a response echoes, null leaves it out of the response
+	private String path(HttpServletRequest request) {
+		return includePath ? Utils.getUrl(request) : null;
 	}
 
+	private static CompletableFuture<ResponseEntity<ApiResponse>> badRequest(String message) {
+		ApiResponse response = new ApiResponse(null);
+		response.setMessage(message);
+		return CompletableFuture.completedFuture(Utils.responseEntity(response, HttpStatus.BAD_REQUEST));
+	}
+
+	// The path is read before the driver call in every endpoint below, the request is recycled once its thread is released
+
 	@RequestMapping(value = "/profile", method = RequestMethod.POST)
-	public ResponseEntity<Map<String, Object>> addProfile(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> addProfile(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(ProfileController.KEY_USER_NAME);
 		String fullName = params.get(ProfileController.KEY_USER_FULLNAME);
 		String password = params.get(ProfileController.KEY_USER_PASSWORD);
 
 		if (userName == null || fullName == null || password == null) {
-			// Constructing a simple error response map
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters");
 		}
 
-		DbQueryStatus dbQueryStatus = profileDriver.createUserProfile(userName, fullName, password);
-
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
+		String path = path(request);
+		return execute(() -> profileDriver.createUserProfile(userName, fullName, password),
+				() -> profileDriver.createUserProfileAsync(userName, fullName, password))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
 
-		// Use the 'setResponseStatus' method to set the appropriate status and message in the response
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+					// Use the 'setResponseStatus' method to set the appropriate status and message in the response
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 
 
 	@RequestMapping(value = "/followFriend", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> followFriend(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> followFriend(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(ProfileController.KEY_USER_NAME);
 		String friendUserName = params.get(ProfileController.KEY_FRIEND_USER_NAME);
 
 		if (userName == null || friendUserName == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters");
 		}
 
-		DbQueryStatus dbQueryStatus = profileDriver.followFriend(userName, friendUserName);
+		String path = path(request);
+		return execute(() -> profileDriver.followFriend(userName, friendUserName),
+				() -> profileDriver.followFriendAsync(userName, friendUserName))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
 
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 
 	@RequestMapping(value = "/getAllFriendFavouriteSongTitles/{userName}", method = RequestMethod.GET)
-	public ResponseEntity<Map<String, Object>> getAllFriendFavouriteSongTitles(@PathVariable("userName") String userName,
-																			   HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> getAllFriendFavouriteSongTitles(@PathVariable("userName") String userName,
+																						  HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<>();
-		response.put("path", Utils.getUrl(request));
+		String path = path(request);
 
 		// Call the ProfileDriverImpl method to get all songs liked by friends
-		DbQueryStatus dbQueryStatus = profileDriver.getAllSongFriendsLike(userName);
-
-		// Use the 'setResponseStatus' method to set the appropriate status and message in the response
-		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+		return execute(() -> profileDriver.getAllSongFriendsLike(userName),
+				() -> profileDriver.getAllSongFriendsLikeAsync(userName))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+
+					// Use the 'setResponseStatus' method to set the appropriate status and message in the response
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 
 
 	@RequestMapping(value = "/unfollowFriend", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> unfollowFriend(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> unfollowFriend(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(ProfileController.KEY_USER_NAME);
 		String friendUserName = params.get(ProfileController.KEY_FRIEND_USER_NAME);
 
 		if (userName == null || friendUserName == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters: userName and friendUserName");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters: userName and friendUserName");
 		}
 
-		DbQueryStatus dbQueryStatus = profileDriver.unfollowFriend(userName, friendUserName);
+		String path = path(request);
+		return execute(() -> profileDriver.unfollowFriend(userName, friendUserName),
+				() -> profileDriver.unfollowFriendAsync(userName, friendUserName))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+					response.setMessage(dbQueryStatus.getMessage());
 
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-		responseMap.put("message", dbQueryStatus.getMessage());
-
-		// Use the 'setResponseStatus' method to set the appropriate status and message in the response
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+					// Use the 'setResponseStatus' method to set the appropriate status and message in the response
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 	@RequestMapping(value = "/likeSong", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> likeSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> likeSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(ProfileController.KEY_USER_NAME);
 		String songId = params.get(ProfileController.KEY_SONG_ID);
 
 		if (userName == null || songId == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters: userName and songId");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters: userName and songId");
 		}
 
-		DbQueryStatus dbQueryStatus = playlistDriver.likeSong(userName, songId);
-
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-		responseMap.put("message", dbQueryStatus.getMessage());
+		String path = path(request);
+		return execute(() -> playlistDriver.likeSong(userName, songId),
+				() -> playlistDriver.likeSongAsync(userName, songId))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+					response.setMessage(dbQueryStatus.getMessage());
 
-		// Use the 'setResponseStatus' method to set the appropriate status and message in the response
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+					// Use the 'setResponseStatus' method to set the appropriate status and message in the response
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 	@RequestMapping(value = "/unlikeSong", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> unlikeSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> unlikeSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(ProfileController.KEY_USER_NAME);
 		String songId = params.get(ProfileController.KEY_SONG_ID);
 
 		if (userName == null || songId == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters: userName and songId");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters: userName and songId");
 		}
 
-		DbQueryStatus dbQueryStatus = playlistDriver.unlikeSong(userName, songId);
+		String path = path(request);
+		return execute(() -> playlistDriver.unlikeSong(userName, songId),
+				() -> playlistDriver.unlikeSongAsync(userName, songId))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+					response.setMessage(dbQueryStatus.getMessage());
 
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-		responseMap.put("message", dbQueryStatus.getMessage());
-
-		// Use the 'setResponseStatus' method to set the appropriate status and message in the response
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+					// Use the 'setResponseStatus' method to set the appropriate status and message in the response
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 	//NEW CODE TO ADD THE UPDATELASTLISTNED TO SONG THINGY
 	@RequestMapping(value = "/updateLastListenedSong", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> updateLastListenedSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> updateLastListenedSong(@RequestBody Map<String, String> params, HttpServletRequest request) {
 		String userName = params.get(KEY_USER_NAME);
 		String songId = params.get(KEY_SONG_ID);
 
 		if (userName == null || songId == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameters: userName and songId");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameters: userName and songId");
 		}
 
-		DbQueryStatus dbQueryStatus = profileDriver.updateLastListenedSong(userName, songId);
-
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+		String path = path(request);
+		return execute(() -> profileDriver.updateLastListenedSong(userName, songId),
+				() -> profileDriver.updateLastListenedSongAsync(userName, songId))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
 	}
 
 	@RequestMapping(value = "/getMostRecentSong/{userName}", method = RequestMethod.GET)
-	public ResponseEntity<Map<String, Object>> getMostRecentSong(@PathVariable("userName") String userName, HttpServletRequest request) {
+	public CompletableFuture<ResponseEntity<ApiResponse>> getMostRecentSong(@PathVariable("userName") String userName, HttpServletRequest request) {
 		if (userName == null) {
-			Map<String, Object> responseError = new HashMap<>();
-			responseError.put("message", "Missing required parameter: userName");
-			return new ResponseEntity<>(responseError, HttpStatus.BAD_REQUEST);
+			return badRequest("Missing required parameter: userName");
 		}
 
-		DbQueryStatus dbQueryStatus = profileDriver.getMostRecentSong(userName);
+		String path = path(request);
+		return execute(() -> profileDriver.getMostRecentSong(userName),
+				() -> profileDriver.getMostRecentSongAsync(userName))
+				.thenApply(dbQueryStatus -> {
+					ApiResponse response = new ApiResponse(path);
+					return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+				});
+	}
+
+	/**
+	 * Songs liked by the users this user follows and the users they follow, best first, for example
+	 * /getRecommendedSongs/alice?limit=10. Songs the user already likes are left out.
+	 */
+	@RequestMapping(value = "/getRecommendedSongs/{userName}", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getRecommendedSongs(@PathVariable("userName") String userName,
+														   @RequestParam(value = "limit", defaultValue = "10") int limit,
+														   HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+
+		DbQueryStatus dbQueryStatus = recommendationEngine.getRecommendedSongs(userName, limit);
+
+		response.setMessage(dbQueryStatus.getMessage());
+		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+	}
+
+	/**
+	 * The user's plays, most recent first, for example /getListeningHistory/alice?limit=20 for the last 20 plays or
+	 * /getListeningHistory/alice?from=1700000000000&to=1700086400000 for the plays in a time range (epoch milliseconds,
+	 * to is exclusive).
+	 */
+	@RequestMapping(value = "/getListeningHistory/{userName}", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getListeningHistory(@PathVariable("userName") String userName,
+														   @RequestParam(value = "from", required = false) Long from,
+														   @RequestParam(value = "to", required = false) Long to,
+														   @RequestParam(value = "limit", defaultValue = "50") int limit,
+														   HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+
+		if (limit < 1 || limit > maxListeningHistoryLimit) {
+			response.setMessage("limit must be between 1 and " + maxListeningHistoryLimit);
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+
+		List<Map<String, Object>> plays = listeningHistory.getPlays(userName,
+				from == null ? Long.MIN_VALUE : from, to == null ? Long.MAX_VALUE : to, limit);
+		response.setMessage("Successfully retrieved listening history");
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, plays);
+	}
+
+	@RequestMapping(value = "/getFollowCounts/{userName}", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getFollowCounts(@PathVariable("userName") String userName,
+													   HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+
+		DbQueryStatus dbQueryStatus = profileDriver.getFollowCounts(userName);
+
+		response.setMessage(dbQueryStatus.getMessage());
+		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+	}
+
+	@RequestMapping(value = "/getSongTitleCacheStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSongTitleCacheStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, songTitleCache.getStats());
+	}
+
+	@RequestMapping(value = "/getFavouritesOutboxStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getFavouritesOutboxStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, favouritesOutbox.getStats());
+	}
+
+	@RequestMapping(value = "/getFriendFeedStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getFriendFeedStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, friendFeedStore.getStats());
+	}
+
+	@RequestMapping(value = "/getSocialGraphStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSocialGraphStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, socialGraph.getStats());
+	}
+
+	@RequestMapping(value = "/getListeningHistoryStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getListeningHistoryStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, listeningHistory.getStats());
+	}
 
-		Map<String, Object> responseMap = new HashMap<>();
-		responseMap.put("path", Utils.getUrl(request));
-		return Utils.setResponseStatus(responseMap, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+	@RequestMapping(value = "/getSlowTraces", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSlowTraces(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path(request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, tracing.getSlowTraces());
 	}
 
 
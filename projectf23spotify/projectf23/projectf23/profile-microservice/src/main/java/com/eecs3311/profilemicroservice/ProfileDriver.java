@@ -1,5 +1,7 @@
 package com.eecs3311.profilemicroservice;
 
+import java.util.concurrent.CompletionStage;
+
 public interface ProfileDriver {
 	DbQueryStatus createUserProfile(String userName, String fullName, String password);
 	DbQueryStatus followFriend(String userName, String frndUserName);
@@ -7,4 +9,13 @@ public interface ProfileDriver {
 	DbQueryStatus getAllSongFriendsLike(String userName);
 	DbQueryStatus updateLastListenedSong(String userName, String songId);
 	DbQueryStatus getMostRecentSong(String userName);
+	DbQueryStatus getFollowCounts(String userName);
+
+	// Non-blocking variants, the stages complete on driver threads without holding the calling thread
+	CompletionStage<DbQueryStatus> createUserProfileAsync(String userName, String fullName, String password);
+	CompletionStage<DbQueryStatus> followFriendAsync(String userName, String frndUserName);
+	CompletionStage<DbQueryStatus> unfollowFriendAsync(String userName, String frndUserName);
+	CompletionStage<DbQueryStatus> getAllSongFriendsLikeAsync(String userName);
+	CompletionStage<DbQueryStatus> updateLastListenedSongAsync(String userName, String songId);
+	CompletionStage<DbQueryStatus> getMostRecentSongAsync(String userName);
 }
\ No newline at end of file
@@ -2,15 +2,15 @@ package com.eecs3311.profilemicroservice;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.Record;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 
@@ -19,7 +19,89 @@ import java.util.Collections;
 @Repository
 public class ProfileDriverImpl implements ProfileDriver {
 
-	Driver driver = ProfileMicroserviceApplication.driver;
+	private static final Logger LOG = LogManager.getLogger(ProfileDriverImpl.class);
+
+	// Logged per request or per song, so at most 10 a second each
+	private static final LogRateLimiter FEEDS_LOG = new LogRateLimiter(10);
+	private static final LogRateLimiter SONG_DELETES_LOG = new LogRateLimiter(10);
+	private static final LogRateLimiter PLAY_ERRORS_LOG = new LogRateLimiter(10);
+
+	static final String CREATE_PROFILE = "CREATE (nProfile:profile {userName: $userName, fullName: $fullName, password: $password})";
+
+	static final String CREATE_FAVOURITES_PLAYLIST =
+			"MATCH (nProfile:profile {userName: $userName}) " +
+			"CREATE (nPlaylist:playlist {plName: $plName}), " +
+			"(nProfile)-[:created]->(nPlaylist)";
+
+	// Each operation is one statement so it costs a single round trip, the results say which not-found case applies
+	static final String FOLLOW_FRIEND =
+			"OPTIONAL MATCH (user:profile {userName: $userName}) " +
+			"OPTIONAL MATCH (friend:profile {userName: $frndUserName}) " +
+			"FOREACH (ignored IN CASE WHEN user IS NOT NULL AND friend IS NOT NULL THEN [1] ELSE [] END | " +
+			"MERGE (user)-[:FOLLOWS]->(friend)) " +
+			"RETURN user IS NOT NULL AS userExists, friend IS NOT NULL AS friendExists";
+
+	static final String UNFOLLOW_FRIEND =
+			"MATCH (user:profile {userName: $userName})-[r:FOLLOWS]->(friend:profile {userName: $frndUserName}) " +
+			"DELETE r " +
+			"RETURN count(r) AS removed";
+
+	// A play is checked with this read first, nothing is written until the song service has counted it
+	static final String USER_EXISTS = "MATCH (user:profile {userName: $userName}) RETURN user.userName AS userName";
+
+	static final String UPDATE_LAST_LISTENED_SONG =
+			"MATCH (user:profile {userName: $userName}) " +
+			"OPTIONAL MATCH (user)-[r:LAST_LISTENED_TO]->(:song) " +
+			"DELETE r " +
+			"WITH DISTINCT user " +
+			"MERGE (newSong:song {songId: $songId}) " +
+			"MERGE (user)-[:LAST_LISTENED_TO]->(newSong) " +
+			"RETURN user.userName AS userName";
+
+	static final String GET_MOST_RECENT_SONG =
+			"MATCH (user:profile {userName: $userName}) " +
+			"OPTIONAL MATCH (user)-[:LAST_LISTENED_TO]->(song:song) " +
+			"RETURN song.songId AS songId LIMIT 1";
+
+	// Friends that like nothing are returned too, so the feed store knows every user the user follows
+	static final String FRIENDS_LIKED_SONGS =
+			"MATCH (user:profile {userName: $userName})-[:FOLLOWS]->(friend:profile) " +
+			"OPTIONAL MATCH (friend)-[:created]->(:playlist)-[:includes]->(song:song) " +
+			"RETURN friend.userName AS friendUserName, collect(song.songId) AS songIds";
+
+	static final String DELETE_SONG = "MATCH (song:song {songId: $songId}) DETACH DELETE song";
+
+	static final String FOLLOW_COUNTS =
+			"MATCH (user:profile {userName: $userName}) " +
+			"RETURN size((user)<-[:FOLLOWS]-(:profile)) AS followers, size((user)-[:FOLLOWS]->(:profile)) AS following";
+
+	private final Driver driver;
+
+	private final SongServiceClient songServiceClient;
+	private final SongTitleCache songTitleCache;
+	private final FriendFeedStore friendFeedStore;
+	private final SocialGraph socialGraph;
+	private final ListeningHistory listeningHistory;
+	private final LatencyMetrics.Family cypher;
+
+	@Autowired
+	public ProfileDriverImpl(SongServiceClient songServiceClient, SongTitleCache songTitleCache, FriendFeedStore friendFeedStore,
+							 SocialGraph socialGraph, ListeningHistory listeningHistory, LatencyMetrics latencyMetrics) {
+		this(ProfileMicroserviceApplication.driver, songServiceClient, songTitleCache, friendFeedStore, socialGraph, listeningHistory,
+				latencyMetrics);
+	}
+
+	// Tests pass a driver of their own, the application's one connects to Neo4j as soon as it is first used
+	ProfileDriverImpl(Driver driver, SongServiceClient songServiceClient, SongTitleCache songTitleCache, FriendFeedStore friendFeedStore,
+					  SocialGraph socialGraph, ListeningHistory listeningHistory, LatencyMetrics latencyMetrics) {
+		this.driver = driver;
+		this.songServiceClient = songServiceClient;
+		this.songTitleCache = songTitleCache;
+		this.friendFeedStore = friendFeedStore;
+		this.socialGraph = socialGraph;
+		this.listeningHistory = listeningHistory;
+		this.cypher = latencyMetrics.cypher;
+	}
 
 	public static void InitProfileDb() {
 		String queryStr;
@@ -38,7 +120,10 @@ public class ProfileDriverImpl implements ProfileDriver {
 				trans.success();
 			} catch (Exception e) {
 				if (e.getMessage().contains("An equivalent constraint already exists")) {
-					System.out.println("INFO: Profile constraints already exist (DB likely already initialized), should be OK to continue");
+					LOG.info("Profile constraints already exist (DB likely already initialized), should be OK to continue");
+				} else if (e.getMessage().contains("requires Neo4j Enterprise Edition")) {
+					// Community edition has no existence constraints, GraphSchema still creates the unique one
+					LOG.info("Profile existence constraints need Neo4j Enterprise Edition, continuing without them");
 				} else {
 					// something else, yuck, bye
 					throw e;
@@ -50,34 +135,22 @@ public class ProfileDriverImpl implements ProfileDriver {
 
 	@Override
 	public DbQueryStatus createUserProfile(String userName, String fullName, String password) {
-		String queryStr;
-		Map<String, Object> params = new HashMap<>();
-		params.put("userName", userName);
-		params.put("fullName", fullName);
-		params.put("password", password);
-		params.put("plName", userName + "-favorites");
+		Map<String, Object> params = createUserProfileParams(userName, fullName, password);
 
 		try (Session session = driver.session()) {
 			try (Transaction trans = session.beginTransaction()) {
 				// Create a profile node
-				queryStr = "CREATE (nProfile:profile {userName: $userName, fullName: $fullName, password: $password})";
-				trans.run(queryStr, params);
+				cypher.time("CREATE_PROFILE", () -> trans.run(CREATE_PROFILE, params).consume());
 
 				// Create a playlist node and establish a 'created' relationship
-				queryStr = "MATCH (nProfile:profile {userName: $userName}) " +
-						"CREATE (nPlaylist:playlist {plName: $plName}), " +
-						"(nProfile)-[:created]->(nPlaylist)";
-				trans.run(queryStr, params);
+				cypher.time("CREATE_FAVOURITES_PLAYLIST", () -> trans.run(CREATE_FAVOURITES_PLAYLIST, params).consume());
 
 				trans.success();
-				return new DbQueryStatus("User profile and playlist created successfully", DbQueryExecResult.QUERY_OK);
 			} catch (Exception e) {
-				if (e.getMessage().contains("already exists")) {
-					return new DbQueryStatus("Username already exists", DbQueryExecResult.QUERY_ERROR_GENERIC);
-				} else {
-					return new DbQueryStatus("Error creating user profile and playlist: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
-				}
+				return createUserProfileError(e);
 			}
+			socialGraph.userCreated(userName);
+			return new DbQueryStatus("User profile and playlist created successfully", DbQueryExecResult.QUERY_OK);
 		} catch (Exception e) {
 			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
@@ -85,238 +158,404 @@ public class ProfileDriverImpl implements ProfileDriver {
 
 
 
+	@Override
+	public CompletionStage<DbQueryStatus> createUserProfileAsync(String userName, String fullName, String password) {
+		Map<String, Object> params = createUserProfileParams(userName, fullName, password);
+
+		return Neo4jAsync.inTransaction(driver, tx -> cypher.time("CREATE_PROFILE", System.nanoTime(), tx.runAsync(CREATE_PROFILE, params)
+						.thenCompose(StatementResultCursor::consumeAsync))
+				.thenCompose(ignored -> cypher.time("CREATE_FAVOURITES_PLAYLIST", System.nanoTime(), tx.runAsync(CREATE_FAVOURITES_PLAYLIST, params)
+						.thenCompose(StatementResultCursor::consumeAsync)))
+				.thenApply(ignored -> new DbQueryStatus("User profile and playlist created successfully", DbQueryExecResult.QUERY_OK)))
+				.thenApply(dbQueryStatus -> {
+					socialGraph.userCreated(userName);
+					return dbQueryStatus;
+				})
+				.exceptionally(error -> createUserProfileError(Neo4jAsync.unwrap(error)));
+	}
+
+	private static Map<String, Object> createUserProfileParams(String userName, String fullName, String password) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
+		params.put("fullName", fullName);
+		params.put("password", password);
+		params.put("plName", userName + "-favorites");
+		return params;
+	}
+
+	private static DbQueryStatus createUserProfileError(Throwable e) {
+		if (e.getMessage() != null && e.getMessage().contains("already exists")) {
+			return new DbQueryStatus("Username already exists", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		} else {
+			return new DbQueryStatus("Error creating user profile and playlist: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
+
+
 	@Override
 	public DbQueryStatus followFriend(String userName, String friendUserName) {
-		String queryStr;
 		Map<String, Object> params = new HashMap<>();
 		params.put("userName", userName);
 		params.put("frndUserName", friendUserName);
 
 		try (Session session = driver.session()) {
-			try (Transaction trans = session.beginTransaction()) {
-				// Check if both users exist
-				StatementResult userResult = trans.run("MATCH (user:profile {userName: $userName}) RETURN user", params);
-				StatementResult friendResult = trans.run("MATCH (friend:profile {userName: $frndUserName}) RETURN friend", params);
+			// Checks both users and follows in one auto-commit statement
+			Record record = cypher.time("FOLLOW_FRIEND", () -> session.run(FOLLOW_FRIEND, params).single());
+			return followed(followFriendStatus(record), userName, friendUserName);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error following friend: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
 
-				if (!userResult.hasNext()) {
-					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
-				}
+	@Override
+	public CompletionStage<DbQueryStatus> followFriendAsync(String userName, String friendUserName) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
+		params.put("frndUserName", friendUserName);
 
-				if (!friendResult.hasNext()) {
-					return new DbQueryStatus("Friend not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
-				}
+		return Neo4jAsync.recover(Neo4jAsync.inSession(driver, session -> cypher.time("FOLLOW_FRIEND", System.nanoTime(), session.runAsync(FOLLOW_FRIEND, params)
+						.thenCompose(StatementResultCursor::singleAsync))
+				.thenApply(record -> followed(followFriendStatus(record), userName, friendUserName))), "Error following friend: ");
+	}
 
-				// Create a relationship between the user and the friend
-				queryStr = "MATCH (user:profile {userName: $userName}), (friend:profile {userName: $frndUserName}) " +
-						"MERGE (user)-[:FOLLOWS]->(friend)";
-				trans.run(queryStr, params);
-				trans.success();
+	private DbQueryStatus followed(DbQueryStatus dbQueryStatus, String userName, String friendUserName) {
+		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+			friendFeedStore.followed(userName, friendUserName);
+			socialGraph.followed(userName, friendUserName);
+		}
+		return dbQueryStatus;
+	}
 
-				return new DbQueryStatus("Successfully followed friend", DbQueryExecResult.QUERY_OK);
-			} catch (Exception e) {
-				return new DbQueryStatus("Error following friend: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
-			}
-		} catch (Exception e) {
-			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+	private static DbQueryStatus followFriendStatus(Record result) {
+		if (!result.get("userExists").asBoolean()) {
+			return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 		}
+
+		if (!result.get("friendExists").asBoolean()) {
+			return new DbQueryStatus("Friend not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+		}
+
+		return new DbQueryStatus("Successfully followed friend", DbQueryExecResult.QUERY_OK);
 	}
 
 
 	@Override
 	public DbQueryStatus unfollowFriend(String userName, String frndUserName) {
-		String queryStr;
 		Map<String, Object> params = new HashMap<>();
 		params.put("userName", userName);
 		params.put("frndUserName", frndUserName);
 
 		try (Session session = driver.session()) {
-			try (Transaction trans = session.beginTransaction()) {
-				// Check if the user is currently following the friend
-				queryStr = "MATCH (user:profile {userName: $userName})-[r:FOLLOWS]->(friend:profile {userName: $frndUserName}) RETURN r";
-				StatementResult result = trans.run(queryStr, params);
+			// Removes the "follows" relationship and reports whether there was one
+			Record record = cypher.time("UNFOLLOW_FRIEND", () -> session.run(UNFOLLOW_FRIEND, params).single());
+			return unfollowed(unfollowFriendStatus(record), userName, frndUserName);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error unfollowing friend: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
 
-				if (!result.hasNext()) {
-					// No existing "follows" relationship found
-					return new DbQueryStatus("User is not following the friend", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
-				}
+	@Override
+	public CompletionStage<DbQueryStatus> unfollowFriendAsync(String userName, String frndUserName) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
+		params.put("frndUserName", frndUserName);
 
-				// Remove the "follows" relationship
-				queryStr = "MATCH (user:profile {userName: $userName})-[r:FOLLOWS]->(friend:profile {userName: $frndUserName}) DELETE r";
-				trans.run(queryStr, params);
-				trans.success();
+		return Neo4jAsync.recover(Neo4jAsync.inSession(driver, session -> cypher.time("UNFOLLOW_FRIEND", System.nanoTime(), session.runAsync(UNFOLLOW_FRIEND, params)
+						.thenCompose(StatementResultCursor::singleAsync))
+				.thenApply(record -> unfollowed(unfollowFriendStatus(record), userName, frndUserName))), "Error unfollowing friend: ");
+	}
 
-				return new DbQueryStatus("Successfully unfollowed friend", DbQueryExecResult.QUERY_OK);
-			} catch (Exception e) {
-				return new DbQueryStatus("Error unfollowing friend: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
-			}
-		} catch (Exception e) {
-			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+	private DbQueryStatus unfollowed(DbQueryStatus dbQueryStatus, String userName, String frndUserName) {
+		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+			friendFeedStore.unfollowed(userName, frndUserName);
+			socialGraph.unfollowed(userName, frndUserName);
+		}
+		return dbQueryStatus;
+	}
+
+	private static DbQueryStatus unfollowFriendStatus(Record result) {
+		if (result.get("removed").asLong() == 0) {
+			// No existing "follows" relationship found
+			return new DbQueryStatus("User is not following the friend", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 		}
+
+		return new DbQueryStatus("Successfully unfollowed friend", DbQueryExecResult.QUERY_OK);
 	}
 
 
 	@Override
 	public DbQueryStatus getAllSongFriendsLike(String userName) {
-		String queryStr;
 		Map<String, Object> params = new HashMap<>();
 		params.put("userName", userName);
-		OkHttpClient httpClient = new OkHttpClient();
 
-		try (Session session = driver.session()) {
-			try (Transaction trans = session.beginTransaction()) {
+		// Served from memory when the whole feed is there, otherwise read with one traversal and kept for next time
+		Map<String, Collection<String>> friendsSongIds = cachedFeed(userName);
+		if (friendsSongIds == null) {
+			long loadStartedAt = friendFeedStore.startLoad();
+			try (Session session = driver.session()) {
 				// Find all songs liked by friends of the user, along with the friend's username
+				List<Record> records = cypher.time("FRIENDS_LIKED_SONGS", () -> session.run(FRIENDS_LIKED_SONGS, params).list());
+				friendsSongIds = readFriendsSongIds(records);
+			} catch (Exception e) {
+				return new DbQueryStatus("Error retrieving songs liked by friends: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+			}
+			friendFeedStore.install(loadStartedAt, userName, friendsSongIds);
+		}
 
+		try {
+			Set<String> uniqueSongIds = uniqueSongIds(friendsSongIds);
+			logFeed(userName, friendsSongIds, uniqueSongIds);
 
-				queryStr = "MATCH (user:profile {userName: $userName})-[:FOLLOWS]->(friend:profile)-[:created]->(playlist:playlist)-[:includes]->(song) " +
-						"RETURN friend.userName AS friendUserName, collect(song.songId) AS songIds";
-				StatementResult result = trans.run(queryStr, params);
+			// Friends often like the same songs, so every id is only resolved once
+			Map<String, String> songTitles = SongServiceClient.await(songTitleCache.getSongTitlesByIds(uniqueSongIds));
 
+			for (String songId : uniqueSongIds) {
+				if (!songTitles.containsKey(songId)) {
+					// If the song does not exist, delete the node from Neo4j
+					deleteSongFromNeo4j(songId);
+				}
+			}
+
+			return friendsSongsStatus(friendsSongIds, songTitles);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error retrieving songs liked by friends: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
 
-				Map<String, List<String>> friendsSongs = new HashMap<>();
-				while (result.hasNext()) {
-					Record record = result.next();
-					String friendUserName = record.get("friendUserName").asString();
-					List<Object> friendSongIds = record.get("songIds").asList();
+	@Override
+	public CompletionStage<DbQueryStatus> getAllSongFriendsLikeAsync(String userName) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
 
-					List<String> songTitles = new ArrayList<>();
-					System.out.println(friendSongIds);
-					for (Object songId : friendSongIds) {
-						// Call the song microservice to get the song title by ID
-						String songTitle = getSongTitleById(songId.toString(), httpClient);
+		CompletionStage<Map<String, Collection<String>>> feed;
+		Map<String, Collection<String>> cached = cachedFeed(userName);
+		if (cached != null) {
+			feed = CompletableFuture.completedFuture(cached);
+		} else {
+			long loadStartedAt = friendFeedStore.startLoad();
+			feed = Neo4jAsync.inSession(driver, session -> cypher.time("FRIENDS_LIKED_SONGS", System.nanoTime(), session.runAsync(FRIENDS_LIKED_SONGS, params)
+							.thenCompose(StatementResultCursor::listAsync))
+					.thenApply(records -> {
+						Map<String, Collection<String>> friendsSongIds = readFriendsSongIds(records);
+						friendFeedStore.install(loadStartedAt, userName, friendsSongIds);
+						return friendsSongIds;
+					}));
+		}
 
-						if (songTitle == null) {
-							// If the song does not exist, delete the node from Neo4j
-							deleteSongFromNeo4j(songId.toString());
-						} else {
-							// If the song exists, add the title to the list
-							songTitles.add(songTitle);
+		return Neo4jAsync.recover(feed
+				.thenCompose(friendsSongIds -> {
+					Set<String> uniqueSongIds = uniqueSongIds(friendsSongIds);
+					logFeed(userName, friendsSongIds, uniqueSongIds);
+
+					return songTitleCache.getSongTitlesByIds(uniqueSongIds).thenCompose(songTitles -> {
+						List<CompletableFuture<Void>> deletes = new ArrayList<>();
+						for (String songId : uniqueSongIds) {
+							if (!songTitles.containsKey(songId)) {
+								deletes.add(deleteSongFromNeo4jAsync(songId).toCompletableFuture());
+							}
 						}
-					}
+						return CompletableFuture.allOf(deletes.toArray(new CompletableFuture[0]))
+								.thenApply(ignored -> friendsSongsStatus(friendsSongIds, songTitles));
+					});
+				}), "Error retrieving songs liked by friends: ");
+	}
 
-					friendsSongs.put(friendUserName, songTitles);
-				}
+	private static Map<String, Collection<String>> readFriendsSongIds(List<Record> records) {
+		Map<String, Collection<String>> friendsSongIds = new HashMap<>();
+		for (Record record : records) {
+			String friendUserName = record.get("friendUserName").asString();
+			List<String> friendSongIds = new ArrayList<>();
+			for (Object songId : record.get("songIds").asList()) {
+				friendSongIds.add(songId.toString());
+			}
+			friendsSongIds.put(friendUserName, friendSongIds);
+		}
+		return friendsSongIds;
+	}
 
-				if (friendsSongs.isEmpty()) {
-					return new DbQueryStatus("No songs liked by friends", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
-				}
+	// The social graph has every user once it is loaded, until then the feed store may have this one
+	private Map<String, Collection<String>> cachedFeed(String userName) {
+		Map<String, Collection<String>> feed = socialGraph.getFeed(userName);
+		return feed != null ? feed : friendFeedStore.getFeed(userName);
+	}
 
-				DbQueryStatus dbQueryStatus = new DbQueryStatus("Successfully retrieved songs liked by friends", DbQueryExecResult.QUERY_OK);
-				dbQueryStatus.setData(friendsSongs);
-				return dbQueryStatus;
-			} catch (Exception e) {
-				return new DbQueryStatus("Error retrieving songs liked by friends: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
-			}
-		} catch (Exception e) {
-			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+	private static Set<String> uniqueSongIds(Map<String, Collection<String>> friendsSongIds) {
+		Set<String> uniqueSongIds = new LinkedHashSet<>();
+		for (Collection<String> friendSongIds : friendsSongIds.values()) {
+			uniqueSongIds.addAll(friendSongIds);
 		}
+		return uniqueSongIds;
 	}
-	private void deleteSongFromNeo4j(String songId) {
-		try (Session session = driver.session()) {
-			String deleteQuery = "MATCH (song:song {songId: $songId}) DETACH DELETE song";
-			session.run(deleteQuery, Collections.singletonMap("songId", songId));
-			System.out.println("Deleted song from Neo4j with ID: " + songId);
-		} catch (Exception e) {
-			System.out.println("Error deleting song from Neo4j: " + e.getMessage());
 
+	private static void logFeed(String userName, Map<String, Collection<String>> friendsSongIds, Set<String> uniqueSongIds) {
+		if (LOG.isDebugEnabled() && FEEDS_LOG.tryAcquire()) {
+			LOG.debug("Feed of {} has {} friends and {} songs ({} similar messages suppressed)", userName, friendsSongIds.size(),
+					uniqueSongIds.size(), FEEDS_LOG.takeSuppressed());
 		}
 	}
 
-	private String getSongTitleById(String songId, OkHttpClient client) {
-		String songServiceUrl = "http://localhost:3001/getSongTitleById/" + songId;
-		Request request = new Request.Builder()
-				.url(songServiceUrl)
-				.build();
+	// Songs without a title no longer exist and are left out, as are friends that do not like any song
+	private static DbQueryStatus friendsSongsStatus(Map<String, Collection<String>> friendsSongIds, Map<String, String> songTitles) {
+		Map<String, List<String>> friendsSongs = new HashMap<>();
+		for (Map.Entry<String, Collection<String>> friendSongIds : friendsSongIds.entrySet()) {
+			if (friendSongIds.getValue().isEmpty()) {
+				continue;
+			}
+			List<String> titles = new ArrayList<>();
+			for (String songId : friendSongIds.getValue()) {
+				String songTitle = songTitles.get(songId);
+				if (songTitle != null) {
+					titles.add(songTitle);
+				}
+			}
+			friendsSongs.put(friendSongIds.getKey(), titles);
+		}
+
+		if (friendsSongs.isEmpty()) {
+			return new DbQueryStatus("No songs liked by friends", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+		}
 
-		try (Response response = client.newCall(request).execute()) {
-			String responseBody = response.body() != null ? response.body().string() : null;
-			System.out.println("Request to Song Service: " + songServiceUrl);
-			System.out.println("Response: " + responseBody);
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Successfully retrieved songs liked by friends", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(friendsSongs);
+		return dbQueryStatus;
+	}
 
-			if (response.isSuccessful() && responseBody != null) {
-				JSONObject jsonObject = new JSONObject(responseBody);
-				return jsonObject.getString("data");
+	// A failure is logged at WARN and a delete at DEBUG, a feed full of deleted songs deletes them all at once
+	private static void logSongDeleted(String songId, Throwable error) {
+		if (error != null) {
+			if (LOG.isWarnEnabled() && SONG_DELETES_LOG.tryAcquire()) {
+				LOG.warn("Error deleting song {} from Neo4j: {} ({} similar messages suppressed)", songId, error.getMessage(),
+						SONG_DELETES_LOG.takeSuppressed());
 			}
-		} catch (IOException e) {
-			System.out.println("IOException when calling song service: " + e.getMessage());
-		} catch (JSONException e) {
-			System.out.println("JSONException when parsing response: " + e.getMessage());
+		} else if (LOG.isDebugEnabled() && SONG_DELETES_LOG.tryAcquire()) {
+			LOG.debug("Deleted song from Neo4j with ID: {} ({} similar messages suppressed)", songId, SONG_DELETES_LOG.takeSuppressed());
 		}
-		return null;
 	}
 
+	private void deleteSongFromNeo4j(String songId) {
+		// The song is gone from the song service, stop serving its cached title
+		songTitleCache.markMissing(songId);
+		friendFeedStore.songDeleted(songId);
+		socialGraph.songDeleted(songId);
+
+		try (Session session = driver.session()) {
+			cypher.time("DELETE_SONG", () -> session.run(DELETE_SONG, Collections.singletonMap("songId", songId)).consume());
+			logSongDeleted(songId, null);
+		} catch (Exception e) {
+			logSongDeleted(songId, e);
+		}
+	}
 
+	// Never fails, a song node that could not be deleted is retried the next time it is found missing
+	private CompletionStage<Void> deleteSongFromNeo4jAsync(String songId) {
+		songTitleCache.markMissing(songId);
+		friendFeedStore.songDeleted(songId);
+		socialGraph.songDeleted(songId);
+
+		return Neo4jAsync.inSession(driver, session -> cypher.time("DELETE_SONG", System.nanoTime(), session.runAsync(DELETE_SONG, Collections.singletonMap("songId", songId))
+				.thenCompose(StatementResultCursor::consumeAsync)))
+				.handle((summary, error) -> {
+					logSongDeleted(songId, error == null ? null : Neo4jAsync.unwrap(error));
+					return null;
+				});
+	}
 
 	public DbQueryStatus updateLastListenedSong(String userName, String songId) {
-		String queryStr;
 		Map<String, Object> params = new HashMap<>();
 		params.put("userName", userName);
 		params.put("songId", songId);
-		OkHttpClient httpClient = new OkHttpClient();
 
 		try (Session session = driver.session()) {
-			try (Transaction trans = session.beginTransaction()) {
-				// Check if the user exists
-				StatementResult userResult = trans.run("MATCH (user:profile {userName: $userName}) RETURN user", params);
-				if (!userResult.hasNext()) {
+			try {
+				// Only a read runs before the song service is called, so no locks are held across its round trip
+				boolean userExists = cypher.time("USER_EXISTS", () -> session.run(USER_EXISTS, params).hasNext());
+				if (!userExists) {
 					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
 
-				// Increment the stream count using the song microservice
-				String songServiceUrl = "http://localhost:3001/incrementStreamCount/" + songId;
-				Request request = new Request.Builder().url(songServiceUrl).put(RequestBody.create(null, "")).build();
-
-				try (Response response = httpClient.newCall(request).execute()) {
-					if (!response.isSuccessful()) {
+				// Increment the stream count using the song microservice, nothing is written if this fails
+				try {
+					if (!SongServiceClient.await(songServiceClient.incrementStreamCount(songId))) {
 						return new DbQueryStatus("Failed to increment stream count", DbQueryExecResult.QUERY_ERROR_GENERIC);
 					}
 				} catch (IOException e) {
 					return new DbQueryStatus("Error calling song microservice: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 				}
 
-				// Update the last listened to relationship
-				queryStr = "MATCH (user:profile {userName: $userName}) " +
-						"OPTIONAL MATCH (user)-[r:LAST_LISTENED_TO]->(oldSong:song) " +
-						"DELETE r " +
-						"WITH user " +
-						"MERGE (newSong:song {songId: $songId}) " +
-						"MERGE (user)-[:LAST_LISTENED_TO]->(newSong)";
-				trans.run(queryStr, params);
-
-				trans.success();
-				return new DbQueryStatus("Updated last listened song", DbQueryExecResult.QUERY_OK);
+				// Update the last listened to relationship, nothing matches if the user was deleted since the check
+				userExists = cypher.time("UPDATE_LAST_LISTENED_SONG", () -> session.run(UPDATE_LAST_LISTENED_SONG, params).hasNext());
+				if (!userExists) {
+					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+				}
 			} catch (Exception e) {
 				return new DbQueryStatus("Error updating last listened song: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 			}
+			return played(new DbQueryStatus("Updated last listened song", DbQueryExecResult.QUERY_OK), userName, songId);
 		} catch (Exception e) {
 			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
 
+	@Override
+	public CompletionStage<DbQueryStatus> updateLastListenedSongAsync(String userName, String songId) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
+		params.put("songId", songId);
+
+		return Neo4jAsync.recover(Neo4jAsync.inSession(driver, session -> cypher.time("USER_EXISTS", System.nanoTime(), session.runAsync(USER_EXISTS, params)
+						.thenCompose(StatementResultCursor::nextAsync))
+				.thenCompose(user -> {
+					if (user == null) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+					// Nothing is written until the song service accepts the increment, as in the blocking variant
+					return SongServiceClient.updateStatus(songServiceClient.incrementStreamCount(songId), "Failed to increment stream count",
+							new DbQueryStatus("Updated last listened song", DbQueryExecResult.QUERY_OK))
+							.thenCompose(dbQueryStatus -> dbQueryStatus.getdbQueryExecResult() != DbQueryExecResult.QUERY_OK
+									? CompletableFuture.completedFuture(dbQueryStatus)
+									: cypher.time("UPDATE_LAST_LISTENED_SONG", System.nanoTime(), session.runAsync(UPDATE_LAST_LISTENED_SONG, params)
+											.thenCompose(StatementResultCursor::nextAsync))
+											.thenApply(record -> record != null ? dbQueryStatus
+													: new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND)));
+				})).thenApply(dbQueryStatus -> played(dbQueryStatus, userName, songId)), "Error updating last listened song: ");
+	}
+
+	// Only committed plays are recorded, and a play that cannot be recorded is still reported as updated
+	private DbQueryStatus played(DbQueryStatus dbQueryStatus, String userName, String songId) {
+		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+			try {
+				listeningHistory.append(userName, songId);
+			} catch (RuntimeException e) {
+				if (LOG.isWarnEnabled() && PLAY_ERRORS_LOG.tryAcquire()) {
+					LOG.warn("Error recording play in the listening history: {} ({} similar messages suppressed)", e.getMessage(),
+							PLAY_ERRORS_LOG.takeSuppressed());
+				}
+			}
+		}
+		return dbQueryStatus;
+	}
+
 
 	public DbQueryStatus getMostRecentSong(String userName) {
-		String queryStr;
 		Map<String, Object> params = new HashMap<>();
 		params.put("userName", userName);
-		OkHttpClient httpClient = new OkHttpClient();
 
 		try (Session session = driver.session()) {
-			try (Transaction trans = session.beginTransaction()) {
-				// Check if the user exists
-				StatementResult userResult = trans.run("MATCH (user:profile {userName: $userName}) RETURN user", params);
-				if (!userResult.hasNext()) {
+			try {
+				// Retrieve the most recent song listened to by the user, no row means the user does not exist
+				List<Record> records = cypher.time("GET_MOST_RECENT_SONG", () -> session.run(GET_MOST_RECENT_SONG, params).list());
+				if (records.isEmpty()) {
 					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
 
-				// Retrieve the most recent song listened to by the user
-				queryStr = "MATCH (user:profile {userName: $userName})-[:LAST_LISTENED_TO]->(song:song) RETURN song.songId AS songId";
-				StatementResult songResult = trans.run(queryStr, params);
-
-				if (!songResult.hasNext()) {
+				Value songIdValue = records.get(0).get("songId");
+				if (songIdValue.isNull()) {
 					return new DbQueryStatus("No recent song found for user", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 				}
 
-				String songId = songResult.single().get("songId").asString();
-				String songTitle = getSongTitleById(songId, httpClient);
+				String songId = songIdValue.asString();
+				String songTitle = SongServiceClient.await(songTitleCache.getSongTitleById(songId));
 
 				if (songTitle == null) {
 					deleteSongFromNeo4j((songId.toString())); //SHOULD DELETE THE NODE FROM THE DATABASE AS NO LONGER IN MONGO
@@ -333,4 +572,56 @@ public class ProfileDriverImpl implements ProfileDriver {
 			return new DbQueryStatus("Error connecting to the database: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> getMostRecentSongAsync(String userName) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", userName);
+
+		return Neo4jAsync.recover(Neo4jAsync.inSession(driver, session -> cypher.time("GET_MOST_RECENT_SONG", System.nanoTime(), session.runAsync(GET_MOST_RECENT_SONG, params)
+				.thenCompose(StatementResultCursor::nextAsync)))
+				.thenCompose(record -> {
+					if (record == null) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+					if (record.get("songId").isNull()) {
+						return CompletableFuture.completedFuture(new DbQueryStatus("No recent song found for user", DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+					}
+
+					String songId = record.get("songId").asString();
+					return songTitleCache.getSongTitleById(songId).thenCompose(songTitle -> {
+						if (songTitle == null) {
+							return deleteSongFromNeo4jAsync(songId).thenApply(ignored ->
+									new DbQueryStatus("Song title not found for song ID: " + songId, DbQueryExecResult.QUERY_ERROR_NOT_FOUND));
+						}
+
+						DbQueryStatus dbQueryStatus = new DbQueryStatus("Most recent song retrieved successfully", DbQueryExecResult.QUERY_OK);
+						dbQueryStatus.setData(songTitle);
+						return CompletableFuture.completedFuture(dbQueryStatus);
+					});
+				}), "Error retrieving most recent song: ");
+	}
+
+	@Override
+	public DbQueryStatus getFollowCounts(String userName) {
+		Map<String, Object> counts = socialGraph.getFollowCounts(userName);
+		if (counts == null) {
+			try (Session session = driver.session()) {
+				List<Record> records = cypher.time("FOLLOW_COUNTS", () -> session.run(FOLLOW_COUNTS, Collections.singletonMap("userName", userName)).list());
+				if (records.isEmpty()) {
+					return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+				}
+				Record record = records.get(0);
+				counts = new LinkedHashMap<>();
+				counts.put("followers", record.get("followers").asInt());
+				counts.put("following", record.get("following").asInt());
+			} catch (Exception e) {
+				return new DbQueryStatus("Error retrieving follow counts: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+			}
+		}
+
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Successfully retrieved follow counts", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(counts);
+		return dbQueryStatus;
+	}
 }
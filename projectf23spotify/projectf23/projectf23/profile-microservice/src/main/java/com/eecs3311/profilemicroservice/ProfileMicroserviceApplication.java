@@ -1,7 +1,10 @@
 package com.eecs3311.profilemicroservice;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.neo4j.driver.v1.AuthTokens;
 import org.neo4j.driver.v1.Config;
 import org.neo4j.driver.v1.Driver;
@@ -11,18 +14,22 @@ import org.neo4j.driver.v1.Transaction;
 
 @SpringBootApplication
 public class ProfileMicroserviceApplication {
+	private static final Logger LOG = LogManager.getLogger(ProfileMicroserviceApplication.class);
+
 	public static String dbUri = "bolt://localhost:7687";
 	public static Config config = Config.builder().withoutEncryption().build();
     public static Driver driver = GraphDatabase.driver(dbUri, AuthTokens.basic("neo4j","12345678"), config);
 
     
 	public static void main(String[] args) {
-		SpringApplication.run(ProfileMicroserviceApplication.class, args);
+		ConfigurableApplicationContext context = SpringApplication.run(ProfileMicroserviceApplication.class, args);
 		
 		ProfileDriverImpl.InitProfileDb();
 		PlaylistDriverImpl.InitPlaylistDb();
+		GraphSchema.initGraphSchema();
+		context.getBean(SocialGraph.class).rebuild();
 		
-		System.out.println("Profile service is running on port 3002");
+		LOG.info("Profile service is running on port 3002");
 	}
 }
 
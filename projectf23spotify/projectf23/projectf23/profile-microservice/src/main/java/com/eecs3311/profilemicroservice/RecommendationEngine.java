@@ -0,0 +1,329 @@
+package com.eecs3311.profilemicroservice;
+
+import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.Record;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Recommends songs from the favourites of the users someone follows (distance 1) and the users they follow in turn
+ * (distance 2). Each song scores the weight of every such user that likes it, so a song liked by several friends
+ * outranks one liked by a single friend of a friend, and songs the user already likes are left out.
+ *
+ * The traversal runs over {@link SocialGraph} once it is loaded, falling back to the follows and favourites held by
+ * {@link FriendFeedStore}, and users that are in neither are read with one statement per hop. Scoring is split across a small pool once there are enough users to score, and only
+ * the best limit songs are kept. Every request has a time budget: whatever was not scored when it runs out is left out
+ * and the response is marked partial.
+ */
+@Component
+public class RecommendationEngine {
+
+	// Follows and favourites of every user in $userNames, users that do not exist are left out
+	static final String USERS_EDGES =
+			"UNWIND $userNames AS userName " +
+			"MATCH (user:profile {userName: userName}) " +
+			"OPTIONAL MATCH (user)-[:FOLLOWS]->(friend:profile) " +
+			"WITH user, collect(friend.userName) AS follows " +
+			"OPTIONAL MATCH (user)-[:created]->(:playlist)-[:includes]->(song:song) " +
+			"RETURN user.userName AS userName, follows, collect(song.songId) AS songIds";
+
+	// Below this many users to score the work is done on the calling thread
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	private final Driver driver;
+	private final SocialGraph socialGraph;
+	private final FriendFeedStore friendFeedStore;
+	private final SongTitleCache songTitleCache;
+	private final LatencyMetrics.Family cypher;
+	private final double friendWeight;
+	private final double friendOfFriendWeight;
+	private final int maxFriendsOfFriends;
+	private final int maxLimit;
+	private final long timeoutNanos;
+	private final int parallelism;
+	private final ExecutorService scorers;
+
+	@Autowired
+	public RecommendationEngine(SocialGraph socialGraph, FriendFeedStore friendFeedStore, SongTitleCache songTitleCache, LatencyMetrics latencyMetrics,
+								@Value("${profile.recommendations.friend-weight:1.0}") double friendWeight,
+								@Value("${profile.recommendations.friend-of-friend-weight:0.5}") double friendOfFriendWeight,
+								@Value("${profile.recommendations.max-friends-of-friends:10000}") int maxFriendsOfFriends,
+								@Value("${profile.recommendations.max-limit:100}") int maxLimit,
+								@Value("${profile.recommendations.timeout-ms:250}") long timeoutMs,
+								@Value("${profile.recommendations.parallelism:4}") int parallelism) {
+		this(ProfileMicroserviceApplication.driver, socialGraph, friendFeedStore, songTitleCache, latencyMetrics, friendWeight, friendOfFriendWeight,
+				maxFriendsOfFriends, maxLimit, timeoutMs, parallelism);
+	}
+
+	// Tests pass a driver of their own
+	RecommendationEngine(Driver driver, SocialGraph socialGraph, FriendFeedStore friendFeedStore, SongTitleCache songTitleCache,
+						 LatencyMetrics latencyMetrics, double friendWeight, double friendOfFriendWeight, int maxFriendsOfFriends, int maxLimit,
+						 long timeoutMs, int parallelism) {
+		this.driver = driver;
+		this.socialGraph = socialGraph;
+		this.friendFeedStore = friendFeedStore;
+		this.songTitleCache = songTitleCache;
+		this.cypher = latencyMetrics.cypher;
+		this.friendWeight = friendWeight;
+		this.friendOfFriendWeight = friendOfFriendWeight;
+		this.maxFriendsOfFriends = maxFriendsOfFriends;
+		this.maxLimit = maxLimit;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		this.parallelism = parallelism;
+		this.scorers = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "recommendation-scorer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public DbQueryStatus getRecommendedSongs(String userName, int limit) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		limit = Math.max(1, Math.min(limit, maxLimit));
+
+		try {
+			Map<String, UserEdges> user = loadUsers(Collections.singleton(userName), deadline);
+			if (!user.containsKey(userName)) {
+				return new DbQueryStatus("User not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+			}
+			Set<String> friends = new HashSet<>(user.get(userName).follows);
+			Set<String> ownLikes = new HashSet<>(user.get(userName).likes);
+
+			Map<String, UserEdges> friendEdges = loadUsers(friends, deadline);
+			Set<String> friendsOfFriends = new LinkedHashSet<>();
+			for (UserEdges friend : friendEdges.values()) {
+				for (String friendOfFriend : friend.follows) {
+					if (friendsOfFriends.size() == maxFriendsOfFriends) {
+						break;
+					}
+					if (!friendOfFriend.equals(userName) && !friends.contains(friendOfFriend)) {
+						friendsOfFriends.add(friendOfFriend);
+					}
+				}
+			}
+
+			// Friends of friends are optional, if reading them uses up the budget the friends alone are scored
+			boolean partial = false;
+			Map<String, UserEdges> friendOfFriendEdges;
+			try {
+				friendOfFriendEdges = loadUsers(friendsOfFriends, deadline);
+			} catch (TimeoutException e) {
+				friendOfFriendEdges = Collections.emptyMap();
+				partial = true;
+			}
+
+			List<Scorer> likers = new ArrayList<>(friendEdges.size() + friendOfFriendEdges.size());
+			for (UserEdges friend : friendEdges.values()) {
+				likers.add(new Scorer(friend.likes, friendWeight));
+			}
+			for (UserEdges friendOfFriend : friendOfFriendEdges.values()) {
+				likers.add(new Scorer(friendOfFriend.likes, friendOfFriendWeight));
+			}
+
+			Map<String, Score> scores = new HashMap<>();
+			partial |= score(likers, ownLikes, scores, deadline);
+
+			List<Map.Entry<String, Score>> top = topK(scores, limit);
+			return recommendationsStatus(top, partial);
+		} catch (TimeoutException e) {
+			return new DbQueryStatus("Recommendations took longer than the time budget", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error recommending songs: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
+	// Returns the follows and favourites of every user that exists, reading the ones not in memory with a single statement
+	private Map<String, UserEdges> loadUsers(Collection<String> userNames, long deadline) throws TimeoutException {
+		Map<String, UserEdges> edges = new HashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (String userName : userNames) {
+			Collection<String> follows = socialGraph.getFollows(userName);
+			Collection<String> likes = socialGraph.getLikes(userName);
+			if (follows == null || likes == null) {
+				follows = friendFeedStore.getFollows(userName);
+				likes = friendFeedStore.getLikes(userName);
+			}
+			if (follows == null || likes == null) {
+				misses.add(userName);
+			} else {
+				edges.put(userName, new UserEdges(follows, likes));
+			}
+		}
+		if (misses.isEmpty()) {
+			return edges;
+		}
+
+		long remainingNanos = deadline - System.nanoTime();
+		if (remainingNanos <= 0) {
+			throw new TimeoutException();
+		}
+
+		long loadStartedAt = friendFeedStore.startLoad();
+		List<Record> records;
+		try (Session session = driver.session()) {
+			// The server gives up on the read once the budget is spent
+			TransactionConfig config = TransactionConfig.builder().withTimeout(Duration.ofNanos(remainingNanos)).build();
+			records = cypher.time("USERS_EDGES", () -> session.readTransaction(tx -> tx.run(USERS_EDGES, Values.parameters("userNames", misses)).list(), config));
+		} catch (RuntimeException e) {
+			if (System.nanoTime() >= deadline) {
+				throw new TimeoutException();
+			}
+			throw e;
+		}
+
+		for (Record record : records) {
+			String userName = record.get("userName").asString();
+			List<String> follows = record.get("follows").asList(value -> value.asString());
+			List<String> songIds = record.get("songIds").asList(value -> value.asString());
+			friendFeedStore.installUser(loadStartedAt, userName, follows, songIds);
+			edges.put(userName, new UserEdges(follows, songIds));
+		}
+		return edges;
+	}
+
+	// Adds every liker's weight to the songs they like, returns true if the budget ran out before all of them were scored
+	private boolean score(List<Scorer> likers, Set<String> ownLikes, Map<String, Score> scores, long deadline) throws InterruptedException {
+		if (likers.size() < PARALLEL_THRESHOLD) {
+			for (Scorer liker : likers) {
+				liker.addTo(scores, ownLikes);
+			}
+			return false;
+		}
+
+		// Each task scores a slice into its own map, the slices are merged once they are done
+		int sliceSize = (likers.size() + parallelism - 1) / parallelism;
+		List<Callable<Map<String, Score>>> slices = new ArrayList<>(parallelism);
+		for (int from = 0; from < likers.size(); from += sliceSize) {
+			List<Scorer> slice = likers.subList(from, Math.min(from + sliceSize, likers.size()));
+			slices.add(() -> {
+				Map<String, Score> sliceScores = new HashMap<>();
+				for (Scorer liker : slice) {
+					if (Thread.currentThread().isInterrupted()) {
+						break;
+					}
+					liker.addTo(sliceScores, ownLikes);
+				}
+				return sliceScores;
+			});
+		}
+
+		boolean partial = false;
+		for (Future<Map<String, Score>> slice : scorers.invokeAll(slices, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+			try {
+				for (Map.Entry<String, Score> songScore : slice.get().entrySet()) {
+					scores.merge(songScore.getKey(), songScore.getValue(), Score::merge);
+				}
+			} catch (CancellationException | ExecutionException e) {
+				partial = true;
+			}
+		}
+		return partial;
+	}
+
+	// Keeps the best k songs in a min-heap, so ranking n songs costs n log k rather than sorting all of them
+	private static List<Map.Entry<String, Score>> topK(Map<String, Score> scores, int k) {
+		Comparator<Map.Entry<String, Score>> ranking = Comparator
+				.comparingDouble((Map.Entry<String, Score> entry) -> entry.getValue().score)
+				.thenComparingInt(entry -> entry.getValue().likers)
+				.thenComparing(Map.Entry::getKey, Comparator.reverseOrder());
+
+		PriorityQueue<Map.Entry<String, Score>> heap = new PriorityQueue<>(k + 1, ranking);
+		for (Map.Entry<String, Score> entry : scores.entrySet()) {
+			if (heap.size() < k) {
+				heap.add(entry);
+			} else if (ranking.compare(entry, heap.peek()) > 0) {
+				heap.poll();
+				heap.add(entry);
+			}
+		}
+
+		List<Map.Entry<String, Score>> top = new ArrayList<>(heap);
+		top.sort(ranking.reversed());
+		return top;
+	}
+
+	private DbQueryStatus recommendationsStatus(List<Map.Entry<String, Score>> top, boolean partial) throws Exception {
+		List<String> songIds = new ArrayList<>(top.size());
+		for (Map.Entry<String, Score> entry : top) {
+			songIds.add(entry.getKey());
+		}
+		Map<String, String> songTitles = SongServiceClient.await(songTitleCache.getSongTitlesByIds(songIds));
+
+		// Songs without a title no longer exist and are left out
+		List<Map<String, Object>> songs = new ArrayList<>(top.size());
+		for (Map.Entry<String, Score> entry : top) {
+			String songTitle = songTitles.get(entry.getKey());
+			if (songTitle != null) {
+				Map<String, Object> song = new LinkedHashMap<>();
+				song.put("songId", entry.getKey());
+				song.put("songName", songTitle);
+				song.put("score", entry.getValue().score);
+				song.put("likedBy", entry.getValue().likers);
+				songs.add(song);
+			}
+		}
+
+		Map<String, Object> recommendations = new LinkedHashMap<>();
+		recommendations.put("songs", songs);
+		recommendations.put("partial", partial); // True when the time budget ran out before every candidate was scored
+
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Successfully recommended songs", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(recommendations);
+		return dbQueryStatus;
+	}
+
+	@PreDestroy
+	public void close() {
+		scorers.shutdownNow();
+	}
+
+	private static class UserEdges {
+		final Collection<String> follows;
+		final Collection<String> likes;
+
+		UserEdges(Collection<String> follows, Collection<String> likes) {
+			this.follows = follows;
+			this.likes = likes;
+		}
+	}
+
+	private static class Scorer {
+		final Collection<String> likes;
+		final double weight;
+
+		Scorer(Collection<String> likes, double weight) {
+			this.likes = likes;
+			this.weight = weight;
+		}
+
+		void addTo(Map<String, Score> scores, Set<String> ownLikes) {
+			for (String songId : likes) {
+				if (!ownLikes.contains(songId)) {
+					scores.computeIfAbsent(songId, ignored -> new Score()).add(weight);
+				}
+			}
+		}
+	}
+
+	private static class Score {
+		double score;
+		int likers;
+
+		void add(double weight) {
+			score += weight;
+			likers++;
+		}
+
+		Score merge(Score other) {
+			score += other.score;
+			likers += other.likers;
+			return this;
+		}
+	}
+}
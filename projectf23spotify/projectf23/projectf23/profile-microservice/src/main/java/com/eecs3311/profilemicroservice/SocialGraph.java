@@ -0,0 +1,536 @@
+package com.eecs3311.profilemicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.Record;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Read-only snapshot of who follows whom and which songs each user likes, so feeds, follow counts and recommendations
+ * can be answered without going to Neo4j.
+ *
+ * User names and song ids are dictionary encoded: each is stored once in a sorted array and referred to by its index.
+ * Both relationships are kept in compressed sparse row form, the targets of every row in one int array and where each
+ * row starts in another, which takes a few bytes per relationship instead of the objects and hash entries of a graph
+ * built from collections.
+ *
+ * The snapshot is built from Neo4j at startup and never modified. Writes made after that are patched in through a
+ * small overlay of added and removed relationships, and once the overlay grows past maxOverlayEdges, or every
+ * rebuildIntervalMs, the snapshot is rebuilt in the background. Writes made during a rebuild are replayed onto it.
+ * After a failed build a full overlay waits retryDelayMs before asking again, doubling up to rebuildIntervalMs.
+ */
+@Component
+public class SocialGraph {
+
+	private static final Logger LOG = LogManager.getLogger(SocialGraph.class);
+
+	static final String ALL_USERS = "MATCH (user:profile) RETURN user.userName AS userName";
+	static final String ALL_SONGS = "MATCH (song:song) RETURN song.songId AS songId";
+	static final String ALL_FOLLOWS =
+			"MATCH (user:profile)-[:FOLLOWS]->(friend:profile) RETURN user.userName AS userName, friend.userName AS friendUserName";
+	static final String ALL_LIKES =
+			"MATCH (user:profile)-[:created]->(:playlist)-[:includes]->(song:song) RETURN user.userName AS userName, song.songId AS songId";
+
+	private final boolean enabled;
+	private final int maxOverlayEdges;
+	private final long rebuildIntervalMs;
+	private final long retryDelayMs;
+	private final Supplier<Session> sessions;
+	private final ScheduledExecutorService rebuilder;
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	// Set by the write that queues a rebuild for a full overlay so the writes after it do not queue more, cleared once it starts
+	private final AtomicBoolean rebuildRequested = new AtomicBoolean();
+	// Only touched by the rebuild in progress
+	private int failedBuilds;
+	// A full overlay does not ask for a rebuild before this, as System.nanoTime
+	private volatile long retryAfterNanos = System.nanoTime();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile Snapshot snapshot;
+	private Overlay overlay = new Overlay();
+	// Writes made while a rebuild is reading Neo4j, replayed onto the new snapshot before it is swapped in
+	private List<BiConsumer<Snapshot, Overlay>> changesDuringRebuild;
+
+	@Autowired
+	public SocialGraph(@Value("${profile.social-graph.enabled:true}") boolean enabled,
+					   @Value("${profile.social-graph.max-overlay-edges:100000}") int maxOverlayEdges,
+					   @Value("${profile.social-graph.rebuild-interval-ms:3600000}") long rebuildIntervalMs,
+					   @Value("${profile.social-graph.retry-delay-ms:5000}") long retryDelayMs) {
+		this(enabled, maxOverlayEdges, rebuildIntervalMs, retryDelayMs, () -> ProfileMicroserviceApplication.driver.session());
+	}
+
+	// Tests read from sessions of their own, the service's driver connects to Neo4j as soon as it is first used
+	SocialGraph(boolean enabled, int maxOverlayEdges, long rebuildIntervalMs, long retryDelayMs, Supplier<Session> sessions) {
+		this.enabled = enabled;
+		this.maxOverlayEdges = maxOverlayEdges;
+		this.rebuildIntervalMs = rebuildIntervalMs;
+		this.retryDelayMs = retryDelayMs;
+		this.sessions = sessions;
+
+		this.rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "social-graph-rebuilder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (enabled) {
+			this.rebuilder.scheduleWithFixedDelay(this::rebuild, rebuildIntervalMs, rebuildIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Reads the whole graph into a new snapshot, reads keep using the old one until it is done
+	public void rebuild() {
+		rebuild(sessions);
+	}
+
+	// Reads from the given sessions instead of the service's driver, the benchmarks build the graph from a stand-in
+	void rebuild(Supplier<Session> sessions) {
+		if (!enabled || !rebuilding.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			lock.writeLock().lock();
+			try {
+				changesDuringRebuild = new ArrayList<>();
+				rebuildRequested.set(false);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			Snapshot rebuilt;
+			long startedAt = System.nanoTime();
+			try (Session session = sessions.get()) {
+				rebuilt = Snapshot.build(session);
+			} catch (Exception e) {
+				long delayMs = Math.min(rebuildIntervalMs, retryDelayMs << Math.min(failedBuilds, 16));
+				failedBuilds++;
+				retryAfterNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+				LOG.error("Error building the social graph, a full overlay waits {}ms before the next try: {}", delayMs, e.getMessage());
+				rebuilt = null;
+			}
+
+			lock.writeLock().lock();
+			try {
+				if (rebuilt != null) {
+					Overlay replayed = new Overlay();
+					for (BiConsumer<Snapshot, Overlay> change : changesDuringRebuild) {
+						change.accept(rebuilt, replayed);
+					}
+					snapshot = rebuilt;
+					overlay = replayed;
+					failedBuilds = 0;
+					LOG.info("Social graph built with {} users, {} follows and {} likes in {}ms, {}KB", rebuilt.userNames.length,
+							rebuilt.followTargets.length, rebuilt.likedSongs.length, (System.nanoTime() - startedAt) / 1000000,
+							rebuilt.bytes() / 1024);
+				}
+				changesDuringRebuild = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			rebuilding.set(false);
+		}
+	}
+
+	public boolean isLoaded() {
+		return snapshot != null;
+	}
+
+	// The users the user follows, or null if the graph is not loaded or the user does not exist
+	public List<String> getFollows(String userName) {
+		lock.readLock().lock();
+		try {
+			Snapshot graph = snapshot;
+			if (graph == null || !hasUser(graph, userName)) {
+				return null;
+			}
+			return merge(graph.userNames, graph.followOffsets, graph.followTargets, graph.userId(userName),
+					overlay.addedFollows.get(userName), overlay.removedFollows.get(userName), Collections.emptySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// The songs the user likes, or null if the graph is not loaded or the user does not exist
+	public List<String> getLikes(String userName) {
+		lock.readLock().lock();
+		try {
+			Snapshot graph = snapshot;
+			if (graph == null || !hasUser(graph, userName)) {
+				return null;
+			}
+			return merge(graph.songIds, graph.likeOffsets, graph.likedSongs, graph.userId(userName),
+					overlay.addedLikes.get(userName), overlay.removedLikes.get(userName), overlay.deletedSongs);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The songs liked by every user the user follows, keyed by friend, in the same form as {@link FriendFeedStore#getFeed}.
+	 * Null if the graph is not loaded, empty if the user does not exist.
+	 */
+	public Map<String, Collection<String>> getFeed(String userName) {
+		lock.readLock().lock();
+		try {
+			if (snapshot == null) {
+				return null;
+			}
+			List<String> friends = getFollows(userName);
+			Map<String, Collection<String>> feed = new HashMap<>();
+			if (friends != null) {
+				for (String friend : friends) {
+					feed.put(friend, getLikes(friend));
+				}
+			}
+			return feed;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Number of followers and followed users, or null if the graph is not loaded or the user does not exist
+	public Map<String, Object> getFollowCounts(String userName) {
+		lock.readLock().lock();
+		try {
+			Snapshot graph = snapshot;
+			if (graph == null || !hasUser(graph, userName)) {
+				return null;
+			}
+			int id = graph.userId(userName);
+			int followers = (id < 0 ? 0 : graph.followerCounts[id]) + overlay.followerDeltas.getOrDefault(userName, 0);
+			Map<String, Object> counts = new LinkedHashMap<>();
+			counts.put("followers", followers);
+			counts.put("following", getFollows(userName).size());
+			return counts;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void userCreated(String userName) {
+		change((graph, changes) -> {
+			if (graph.userId(userName) < 0) {
+				changes.addedUsers.add(userName);
+			}
+		});
+	}
+
+	public void followed(String userName, String friendUserName) {
+		change((graph, changes) -> {
+			if (changes.edge(changes.addedFollows, changes.removedFollows, graph.follows(userName, friendUserName), userName, friendUserName, true)) {
+				changes.followerDeltas.merge(friendUserName, 1, Integer::sum);
+			}
+		});
+	}
+
+	public void unfollowed(String userName, String friendUserName) {
+		change((graph, changes) -> {
+			if (changes.edge(changes.addedFollows, changes.removedFollows, graph.follows(userName, friendUserName), userName, friendUserName, false)) {
+				changes.followerDeltas.merge(friendUserName, -1, Integer::sum);
+			}
+		});
+	}
+
+	public void liked(String userName, String songId) {
+		change((graph, changes) -> changes.edge(changes.addedLikes, changes.removedLikes, graph.likes(userName, songId), userName, songId, true));
+	}
+
+	public void unliked(String userName, String songId) {
+		change((graph, changes) -> changes.edge(changes.addedLikes, changes.removedLikes, graph.likes(userName, songId), userName, songId, false));
+	}
+
+	// Song ids are never reused, so a deleted song is only filtered out of reads until the next rebuild drops it
+	public void songDeleted(String songId) {
+		change((graph, changes) -> changes.deletedSongs.add(songId));
+	}
+
+	public Map<String, Object> getStats() {
+		lock.readLock().lock();
+		try {
+			Snapshot graph = snapshot;
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("loaded", graph != null);
+			if (graph != null) {
+				stats.put("users", graph.userNames.length);
+				stats.put("songs", graph.songIds.length);
+				stats.put("follows", graph.followTargets.length);
+				stats.put("likes", graph.likedSongs.length);
+				stats.put("snapshotBytes", graph.bytes());
+				stats.put("snapshotAgeMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - graph.builtAtNanos));
+			}
+			stats.put("overlayEdges", overlay.edges);
+			return stats;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		rebuilder.shutdownNow();
+	}
+
+	private void change(BiConsumer<Snapshot, Overlay> change) {
+		if (!enabled) {
+			return;
+		}
+		boolean requestRebuild;
+		lock.writeLock().lock();
+		try {
+			if (changesDuringRebuild != null) {
+				changesDuringRebuild.add(change);
+			}
+			if (snapshot != null) {
+				change.accept(snapshot, overlay);
+			}
+			// Decided under the lock a rebuild starts under, so no request is made once one has started
+			requestRebuild = overlay.edges > maxOverlayEdges && changesDuringRebuild == null
+					&& System.nanoTime() - retryAfterNanos >= 0 && rebuildRequested.compareAndSet(false, true);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (requestRebuild) {
+			rebuilder.execute(this::rebuildIfOverlayFull);
+		}
+	}
+
+	// Another rebuild may have started and emptied the overlay after this one was requested
+	private void rebuildIfOverlayFull() {
+		boolean overlayFull;
+		lock.readLock().lock();
+		try {
+			overlayFull = overlay.edges > maxOverlayEdges;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (overlayFull) {
+			rebuild();
+		}
+	}
+
+	private boolean hasUser(Snapshot graph, String userName) {
+		return graph.userId(userName) >= 0 || overlay.addedUsers.contains(userName);
+	}
+
+	// A row of the snapshot with the overlay applied
+	private static List<String> merge(String[] dictionary, int[] offsets, int[] targets, int row,
+									  Set<String> added, Set<String> removed, Set<String> excluded) {
+		List<String> merged = new ArrayList<>();
+		if (row >= 0) {
+			for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+				String target = dictionary[targets[i]];
+				if ((removed == null || !removed.contains(target)) && !excluded.contains(target)) {
+					merged.add(target);
+				}
+			}
+		}
+		if (added != null) {
+			for (String target : added) {
+				if (!excluded.contains(target)) {
+					merged.add(target);
+				}
+			}
+		}
+		return merged;
+	}
+
+	private static final class Snapshot {
+		final String[] userNames;     // Sorted, a user's id is its index
+		final String[] songIds;       // Sorted, a song's id is its index
+		final int[] followOffsets;    // User u follows followTargets[followOffsets[u]] up to followTargets[followOffsets[u + 1] - 1]
+		final int[] followTargets;    // Every row is sorted so membership is a binary search
+		final int[] followerCounts;
+		final int[] likeOffsets;      // Same layout as the follows, indexing into likedSongs
+		final int[] likedSongs;
+		final long builtAtNanos = System.nanoTime();
+
+		private Snapshot(String[] userNames, String[] songIds, int[][] follows, int[] followerCounts, int[][] likes) {
+			this.userNames = userNames;
+			this.songIds = songIds;
+			this.followOffsets = follows[0];
+			this.followTargets = follows[1];
+			this.followerCounts = followerCounts;
+			this.likeOffsets = likes[0];
+			this.likedSongs = likes[1];
+		}
+
+		// Streams every user, song and relationship, only the int arrays and the dictionaries are kept
+		static Snapshot build(Session session) {
+			String[] userNames = dictionary(session.run(ALL_USERS), "userName");
+			String[] songIds = dictionary(session.run(ALL_SONGS), "songId");
+
+			IntPairs follows = new IntPairs();
+			StatementResult followResult = session.run(ALL_FOLLOWS);
+			while (followResult.hasNext()) {
+				Record record = followResult.next();
+				follows.add(Arrays.binarySearch(userNames, record.get("userName").asString()),
+						Arrays.binarySearch(userNames, record.get("friendUserName").asString()));
+			}
+
+			IntPairs likes = new IntPairs();
+			StatementResult likeResult = session.run(ALL_LIKES);
+			while (likeResult.hasNext()) {
+				Record record = likeResult.next();
+				likes.add(Arrays.binarySearch(userNames, record.get("userName").asString()),
+						Arrays.binarySearch(songIds, record.get("songId").asString()));
+			}
+
+			int[][] followRows = follows.toRows(userNames.length);
+			int[] followerCounts = new int[userNames.length];
+			for (int target : followRows[1]) {
+				followerCounts[target]++;
+			}
+			return new Snapshot(userNames, songIds, followRows, followerCounts, likes.toRows(userNames.length));
+		}
+
+		private static String[] dictionary(StatementResult result, String key) {
+			List<String> values = new ArrayList<>();
+			while (result.hasNext()) {
+				Record record = result.next();
+				if (!record.get(key).isNull()) {
+					values.add(record.get(key).asString());
+				}
+			}
+			String[] sorted = values.toArray(new String[0]);
+			Arrays.sort(sorted);
+			int distinct = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if (i == 0 || !sorted[i].equals(sorted[distinct - 1])) {
+					sorted[distinct++] = sorted[i];
+				}
+			}
+			return Arrays.copyOf(sorted, distinct);
+		}
+
+		int userId(String userName) {
+			int id = Arrays.binarySearch(userNames, userName);
+			return id < 0 ? -1 : id;
+		}
+
+		boolean follows(String userName, String friendUserName) {
+			return contains(followOffsets, followTargets, userId(userName), Arrays.binarySearch(userNames, friendUserName));
+		}
+
+		boolean likes(String userName, String songId) {
+			return contains(likeOffsets, likedSongs, userId(userName), Arrays.binarySearch(songIds, songId));
+		}
+
+		private static boolean contains(int[] offsets, int[] targets, int row, int target) {
+			return row >= 0 && target >= 0 && Arrays.binarySearch(targets, offsets[row], offsets[row + 1], target) >= 0;
+		}
+
+		// The int arrays plus the dictionaries, counting each string as its characters and a header
+		long bytes() {
+			long bytes = 4L * (followOffsets.length + followTargets.length + followerCounts.length + likeOffsets.length + likedSongs.length);
+			for (String userName : userNames) {
+				bytes += 56 + 2L * userName.length();
+			}
+			for (String songId : songIds) {
+				bytes += 56 + 2L * songId.length();
+			}
+			return bytes;
+		}
+	}
+
+	// Relationships as they are streamed, turned into rows once they have all been read
+	private static final class IntPairs {
+		private int[] sources = new int[1024];
+		private int[] targets = new int[1024];
+		private int size;
+
+		// Relationships to a node that was created after the dictionaries were read are skipped, the overlay has them
+		void add(int source, int target) {
+			if (source < 0 || target < 0) {
+				return;
+			}
+			if (size == sources.length) {
+				sources = Arrays.copyOf(sources, size * 2);
+				targets = Arrays.copyOf(targets, size * 2);
+			}
+			sources[size] = source;
+			targets[size] = target;
+			size++;
+		}
+
+		// Counting sort by source, then each row is sorted and duplicates removed. Returns {offsets, targets}
+		int[][] toRows(int rowCount) {
+			int[] offsets = new int[rowCount + 1];
+			for (int i = 0; i < size; i++) {
+				offsets[sources[i] + 1]++;
+			}
+			for (int row = 0; row < rowCount; row++) {
+				offsets[row + 1] += offsets[row];
+			}
+
+			int[] rows = new int[size];
+			int[] next = Arrays.copyOf(offsets, rowCount);
+			for (int i = 0; i < size; i++) {
+				rows[next[sources[i]]++] = targets[i];
+			}
+
+			int[] compactOffsets = new int[rowCount + 1];
+			int written = 0;
+			for (int row = 0; row < rowCount; row++) {
+				Arrays.sort(rows, offsets[row], offsets[row + 1]);
+				for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+					if (i == offsets[row] || rows[i] != rows[i - 1]) {
+						rows[written++] = rows[i];
+					}
+				}
+				compactOffsets[row + 1] = written;
+			}
+			return new int[][] {compactOffsets, Arrays.copyOf(rows, written)};
+		}
+	}
+
+	// Changes since the snapshot was built, keyed by user name so users and songs created since then are covered too
+	private static final class Overlay {
+		final Map<String, Set<String>> addedFollows = new HashMap<>();
+		final Map<String, Set<String>> removedFollows = new HashMap<>();
+		final Map<String, Set<String>> addedLikes = new HashMap<>();
+		final Map<String, Set<String>> removedLikes = new HashMap<>();
+		final Map<String, Integer> followerDeltas = new HashMap<>();
+		final Set<String> addedUsers = new HashSet<>();
+		final Set<String> deletedSongs = new HashSet<>();
+		int edges;
+
+		// Adds or removes one relationship, returns whether that changed the graph
+		boolean edge(Map<String, Set<String>> added, Map<String, Set<String>> removed, boolean inSnapshot,
+					 String source, String target, boolean add) {
+			Map<String, Set<String>> undo = add ? removed : added;
+			Map<String, Set<String>> record = add ? added : removed;
+
+			Set<String> undone = undo.get(source);
+			if (undone != null && undone.remove(target)) {
+				if (undone.isEmpty()) {
+					undo.remove(source);
+				}
+				edges--;
+				return true;
+			}
+			// Adding a relationship the snapshot already has, or removing one it does not, changes nothing
+			if (inSnapshot == add) {
+				return false;
+			}
+			if (record.computeIfAbsent(source, ignored -> new HashSet<>()).add(target)) {
+				edges++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.eecs3311.profilemicroservice;
+
+import okhttp3.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for the song microservice shared by every driver, so all calls reuse one connection pool and dispatcher.
+ * Every call is asynchronous, callers that need the result straight away can use {@link #await(CompletableFuture)}.
+ */
+@Component
+public class SongServiceClient {
+
+	private static final Logger LOG = LogManager.getLogger(SongServiceClient.class);
+
+	// Every call is logged at DEBUG, at most 10 a second
+	private static final LogRateLimiter CALLS_LOG = new LogRateLimiter(10);
+
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	// Maximum number of song ids resolved by a single call to the song service
+	private static final int SONG_TITLE_BATCH_SIZE = 500;
+
+	private final String baseUrl;
+	private final OkHttpClient httpClient;
+	private final LatencyMetrics.Family metrics;
+
+	@Autowired
+	public SongServiceClient(LatencyMetrics latencyMetrics,
+							 @Value("${song.service.url:http://localhost:3001}") String baseUrl,
+							 @Value("${song.service.connect-timeout-ms:1000}") long connectTimeoutMs,
+							 @Value("${song.service.read-timeout-ms:5000}") long readTimeoutMs,
+							 @Value("${song.service.max-idle-connections:32}") int maxIdleConnections,
+							 @Value("${song.service.keep-alive-ms:300000}") long keepAliveMs,
+							 @Value("${song.service.max-requests:128}") int maxRequests) {
+		this.metrics = latencyMetrics.songService;
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+
+		// Every request goes to the same host, so the per-host limit is the overall limit
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxRequests);
+		dispatcher.setMaxRequestsPerHost(maxRequests);
+
+		this.httpClient = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMs, TimeUnit.MILLISECONDS))
+				.connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+				.readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+				.build();
+	}
+
+	// Completes with the song title, or null if the song service does not know the song
+	public CompletableFuture<String> getSongTitleById(String songId) {
+		Request request = new Request.Builder()
+				.url(baseUrl + "/getSongTitleById/" + songId)
+				.build();
+
+		return call("getSongTitleById", request, response -> {
+			if (response.code() == 404) {
+				return null;
+			}
+			return readJson(response).getString("data");
+		});
+	}
+
+	// Completes with a map of every song id that exists to its title, the batches are requested in parallel
+	public CompletableFuture<Map<String, String>> getSongTitlesByIds(Collection<String> songIds) {
+		List<CompletableFuture<Map<String, String>>> batches = new ArrayList<>();
+		List<String> batch = new ArrayList<>(SONG_TITLE_BATCH_SIZE);
+		for (String songId : songIds) {
+			batch.add(songId);
+			if (batch.size() == SONG_TITLE_BATCH_SIZE) {
+				batches.add(getSongTitleBatch(batch));
+				batch = new ArrayList<>(SONG_TITLE_BATCH_SIZE);
+			}
+		}
+		if (!batch.isEmpty()) {
+			batches.add(getSongTitleBatch(batch));
+		}
+
+		return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+			Map<String, String> songTitles = new HashMap<>();
+			for (CompletableFuture<Map<String, String>> titles : batches) {
+				songTitles.putAll(titles.join());
+			}
+			return songTitles;
+		});
+	}
+
+	// Completes with whether the song service accepted the batch, sending a batch it has already applied changes nothing
+	public CompletableFuture<Boolean> updateSongFavouritesCounts(String batchId, Map<String, Long> deltas) {
+		JSONObject json = new JSONObject();
+		json.put("batchId", batchId);
+		json.put("deltas", deltas);
+		Request request = new Request.Builder()
+				.url(baseUrl + "/updateSongFavouritesCounts")
+				.put(RequestBody.create(JSON, json.toString()))
+				.build();
+
+		return call("updateSongFavouritesCounts", request, Response::isSuccessful);
+	}
+
+	// Completes with whether the song service accepted the update
+	public CompletableFuture<Boolean> incrementStreamCount(String songId) {
+		Request request = new Request.Builder()
+				.url(baseUrl + "/incrementStreamCount/" + songId)
+				.put(Utils.emptyRequestBody)
+				.build();
+
+		return call("incrementStreamCount", request, Response::isSuccessful);
+	}
+
+	private CompletableFuture<Map<String, String>> getSongTitleBatch(List<String> songIds) {
+		JSONObject json = new JSONObject();
+		json.put("songIds", songIds);
+		Request request = new Request.Builder()
+				.url(baseUrl + "/getSongTitlesByIds")
+				.post(RequestBody.create(JSON, json.toString()))
+				.build();
+
+		return call("getSongTitlesByIds", request, response -> {
+			Map<String, String> songTitles = new HashMap<>();
+			JSONObject data = readJson(response).optJSONObject("data");
+			if (data != null) {
+				for (String songId : data.keySet()) {
+					songTitles.put(songId, data.getString(songId));
+				}
+			}
+			return songTitles;
+		});
+	}
+
+	// A failed call must never look like a missing song, so anything but a 2xx is reported as an error
+	private JSONObject readJson(Response response) throws IOException {
+		String responseBody = response.body() != null ? response.body().string() : null;
+		if (!response.isSuccessful() || responseBody == null) {
+			throw new IOException("Song service responded with " + response.code() + " for " + response.request().url());
+		}
+		try {
+			return new JSONObject(responseBody);
+		} catch (JSONException e) {
+			throw new IOException("Could not parse song service response: " + e.getMessage(), e);
+		}
+	}
+
+	// Timed from enqueueing until the response is handled, which includes waiting for a connection. Anything but a 2xx
+	// counts as an error, except the 404 that says a song does not exist. A traced request passes its trace on, so the
+	// song service traces the call as well
+	private <T> CompletableFuture<T> call(String name, Request request, ResponseHandler<T> handler) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		Tracing.Trace trace = Tracing.current();
+		if (trace != null) {
+			request = request.newBuilder().header(Tracing.TRACEPARENT_HEADER, trace.traceparent()).build();
+		}
+		long start = System.nanoTime();
+		httpClient.newCall(request).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				metrics.record(trace, name, start, true);
+				future.completeExceptionally(e);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (Response closeable = response) {
+					T result = handler.handle(closeable);
+					metrics.record(trace, name, start, !closeable.isSuccessful() && closeable.code() != 404);
+					if (LOG.isDebugEnabled() && CALLS_LOG.tryAcquire()) {
+						LOG.debug("{} {} responded {} in {}ms ({} similar messages suppressed)", call.request().method(), call.request().url(),
+								closeable.code(), (System.nanoTime() - start) / 1000000, CALLS_LOG.takeSuppressed());
+					}
+					future.complete(result);
+				} catch (Exception e) {
+					metrics.record(trace, name, start, true);
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return Tracing.continueIn(trace, future);
+	}
+
+	// Waits for a call to finish, unwrapping the failure so callers see the original exception
+	public static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while calling the song service", e);
+		}
+	}
+
+	// For the asynchronous drivers, maps the outcome of an update to the status the blocking drivers return for it
+	static CompletionStage<DbQueryStatus> updateStatus(CompletableFuture<Boolean> update, String failedMessage, DbQueryStatus success) {
+		return update.handle((accepted, error) -> {
+			if (error != null) {
+				return new DbQueryStatus("Error calling song microservice: " + Neo4jAsync.unwrap(error).getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+			}
+			return accepted ? success : new DbQueryStatus(failedMessage, DbQueryExecResult.QUERY_ERROR_GENERIC);
+		});
+	}
+
+	@PreDestroy
+	public void close() {
+		httpClient.dispatcher().executorService().shutdown();
+		httpClient.connectionPool().evictAll();
+	}
+
+	private interface ResponseHandler<T> {
+		T handle(Response response) throws IOException;
+	}
+}
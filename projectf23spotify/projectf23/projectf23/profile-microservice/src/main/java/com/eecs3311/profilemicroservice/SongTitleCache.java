@@ -0,0 +1,131 @@
+package com.eecs3311.profilemicroservice;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of song titles in front of the {@link SongServiceClient}.
+ * Songs the song service reports as missing are cached as an empty title so repeated lookups do not go over the network.
+ * The cache holds the lookups themselves, so concurrent requests for a song that is being looked up share its request.
+ */
+@Component
+public class SongTitleCache {
+
+	private final SongServiceClient songServiceClient;
+	private final AsyncLoadingCache<String, Optional<String>> titles;
+
+	@Autowired
+	public SongTitleCache(SongServiceClient songServiceClient,
+						  @Value("${song.title-cache.maximum-size:100000}") long maximumSize,
+						  @Value("${song.title-cache.ttl-seconds:600}") long ttlSeconds,
+						  @Value("${song.title-cache.negative-ttl-seconds:60}") long negativeTtlSeconds) {
+		this(songServiceClient, maximumSize, ttlSeconds, negativeTtlSeconds, Ticker.systemTicker());
+	}
+
+	// Tests pass a ticker of their own to move time forward
+	SongTitleCache(SongServiceClient songServiceClient, long maximumSize, long ttlSeconds, long negativeTtlSeconds, Ticker ticker) {
+		this.songServiceClient = songServiceClient;
+
+		// Caffeine evicts with W-TinyLFU once the size bound is reached
+		this.titles = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfter(new TitleExpiry(TimeUnit.SECONDS.toNanos(ttlSeconds), TimeUnit.SECONDS.toNanos(negativeTtlSeconds)))
+				.ticker(ticker)
+				.recordStats()
+				.buildAsync(new TitleLoader());
+	}
+
+	// Completes with the song title, or null if the song does not exist
+	public CompletableFuture<String> getSongTitleById(String songId) {
+		return titles.get(songId).thenApply(title -> title.orElse(null));
+	}
+
+	// Completes with a map of every song id that exists to its title, only the ids that are neither cached nor being looked up are requested
+	public CompletableFuture<Map<String, String>> getSongTitlesByIds(Collection<String> songIds) {
+		return titles.getAll(songIds).thenApply(cached -> {
+			Map<String, String> songTitles = new HashMap<>();
+			for (Map.Entry<String, Optional<String>> title : cached.entrySet()) {
+				title.getValue().ifPresent(songTitle -> songTitles.put(title.getKey(), songTitle));
+			}
+			return songTitles;
+		});
+	}
+
+	/**
+	 * Called when a song is known to be deleted so it drops out of every cached lookup straight away. A lookup that was
+	 * in flight no longer replaces the entry once it completes.
+	 */
+	public void markMissing(String songId) {
+		titles.put(songId, CompletableFuture.completedFuture(Optional.empty()));
+	}
+
+	public Map<String, Object> getStats() {
+		CacheStats stats = titles.synchronous().stats();
+		Map<String, Object> statsMap = new LinkedHashMap<>();
+		statsMap.put("size", titles.synchronous().estimatedSize());
+		statsMap.put("hitCount", stats.hitCount());
+		statsMap.put("missCount", stats.missCount());
+		statsMap.put("hitRate", stats.hitRate());
+		statsMap.put("evictionCount", stats.evictionCount());
+		return statsMap;
+	}
+
+	// A song the song service does not know is loaded as an empty title
+	private class TitleLoader implements AsyncCacheLoader<String, Optional<String>> {
+		@Override
+		public CompletableFuture<Optional<String>> asyncLoad(String songId, Executor executor) {
+			return songServiceClient.getSongTitleById(songId).thenApply(Optional::ofNullable);
+		}
+
+		@Override
+		public CompletableFuture<Map<String, Optional<String>>> asyncLoadAll(Iterable<? extends String> songIds, Executor executor) {
+			List<String> misses = new ArrayList<>();
+			songIds.forEach(misses::add);
+			return songServiceClient.getSongTitlesByIds(misses).thenApply(fetched -> {
+				Map<String, Optional<String>> loaded = new HashMap<>();
+				for (String songId : misses) {
+					loaded.put(songId, Optional.ofNullable(fetched.get(songId)));
+				}
+				return loaded;
+			});
+		}
+	}
+
+	// Missing songs expire sooner than titles so a song that gets re-added shows up again quickly
+	private static class TitleExpiry implements Expiry<String, Optional<String>> {
+		private final long ttlNanos;
+		private final long negativeTtlNanos;
+
+		TitleExpiry(long ttlNanos, long negativeTtlNanos) {
+			this.ttlNanos = ttlNanos;
+			this.negativeTtlNanos = negativeTtlNanos;
+		}
+
+		@Override
+		public long expireAfterCreate(String songId, Optional<String> title, long currentTime) {
+			return title.isPresent() ? ttlNanos : negativeTtlNanos;
+		}
+
+		@Override
+		public long expireAfterUpdate(String songId, Optional<String> title, long currentTime, long currentDuration) {
+			return expireAfterCreate(songId, title, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String songId, Optional<String> title, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+}
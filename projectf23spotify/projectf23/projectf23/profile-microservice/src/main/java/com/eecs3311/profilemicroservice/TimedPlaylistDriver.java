@@ -0,0 +1,55 @@
+package com.eecs3311.profilemicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Times every call into {@link PlaylistDriverImpl}, this is the {@link PlaylistDriver} the controller gets injected with.
+ * Calls are counted as failed the same way as in {@link TimedProfileDriver}.
+ */
+@Primary
+@Repository
+public class TimedPlaylistDriver implements PlaylistDriver {
+
+	private final PlaylistDriver driver;
+	private final LatencyMetrics.Family metrics;
+
+	@Autowired
+	public TimedPlaylistDriver(PlaylistDriverImpl driver, LatencyMetrics latencyMetrics) {
+		this.driver = driver;
+		this.metrics = latencyMetrics.drivers;
+	}
+
+	@Override
+	public DbQueryStatus likeSong(String userName, String songId) {
+		return metrics.time("likeSong", () -> driver.likeSong(userName, songId), TimedPlaylistDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus unlikeSong(String userName, String songId) {
+		return metrics.time("unlikeSong", () -> driver.unlikeSong(userName, songId), TimedPlaylistDriver::failed);
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> likeSongAsync(String userName, String songId) {
+		return timed("likeSongAsync", System.nanoTime(), driver.likeSongAsync(userName, songId));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> unlikeSongAsync(String userName, String songId) {
+		return timed("unlikeSongAsync", System.nanoTime(), driver.unlikeSongAsync(userName, songId));
+	}
+
+	// Evaluated left to right, startNanos is read before the driver call that creates the stage
+	private CompletionStage<DbQueryStatus> timed(String name, long startNanos, CompletionStage<DbQueryStatus> stage) {
+		return metrics.time(name, startNanos, stage, TimedPlaylistDriver::failed);
+	}
+
+	// A null status is not an answer either
+	private static boolean failed(DbQueryStatus dbQueryStatus) {
+		return dbQueryStatus == null || dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_ERROR_GENERIC;
+	}
+}
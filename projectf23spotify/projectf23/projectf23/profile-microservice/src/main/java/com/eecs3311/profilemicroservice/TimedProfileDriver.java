@@ -0,0 +1,101 @@
+package com.eecs3311.profilemicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Times every call into {@link ProfileDriverImpl}, this is the {@link ProfileDriver} the controller gets injected with.
+ * A call fails when it throws or returns QUERY_ERROR_GENERIC, not found is an answer rather than an error. The
+ * asynchronous variants are timed until their stage completes.
+ */
+@Primary
+@Repository
+public class TimedProfileDriver implements ProfileDriver {
+
+	private final ProfileDriver driver;
+	private final LatencyMetrics.Family metrics;
+
+	@Autowired
+	public TimedProfileDriver(ProfileDriverImpl driver, LatencyMetrics latencyMetrics) {
+		this.driver = driver;
+		this.metrics = latencyMetrics.drivers;
+	}
+
+	@Override
+	public DbQueryStatus createUserProfile(String userName, String fullName, String password) {
+		return metrics.time("createUserProfile", () -> driver.createUserProfile(userName, fullName, password), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus followFriend(String userName, String frndUserName) {
+		return metrics.time("followFriend", () -> driver.followFriend(userName, frndUserName), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus unfollowFriend(String userName, String frndUserName) {
+		return metrics.time("unfollowFriend", () -> driver.unfollowFriend(userName, frndUserName), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus getAllSongFriendsLike(String userName) {
+		return metrics.time("getAllSongFriendsLike", () -> driver.getAllSongFriendsLike(userName), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus updateLastListenedSong(String userName, String songId) {
+		return metrics.time("updateLastListenedSong", () -> driver.updateLastListenedSong(userName, songId), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus getMostRecentSong(String userName) {
+		return metrics.time("getMostRecentSong", () -> driver.getMostRecentSong(userName), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public DbQueryStatus getFollowCounts(String userName) {
+		return metrics.time("getFollowCounts", () -> driver.getFollowCounts(userName), TimedProfileDriver::failed);
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> createUserProfileAsync(String userName, String fullName, String password) {
+		return timed("createUserProfileAsync", System.nanoTime(), driver.createUserProfileAsync(userName, fullName, password));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> followFriendAsync(String userName, String frndUserName) {
+		return timed("followFriendAsync", System.nanoTime(), driver.followFriendAsync(userName, frndUserName));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> unfollowFriendAsync(String userName, String frndUserName) {
+		return timed("unfollowFriendAsync", System.nanoTime(), driver.unfollowFriendAsync(userName, frndUserName));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> getAllSongFriendsLikeAsync(String userName) {
+		return timed("getAllSongFriendsLikeAsync", System.nanoTime(), driver.getAllSongFriendsLikeAsync(userName));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> updateLastListenedSongAsync(String userName, String songId) {
+		return timed("updateLastListenedSongAsync", System.nanoTime(), driver.updateLastListenedSongAsync(userName, songId));
+	}
+
+	@Override
+	public CompletionStage<DbQueryStatus> getMostRecentSongAsync(String userName) {
+		return timed("getMostRecentSongAsync", System.nanoTime(), driver.getMostRecentSongAsync(userName));
+	}
+
+	// Evaluated left to right, startNanos is read before the driver call that creates the stage
+	private CompletionStage<DbQueryStatus> timed(String name, long startNanos, CompletionStage<DbQueryStatus> stage) {
+		return metrics.time(name, startNanos, stage, TimedProfileDriver::failed);
+	}
+
+	// A null status is not an answer either
+	private static boolean failed(DbQueryStatus dbQueryStatus) {
+		return dbQueryStatus == null || dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_ERROR_GENERIC;
+	}
+}
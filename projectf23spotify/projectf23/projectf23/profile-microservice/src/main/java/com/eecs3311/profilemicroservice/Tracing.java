@@ -0,0 +1,281 @@
+package com.eecs3311.profilemicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traces a sample of requests and keeps the slowest ones in memory for /getSlowTraces.
+ *
+ * A request is traced when the caller's traceparent header says it was sampled, and otherwise with probability
+ * sample-rate, so at full load almost every request only pays for one random number. While a request is being traced
+ * its trace is current on the thread handling it, and every timer in {@link LatencyMetrics} that records on that
+ * thread adds a span to it. Calls to the song service carry the trace in their traceparent header, so the song service
+ * traces its side of them under the same trace id.
+ *
+ * The asynchronous drivers continue on the Neo4j and OkHttp threads. Stages that leave the request thread are passed
+ * through {@link #continueIn(Trace, CompletionStage)}, which makes the trace current again for whatever is chained
+ * onto them.
+ */
+@Component
+public class Tracing {
+
+	static final String TRACEPARENT_HEADER = "traceparent";
+
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+	private final double sampleRate;
+	private final int maxSpans;
+	private final int capacity;
+
+	// The slowest traces kept so far, the fastest of them at the head so it is the one replaced
+	private final PriorityQueue<Trace> slowest = new PriorityQueue<>(Comparator.comparingLong(trace -> trace.durationNanos));
+
+	private final AtomicLong sampled = new AtomicLong();
+
+	@Autowired
+	public Tracing(@Value("${tracing.sample-rate:0.01}") double sampleRate,
+				   @Value("${tracing.max-spans:256}") int maxSpans,
+				   @Value("${tracing.slow-traces:32}") int capacity) {
+		this.sampleRate = sampleRate;
+		this.maxSpans = maxSpans;
+		this.capacity = capacity;
+	}
+
+	// The trace of the request this thread is handling, null when it is not being traced
+	static Trace current() {
+		return CURRENT.get();
+	}
+
+	static void attach(Trace trace) {
+		CURRENT.set(trace);
+	}
+
+	static void detach() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * Completes with the stage, with the trace current while the stages chained onto the result run. Those run on the
+	 * thread that completes the stage, usually one of the driver's, so this is what keeps later statements and song
+	 * service calls of the request in its trace. Without a trace the stage is returned as it is.
+	 */
+	static <T> CompletableFuture<T> continueIn(Trace trace, CompletionStage<T> stage) {
+		if (trace == null) {
+			return stage.toCompletableFuture();
+		}
+		CompletableFuture<T> continued = new CompletableFuture<>();
+		stage.whenComplete((result, error) -> {
+			Trace previous = CURRENT.get();
+			CURRENT.set(trace);
+			try {
+				if (error != null) {
+					continued.completeExceptionally(error);
+				} else {
+					continued.complete(result);
+				}
+			} finally {
+				CURRENT.set(previous);
+			}
+		});
+		return continued;
+	}
+
+	/**
+	 * Starts tracing a request if it is sampled, returns null otherwise. A valid traceparent decides for the caller,
+	 * the trace then continues the caller's trace id so both services' traces of the request can be matched.
+	 */
+	Trace start(String endpoint, String traceparent) {
+		String traceId = null;
+		String parentSpanId = null;
+		if (isValidTraceparent(traceparent)) {
+			// Only the low bit of the flags is defined, it says whether the caller sampled the request
+			if ((Character.digit(traceparent.charAt(54), 16) & 1) == 0) {
+				return null;
+			}
+			traceId = traceparent.substring(3, 35);
+			parentSpanId = traceparent.substring(36, 52);
+		} else if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return null;
+		}
+
+		sampled.incrementAndGet();
+		return new Trace(traceId != null ? traceId : randomHex(2), parentSpanId, endpoint, maxSpans);
+	}
+
+	// Keeps the trace if it is one of the slowest so far
+	void finish(Trace trace, boolean failed) {
+		trace.finish(failed);
+		synchronized (slowest) {
+			if (slowest.size() < capacity) {
+				slowest.add(trace);
+			} else if (capacity > 0 && trace.durationNanos > slowest.peek().durationNanos) {
+				slowest.poll();
+				slowest.add(trace);
+			}
+		}
+	}
+
+	// The slowest traces, slowest first
+	public Map<String, Object> getSlowTraces() {
+		List<Trace> traces;
+		synchronized (slowest) {
+			traces = new ArrayList<>(slowest);
+		}
+		traces.sort(Comparator.comparingLong((Trace trace) -> trace.durationNanos).reversed());
+
+		List<Map<String, Object>> rendered = new ArrayList<>(traces.size());
+		for (Trace trace : traces) {
+			rendered.add(trace.toMap());
+		}
+
+		Map<String, Object> slowTraces = new LinkedHashMap<>();
+		slowTraces.put("sampleRate", sampleRate);
+		slowTraces.put("sampledTraces", sampled.get());
+		slowTraces.put("traces", rendered);
+		return slowTraces;
+	}
+
+	// version-traceId-parentId-flags, lower case hex, a trace id or parent id of all zeros is invalid
+	static boolean isValidTraceparent(String traceparent) {
+		if (traceparent == null || traceparent.length() != 55 || !traceparent.startsWith("00-")
+				|| traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+			return false;
+		}
+		for (int i = 3; i < 55; i++) {
+			char c = traceparent.charAt(i);
+			if (i != 35 && i != 52 && !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return !traceparent.startsWith("00000000000000000000000000000000", 3)
+				&& !traceparent.startsWith("0000000000000000", 36);
+	}
+
+	// Random lower case hex of the given number of 64 bit words, never all zeros
+	static String randomHex(int words) {
+		StringBuilder hex = new StringBuilder(words * 16);
+		for (int i = 0; i < words; i++) {
+			long word = ThreadLocalRandom.current().nextLong();
+			if (i == words - 1 && word == 0) {
+				word = 1;
+			}
+			String digits = Long.toHexString(word);
+			for (int pad = digits.length(); pad < 16; pad++) {
+				hex.append('0');
+			}
+			hex.append(digits);
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * One traced request. Spans can be added from any thread until the trace is rendered, those beyond maxSpans are
+	 * only counted.
+	 */
+	static final class Trace {
+		final String traceId;
+		final String parentSpanId;
+		final String spanId = randomHex(1);
+		final String endpoint;
+		final long startedAtMillis = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+
+		private final String[] spanKinds;
+		private final String[] spanNames;
+		private final long[] spanStarts;
+		private final long[] spanDurations;
+		private final boolean[] spanFailed;
+		private int spans;
+		private int droppedSpans;
+
+		private volatile long durationNanos;
+		private volatile boolean failed;
+
+		private Trace(String traceId, String parentSpanId, String endpoint, int maxSpans) {
+			this.traceId = traceId;
+			this.parentSpanId = parentSpanId;
+			this.endpoint = endpoint;
+			this.spanKinds = new String[maxSpans];
+			this.spanNames = new String[maxSpans];
+			this.spanStarts = new long[maxSpans];
+			this.spanDurations = new long[maxSpans];
+			this.spanFailed = new boolean[maxSpans];
+		}
+
+		// The header that makes the song service trace its side of a call as part of this trace
+		String traceparent() {
+			return "00-" + traceId + "-" + spanId + "-01";
+		}
+
+		// The kind says what was timed, such as cypher or song.service, the name which one
+		synchronized void span(String kind, String name, long startNanos, long endNanos, boolean failed) {
+			if (spans == spanKinds.length) {
+				droppedSpans++;
+				return;
+			}
+			spanKinds[spans] = kind;
+			spanNames[spans] = name;
+			spanStarts[spans] = startNanos;
+			spanDurations[spans] = endNanos - startNanos;
+			spanFailed[spans] = failed;
+			spans++;
+		}
+
+		private void finish(boolean failed) {
+			this.failed = failed;
+			this.durationNanos = System.nanoTime() - startNanos;
+		}
+
+		// Span starts are relative to the start of the request, spans are listed in the order they started
+		private synchronized Map<String, Object> toMap() {
+			List<Map<String, Object>> spanList = new ArrayList<>(spans);
+			Integer[] order = new Integer[spans];
+			for (int i = 0; i < spans; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparingLong(i -> spanStarts[i]));
+			for (int i : order) {
+				Map<String, Object> span = new LinkedHashMap<>();
+				span.put("name", spanKinds[i] + " " + spanNames[i]);
+				span.put("startMs", millis(spanStarts[i] - startNanos));
+				span.put("durationMs", millis(spanDurations[i]));
+				span.put("error", spanFailed[i]);
+				spanList.add(span);
+			}
+
+			Map<String, Object> trace = new LinkedHashMap<>();
+			trace.put("traceId", traceId);
+			trace.put("spanId", spanId);
+			if (parentSpanId != null) {
+				trace.put("parentSpanId", parentSpanId);
+			}
+			trace.put("endpoint", endpoint);
+			trace.put("startedAt", Instant.ofEpochMilli(startedAtMillis).toString());
+			trace.put("durationMs", millis(durationNanos));
+			trace.put("error", failed);
+			trace.put("spans", spanList);
+			if (droppedSpans > 0) {
+				trace.put("droppedSpans", droppedSpans);
+			}
+			return trace;
+		}
+
+		private static double millis(long nanos) {
+			return nanos / 1000 / 1000.0;
+		}
+	}
+}
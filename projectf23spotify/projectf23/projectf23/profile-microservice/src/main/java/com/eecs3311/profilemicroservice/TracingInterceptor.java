@@ -0,0 +1,64 @@
+package com.eecs3311.profilemicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Starts a trace for every sampled request when it reaches its handler and finishes it once the response is complete.
+ * The trace is current on the request thread while the handler runs, a handler that finishes asynchronously releases
+ * the thread first, so the trace is detached from it then.
+ */
+@Component
+public class TracingInterceptor implements AsyncHandlerInterceptor, WebMvcConfigurer {
+
+	private static final String TRACE_ATTRIBUTE = TracingInterceptor.class.getName() + ".trace";
+
+	private final Tracing tracing;
+
+	@Autowired
+	public TracingInterceptor(Tracing tracing) {
+		this.tracing = tracing;
+	}
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(this);
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		if (handler instanceof HandlerMethod && request.getDispatcherType() == DispatcherType.REQUEST) {
+			Tracing.Trace trace = tracing.start(((HandlerMethod) handler).getMethod().getName(), request.getHeader(Tracing.TRACEPARENT_HEADER));
+			if (trace != null) {
+				request.setAttribute(TRACE_ATTRIBUTE, trace);
+				Tracing.attach(trace);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		Tracing.detach();
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+		Object trace = request.getAttribute(TRACE_ATTRIBUTE);
+		if (trace == null) {
+			return;
+		}
+		// Removed so the error page dispatch that may follow does not finish it a second time
+		request.removeAttribute(TRACE_ATTRIBUTE);
+		Tracing.detach();
+		tracing.finish((Tracing.Trace) trace, ex != null || response.getStatus() >= 500);
+	}
+}
@@ -0,0 +1,173 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.TransactionWork;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Claims, retries and takeovers against a mocked Driver. The song service side of a redelivery is in SongDalImplConcurrencyTests
+public class FavouritesOutboxTests {
+
+	private static final long POLL_INTERVAL_MS = 200;
+
+	private final Transaction tx = mock(Transaction.class);
+	private final StatementResult staleBatch = mock(StatementResult.class);
+	private final StatementResult newBatch = mock(StatementResult.class);
+	private final SongServiceClient songServiceClient = mock(SongServiceClient.class);
+	private FavouritesOutbox outbox;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		Driver driver = mock(Driver.class);
+		Session session = mock(Session.class);
+		when(driver.session()).thenReturn(session);
+		when(session.writeTransaction(any())).thenAnswer(invocation -> ((TransactionWork<Object>) invocation.getArgument(0)).execute(tx));
+		when(tx.run(anyString())).thenReturn(mock(StatementResult.class));
+		when(tx.run(eq(FavouritesOutbox.CLAIM_STALE_BATCH), any(Value.class))).thenReturn(staleBatch);
+		when(tx.run(eq(FavouritesOutbox.CLAIM_NEW_BATCH), any(Value.class))).thenReturn(newBatch);
+		when(tx.run(eq(FavouritesOutbox.DELETE_BATCH), any(Value.class))).thenReturn(mock(StatementResult.class));
+
+		outbox = new FavouritesOutbox(driver, songServiceClient, new LatencyMetrics(new SimpleMeterRegistry()), POLL_INTERVAL_MS, 1000,
+				10000, 1000);
+	}
+
+	@After
+	public void close() {
+		outbox.close();
+	}
+
+	@Test
+	public void aBatchIsSummedPerSongAndDeletedOnceAccepted() {
+		returns(newBatch, row("new", "a", 2, 2), row("new", "b", -1, 1));
+		accepts(true);
+
+		outbox.dispatch();
+
+		Map<String, Long> deltas = new HashMap<>();
+		deltas.put("a", 2L);
+		deltas.put("b", -1L);
+		verify(songServiceClient).updateSongFavouritesCounts("new", deltas);
+		verify(tx).run(FavouritesOutbox.DELETE_BATCH, Values.parameters("batchId", "new"));
+		assertEquals(1L, outbox.getStats().get("deliveredBatches"));
+		assertEquals(3L, outbox.getStats().get("deliveredDeltas"));
+
+		// A partial batch means the outbox is empty, so the next claim waits for the next poll
+		verify(tx, times(1)).run(eq(FavouritesOutbox.CLAIM_NEW_BATCH), any(Value.class));
+	}
+
+	@Test
+	public void aFailedBatchIsRetriedUnderTheSameIdAfterABackoff() throws Exception {
+		returns(newBatch, row("new", "a", 1, 1));
+		accepts(false, true);
+
+		outbox.dispatch();
+		verify(tx, never()).run(eq(FavouritesOutbox.DELETE_BATCH), any(Value.class));
+		assertEquals(1L, outbox.getStats().get("failedDeliveries"));
+
+		// Still backing off, nothing is sent or claimed
+		outbox.dispatch();
+		verify(songServiceClient, times(1)).updateSongFavouritesCounts(anyString(), anyMap());
+
+		Thread.sleep(POLL_INTERVAL_MS * 2);
+		outbox.dispatch();
+
+		// The same batch went out twice and was claimed once, so the song service can tell it is a redelivery
+		verify(songServiceClient, times(2)).updateSongFavouritesCounts("new", singleDelta("a", 1));
+		verify(tx, times(1)).run(eq(FavouritesOutbox.CLAIM_NEW_BATCH), any(Value.class));
+		verify(tx).run(FavouritesOutbox.DELETE_BATCH, Values.parameters("batchId", "new"));
+	}
+
+	@Test
+	public void theRetryDelayDoublesUpToTheMaximum() {
+		assertEquals(200, outbox.retryDelayMs(0));
+		assertEquals(400, outbox.retryDelayMs(1));
+		assertEquals(800, outbox.retryDelayMs(2));
+		assertEquals(1000, outbox.retryDelayMs(3));
+		assertEquals(1000, outbox.retryDelayMs(1000));
+	}
+
+	@Test
+	public void aStaleClaimIsTakenOverUnderItsOriginalId() {
+		returns(staleBatch, row("abandoned", "a", 5, 5));
+		accepts(true);
+
+		outbox.dispatch();
+
+		verify(tx).run(FavouritesOutbox.LOCK_CLAIMS);
+		verify(tx).run(FavouritesOutbox.CLAIM_STALE_BATCH, Values.parameters("claimTimeoutMs", 10000L));
+		verify(tx, never()).run(eq(FavouritesOutbox.CLAIM_NEW_BATCH), any(Value.class));
+		verify(songServiceClient).updateSongFavouritesCounts("abandoned", singleDelta("a", 5));
+		verify(tx).run(FavouritesOutbox.DELETE_BATCH, Values.parameters("batchId", "abandoned"));
+	}
+
+	@Test
+	public void aNewBatchGetsAFreshIdEveryTime() {
+		outbox.dispatch();
+		outbox.dispatch();
+
+		ArgumentCaptor<Value> parameters = ArgumentCaptor.forClass(Value.class);
+		verify(tx, times(2)).run(eq(FavouritesOutbox.CLAIM_NEW_BATCH), parameters.capture());
+		String first = parameters.getAllValues().get(0).get("batchId").asString();
+		String second = parameters.getAllValues().get(1).get("batchId").asString();
+		assertNotEquals(first, second);
+		verify(songServiceClient, never()).updateSongFavouritesCounts(anyString(), anyMap());
+	}
+
+	// Each delivery gets the next answer, the last one repeats
+	private void accepts(Boolean... answers) {
+		Iterator<Boolean> iterator = Arrays.asList(answers).iterator();
+		Boolean[] last = {null};
+		when(songServiceClient.updateSongFavouritesCounts(anyString(), anyMap())).thenAnswer(invocation -> {
+			if (iterator.hasNext()) {
+				last[0] = iterator.next();
+			}
+			return CompletableFuture.completedFuture(last[0]);
+		});
+	}
+
+	private static void returns(StatementResult result, Record... rows) {
+		Iterator<Record> iterator = Arrays.asList(rows).iterator();
+		when(result.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+		when(result.next()).thenAnswer(invocation -> iterator.next());
+	}
+
+	private static Record row(String batchId, String songId, long delta, long records) {
+		return new InternalRecord(Arrays.asList("batchId", "songId", "delta", "records"),
+				new Value[]{Values.value(batchId), Values.value(songId), Values.value(delta), Values.value(records)});
+	}
+
+	private static Map<String, Long> singleDelta(String songId, long delta) {
+		Map<String, Long> deltas = new HashMap<>();
+		deltas.put(songId, delta);
+		return deltas;
+	}
+}
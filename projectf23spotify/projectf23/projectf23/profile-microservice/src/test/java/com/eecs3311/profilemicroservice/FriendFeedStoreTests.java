@@ -0,0 +1,126 @@
+package com.eecs3311.profilemicroservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FriendFeedStoreTests {
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final FriendFeedStore friendFeedStore = new FriendFeedStore(1000, 1000, 600, nanos::get);
+
+	@Test
+	public void aFeedIsPutTogetherFromFollowsAndLikes() {
+		assertNull(friendFeedStore.getFeed("user"));
+
+		friendFeedStore.install(friendFeedStore.startLoad(), "user", feed("friend1", "song1", "song2", "friend2"));
+
+		Map<String, Collection<String>> feed = friendFeedStore.getFeed("user");
+		assertEquals(set("song1", "song2"), feed.get("friend1"));
+		// A friend that likes nothing is still part of the feed
+		assertEquals(Collections.emptySet(), feed.get("friend2"));
+		assertEquals(2, feed.size());
+	}
+
+	@Test
+	public void committedChangesArePatchedIn() {
+		friendFeedStore.install(friendFeedStore.startLoad(), "user", feed("friend1", "song1", "friend2"));
+
+		friendFeedStore.liked("friend2", "song2");
+		friendFeedStore.unliked("friend1", "song1");
+		friendFeedStore.unfollowed("user", "friend1");
+		Map<String, Collection<String>> feed = friendFeedStore.getFeed("user");
+		assertEquals(Collections.singletonMap("friend2", set("song2")), feed);
+
+		// A new friend's likes are not in memory, so the feed has to be read again until they are
+		friendFeedStore.followed("user", "friend3");
+		assertNull(friendFeedStore.getFeed("user"));
+		friendFeedStore.installUser(friendFeedStore.startLoad(), "friend3", Collections.emptyList(), Collections.singletonList("song3"));
+		assertEquals(set("song3"), friendFeedStore.getFeed("user").get("friend3"));
+	}
+
+	@Test
+	public void changesToUsersNotInMemoryAreLeftToTheNextLoad() {
+		friendFeedStore.followed("user", "friend");
+		friendFeedStore.liked("user", "song");
+
+		assertNull(friendFeedStore.getFollows("user"));
+		assertNull(friendFeedStore.getLikes("user"));
+	}
+
+	@Test
+	public void aLoadDoesNotOverwriteAChangeCommittedWhileItRead() {
+		long loadStartedAt = friendFeedStore.startLoad();
+		// Committed after the load read friend1's likes, so what the load read is already stale
+		friendFeedStore.liked("friend1", "song2");
+		friendFeedStore.install(loadStartedAt, "user", feed("friend1", "song1"));
+
+		assertEquals(set("friend1"), friendFeedStore.getFollows("user"));
+		assertNull(friendFeedStore.getLikes("friend1"));
+		assertNull(friendFeedStore.getFeed("user"));
+
+		// The next load sees the change
+		friendFeedStore.install(friendFeedStore.startLoad(), "user", feed("friend1", "song1", "song2"));
+		assertEquals(set("song1", "song2"), friendFeedStore.getFeed("user").get("friend1"));
+	}
+
+	@Test
+	public void aDeletedSongLeavesEveryFeedAndEveryLoadInProgress() {
+		friendFeedStore.install(friendFeedStore.startLoad(), "user", feed("friend1", "song1", "song2", "friend2", "song1"));
+		long loadStartedAt = friendFeedStore.startLoad();
+
+		friendFeedStore.songDeleted("song1");
+
+		Map<String, Collection<String>> feed = friendFeedStore.getFeed("user");
+		assertEquals(set("song2"), feed.get("friend1"));
+		assertEquals(Collections.emptySet(), feed.get("friend2"));
+
+		// A load that started before the delete may have read the song
+		friendFeedStore.installUser(loadStartedAt, "other", Collections.emptyList(), Collections.singletonList("song1"));
+		assertNull(friendFeedStore.getLikes("other"));
+	}
+
+	@Test
+	public void entriesExpireOnceTheyHaveGoneUnchangedForTheTtl() {
+		friendFeedStore.install(friendFeedStore.startLoad(), "user", feed("friend1", "song1", "friend2", "song2"));
+
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(400));
+		// A committed change counts as a write, so friend1's likes are kept for another ttl
+		friendFeedStore.liked("friend1", "song3");
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(300));
+
+		assertNull(friendFeedStore.getFollows("user"));
+		assertNull(friendFeedStore.getLikes("friend2"));
+		assertEquals(set("song1", "song3"), friendFeedStore.getLikes("friend1"));
+		assertNull(friendFeedStore.getFeed("user"));
+	}
+
+	// Friends are the arguments that start with "friend", each followed by the songs it likes
+	private static Map<String, Collection<String>> feed(String... friendsAndSongs) {
+		Map<String, Collection<String>> feed = new HashMap<>();
+		Collection<String> songIds = null;
+		for (String name : friendsAndSongs) {
+			if (name.startsWith("friend")) {
+				songIds = new HashSet<>();
+				feed.put(name, songIds);
+			} else {
+				songIds.add(name);
+			}
+		}
+		return feed;
+	}
+
+	private static HashSet<String> set(String... members) {
+		return new HashSet<>(Arrays.asList(members));
+	}
+}
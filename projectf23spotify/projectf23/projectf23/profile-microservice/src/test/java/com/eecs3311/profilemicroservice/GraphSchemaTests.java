@@ -0,0 +1,123 @@
+package com.eecs3311.profilemicroservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.TransactionWork;
+import org.neo4j.driver.v1.exceptions.ClientException;
+import org.neo4j.driver.v1.exceptions.ServiceUnavailableException;
+import org.neo4j.driver.v1.summary.Plan;
+import org.neo4j.driver.v1.summary.ResultSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+
+// Runs the schema setup against a mocked driver, which plans every hot query with index seeks except the one in scanning
+public class GraphSchemaTests {
+
+	private static final List<String> EXPECTED_DECLARATIONS = Arrays.asList(
+			"CREATE CONSTRAINT ON (nProfile:profile) ASSERT nProfile.userName IS UNIQUE",
+			"CREATE CONSTRAINT ON (nSong:song) ASSERT nSong.songId IS UNIQUE",
+			"CREATE CONSTRAINT ON (nPlaylist:playlist) ASSERT nPlaylist.plName IS UNIQUE",
+			"CREATE CONSTRAINT ON (nOutbox:favouritesOutbox) ASSERT nOutbox.name IS UNIQUE",
+			"CREATE INDEX ON :favouritesDelta(batchId)");
+
+	private final Driver driver = mock(Driver.class);
+	private final Session session = mock(Session.class);
+	// Every statement run in a write transaction, in order
+	private final List<String> declared = new ArrayList<>();
+	// The hot query planned with a label scan
+	private String scanning = PlaylistDriverImpl.UNLIKE_SONG;
+
+	@Before
+	public void setUp() {
+		when(driver.session()).thenReturn(session);
+		when(session.writeTransaction(any())).thenAnswer(invocation -> {
+			Transaction tx = mock(Transaction.class);
+			when(tx.run(anyString())).thenAnswer(run -> {
+				String declaration = run.getArgument(0);
+				declared.add(declaration);
+				if (declaration.contains(":playlist")) {
+					throw new ClientException("Neo.ClientError.Schema.EquivalentSchemaRuleAlreadyExists",
+							"An equivalent constraint already exists");
+				}
+				return mock(StatementResult.class);
+			});
+			return ((TransactionWork<?>) invocation.getArgument(0)).execute(tx);
+		});
+		when(session.run("CALL db.awaitIndexes(300)")).thenReturn(mock(StatementResult.class));
+		when(session.run(startsWith("EXPLAIN "), anyMap())).thenAnswer(invocation -> {
+			String query = invocation.<String>getArgument(0).substring("EXPLAIN ".length());
+			Plan lookup = query.equals(scanning) ? plan("NodeByLabelScan@neo4j", "nSong") : plan("NodeUniqueIndexSeek@neo4j", "nSong");
+			return explained(plan("ProduceResults", "nProfile", plan("NodeUniqueIndexSeek", "nProfile"), lookup));
+		});
+	}
+
+	@Test
+	public void everyConstraintIsDeclaredAndOnlyTheScanIsReported() {
+		Map<String, List<String>> hotQueryScans = GraphSchema.initGraphSchema(driver);
+
+		// The playlist constraint already existed, the ones after it are still declared
+		assertEquals(EXPECTED_DECLARATIONS, declared);
+		assertEquals(Arrays.asList("followFriend", "unfollowFriend", "updateLastListenedSong", "getMostRecentSong",
+				"getAllSongFriendsLike", "deleteSongFromNeo4j", "likeSong", "unlikeSong"), new ArrayList<>(hotQueryScans.keySet()));
+		for (Map.Entry<String, List<String>> hotQuery : hotQueryScans.entrySet()) {
+			List<String> expected = hotQuery.getKey().equals("unlikeSong")
+					? Collections.singletonList("NodeByLabelScan [nSong]") : Collections.emptyList();
+			assertEquals(hotQuery.getKey(), expected, hotQuery.getValue());
+		}
+	}
+
+	@Test
+	public void plansAreMadeOnceTheIndexesAreOnline() {
+		scanning = null;
+
+		assertTrue(GraphSchema.initGraphSchema(driver).values().stream().allMatch(List::isEmpty));
+		InOrder inOrder = inOrder(session);
+		inOrder.verify(session).run("CALL db.awaitIndexes(300)");
+		inOrder.verify(session, times(8)).run(startsWith("EXPLAIN "), anyMap());
+	}
+
+	@Test
+	public void aServerThatCannotPlanIsNotFatal() {
+		when(session.run(startsWith("EXPLAIN "), anyMap())).thenThrow(new ServiceUnavailableException("Connection lost"));
+
+		assertEquals(Collections.emptyMap(), GraphSchema.initGraphSchema(driver));
+		assertEquals(EXPECTED_DECLARATIONS, declared);
+	}
+
+	private static Plan plan(String operatorType, String identifier, Plan... children) {
+		Plan plan = mock(Plan.class);
+		when(plan.operatorType()).thenReturn(operatorType);
+		when(plan.identifiers()).thenReturn(Collections.singletonList(identifier));
+		doReturn(Arrays.asList(children)).when(plan).children();
+		return plan;
+	}
+
+	private static StatementResult explained(Plan plan) {
+		ResultSummary summary = mock(ResultSummary.class);
+		when(summary.plan()).thenReturn(plan);
+		StatementResult result = mock(StatementResult.class);
+		when(result.consume()).thenReturn(summary);
+		return result;
+	}
+}
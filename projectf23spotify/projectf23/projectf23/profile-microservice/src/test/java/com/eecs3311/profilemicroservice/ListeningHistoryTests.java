@@ -0,0 +1,89 @@
+package com.eecs3311.profilemicroservice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListeningHistoryTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void lastPlaysAreMostRecentFirst() throws Exception {
+		ListeningHistory history = new ListeningHistory(folder.getRoot().getPath(), 4096, 8);
+		for (int i = 0; i < 10; i++) {
+			history.append("alice", "song-" + i);
+			history.append("bob", "other-" + i);
+		}
+
+		assertEquals(songIds("song-9", "song-8", "song-7"), songIds(history.getLastPlays("alice", 3)));
+		assertEquals(0, history.getLastPlays("carol", 3).size());
+	}
+
+	@Test
+	public void timeRangeIncludesFromAndExcludesTo() throws Exception {
+		ListeningHistory history = new ListeningHistory(folder.getRoot().getPath(), 4096, 8);
+		history.append("alice", "before");
+		Thread.sleep(5);
+		long from = System.currentTimeMillis();
+		history.append("alice", "inside");
+		Thread.sleep(5);
+		long to = System.currentTimeMillis();
+		history.append("alice", "after");
+
+		List<Map<String, Object>> plays = history.getPlays("alice", from, to, 10);
+		assertEquals(songIds("inside"), songIds(plays));
+		assertTrue((Long) plays.get(0).get("playedAt") >= from);
+	}
+
+	@Test
+	public void playsSurviveReopening() throws Exception {
+		ListeningHistory history = new ListeningHistory(folder.getRoot().getPath(), 256, 8);
+		for (int i = 0; i < 20; i++) {
+			history.append("alice", "song-" + i);
+		}
+		history.close();
+
+		ListeningHistory reopened = new ListeningHistory(folder.getRoot().getPath(), 256, 8);
+		assertEquals(20, reopened.getLastPlays("alice", 100).size());
+		reopened.append("alice", "song-20");
+		assertEquals(songIds("song-20", "song-19"), songIds(reopened.getLastPlays("alice", 2)));
+	}
+
+	@Test
+	public void oldestSegmentsAreDropped() throws Exception {
+		ListeningHistory history = new ListeningHistory(folder.getRoot().getPath(), 128, 2);
+		for (int i = 0; i < 50; i++) {
+			history.append("alice", "song-" + i);
+		}
+
+		List<Map<String, Object>> plays = history.getLastPlays("alice", 100);
+		assertTrue(plays.size() < 50);
+		assertEquals("song-49", plays.get(0).get("songId"));
+		assertEquals(2, history.getStats().get("segments"));
+	}
+
+	private static List<String> songIds(String... songIds) {
+		List<String> list = new ArrayList<>();
+		for (String songId : songIds) {
+			list.add(songId);
+		}
+		return list;
+	}
+
+	private static List<String> songIds(List<Map<String, Object>> plays) {
+		List<String> songIds = new ArrayList<>();
+		for (Map<String, Object> play : plays) {
+			songIds.add((String) play.get("songId"));
+		}
+		return songIds;
+	}
+}
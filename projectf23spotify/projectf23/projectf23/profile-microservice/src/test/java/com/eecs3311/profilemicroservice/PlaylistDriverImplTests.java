@@ -0,0 +1,140 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+// The rows LIKE_SONG and UNLIKE_SONG return for each case, and what the driver makes of them. No database is needed
+public class PlaylistDriverImplTests {
+
+	private final Driver driver = mock(Driver.class);
+	private final Session session = mock(Session.class);
+	private final Transaction tx = mock(Transaction.class);
+	private final StatementResult result = mock(StatementResult.class);
+	private final SongTitleCache songTitleCache = mock(SongTitleCache.class);
+	private final FriendFeedStore friendFeedStore = mock(FriendFeedStore.class);
+	private final SocialGraph socialGraph = mock(SocialGraph.class);
+	private PlaylistDriverImpl playlistDriver;
+
+	@Before
+	public void setUp() {
+		when(driver.session()).thenReturn(session);
+		when(session.beginTransaction()).thenReturn(tx);
+		when(tx.run(any(String.class), any(Value.class))).thenReturn(result);
+		when(songTitleCache.getSongTitleById("song")).thenReturn(CompletableFuture.completedFuture("Title"));
+
+		playlistDriver = new PlaylistDriverImpl(driver, songTitleCache, friendFeedStore, socialGraph,
+				new LatencyMetrics(new SimpleMeterRegistry()));
+	}
+
+	@Test
+	public void likeSongReportsEachCaseFromItsSingleRow() {
+		// No row at all when the user does not exist
+		returns();
+		assertLikeSong(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found");
+
+		returns(likeRow(false, false));
+		assertLikeSong(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "Favourites playlist not found");
+
+		returns(likeRow(true, true));
+		assertLikeSong(DbQueryExecResult.QUERY_ERROR_GENERIC, "User already likes the song");
+
+		// None of those commit the transaction or touch the in-memory views
+		verify(tx, never()).success();
+		verify(friendFeedStore, never()).liked(any(String.class), any(String.class));
+		verify(socialGraph, never()).liked(any(String.class), any(String.class));
+	}
+
+	@Test
+	public void likingASongThatDoesNotExistNeverReachesNeo4j() throws Exception {
+		when(songTitleCache.getSongTitleById("missing")).thenReturn(CompletableFuture.completedFuture(null));
+
+		DbQueryStatus dbQueryStatus = playlistDriver.likeSong("user", "missing");
+		assertEquals("Song not found", dbQueryStatus.getMessage());
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, dbQueryStatus.getdbQueryExecResult());
+
+		dbQueryStatus = playlistDriver.likeSongAsync("user", "missing").toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertEquals("Song not found", dbQueryStatus.getMessage());
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, dbQueryStatus.getdbQueryExecResult());
+
+		verifyZeroInteractions(driver, friendFeedStore, socialGraph);
+	}
+
+	@Test
+	public void likeSongCommitsAndUpdatesTheViews() {
+		returns(likeRow(true, false));
+		assertLikeSong(DbQueryExecResult.QUERY_OK, "Song liked successfully");
+
+		verify(tx).run(eq(PlaylistDriverImpl.LIKE_SONG),
+				eq(Values.parameters("userName", "user", "plName", "user-favorites", "songId", "song")));
+		verify(tx).success();
+		verify(friendFeedStore).liked("user", "song");
+		verify(socialGraph).liked("user", "song");
+	}
+
+	@Test
+	public void unlikeSongReportsEachCaseFromItsSingleRow() {
+		returns();
+		assertUnlikeSong(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found");
+
+		returns(removedRow(0));
+		assertUnlikeSong(DbQueryExecResult.QUERY_ERROR_GENERIC, "User does not like the song");
+		verify(tx, never()).success();
+		verify(friendFeedStore, never()).unliked(any(String.class), any(String.class));
+
+		returns(removedRow(1));
+		assertUnlikeSong(DbQueryExecResult.QUERY_OK, "Song unliked successfully");
+		verify(tx).success();
+		verify(friendFeedStore).unliked("user", "song");
+		verify(socialGraph).unliked("user", "song");
+	}
+
+	private void returns(Record... records) {
+		List<Record> rows = records.length == 0 ? Collections.emptyList() : Arrays.asList(records);
+		when(result.list()).thenReturn(rows);
+	}
+
+	private void assertLikeSong(DbQueryExecResult expected, String message) {
+		DbQueryStatus dbQueryStatus = playlistDriver.likeSong("user", "song");
+		assertEquals(message, dbQueryStatus.getMessage());
+		assertEquals(expected, dbQueryStatus.getdbQueryExecResult());
+	}
+
+	private void assertUnlikeSong(DbQueryExecResult expected, String message) {
+		DbQueryStatus dbQueryStatus = playlistDriver.unlikeSong("user", "song");
+		assertEquals(message, dbQueryStatus.getMessage());
+		assertEquals(expected, dbQueryStatus.getdbQueryExecResult());
+	}
+
+	private static Record likeRow(boolean playlistExists, boolean alreadyLiked) {
+		return new InternalRecord(Arrays.asList("playlistExists", "alreadyLiked"),
+				new Value[]{Values.value(playlistExists), Values.value(alreadyLiked)});
+	}
+
+	private static Record removedRow(long removed) {
+		return new InternalRecord(Collections.singletonList("removed"), new Value[]{Values.value(removed)});
+	}
+}
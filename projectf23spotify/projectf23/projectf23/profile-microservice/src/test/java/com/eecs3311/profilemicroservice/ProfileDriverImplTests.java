@@ -0,0 +1,169 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.driver.v1.exceptions.ServiceUnavailableException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+// The rows the single-statement Cypher returns for each case, and what the driver makes of them. No database is needed
+public class ProfileDriverImplTests {
+
+	private final Session session = mock(Session.class);
+	private final Transaction tx = mock(Transaction.class);
+	private final StatementResult result = mock(StatementResult.class);
+	private final SongServiceClient songServiceClient = mock(SongServiceClient.class);
+	private final FriendFeedStore friendFeedStore = mock(FriendFeedStore.class);
+	private final SocialGraph socialGraph = mock(SocialGraph.class);
+	private final ListeningHistory listeningHistory = mock(ListeningHistory.class);
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private ProfileDriverImpl profileDriver;
+
+	@Before
+	public void setUp() {
+		Driver driver = mock(Driver.class);
+		when(driver.session()).thenReturn(session);
+		when(session.beginTransaction()).thenReturn(tx);
+		when(session.run(any(String.class), anyMap())).thenReturn(result);
+		when(tx.run(any(String.class), anyMap())).thenReturn(result);
+
+		profileDriver = new ProfileDriverImpl(driver, songServiceClient, mock(SongTitleCache.class), friendFeedStore, socialGraph,
+				listeningHistory, new LatencyMetrics(registry));
+	}
+
+	@Test
+	public void followFriendSaysWhichUserIsMissing() {
+		when(result.single()).thenReturn(followRow(false, true));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found", profileDriver.followFriend("user", "friend"));
+
+		// The user is checked first when neither exists
+		when(result.single()).thenReturn(followRow(false, false));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found", profileDriver.followFriend("user", "friend"));
+
+		when(result.single()).thenReturn(followRow(true, false));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "Friend not found", profileDriver.followFriend("user", "friend"));
+		verify(friendFeedStore, never()).followed(any(String.class), any(String.class));
+		verify(socialGraph, never()).followed(any(String.class), any(String.class));
+	}
+
+	@Test
+	public void followingAgainIsStillAFollow() {
+		// The MERGE leaves an existing follow alone, so the row is the same whether or not it was already there
+		when(result.single()).thenReturn(followRow(true, true));
+		assertStatus(DbQueryExecResult.QUERY_OK, "Successfully followed friend", profileDriver.followFriend("user", "friend"));
+		assertStatus(DbQueryExecResult.QUERY_OK, "Successfully followed friend", profileDriver.followFriend("user", "friend"));
+
+		verify(session, times(2)).run(eq(ProfileDriverImpl.FOLLOW_FRIEND), eq(friendParams()));
+		verify(friendFeedStore, times(2)).followed("user", "friend");
+		verify(socialGraph, times(2)).followed("user", "friend");
+	}
+
+	@Test
+	public void unfollowFriendReportsAMissingFollow() {
+		when(result.single()).thenReturn(removedRow(0));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User is not following the friend",
+				profileDriver.unfollowFriend("user", "friend"));
+		verify(socialGraph, never()).unfollowed(any(String.class), any(String.class));
+
+		when(result.single()).thenReturn(removedRow(1));
+		assertStatus(DbQueryExecResult.QUERY_OK, "Successfully unfollowed friend", profileDriver.unfollowFriend("user", "friend"));
+		verify(friendFeedStore).unfollowed("user", "friend");
+		verify(socialGraph).unfollowed("user", "friend");
+	}
+
+	@Test
+	public void aPlayByAMissingUserIsNotCounted() {
+		when(result.hasNext()).thenReturn(false);
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found", profileDriver.updateLastListenedSong("user", "song"));
+
+		verify(session, never()).run(eq(ProfileDriverImpl.UPDATE_LAST_LISTENED_SONG), anyMap());
+		verifyZeroInteractions(songServiceClient, listeningHistory);
+	}
+
+	@Test
+	public void aPlayIsOnlyWrittenOnceTheSongServiceHasCountedIt() {
+		when(result.hasNext()).thenReturn(true);
+		when(songServiceClient.incrementStreamCount("song")).thenReturn(CompletableFuture.completedFuture(false));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_GENERIC, "Failed to increment stream count",
+				profileDriver.updateLastListenedSong("user", "song"));
+		verify(session, never()).run(eq(ProfileDriverImpl.UPDATE_LAST_LISTENED_SONG), anyMap());
+
+		when(songServiceClient.incrementStreamCount("song")).thenReturn(CompletableFuture.completedFuture(true));
+		assertStatus(DbQueryExecResult.QUERY_OK, "Updated last listened song", profileDriver.updateLastListenedSong("user", "song"));
+
+		// No transaction is held open across the call to the song service
+		InOrder inOrder = inOrder(session, songServiceClient);
+		inOrder.verify(session).run(eq(ProfileDriverImpl.USER_EXISTS), anyMap());
+		inOrder.verify(songServiceClient).incrementStreamCount("song");
+		inOrder.verify(session).run(eq(ProfileDriverImpl.UPDATE_LAST_LISTENED_SONG), anyMap());
+		verify(session, never()).beginTransaction();
+		verify(listeningHistory).append("user", "song");
+	}
+
+	@Test
+	public void getMostRecentSongTellsAMissingUserFromNoSong() {
+		when(result.list()).thenReturn(Collections.emptyList());
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "User not found", profileDriver.getMostRecentSong("user"));
+
+		when(result.list()).thenReturn(Collections.singletonList(
+				new InternalRecord(Collections.singletonList("songId"), new Value[]{Values.NULL})));
+		assertStatus(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, "No recent song found for user", profileDriver.getMostRecentSong("user"));
+	}
+
+	@Test
+	public void aStatementThatThrowsIsTimedAndCountedAsFailed() {
+		when(session.run(eq(ProfileDriverImpl.FOLLOW_FRIEND), anyMap())).thenThrow(new ServiceUnavailableException("Neo4j is down"));
+		assertEquals(DbQueryExecResult.QUERY_ERROR_GENERIC, profileDriver.followFriend("user", "friend").getdbQueryExecResult());
+
+		assertEquals(1, registry.get("cypher.latency").tag("statement", "FOLLOW_FRIEND").timer().count());
+		assertEquals(1, registry.get("cypher.errors").tag("statement", "FOLLOW_FRIEND").counter().count(), 0);
+	}
+
+	private static void assertStatus(DbQueryExecResult expected, String message, DbQueryStatus dbQueryStatus) {
+		assertEquals(message, dbQueryStatus.getMessage());
+		assertEquals(expected, dbQueryStatus.getdbQueryExecResult());
+	}
+
+	private static Map<String, Object> friendParams() {
+		Map<String, Object> params = new HashMap<>();
+		params.put("userName", "user");
+		params.put("frndUserName", "friend");
+		return params;
+	}
+
+	private static Record followRow(boolean userExists, boolean friendExists) {
+		return new InternalRecord(Arrays.asList("userExists", "friendExists"),
+				new Value[]{Values.value(userExists), Values.value(friendExists)});
+	}
+
+	private static Record removedRow(long removed) {
+		return new InternalRecord(Collections.singletonList("removed"), new Value[]{Values.value(removed)});
+	}
+}
@@ -0,0 +1,184 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Driver;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Transaction;
+import org.neo4j.driver.v1.TransactionConfig;
+import org.neo4j.driver.v1.TransactionWork;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+import org.neo4j.driver.v1.exceptions.TransientException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Recommends from users held in the FriendFeedStore, and reads the rest from a mocked driver that knows the graph below
+public class RecommendationEngineTests {
+
+	private static final long TIMEOUT_MS = 200;
+
+	// What Neo4j holds, follows and likes per user
+	private final Map<String, List<String>> follows = new HashMap<>();
+	private final Map<String, List<String>> likes = new HashMap<>();
+	// Reads that take longer than the time budget and are then given up on by the server
+	private volatile boolean slowReads;
+
+	private final FriendFeedStore friendFeedStore = new FriendFeedStore(1000, 1000, 600);
+	private RecommendationEngine recommendationEngine;
+
+	@Before
+	public void setUp() {
+		Driver driver = mock(Driver.class);
+		Session session = mock(Session.class);
+		when(driver.session()).thenReturn(session);
+		when(session.readTransaction(any(), any(TransactionConfig.class))).thenAnswer(invocation -> {
+			if (slowReads) {
+				Thread.sleep(TIMEOUT_MS + 50);
+				throw new TransientException("Neo.TransientError.Transaction.TransactionTimedOut", "The transaction has timed out");
+			}
+			Transaction tx = mock(Transaction.class);
+			when(tx.run(anyString(), any(Value.class))).thenAnswer(run -> usersEdges(run.getArgument(1)));
+			return ((TransactionWork<?>) invocation.getArgument(0)).execute(tx);
+		});
+
+		// Every song exists, and is titled after its id
+		SongTitleCache songTitleCache = mock(SongTitleCache.class);
+		when(songTitleCache.getSongTitlesByIds(anyCollection())).thenAnswer(invocation -> {
+			Map<String, String> titles = new HashMap<>();
+			for (String songId : invocation.<Collection<String>>getArgument(0)) {
+				titles.put(songId, "Title of " + songId);
+			}
+			return CompletableFuture.completedFuture(titles);
+		});
+
+		// The social graph is not loaded
+		SocialGraph socialGraph = mock(SocialGraph.class);
+		when(socialGraph.getFollows(anyString())).thenReturn(null);
+		when(socialGraph.getLikes(anyString())).thenReturn(null);
+
+		recommendationEngine = new RecommendationEngine(driver, socialGraph, friendFeedStore, songTitleCache,
+				new LatencyMetrics(new SimpleMeterRegistry()), 1.0, 0.5, 10000, 100, TIMEOUT_MS, 2);
+	}
+
+	@After
+	public void close() {
+		recommendationEngine.close();
+	}
+
+	@Test
+	public void songsAreRankedByHopWeightThenByLikers() {
+		user("alice", follows("bob", "carol"), likes("song3"));
+		user("bob", follows("dave"), likes("song1", "song2", "song6"));
+		user("carol", follows("dave", "erin"), likes("song1", "song3"));
+		user("dave", follows(), likes("song2", "song4"));
+		user("erin", follows(), likes("song4", "song5"));
+
+		DbQueryStatus dbQueryStatus = recommendationEngine.getRecommendedSongs("alice", 10);
+
+		assertEquals(DbQueryExecResult.QUERY_OK, dbQueryStatus.getdbQueryExecResult());
+		// song4 and song6 both score 1.0, two friends of friends like song4 and only one friend song6
+		assertEquals(Arrays.asList("song1", "song2", "song4", "song6", "song5"), songIds(dbQueryStatus));
+		assertEquals(2.0, songs(dbQueryStatus).get(0).get("score"));
+		assertEquals(2, songs(dbQueryStatus).get(0).get("likedBy"));
+		assertFalse(isPartial(dbQueryStatus));
+
+		// Only the best songs are kept
+		assertEquals(Arrays.asList("song1", "song2"), songIds(recommendationEngine.getRecommendedSongs("alice", 2)));
+	}
+
+	@Test
+	public void songsTheUserAlreadyLikesAreLeftOut() {
+		user("alice", follows("bob"), likes("song1", "song2"));
+		user("bob", follows("carol"), likes("song1", "song2", "song3"));
+		user("carol", follows(), likes("song2"));
+
+		assertEquals(Collections.singletonList("song3"), songIds(recommendationEngine.getRecommendedSongs("alice", 10)));
+	}
+
+	@Test
+	public void friendsAloneAreScoredWhenFriendsOfFriendsTakeTooLong() {
+		// Only the friends of friends have to be read from Neo4j
+		friendFeedStore.installUser(friendFeedStore.startLoad(), "alice", follows("bob"), likes());
+		friendFeedStore.installUser(friendFeedStore.startLoad(), "bob", follows("carol"), likes("song1"));
+		user("carol", follows(), likes("song2"));
+		slowReads = true;
+
+		DbQueryStatus dbQueryStatus = recommendationEngine.getRecommendedSongs("alice", 10);
+
+		assertEquals(DbQueryExecResult.QUERY_OK, dbQueryStatus.getdbQueryExecResult());
+		assertEquals(Collections.singletonList("song1"), songIds(dbQueryStatus));
+		assertTrue(isPartial(dbQueryStatus));
+	}
+
+	@Test
+	public void aUserThatDoesNotExistIsNotFound() {
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, recommendationEngine.getRecommendedSongs("nobody", 10).getdbQueryExecResult());
+	}
+
+	private void user(String userName, List<String> userFollows, List<String> userLikes) {
+		follows.put(userName, userFollows);
+		likes.put(userName, userLikes);
+	}
+
+	private static List<String> follows(String... userNames) {
+		return Arrays.asList(userNames);
+	}
+
+	private static List<String> likes(String... songIds) {
+		return Arrays.asList(songIds);
+	}
+
+	// The USERS_EDGES rows for the users that exist
+	private StatementResult usersEdges(Value parameters) {
+		List<Record> records = new ArrayList<>();
+		for (String userName : parameters.get("userNames").asList(Value::asString)) {
+			if (follows.containsKey(userName)) {
+				records.add(new InternalRecord(Arrays.asList("userName", "follows", "songIds"),
+						new Value[]{Values.value(userName), Values.value(follows.get(userName)), Values.value(likes.get(userName))}));
+			}
+		}
+		StatementResult result = mock(StatementResult.class);
+		when(result.list()).thenReturn(records);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> songs(DbQueryStatus dbQueryStatus) {
+		return (List<Map<String, Object>>) ((Map<String, Object>) dbQueryStatus.getData()).get("songs");
+	}
+
+	private static List<String> songIds(DbQueryStatus dbQueryStatus) {
+		List<String> songIds = new ArrayList<>();
+		for (Map<String, Object> song : songs(dbQueryStatus)) {
+			songIds.add((String) song.get("songId"));
+		}
+		return songIds;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean isPartial(DbQueryStatus dbQueryStatus) {
+		return (Boolean) ((Map<String, Object>) dbQueryStatus.getData()).get("partial");
+	}
+}
@@ -0,0 +1,241 @@
+package com.eecs3311.profilemicroservice;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Session;
+import org.neo4j.driver.v1.StatementResult;
+import org.neo4j.driver.v1.Value;
+import org.neo4j.driver.v1.Values;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SocialGraphTests {
+
+	// What the mocked sessions read. Tests change it the way a committed write would, then tell the graph
+	private final List<String> users = new ArrayList<>(Arrays.asList("alice", "bob", "carol"));
+	private final List<String> songs = new ArrayList<>(Arrays.asList("song1", "song2"));
+	private final List<String[]> follows = new ArrayList<>(Collections.singletonList(new String[]{"alice", "bob"}));
+	private final List<String[]> likes = new ArrayList<>(Collections.singletonList(new String[]{"bob", "song1"}));
+
+	private final AtomicInteger builds = new AtomicInteger();
+	private volatile Runnable whileReading = () -> { };
+	private volatile boolean neo4jDown;
+
+	private SocialGraph socialGraph;
+
+	@After
+	public void close() {
+		socialGraph.close();
+	}
+
+	@Test
+	public void readsMergeTheSnapshotWithTheOverlay() {
+		socialGraph = graph(100000, 1000);
+		socialGraph.rebuild();
+
+		socialGraph.followed("alice", "carol");
+		socialGraph.unfollowed("alice", "bob");
+		socialGraph.liked("carol", "song2");
+		socialGraph.unliked("bob", "song1");
+		socialGraph.userCreated("dave");
+		socialGraph.followed("dave", "alice");
+
+		assertEquals(Collections.singletonList("carol"), socialGraph.getFollows("alice"));
+		assertEquals(Collections.singletonMap("carol", Collections.singletonList("song2")), socialGraph.getFeed("alice"));
+		assertEquals(Collections.emptyList(), socialGraph.getLikes("bob"));
+		assertEquals(Collections.singletonList("alice"), socialGraph.getFollows("dave"));
+		assertEquals(1, socialGraph.getFollowCounts("alice").get("followers"));
+		assertEquals(1, socialGraph.getFollowCounts("carol").get("followers"));
+		assertEquals(0, socialGraph.getFollowCounts("bob").get("followers"));
+		assertNull(socialGraph.getFollows("nobody"));
+
+		// Deleted songs are filtered out of every read
+		socialGraph.songDeleted("song2");
+		assertEquals(Collections.emptyList(), socialGraph.getLikes("carol"));
+	}
+
+	@Test
+	public void writesThatChangeNothingLeaveTheOverlayEmpty() {
+		socialGraph = graph(100000, 1000);
+		socialGraph.rebuild();
+
+		// Already in the snapshot, and not in it
+		socialGraph.followed("alice", "bob");
+		socialGraph.unliked("alice", "song1");
+		// Undone before the next build
+		socialGraph.followed("bob", "carol");
+		socialGraph.unfollowed("bob", "carol");
+
+		assertEquals(0, socialGraph.getStats().get("overlayEdges"));
+		assertEquals(1, socialGraph.getFollowCounts("bob").get("followers"));
+		assertEquals(0, socialGraph.getFollowCounts("carol").get("followers"));
+	}
+
+	@Test
+	public void writesMadeWhileARebuildReadsAreReplayedOntoIt() {
+		socialGraph = graph(100000, 1000);
+		socialGraph.rebuild();
+
+		// Committed after the rebuild read the database, so the new snapshot does not have them
+		whileReading = () -> {
+			whileReading = () -> { };
+			socialGraph.unfollowed("alice", "bob");
+			socialGraph.followed("alice", "carol");
+			socialGraph.liked("carol", "song2");
+			socialGraph.unliked("carol", "song2");
+			socialGraph.liked("carol", "song1");
+		};
+		socialGraph.rebuild();
+
+		assertEquals(Collections.singletonList("carol"), socialGraph.getFollows("alice"));
+		assertEquals(Collections.singletonList("song1"), socialGraph.getLikes("carol"));
+		assertEquals(3, socialGraph.getStats().get("overlayEdges"));
+	}
+
+	@Test
+	public void aFullOverlayQueuesOneRebuild() throws Exception {
+		socialGraph = graph(1, 1000);
+		socialGraph.rebuild();
+
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch finishReading = new CountDownLatch(1);
+		whileReading = () -> {
+			whileReading = () -> { };
+			reading.countDown();
+			await(finishReading);
+		};
+		for (int i = 0; i < 50; i++) {
+			follow("user" + i, "alice");
+		}
+		assertTrue(reading.await(5, TimeUnit.SECONDS));
+		for (int i = 50; i < 100; i++) {
+			follow("user" + i, "alice");
+		}
+		finishReading.countDown();
+
+		// The first snapshot has a single follow
+		waitFor(() -> (Integer) socialGraph.getStats().get("follows") > 1);
+		// The writes made while the second build read were replayed, the overlay is not checked again until the next write
+		Thread.sleep(100);
+		assertEquals(2, builds.get());
+		assertEquals(100, socialGraph.getFollowCounts("alice").get("followers"));
+	}
+
+	@Test
+	public void aFailedBuildHoldsOffTheNextRequest() throws Exception {
+		socialGraph = graph(1, TimeUnit.HOURS.toMillis(1));
+		socialGraph.rebuild();
+
+		neo4jDown = true;
+		follow("user1", "alice");
+		follow("user2", "alice");
+		waitFor(() -> builds.get() == 2);
+
+		for (int i = 3; i < 50; i++) {
+			follow("user" + i, "alice");
+		}
+		Thread.sleep(100);
+		assertEquals(2, builds.get());
+		// Reads carry on from the old snapshot and the overlay
+		assertEquals(49, socialGraph.getFollowCounts("alice").get("followers"));
+	}
+
+	private SocialGraph graph(int maxOverlayEdges, long retryDelayMs) {
+		return new SocialGraph(true, maxOverlayEdges, TimeUnit.DAYS.toMillis(1), retryDelayMs, this::session);
+	}
+
+	private void follow(String userName, String friendUserName) {
+		synchronized (this) {
+			users.add(userName);
+			follows.add(new String[]{userName, friendUserName});
+		}
+		socialGraph.userCreated(userName);
+		socialGraph.followed(userName, friendUserName);
+	}
+
+	private Session session() {
+		builds.incrementAndGet();
+		if (neo4jDown) {
+			throw new IllegalStateException("Neo4j is down");
+		}
+		Session session = mock(Session.class);
+		when(session.run(anyString())).thenAnswer(invocation -> {
+			String statement = invocation.getArgument(0);
+			List<Record> rows = new ArrayList<>();
+			synchronized (this) {
+				if (statement.equals(SocialGraph.ALL_USERS)) {
+					for (String user : users) {
+						rows.add(row(Collections.singletonList("userName"), user));
+					}
+				} else if (statement.equals(SocialGraph.ALL_SONGS)) {
+					for (String song : songs) {
+						rows.add(row(Collections.singletonList("songId"), song));
+					}
+				} else if (statement.equals(SocialGraph.ALL_FOLLOWS)) {
+					for (String[] follow : follows) {
+						rows.add(row(Arrays.asList("userName", "friendUserName"), follow));
+					}
+				} else {
+					for (String[] like : likes) {
+						rows.add(row(Arrays.asList("userName", "songId"), like));
+					}
+				}
+			}
+			// The last statement of a build, everything has been read
+			if (statement.equals(SocialGraph.ALL_LIKES)) {
+				whileReading.run();
+			}
+			return result(rows);
+		});
+		return session;
+	}
+
+	private static Record row(List<String> keys, String... values) {
+		Value[] row = new Value[values.length];
+		for (int i = 0; i < values.length; i++) {
+			row[i] = Values.value(values[i]);
+		}
+		return new InternalRecord(keys, row);
+	}
+
+	private static StatementResult result(List<Record> rows) {
+		Iterator<Record> iterator = rows.iterator();
+		StatementResult result = mock(StatementResult.class);
+		when(result.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+		when(result.next()).thenAnswer(invocation -> iterator.next());
+		return result;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out", System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
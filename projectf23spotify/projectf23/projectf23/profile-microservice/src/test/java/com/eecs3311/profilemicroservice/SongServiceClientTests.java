@@ -0,0 +1,163 @@
+package com.eecs3311.profilemicroservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Calls a MockWebServer that answers the way the song service does, every song id ending in 0 does not exist
+public class SongServiceClientTests {
+
+	private final MockWebServer server = new MockWebServer();
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	// The songIds of every getSongTitlesByIds request
+	private final List<JsonNode> batches = new CopyOnWriteArrayList<>();
+	// Answers every request with this status when set
+	private volatile int failWith;
+
+	private SongServiceClient songServiceClient;
+
+	@Before
+	public void setUp() throws IOException {
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+				if (failWith != 0) {
+					return new MockResponse().setResponseCode(failWith).setBody("{\"status\":\"INTERNAL_SERVER_ERROR\"}");
+				}
+				String path = request.getPath();
+				if (path.startsWith("/getSongTitleById/")) {
+					String songId = path.substring("/getSongTitleById/".length());
+					return songId.endsWith("0") ? new MockResponse().setResponseCode(404).setBody("{\"status\":\"NOT_FOUND\"}")
+							: ok(objectMapper.createObjectNode().put("data", "Title of " + songId));
+				}
+				if (path.equals("/getSongTitlesByIds")) {
+					JsonNode songIds;
+					try {
+						songIds = objectMapper.readTree(request.getBody().readUtf8()).get("songIds");
+					} catch (IOException e) {
+						return new MockResponse().setResponseCode(400);
+					}
+					batches.add(songIds);
+					ObjectNode response = objectMapper.createObjectNode();
+					ObjectNode titles = response.putObject("data");
+					for (JsonNode songId : songIds) {
+						if (!songId.asText().endsWith("0")) {
+							titles.put(songId.asText(), "Title of " + songId.asText());
+						}
+					}
+					return ok(response);
+				}
+				return ok(objectMapper.createObjectNode());
+			}
+		});
+		server.start();
+
+		songServiceClient = new SongServiceClient(new LatencyMetrics(registry), server.url("/").toString(), 1000, 5000, 4, 1000, 16);
+	}
+
+	@After
+	public void close() throws IOException {
+		Tracing.detach();
+		songServiceClient.close();
+		server.shutdown();
+	}
+
+	@Test
+	public void songTitlesAreRequestedInBatchesOf500() throws IOException {
+		List<String> songIds = new ArrayList<>();
+		for (int i = 1; i <= 1201; i++) {
+			songIds.add("song" + i);
+		}
+
+		Map<String, String> songTitles = SongServiceClient.await(songServiceClient.getSongTitlesByIds(songIds));
+
+		// 120 of the ids end in 0
+		assertEquals(1081, songTitles.size());
+		assertEquals("Title of song1201", songTitles.get("song1201"));
+		assertFalse(songTitles.containsKey("song1200"));
+
+		List<Integer> batchSizes = new ArrayList<>();
+		for (JsonNode batch : batches) {
+			batchSizes.add(batch.size());
+		}
+		Collections.sort(batchSizes);
+		assertEquals(Arrays.asList(201, 500, 500), batchSizes);
+	}
+
+	@Test
+	public void onlyA404MeansTheSongDoesNotExist() throws IOException {
+		assertEquals("Title of song1", SongServiceClient.await(songServiceClient.getSongTitleById("song1")));
+		assertNull(SongServiceClient.await(songServiceClient.getSongTitleById("song10")));
+		assertEquals(0, errors("getSongTitleById"), 0.0);
+
+		failWith = 500;
+		assertCallFails(songServiceClient.getSongTitleById("song1"));
+		failWith = 503;
+		assertCallFails(songServiceClient.getSongTitlesByIds(Arrays.asList("song1", "song2")));
+		assertEquals(1, errors("getSongTitleById"), 0.0);
+		assertEquals(1, errors("getSongTitlesByIds"), 0.0);
+
+		// Updates report whether they were accepted
+		assertFalse(SongServiceClient.await(songServiceClient.incrementStreamCount("song1")));
+		failWith = 0;
+		assertTrue(SongServiceClient.await(songServiceClient.incrementStreamCount("song1")));
+	}
+
+	@Test
+	public void aTracedCallPassesItsTraceOn() throws Exception {
+		SongServiceClient.await(songServiceClient.incrementStreamCount("song1"));
+		assertNull(server.takeRequest(5, TimeUnit.SECONDS).getHeader(Tracing.TRACEPARENT_HEADER));
+
+		Tracing.Trace trace = new Tracing(1.0, 16, 4).start("updateLastListenedSong", null);
+		Tracing.attach(trace);
+		SongServiceClient.await(songServiceClient.incrementStreamCount("song1"));
+		assertEquals(trace.traceparent(), server.takeRequest(5, TimeUnit.SECONDS).getHeader(Tracing.TRACEPARENT_HEADER));
+	}
+
+	private double errors(String call) {
+		return registry.find("song.service.errors").tag("call", call).counters().stream().mapToDouble(counter -> counter.count()).sum();
+	}
+
+	private static void assertCallFails(CompletableFuture<?> call) {
+		try {
+			call.get(5, TimeUnit.SECONDS);
+			fail("A failed call looked like an answer");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			assertTrue(e.getCause().getMessage().startsWith("Song service responded with 50"));
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static MockResponse ok(ObjectNode body) {
+		return new MockResponse().setResponseCode(200).setBody(body.put("status", "OK").toString());
+	}
+}
@@ -0,0 +1,104 @@
+package com.eecs3311.profilemicroservice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SongTitleCacheTests {
+
+	private final SongServiceClient songServiceClient = mock(SongServiceClient.class);
+	private final AtomicLong nanos = new AtomicLong();
+	private SongTitleCache songTitleCache;
+
+	@Before
+	public void setUp() {
+		when(songServiceClient.getSongTitleById("song")).thenReturn(CompletableFuture.completedFuture("Title"));
+		when(songServiceClient.getSongTitleById("deleted")).thenReturn(CompletableFuture.completedFuture(null));
+		songTitleCache = new SongTitleCache(songServiceClient, 100, 600, 60, nanos::get);
+	}
+
+	@Test
+	public void missingSongsAreCachedForTheNegativeTtl() {
+		assertEquals("Title", songTitleCache.getSongTitleById("song").join());
+		assertNull(songTitleCache.getSongTitleById("deleted").join());
+		assertEquals("Title", songTitleCache.getSongTitleById("song").join());
+		assertNull(songTitleCache.getSongTitleById("deleted").join());
+		verify(songServiceClient).getSongTitleById("song");
+		verify(songServiceClient).getSongTitleById("deleted");
+
+		// The missing song is asked for again once its shorter ttl is up, the title is still cached
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+		assertEquals("Title", songTitleCache.getSongTitleById("song").join());
+		assertNull(songTitleCache.getSongTitleById("deleted").join());
+		verify(songServiceClient).getSongTitleById("song");
+		verify(songServiceClient, times(2)).getSongTitleById("deleted");
+	}
+
+	@Test
+	public void statsCountHitsAndMisses() {
+		songTitleCache.getSongTitleById("song").join();
+		songTitleCache.getSongTitleById("song").join();
+		songTitleCache.getSongTitleById("deleted").join();
+		songTitleCache.getSongTitleById("deleted").join();
+		songTitleCache.getSongTitleById("song").join();
+
+		Map<String, Object> stats = songTitleCache.getStats();
+		assertEquals(2L, stats.get("size"));
+		assertEquals(3L, stats.get("hitCount"));
+		assertEquals(2L, stats.get("missCount"));
+		assertEquals(0.6, (Double) stats.get("hitRate"), 1e-9);
+	}
+
+	@Test
+	public void lookupsOfASongBeingLookedUpShareTheRequest() {
+		CompletableFuture<String> title = new CompletableFuture<>();
+		when(songServiceClient.getSongTitleById("slow")).thenReturn(title);
+		when(songServiceClient.getSongTitlesByIds(anyCollection())).thenReturn(
+				CompletableFuture.completedFuture(Collections.singletonMap("other", "Other title")));
+
+		CompletableFuture<String> first = songTitleCache.getSongTitleById("slow");
+		CompletableFuture<String> second = songTitleCache.getSongTitleById("slow");
+		CompletableFuture<Map<String, String>> batch = songTitleCache.getSongTitlesByIds(Arrays.asList("slow", "other"));
+		title.complete("Slow title");
+
+		assertEquals("Slow title", first.join());
+		assertEquals("Slow title", second.join());
+		Map<String, String> expected = new HashMap<>();
+		expected.put("slow", "Slow title");
+		expected.put("other", "Other title");
+		assertEquals(expected, batch.join());
+		verify(songServiceClient).getSongTitleById("slow");
+		verify(songServiceClient).getSongTitlesByIds(Collections.singletonList("other"));
+	}
+
+	@Test
+	public void aSongDeletedDuringItsLookupStaysMissing() {
+		CompletableFuture<String> title = new CompletableFuture<>();
+		when(songServiceClient.getSongTitleById("slow")).thenReturn(title);
+
+		CompletableFuture<String> inFlight = songTitleCache.getSongTitleById("slow");
+		songTitleCache.markMissing("slow");
+		title.complete("Slow title");
+
+		// The lookup that started first still sees the title, later ones do not
+		assertEquals("Slow title", inFlight.join());
+		assertNull(songTitleCache.getSongTitleById("slow").join());
+		assertEquals(Collections.emptyMap(), songTitleCache.getSongTitlesByIds(Collections.singletonList("slow")).join());
+		verify(songServiceClient).getSongTitleById("slow");
+	}
+}
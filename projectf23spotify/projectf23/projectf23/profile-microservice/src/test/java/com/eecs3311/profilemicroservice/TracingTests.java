@@ -0,0 +1,96 @@
+package com.eecs3311.profilemicroservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TracingTests {
+
+	private static final String SAMPLED = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+	private static final String NOT_SAMPLED = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00";
+
+	private final ExecutorService driverThread = Executors.newSingleThreadExecutor();
+
+	@After
+	public void cleanUp() {
+		Tracing.detach();
+		driverThread.shutdownNow();
+	}
+
+	@Test
+	public void callerDecidesWhetherRequestIsTraced() {
+		Tracing tracing = new Tracing(0.0, 16, 4);
+
+		Tracing.Trace trace = tracing.start("likeSong", SAMPLED);
+		assertNotNull(trace);
+		assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", trace.traceId);
+		assertEquals("00f067aa0ba902b7", trace.parentSpanId);
+		assertTrue(Tracing.isValidTraceparent(trace.traceparent()));
+		assertTrue(trace.traceparent().startsWith("00-4bf92f3577b34da6a3ce929d0e0e4736-"));
+
+		assertNull(tracing.start("likeSong", NOT_SAMPLED));
+		// Without a valid header the sample rate decides, and it is zero here
+		assertNull(tracing.start("likeSong", null));
+		assertNull(tracing.start("likeSong", "00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+		assertNull(tracing.start("likeSong", SAMPLED.toUpperCase()));
+
+		assertNotNull(new Tracing(1.0, 16, 4).start("likeSong", null));
+	}
+
+	@Test
+	public void keepsOnlyTheSlowestTraces() throws Exception {
+		Tracing tracing = new Tracing(1.0, 16, 2);
+		for (int sleepMs : new int[]{1, 20, 5, 30, 2}) {
+			Tracing.Trace trace = tracing.start("sleep" + sleepMs, null);
+			Thread.sleep(sleepMs);
+			tracing.finish(trace, false);
+		}
+
+		Map<String, Object> slowTraces = tracing.getSlowTraces();
+		assertEquals(5L, slowTraces.get("sampledTraces"));
+		List<?> traces = (List<?>) slowTraces.get("traces");
+		assertEquals(2, traces.size());
+		assertEquals("sleep30", ((Map<?, ?>) traces.get(0)).get("endpoint"));
+		assertEquals("sleep20", ((Map<?, ?>) traces.get(1)).get("endpoint"));
+	}
+
+	@Test
+	public void stagesCompletedOnAnotherThreadContinueInTheTrace() throws Exception {
+		Tracing tracing = new Tracing(1.0, 16, 4);
+		LatencyMetrics.Family cypher = new LatencyMetrics(new SimpleMeterRegistry()).cypher;
+		Tracing.Trace trace = tracing.start("getAllFriendFavouriteSongTitles", null);
+		Tracing.attach(trace);
+
+		CompletableFuture<String> query = new CompletableFuture<>();
+		CompletableFuture<Tracing.Trace> chained = cypher.time("FRIENDS_LIKED_SONGS", System.nanoTime(), query)
+				.thenApply(result -> Tracing.current())
+				.toCompletableFuture();
+
+		// The request thread is released before the driver completes the query
+		Tracing.detach();
+		driverThread.submit(() -> query.complete("done")).get();
+
+		assertSame(trace, chained.get(1, TimeUnit.SECONDS));
+		assertNull(driverThread.submit(Tracing::current).get());
+
+		tracing.finish(trace, false);
+		Map<?, ?> rendered = (Map<?, ?>) ((List<?>) tracing.getSlowTraces().get("traces")).get(0);
+		Map<?, ?> span = (Map<?, ?>) ((List<?>) rendered.get("spans")).get(0);
+		assertEquals("cypher FRIENDS_LIKED_SONGS", span.get("name"));
+		assertFalse((Boolean) span.get("error"));
+	}
+}
@@ -0,0 +1,83 @@
+package com.eecs3311.songmicroservice;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+
+/**
+ * The body every JSON endpoint responds with: the path that was called, a message, the data and the status. Fields
+ * that are not set are left out of the JSON, the same as a key that was never put in the response map.
+ *
+ * It is written field by field straight to the response stream, so a response costs this object and whatever the
+ * data is, rather than a map, its entries and a serializer looked up for every value in it.
+ */
+@JsonSerialize(using = ApiResponse.Serializer.class)
+public final class ApiResponse {
+
+	private final String path;
+	private String message;
+	private Object data;
+	private HttpStatus status;
+
+	// A null path leaves it out, see song.response.include-path
+	public ApiResponse(String path) {
+		this.path = path;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public Object getData() {
+		return data;
+	}
+
+	public void setData(Object data) {
+		this.data = data;
+	}
+
+	public HttpStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(HttpStatus status) {
+		this.status = status;
+	}
+
+	static final class Serializer extends StdSerializer<ApiResponse> {
+
+		Serializer() {
+			super(ApiResponse.class);
+		}
+
+		@Override
+		public void serialize(ApiResponse response, JsonGenerator generator, SerializerProvider provider) throws IOException {
+			generator.writeStartObject();
+			if (response.path != null) {
+				generator.writeStringField("path", response.path);
+			}
+			if (response.message != null) {
+				generator.writeStringField("message", response.message);
+			}
+			if (response.data != null) {
+				provider.defaultSerializeField("data", response.data, generator);
+			}
+			if (response.status != null) {
+				generator.writeStringField("status", response.status.name());
+			}
+			generator.writeEndObject();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.eecs3311.songmicroservice;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Repository;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of {@link SongDalImpl}, the controllers reach it through {@link TimedSongDal}.
+ * Cached songs are never modified in place, writes either replace them with an updated copy or drop them. A song
+ * expires ttlSeconds after it was loaded however often it is patched, so the TTL bounds how stale a cached copy can be.
+ */
+@Repository
+public class CachingSongDal implements SongDal {
+
+	private final SongDal songDal;
+	private final Cache<String, Song> songs;
+
+	@Autowired
+	public CachingSongDal(SongDalImpl songDal,
+						  @Value("${song.cache.maximum-size:10000}") long maximumSize,
+						  @Value("${song.cache.ttl-seconds:300}") long ttlSeconds) {
+		this(songDal, maximumSize, ttlSeconds, Ticker.systemTicker());
+	}
+
+	// Tests pass a ticker of their own to move the clock forward
+	CachingSongDal(SongDal songDal, long maximumSize, long ttlSeconds, Ticker ticker) {
+		this.songDal = songDal;
+		this.songs = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfter(new ExpireAfterLoad(TimeUnit.SECONDS.toNanos(ttlSeconds)))
+				.ticker(ticker)
+				.recordStats()
+				.build();
+	}
+
+	@Override
+	public DbQueryStatus addSong(Song songToAdd) {
+		return songDal.addSong(songToAdd);
+	}
+
+	@Override
+	public DbQueryStatus addSongs(List<Song> songsToAdd) {
+		return songDal.addSongs(songsToAdd);
+	}
+
+	@Override
+	public DbQueryStatus findSongById(String songId) {
+		// Read inside the cache's atomic compute, so a delete or update that invalidates the song while it is being read
+		// waits for the read and then drops what it loaded, instead of the stale copy being put back afterwards. A song
+		// that is not found or could not be read is not cached, the loader returns null and its status is kept here
+		DbQueryStatus[] loaded = new DbQueryStatus[1];
+		Song song = songs.get(songId, id -> {
+			loaded[0] = songDal.findSongById(id);
+			return loaded[0].getdbQueryExecResult() == DbQueryExecResult.QUERY_OK ? (Song) loaded[0].getData() : null;
+		});
+		if (loaded[0] != null) {
+			return loaded[0];
+		}
+
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Song found", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(song);
+		return dbQueryStatus;
+	}
+
+	@Override
+	public DbQueryStatus getSongTitleById(String songId) {
+		// Load the whole song on a miss so the next lookup of either kind is served from memory
+		DbQueryStatus songStatus = findSongById(songId);
+
+		switch (songStatus.getdbQueryExecResult()) {
+			case QUERY_OK:
+				DbQueryStatus dbQueryStatus = new DbQueryStatus("Song title found", DbQueryExecResult.QUERY_OK);
+				dbQueryStatus.setData(((Song) songStatus.getData()).getSongName());
+				return dbQueryStatus;
+			case QUERY_ERROR_NOT_FOUND:
+				return new DbQueryStatus("Song title not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+			default:
+				return new DbQueryStatus("Error finding song title", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public DbQueryStatus getSongTitlesByIds(List<String> songIds) {
+		Map<String, String> titles = new HashMap<>();
+		List<String> misses = new ArrayList<>();
+		for (String songId : songIds) {
+			Song cached = songs.getIfPresent(songId);
+			if (cached != null) {
+				titles.put(songId, cached.getSongName());
+			} else {
+				misses.add(songId);
+			}
+		}
+
+		if (!misses.isEmpty()) {
+			// The batch query only projects titles, so its results are not cached as songs
+			DbQueryStatus missStatus = songDal.getSongTitlesByIds(misses);
+			if (missStatus.getdbQueryExecResult() != DbQueryExecResult.QUERY_OK) {
+				return missStatus;
+			}
+			titles.putAll((Map<String, String>) missStatus.getData());
+		}
+
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Song titles found", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(titles);
+		return dbQueryStatus;
+	}
+
+	@Override
+	public DbQueryStatus deleteSongById(String songId) {
+		DbQueryStatus dbQueryStatus = songDal.deleteSongById(songId);
+		songs.invalidate(songId);
+		return dbQueryStatus;
+	}
+
+	@Override
+	public DbQueryStatus updateSongFavouritesCount(String songId, boolean shouldDecrement) {
+		DbQueryStatus dbQueryStatus = songDal.updateSongFavouritesCount(songId, shouldDecrement);
+		// Likes and unlikes move the count both ways, so concurrent updates returning their counts out of order cannot
+		// tell which one is newer. The song is dropped and the next read loads the current count
+		songs.invalidate(songId);
+		return dbQueryStatus;
+	}
+
+	@Override
+	public DbQueryStatus incrementStreamCount(String songId) {
+		DbQueryStatus dbQueryStatus = songDal.incrementStreamCount(songId);
+		// Plays are far too frequent to drop the song every time, so the cached copy is patched with the count the update
+		// returned instead. Stream counts only grow, so the higher of the two is the newer one, whichever order concurrent
+		// plays and misses finish in. A play queued in write-behind mode returns no count and has not reached the
+		// database yet, the cached copy catches up when it expires
+		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK && dbQueryStatus.getData() != null) {
+			long streamCount = (Long) dbQueryStatus.getData();
+			songs.asMap().computeIfPresent(songId, (id, song) -> {
+				if (song.getStreamCount() >= streamCount) {
+					return song;
+				}
+				Song patched = copyOf(song);
+				patched.setStreamCount(streamCount);
+				return patched;
+			});
+		}
+		return dbQueryStatus;
+	}
+
+	@Override
+	public DbQueryStatus applyFavouritesDeltas(String batchId, Map<String, Long> deltas) {
+		DbQueryStatus dbQueryStatus = songDal.applyFavouritesDeltas(batchId, deltas);
+		// A bulk update does not return the new counts, so the cached copies are dropped rather than patched
+		songs.invalidateAll(deltas.keySet());
+		return dbQueryStatus;
+	}
+
+	// Listings and exports read every song once, caching them would only evict the songs that are being played
+	@Override
+	public DbQueryStatus getSongsAfter(String afterSongId, int limit, List<String> fields) {
+		return songDal.getSongsAfter(afterSongId, limit, fields);
+	}
+
+	@Override
+	public CloseableIterator<Map<String, Object>> streamSongs(List<String> fields) {
+		return songDal.streamSongs(fields);
+	}
+
+	public Map<String, Object> getCacheStats() {
+		CacheStats stats = songs.stats();
+		Map<String, Object> statsMap = new LinkedHashMap<>();
+		statsMap.put("size", songs.estimatedSize());
+		statsMap.put("hitCount", stats.hitCount());
+		statsMap.put("missCount", stats.missCount());
+		statsMap.put("hitRate", stats.hitRate());
+		statsMap.put("evictionCount", stats.evictionCount());
+		return statsMap;
+	}
+
+	// Patching a song keeps the time it has left, only loading it starts the TTL
+	private static class ExpireAfterLoad implements Expiry<String, Song> {
+		private final long ttlNanos;
+
+		ExpireAfterLoad(long ttlNanos) {
+			this.ttlNanos = ttlNanos;
+		}
+
+		@Override
+		public long expireAfterCreate(String songId, Song song, long currentTime) {
+			return ttlNanos;
+		}
+
+		@Override
+		public long expireAfterUpdate(String songId, Song song, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+
+		@Override
+		public long expireAfterRead(String songId, Song song, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+
+	private static Song copyOf(Song song) {
+		Song copy = new Song(song.getSongName(), song.getSongArtistFullName(), song.getSongAlbum());
+		copy.setId(song._id);
+		copy.setSongAmountFavourites(song.getSongAmountFavourites());
+		copy.setStreamCount(song.getStreamCount());
+		return copy;
+	}
+}
@@ -0,0 +1,122 @@
+package com.eecs3311.songmicroservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms and error counters for the endpoints and the data access layer, scraped from /metrics.
+ *
+ * Each timer is registered the first time its name is recorded and looked up by that name afterwards. Names are
+ * string constants, so recording reads the clock, finds the timer and updates it without allocating anything, which
+ * is what lets the metrics stay on under load. Timing a call adds the lambda that runs it. When the request is being traced, see {@link Tracing}, the data access
+ * timings are added to its trace as spans as well.
+ */
+@Component
+public class LatencyMetrics {
+
+	// Cache hits take microseconds, the buckets have to start well below a millisecond to tell them apart
+	private static final Duration MINIMUM_EXPECTED_LATENCY = Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(50));
+	private static final Duration MAXIMUM_EXPECTED_LATENCY = Duration.ofSeconds(30);
+
+	private static final Predicate<Object> NEVER_FAILED = result -> false;
+
+	// Every controller endpoint, by handler method name
+	final Family endpoints;
+
+	// Every SongDal method as the controllers call it, cache included
+	final Family songDal;
+
+	@Autowired
+	public LatencyMetrics(MeterRegistry registry) {
+		// The trace itself covers the endpoint, so endpoints are not spans
+		this.endpoints = new Family(registry, "endpoint", "endpoint", false);
+		this.songDal = new Family(registry, "song.dal", "method", true);
+	}
+
+	/**
+	 * A latency timer and an error counter per name, published as name.latency and name.errors tagged with the name.
+	 */
+	static final class Family {
+		private final MeterRegistry registry;
+		private final String meterName;
+		private final String tagKey;
+		private final boolean traced;
+		private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, Counter> errors = new ConcurrentHashMap<>();
+
+		private Family(MeterRegistry registry, String meterName, String tagKey, boolean traced) {
+			this.registry = registry;
+			this.meterName = meterName;
+			this.tagKey = tagKey;
+			this.traced = traced;
+		}
+
+		// Records the time since startNanos, a System.nanoTime() read before the call, and counts it if it failed
+		void record(String name, long startNanos, boolean failed) {
+			long endNanos = System.nanoTime();
+			timer(name).record(endNanos - startNanos, TimeUnit.NANOSECONDS);
+			if (failed) {
+				Counter counter = errors.get(name);
+				if (counter == null) {
+					counter = errors.computeIfAbsent(name, this::registerCounter);
+				}
+				counter.increment();
+			}
+			if (traced) {
+				Tracing.Trace trace = Tracing.current();
+				if (trace != null) {
+					trace.span(meterName, name, startNanos, endNanos, failed);
+				}
+			}
+		}
+
+		// Runs the work on the calling thread and records it, work that throws failed
+		<T> T time(String name, Supplier<T> work) {
+			return time(name, work, NEVER_FAILED);
+		}
+
+		// As above, work that returns a result the predicate accepts failed as well
+		<T> T time(String name, Supplier<T> work, Predicate<? super T> failed) {
+			long startNanos = System.nanoTime();
+			T result = null;
+			boolean threw = true;
+			try {
+				result = work.get();
+				threw = false;
+				return result;
+			} finally {
+				record(name, startNanos, threw || failed.test(result));
+			}
+		}
+
+		Timer timer(String name) {
+			Timer timer = timers.get(name);
+			// Only the first call for a name registers, the method reference is not created on the lookup path
+			return timer != null ? timer : timers.computeIfAbsent(name, this::registerTimer);
+		}
+
+		private Timer registerTimer(String name) {
+			return Timer.builder(meterName + ".latency")
+					.tag(tagKey, name)
+					.publishPercentileHistogram()
+					.minimumExpectedValue(MINIMUM_EXPECTED_LATENCY)
+					.maximumExpectedValue(MAXIMUM_EXPECTED_LATENCY)
+					.register(registry);
+		}
+
+		private Counter registerCounter(String name) {
+			return Counter.builder(meterName + ".errors")
+					.tag(tagKey, name)
+					.register(registry);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.eecs3311.songmicroservice;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+/**
+ * Rewrites the mongo shell syntax used by mongoimport --legacy files into plain JSON while it is being read, so the
+ * result can go straight into a streaming JSON parser. ObjectId("...") becomes {"$oid": "..."} and NumberLong(...) or
+ * NumberInt(...) become plain numbers. Only a few characters are buffered at a time.
+ */
+public class LegacyJsonReader extends Reader {
+
+	private final PushbackReader in;
+	private final StringBuilder pending = new StringBuilder();
+	private int pendingPos;
+	private boolean inString;
+	private boolean escaped;
+
+	public LegacyJsonReader(Reader in) {
+		this.in = new PushbackReader(in, 1);
+	}
+
+	@Override
+	public int read(char[] buf, int off, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			if (pendingPos < pending.length()) {
+				buf[off + n++] = pending.charAt(pendingPos++);
+				continue;
+			}
+			pending.setLength(0);
+			pendingPos = 0;
+
+			int c = in.read();
+			if (c == -1) {
+				break;
+			}
+
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (c == '\\') {
+					escaped = true;
+				} else if (c == '"') {
+					inString = false;
+				}
+				buf[off + n++] = (char) c;
+			} else if (c == '"') {
+				inString = true;
+				buf[off + n++] = (char) c;
+			} else if (Character.isLetter(c)) {
+				readIdentifier((char) c);
+			} else {
+				buf[off + n++] = (char) c;
+			}
+		}
+		return n == 0 && len > 0 ? -1 : n;
+	}
+
+	// Reads a bare word such as true, null or ObjectId and queues what it should be replaced with
+	private void readIdentifier(char first) throws IOException {
+		StringBuilder identifier = new StringBuilder().append(first);
+		int c = in.read();
+		while (c != -1 && Character.isLetter(c)) {
+			identifier.append((char) c);
+			c = in.read();
+		}
+
+		String name = identifier.toString();
+		if (c != '(' || !(name.equals("ObjectId") || name.equals("NumberLong") || name.equals("NumberInt"))) {
+			if (c != -1) {
+				in.unread(c);
+			}
+			pending.append(name);
+			return;
+		}
+
+		// Everything up to the closing bracket is the single argument, either a quoted string or a number
+		StringBuilder argument = new StringBuilder();
+		c = in.read();
+		while (c != -1 && c != ')') {
+			argument.append((char) c);
+			c = in.read();
+		}
+		if (c == -1) {
+			throw new IOException("Unterminated " + name + "(...)");
+		}
+
+		String value = argument.toString().trim();
+		if (name.equals("ObjectId")) {
+			pending.append("{\"$oid\":").append(value).append('}');
+		} else {
+			// NumberLong("123") and NumberLong(123) are both valid
+			pending.append(value.replace("\"", ""));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
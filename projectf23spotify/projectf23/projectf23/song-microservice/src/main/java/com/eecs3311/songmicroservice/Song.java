@@ -84,14 +84,24 @@ public class Song {
 		this._id = _id;
 	}
 	
+	// Written straight into one buffer, without going through getJsonRepresentation and its map of stringified counts
 	@Override
 	public String toString() {
-		return this.getJsonRepresentation().toString();
+		return new StringBuilder(128)
+				.append("{id=").append(_id != null ? _id.toHexString() : null)
+				.append(", songName=").append(songName)
+				.append(", songArtistFullName=").append(songArtistFullName)
+				.append(", songAlbum=").append(songAlbum)
+				.append(", songAmountFavourites=").append(songAmountFavourites)
+				.append(", streamCount=").append(streamCount)
+				.append('}')
+				.toString();
 	}
 	
 	@JsonIgnore
 	public Map<String, String> getJsonRepresentation() {
-		HashMap<String, String> jsonRepresentation = new HashMap<String, String>();
+		// Sized so the six entries fit without a resize
+		HashMap<String, String> jsonRepresentation = new HashMap<String, String>(8);
 		jsonRepresentation.put("id", this.getId());
 		jsonRepresentation.put("songName", this.songName);
 		jsonRepresentation.put("songArtistFullName", this.songArtistFullName);
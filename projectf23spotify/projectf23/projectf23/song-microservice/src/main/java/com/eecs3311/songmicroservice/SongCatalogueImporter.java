@@ -0,0 +1,271 @@
+package com.eecs3311.songmicroservice;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.BulkWriteError;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads a song catalogue in the MOCK_DATA.json format (a JSON array, or one song per line, with the legacy
+ * ObjectId("...") syntax allowed) into the songs collection. The file is parsed as a stream and written as parallel
+ * unordered bulk upserts, with a bounded number of batches in flight so memory use does not depend on the file size.
+ *
+ * Every song is upserted, so writing a batch twice is harmless. After each run of finished batches the number of songs
+ * written so far is saved next to the file, and a later import of the same file skips straight past them.
+ */
+@Component
+public class SongCatalogueImporter {
+
+	private static final Logger LOG = LogManager.getLogger(SongCatalogueImporter.class);
+
+	// A file full of bad songs would otherwise log every one of them
+	private static final LogRateLimiter SKIPPED_SONGS_LOG = new LogRateLimiter(10);
+
+	public static final String IMPORT_FILE_PROPERTY = "import-songs";
+	public static final String IMPORT_DROP_PROPERTY = "import-songs.drop";
+
+	private static final String CHECKPOINT_SUFFIX = ".import-checkpoint";
+	private static final String SONGS_COLLECTION = "songs";
+
+	private final MongoTemplate db;
+	private final ObjectMapper objectMapper;
+	private final int batchSize;
+	private final int parallelism;
+	private final long progressInterval;
+
+	@Autowired
+	public SongCatalogueImporter(MongoTemplate mongoTemplate, ObjectMapper objectMapper,
+								 @Value("${song.import.batch-size:1000}") int batchSize,
+								 @Value("${song.import.parallelism:4}") int parallelism,
+								 @Value("${song.import.progress-interval:10000}") long progressInterval) {
+		this.db = mongoTemplate;
+		this.objectMapper = objectMapper;
+		this.batchSize = batchSize;
+		this.parallelism = parallelism;
+		this.progressInterval = progressInterval;
+	}
+
+	// Returns true if every song in the file was written
+	public boolean importSongs(String file, boolean drop) {
+		Path path = Paths.get(file);
+		Path checkpoint = Paths.get(file + CHECKPOINT_SUFFIX);
+
+		try {
+			long resumeFrom = readCheckpoint(checkpoint);
+			if (resumeFrom > 0) {
+				LOG.info("Resuming import of {} after {} songs", path, resumeFrom);
+			} else if (drop) {
+				LOG.info("Dropping the {} collection before importing", SONGS_COLLECTION);
+				db.dropCollection(SONGS_COLLECTION);
+			}
+
+			Progress progress = run(path, checkpoint, resumeFrom);
+			Files.deleteIfExists(checkpoint);
+			LOG.info("Imported {}", progress.describe());
+			return progress.failed.get() == 0;
+		} catch (Exception e) {
+			LOG.error("Import of {} stopped, run it again to resume: {}", path, e.getMessage());
+			return false;
+		}
+	}
+
+	private Progress run(Path path, Path checkpoint, long resumeFrom) throws Exception {
+		ExecutorService writers = Executors.newFixedThreadPool(parallelism);
+		// Caps the batches that are parsed but not yet written, this is what keeps memory use constant
+		Semaphore inFlight = new Semaphore(parallelism * 2);
+		Checkpointer checkpointer = new Checkpointer(checkpoint, resumeFrom);
+		Progress progress = new Progress(resumeFrom);
+		AtomicReference<Exception> failure = new AtomicReference<>();
+
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+			 JsonParser parser = objectMapper.getFactory().createParser(new LegacyJsonReader(reader))) {
+
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY) {
+				token = parser.nextToken();
+			}
+
+			long position = 0;
+			long batchNumber = 0;
+			List<Document> batch = new ArrayList<>(batchSize);
+			while (token != null && token != JsonToken.END_ARRAY && failure.get() == null) {
+				JsonNode songNode = parser.readValueAsTree();
+				if (position++ >= resumeFrom) {
+					batch.add(toDocument(songNode));
+					if (batch.size() == batchSize) {
+						submit(writers, inFlight, batchNumber++, batch, checkpointer, progress, failure);
+						batch = new ArrayList<>(batchSize);
+					}
+				}
+				token = parser.nextToken();
+			}
+			if (!batch.isEmpty() && failure.get() == null) {
+				submit(writers, inFlight, batchNumber, batch, checkpointer, progress, failure);
+			}
+		} finally {
+			writers.shutdown();
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return progress;
+	}
+
+	private void submit(ExecutorService writers, Semaphore inFlight, long batchNumber, List<Document> batch,
+						Checkpointer checkpointer, Progress progress, AtomicReference<Exception> failure) throws InterruptedException {
+		inFlight.acquire();
+		writers.execute(() -> {
+			try {
+				if (failure.get() == null) {
+					progress.add(batch.size(), writeBatch(batch));
+					checkpointer.completed(batchNumber, batch.size());
+				}
+			} catch (Exception e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	// Upserts the batch and returns how many songs could not be written
+	private int writeBatch(List<Document> batch) {
+		BulkOperations bulkOps = db.bulkOps(BulkOperations.BulkMode.UNORDERED, SONGS_COLLECTION);
+		for (Document song : batch) {
+			// Songs without an id are matched on name and artist, which is what makes a song unique
+			Query query = song.containsKey("_id")
+					? Query.query(Criteria.where("_id").is(song.get("_id")))
+					: Query.query(Criteria.where(Song.KEY_SONG_NAME).is(song.get(Song.KEY_SONG_NAME))
+							.and(Song.KEY_SONG_ARTIST_FULL_NAME).is(song.get(Song.KEY_SONG_ARTIST_FULL_NAME)));
+
+			Update update = new Update();
+			for (String field : song.keySet()) {
+				if (!field.equals("_id")) {
+					update.set(field, song.get(field));
+				}
+			}
+			bulkOps.upsert(query, update);
+		}
+
+		try {
+			bulkOps.execute();
+			return 0;
+		} catch (BulkOperationException e) {
+			// Bad songs such as duplicates are reported and skipped, they would fail the same way on a retry
+			for (BulkWriteError error : e.getErrors()) {
+				if (LOG.isWarnEnabled() && SKIPPED_SONGS_LOG.tryAcquire()) {
+					LOG.warn("Skipped song {}: {} ({} similar messages suppressed)", batch.get(error.getIndex()).get(Song.KEY_SONG_NAME),
+							error.getMessage(), SKIPPED_SONGS_LOG.takeSuppressed());
+				}
+			}
+			return e.getErrors().size();
+		}
+	}
+
+	private Document toDocument(JsonNode songNode) {
+		Document song = new Document();
+		JsonNode id = songNode.get("_id");
+		if (id != null && !id.isNull()) {
+			song.put("_id", id.has("$oid") ? new ObjectId(id.get("$oid").asText()) : id.asText());
+		}
+		song.put(Song.KEY_SONG_NAME, songNode.path(Song.KEY_SONG_NAME).asText(null));
+		song.put(Song.KEY_SONG_ARTIST_FULL_NAME, songNode.path(Song.KEY_SONG_ARTIST_FULL_NAME).asText(null));
+		song.put(Song.KEY_SONG_ALBUM, songNode.path(Song.KEY_SONG_ALBUM).asText(null));
+		song.put("songAmountFavourites", songNode.path("songAmountFavourites").asLong(0));
+		song.put("streamCount", songNode.path("streamCount").asLong(0));
+		return song;
+	}
+
+	private long readCheckpoint(Path checkpoint) throws IOException {
+		if (!Files.exists(checkpoint)) {
+			return 0;
+		}
+		return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+	}
+
+	/**
+	 * Batches finish out of order, so the checkpoint only moves past a batch once every batch before it is done.
+	 */
+	static class Checkpointer {
+		private final Path checkpoint;
+		private final TreeMap<Long, Integer> finishedOutOfOrder = new TreeMap<>();
+		private long nextBatch;
+		private long written;
+
+		Checkpointer(Path checkpoint, long written) {
+			this.checkpoint = checkpoint;
+			this.written = written;
+		}
+
+		synchronized void completed(long batchNumber, int songs) throws IOException {
+			finishedOutOfOrder.put(batchNumber, songs);
+			long before = written;
+			while (finishedOutOfOrder.containsKey(nextBatch)) {
+				written += finishedOutOfOrder.remove(nextBatch);
+				nextBatch++;
+			}
+
+			if (written != before) {
+				// Written to a temporary file first so a crash never leaves a half written checkpoint
+				Path temporary = Paths.get(checkpoint + ".tmp");
+				Files.write(temporary, Long.toString(written).getBytes(StandardCharsets.UTF_8));
+				Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+	}
+
+	private class Progress {
+		private final long startedAt = System.nanoTime();
+		private final long skipped;
+		private final AtomicLong written = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+
+		Progress(long skipped) {
+			this.skipped = skipped;
+		}
+
+		void add(int songs, int failures) {
+			long before = written.getAndAdd(songs);
+			failed.addAndGet(failures);
+			if ((before + songs) / progressInterval != before / progressInterval) {
+				LOG.info("Import progress {}", describe());
+			}
+		}
+
+		String describe() {
+			double seconds = Math.max(System.nanoTime() - startedAt, 1) / 1e9;
+			return String.format("%d songs (%d skipped from an earlier run, %d failed) in %.1fs, %.0f songs/s",
+					written.get(), skipped, failed.get(), seconds, written.get() / seconds);
+		}
+	}
+}
@@ -1,18 +1,32 @@
 package com.eecs3311.songmicroservice;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import okhttp3.Call;
@@ -21,19 +35,63 @@ import okhttp3.Request;
 import okhttp3.Response;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @RestController
 @RequestMapping
 public class SongController {
 
+	private static final Logger LOG = LogManager.getLogger(SongController.class);
+
+	// Fields /getSongs and /exportSongs can return, the id is always included
+	private static final List<String> LISTING_FIELDS = Arrays.asList(Song.KEY_SONG_NAME, Song.KEY_SONG_ARTIST_FULL_NAME,
+			Song.KEY_SONG_ALBUM, SongLeaderboard.FAVOURITES_COUNT, SongLeaderboard.STREAM_COUNT);
+
 	@Autowired
 	private final SongDal songDal;
 
+	@Autowired
+	private final CachingSongDal cachingSongDal;
+
+	@Autowired
+	private final StreamCountBuffer streamCountBuffer;
+
+	@Autowired
+	private final SongLeaderboard songLeaderboard;
+
+	@Autowired
+	private final SongSearchIndex songSearchIndex;
+
+	@Autowired
+	private final ObjectMapper objectMapper;
+
+	@Autowired
+	private final Tracing tracing;
+
+	// Number of songs written by each bulk insert in /addSongs
+	@Value("${song.bulk-insert.batch-size:1000}")
+	private int bulkInsertBatchSize;
+
+	@Value("${song.listing.max-page-size:1000}")
+	private int listingMaxPageSize;
+
+	// Whether responses echo the method and URL that was called, building it is most of what a cached read allocates
+	@Value("${song.response.include-path:true}")
+	private boolean includePath;
+
 	private OkHttpClient client = new OkHttpClient();
 
 	
-	public SongController(SongDal songDal) {
+	public SongController(SongDal songDal, CachingSongDal cachingSongDal, StreamCountBuffer streamCountBuffer,
+						  SongLeaderboard songLeaderboard, SongSearchIndex songSearchIndex, ObjectMapper objectMapper,
+						  Tracing tracing) {
 		this.songDal = songDal;
+		this.cachingSongDal = cachingSongDal;
+		this.streamCountBuffer = streamCountBuffer;
+		this.songLeaderboard = songLeaderboard;
+		this.songSearchIndex = songSearchIndex;
+		this.objectMapper = objectMapper;
+		this.tracing = tracing;
 	}
 
 	/**
@@ -44,16 +102,15 @@ public class SongController {
 	 * @return
 	 */
 	@RequestMapping(value = "/getSongById/{songId}", method = RequestMethod.GET)
-	public ResponseEntity<Map<String, Object>> getSongById(@PathVariable("songId") String songId,
+	public ResponseEntity<ApiResponse> getSongById(@PathVariable("songId") String songId,
 			HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<String, Object>();
-		response.put("path", String.format("GET %s", Utils.getUrl(request)));
+		ApiResponse response = new ApiResponse(path("GET", request));
 
 		DbQueryStatus dbQueryStatus = songDal.findSongById(songId);
 
 		// TODO: uncomment these two lines when you have completed the implementation of findSongById in SongDal
-		 response.put("message", dbQueryStatus.getMessage());
+		 response.setMessage(dbQueryStatus.getMessage());
 		 return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
 		
 		//return ResponseEntity.status(HttpStatus.OK).body(response); // TODO: remove when the above 2 lines are uncommented
@@ -61,39 +118,57 @@ public class SongController {
 
 
 	@RequestMapping(value = "/getSongTitleById/{songId}", method = RequestMethod.GET)
-	public ResponseEntity<Map<String, Object>> getSongTitleById(@PathVariable("songId") String songId,
-																HttpServletRequest request) {
+	public ResponseEntity<ApiResponse> getSongTitleById(@PathVariable("songId") String songId,
+														HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<>();
-		response.put("path", String.format("GET %s", Utils.getUrl(request)));
+		ApiResponse response = new ApiResponse(path("GET", request));
 
 		DbQueryStatus dbQueryStatus = songDal.getSongTitleById(songId);
 
 		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
-			response.put("data", dbQueryStatus.getData()); // Assuming the song title is set as data
-			response.put("message", dbQueryStatus.getMessage());
-			return new ResponseEntity<>(response, HttpStatus.OK);
+			response.setData(dbQueryStatus.getData()); // Assuming the song title is set as data
+			response.setMessage(dbQueryStatus.getMessage());
+			return Utils.responseEntity(response, HttpStatus.OK);
 		} else {
-			response.put("message", dbQueryStatus.getMessage());
+			response.setMessage(dbQueryStatus.getMessage());
 			// If the song title is not found or there was an error, you might want to return a different HTTP status
 			HttpStatus status = (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_ERROR_NOT_FOUND) ? HttpStatus.NOT_FOUND : HttpStatus.INTERNAL_SERVER_ERROR;
-			return new ResponseEntity<>(response, status);
+			return Utils.responseEntity(response, status);
 		}
 	}
 
 
+	@RequestMapping(value = "/getSongTitlesByIds", method = RequestMethod.POST)
+	public ResponseEntity<ApiResponse> getSongTitlesByIds(@RequestBody Map<String, List<String>> params,
+														  HttpServletRequest request) {
+
+		ApiResponse response = new ApiResponse(path("POST", request));
+
+		List<String> songIds = params.get("songIds");
+		if (songIds == null) {
+			response.setMessage("Missing required parameter: songIds");
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+
+		// data maps every song id that exists to its title, unknown ids are left out
+		DbQueryStatus dbQueryStatus = songDal.getSongTitlesByIds(songIds);
+
+		response.setMessage(dbQueryStatus.getMessage());
+		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+	}
+
+
 
 	@RequestMapping(value = "/deleteSongById/{songId}", method = RequestMethod.DELETE)
-	public ResponseEntity<Map<String, Object>> deleteSongById(@PathVariable("songId") String songId,
-															  HttpServletRequest request) {
+	public ResponseEntity<ApiResponse> deleteSongById(@PathVariable("songId") String songId,
+													  HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<>();
-		response.put("path", String.format("DELETE %s", Utils.getUrl(request)));
+		ApiResponse response = new ApiResponse(path("DELETE", request));
 
 		DbQueryStatus dbQueryStatus = songDal.deleteSongById(songId);
 
-		// Set the status message in the response map
-		response.put("message", dbQueryStatus.getMessage());
+		// Set the status message in the response
+		response.setMessage(dbQueryStatus.getMessage());
 
 		// Check the database query execution result and set the appropriate HTTP status
 		HttpStatus status;
@@ -105,17 +180,16 @@ public class SongController {
 			status = HttpStatus.INTERNAL_SERVER_ERROR;
 		}
 
-		return new ResponseEntity<>(response, status);
+		return Utils.responseEntity(response, status);
 	}
 
 
 
 	@RequestMapping(value = "/addSong", method = RequestMethod.POST)
-	public ResponseEntity<Map<String, Object>> addSong(@RequestBody Map<String, String> params,
-													   HttpServletRequest request) {
+	public ResponseEntity<ApiResponse> addSong(@RequestBody Map<String, String> params,
+											   HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<>();
-		response.put("path", String.format("POST %s", Utils.getUrl(request)));
+		ApiResponse response = new ApiResponse(path("POST", request));
 
 		try {
 			// Extract song details from the request body
@@ -130,33 +204,122 @@ public class SongController {
 			DbQueryStatus dbQueryStatus = songDal.addSong(newSong);
 
 			// Prepare the response based on the result
-			response.put("message", dbQueryStatus.getMessage());
+			response.setMessage(dbQueryStatus.getMessage());
 			HttpStatus status = (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) ? HttpStatus.CREATED : HttpStatus.BAD_REQUEST;
-			return new ResponseEntity<>(response, status);
+			return Utils.responseEntity(response, status);
 
 		} catch (Exception e) {
 			// Handle any other exceptions
-			response.put("message", "Error adding song: " + e.getMessage());
-			return new ResponseEntity<>(response, HttpStatus.INTERNAL_SERVER_ERROR);
+			response.setMessage("Error adding song: " + e.getMessage());
+			return Utils.responseEntity(response, HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
 
 
 
 
+	/**
+	 * Adds every song in the body, which is either a JSON array of songs or newline delimited JSON (one song per line).
+	 * The body is parsed as a stream and written in batches, so the whole catalogue never has to be held in memory.
+	 * The response has one outcome per song, in the order they were sent.
+	 */
+	@RequestMapping(value = "/addSongs", method = RequestMethod.POST)
+	public ResponseEntity<ApiResponse> addSongs(HttpServletRequest request) {
+
+		ApiResponse response = new ApiResponse(path("POST", request));
+
+		List<Map<String, Object>> outcomes = new ArrayList<>();
+		List<Song> batch = new ArrayList<>(bulkInsertBatchSize);
+		List<Integer> batchIndexes = new ArrayList<>(bulkInsertBatchSize);
+		int index = 0;
+
+		try (JsonParser parser = objectMapper.getFactory().createParser(request.getInputStream())) {
+			JsonToken token = parser.nextToken();
+			boolean isArray = token == JsonToken.START_ARRAY;
+			if (isArray) {
+				token = parser.nextToken();
+			}
+
+			while (token != null && token != JsonToken.END_ARRAY) {
+				JsonNode songNode = parser.readValueAsTree();
+				String songName = songNode.path(Song.KEY_SONG_NAME).asText(null);
+				String songArtistFullName = songNode.path(Song.KEY_SONG_ARTIST_FULL_NAME).asText(null);
+				String songAlbum = songNode.path(Song.KEY_SONG_ALBUM).asText(null);
+
+				if (songName == null || songArtistFullName == null) {
+					Map<String, Object> outcome = new LinkedHashMap<>();
+					outcome.put("index", index);
+					outcome.put("status", "invalid");
+					outcome.put("message", "Missing required parameters: songName and songArtistFullName");
+					outcomes.add(outcome);
+				} else {
+					outcomes.add(null); // Filled in once the batch has been written
+					batch.add(new Song(songName, songArtistFullName, songAlbum));
+					batchIndexes.add(index);
+					if (batch.size() == bulkInsertBatchSize) {
+						addSongBatch(batch, batchIndexes, outcomes);
+					}
+				}
+
+				index++;
+				token = parser.nextToken();
+			}
+		} catch (IOException e) {
+			// Everything before the malformed song is still added, its outcomes tell the client where to resume
+			if (!batch.isEmpty()) {
+				addSongBatch(batch, batchIndexes, outcomes);
+			}
+			response.setMessage("Error reading songs at index " + index + ": " + e.getMessage());
+			response.setData(outcomes);
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+
+		if (!batch.isEmpty()) {
+			addSongBatch(batch, batchIndexes, outcomes);
+		}
+
+		response.setMessage("Processed " + index + " songs");
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, outcomes);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addSongBatch(List<Song> batch, List<Integer> batchIndexes, List<Map<String, Object>> outcomes) {
+		DbQueryStatus dbQueryStatus = songDal.addSongs(batch);
+
+		for (int i = 0; i < batch.size(); i++) {
+			Map<String, Object> outcome = new LinkedHashMap<>();
+			outcome.put("index", batchIndexes.get(i));
+			if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
+				outcome.putAll(((List<Map<String, Object>>) dbQueryStatus.getData()).get(i));
+			} else {
+				outcome.put("status", "error");
+				outcome.put("message", dbQueryStatus.getMessage());
+			}
+			outcomes.set(batchIndexes.get(i), outcome);
+		}
+
+		batch.clear();
+		batchIndexes.clear();
+	}
+
+
+
+
 	@RequestMapping(value = "/updateSongFavouritesCount", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> updateFavouritesCount(@RequestBody Map<String, String> params, HttpServletRequest request) {
+	public ResponseEntity<ApiResponse> updateFavouritesCount(@RequestBody Map<String, String> params, HttpServletRequest request) {
 
-		Map<String, Object> response = new HashMap<>();
+		ApiResponse response = new ApiResponse(path("PUT", request));
 		String songId = params.get("songId");
 		boolean shouldDecrement = Boolean.parseBoolean(params.get("shouldDecrement"));
 
 		// Call the database access layer to update the song's favourite count
 		DbQueryStatus dbQueryStatus = songDal.updateSongFavouritesCount(songId, shouldDecrement);
 
-		// Set the path and message in the response map
-		response.put("path", String.format("PUT %s", Utils.getUrl(request)));
-		response.put("message", dbQueryStatus.getMessage());
+		// Set the message in the response
+		response.setMessage(dbQueryStatus.getMessage());
+		if (dbQueryStatus.getData() != null) {
+			response.setData(dbQueryStatus.getData()); // The new favourites count
+		}
 
 		// Determine the appropriate HTTP status code based on the DbQueryExecResult
 		HttpStatus status = HttpStatus.OK; // Default to OK
@@ -173,18 +336,50 @@ public class SongController {
 			}
 		}
 
-		return new ResponseEntity<>(response, status);
+		return Utils.responseEntity(response, status);
+	}
+
+	/**
+	 * Applies a batch of favourites count changes from the profile service, the body is
+	 * {"batchId": "...", "deltas": {"songId": change, ...}}. Sending the same batch again has no further effect,
+	 * so the profile service can retry a batch until it gets a response.
+	 */
+	@RequestMapping(value = "/updateSongFavouritesCounts", method = RequestMethod.PUT)
+	public ResponseEntity<ApiResponse> updateFavouritesCounts(@RequestBody JsonNode params, HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("PUT", request));
+
+		String batchId = params.path("batchId").asText(null);
+		JsonNode deltasNode = params.path("deltas");
+		if (batchId == null || batchId.isEmpty() || !deltasNode.isObject()) {
+			response.setMessage("Missing required parameters: batchId and deltas");
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+
+		Map<String, Long> deltas = new HashMap<>();
+		Iterator<Map.Entry<String, JsonNode>> fields = deltasNode.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> delta = fields.next();
+			if (!delta.getValue().isIntegralNumber()) {
+				response.setMessage("The delta for song " + delta.getKey() + " is not a whole number");
+				return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+			}
+			deltas.put(delta.getKey(), delta.getValue().asLong());
+		}
+
+		DbQueryStatus dbQueryStatus = songDal.applyFavouritesDeltas(batchId, deltas);
+
+		response.setMessage(dbQueryStatus.getMessage());
+		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
 	}
 
 	@RequestMapping(value = "/incrementStreamCount/{songId}", method = RequestMethod.PUT)
-	public ResponseEntity<Map<String, Object>> incrementStreamCount(@PathVariable String songId, HttpServletRequest request) {
-		Map<String, Object> response = new HashMap<>();
-		response.put("path", String.format("PUT %s", Utils.getUrl(request)));
+	public ResponseEntity<ApiResponse> incrementStreamCount(@PathVariable String songId, HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("PUT", request));
 
 		// Call the incrementStreamCount method from songDal
 		DbQueryStatus dbQueryStatus = songDal.incrementStreamCount(songId);
 
-		response.put("message", dbQueryStatus.getMessage());
+		response.setMessage(dbQueryStatus.getMessage());
 
 		HttpStatus status;
 		if (dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_OK) {
@@ -195,7 +390,156 @@ public class SongController {
 			status = HttpStatus.INTERNAL_SERVER_ERROR;
 		}
 
-		return new ResponseEntity<>(response, status);
+		return Utils.responseEntity(response, status);
+	}
+
+	/**
+	 * Searches song names, artists and albums as the user types, for example /searchSongs?q=daft pu&page=0&size=10.
+	 */
+	@RequestMapping(value = "/searchSongs", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> searchSongs(@RequestParam("q") String q,
+												   @RequestParam(value = "page", defaultValue = "0") int page,
+												   @RequestParam(value = "size", defaultValue = "10") int size,
+												   HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, songSearchIndex.search(q, page, size));
+	}
+
+	@RequestMapping(value = "/getMostStreamedSongs", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getMostStreamedSongs(@RequestParam(value = "limit", defaultValue = "10") int limit,
+															HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		if (limit < 1 || limit > songLeaderboard.getSize()) {
+			response.setMessage("limit must be between 1 and " + songLeaderboard.getSize());
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, songLeaderboard.getMostStreamed(limit));
+	}
+
+	@RequestMapping(value = "/getMostFavouritedSongs", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getMostFavouritedSongs(@RequestParam(value = "limit", defaultValue = "10") int limit,
+															  HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		if (limit < 1 || limit > songLeaderboard.getSize()) {
+			response.setMessage("limit must be between 1 and " + songLeaderboard.getSize());
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, songLeaderboard.getMostFavourited(limit));
+	}
+
+	/**
+	 * Pages through the catalogue in id order, for example /getSongs?limit=100&fields=songName,songArtistFullName.
+	 * The next page is requested by passing the nextCursor of the previous one as after, nextCursor is null on the last
+	 * page. fields is a comma separated subset of the song fields, all of them are returned when it is left out.
+	 */
+	@RequestMapping(value = "/getSongs", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSongs(@RequestParam(value = "after", required = false) String after,
+												@RequestParam(value = "limit", defaultValue = "100") int limit,
+												@RequestParam(value = "fields", required = false) String fields,
+												HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+
+		List<String> listingFields;
+		try {
+			listingFields = parseListingFields(fields);
+		} catch (IllegalArgumentException e) {
+			response.setMessage(e.getMessage());
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+		if (limit < 1 || limit > listingMaxPageSize) {
+			response.setMessage("limit must be between 1 and " + listingMaxPageSize);
+			return Utils.responseEntity(response, HttpStatus.BAD_REQUEST);
+		}
+
+		DbQueryStatus dbQueryStatus = songDal.getSongsAfter(after, limit, listingFields);
+
+		response.setMessage(dbQueryStatus.getMessage());
+		return Utils.setResponseStatus(response, dbQueryStatus.getdbQueryExecResult(), dbQueryStatus.getData());
+	}
+
+	/**
+	 * Streams every song as newline delimited JSON, one song per line in id order, for example
+	 * /exportSongs?fields=songName,streamCount. Each song is written to the response as soon as it is read, so the
+	 * export holds one batch of songs in memory however large the catalogue is.
+	 */
+	@RequestMapping(value = "/exportSongs", method = RequestMethod.GET)
+	public void exportSongs(@RequestParam(value = "fields", required = false) String fields,
+							HttpServletRequest request, HttpServletResponse httpResponse) throws IOException {
+		List<String> listingFields;
+		try {
+			listingFields = parseListingFields(fields);
+		} catch (IllegalArgumentException e) {
+			httpResponse.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+			return;
+		}
+
+		long exported = 0;
+		try (CloseableIterator<Map<String, Object>> songs = songDal.streamSongs(listingFields)) {
+			httpResponse.setContentType("application/x-ndjson");
+			httpResponse.setCharacterEncoding("UTF-8");
+
+			// Not closed by the generator, the container closes the response stream itself
+			JsonGenerator generator = objectMapper.getFactory().createGenerator(httpResponse.getOutputStream());
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			generator.setRootValueSeparator(null); // Lines are separated by the newline alone
+			while (songs.hasNext()) {
+				generator.writeObject(songs.next());
+				generator.writeRaw('\n');
+				exported++;
+			}
+			generator.flush();
+		} catch (Exception e) {
+			// Once songs have been written the status can no longer change, the client sees a truncated body
+			LOG.error("Error exporting songs after {} songs: {}", exported, e.getMessage());
+			if (!httpResponse.isCommitted()) {
+				httpResponse.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Error exporting songs: " + e.getMessage());
+			}
+		}
+	}
+
+	// The path a response echoes, null leaves it out of the response
+	private String path(String method, HttpServletRequest request) {
+		return includePath ? Utils.getPath(method, request) : null;
+	}
+
+	// Parses a comma separated list of song fields, null or empty means every field
+	private static List<String> parseListingFields(String fields) {
+		if (fields == null || fields.trim().isEmpty()) {
+			return LISTING_FIELDS;
+		}
+		List<String> listingFields = new ArrayList<>();
+		for (String field : fields.split(",")) {
+			String trimmed = field.trim();
+			if (!LISTING_FIELDS.contains(trimmed)) {
+				throw new IllegalArgumentException("Unknown field: " + trimmed + ", expected one of " + LISTING_FIELDS);
+			}
+			listingFields.add(trimmed);
+		}
+		return listingFields;
+	}
+
+	@RequestMapping(value = "/getSongCacheStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSongCacheStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, cachingSongDal.getCacheStats());
+	}
+
+	@RequestMapping(value = "/getStreamCountBufferStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getStreamCountBufferStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, streamCountBuffer.getStats());
+	}
+
+	@RequestMapping(value = "/getSearchIndexStats", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSearchIndexStats(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, songSearchIndex.getStats());
+	}
+
+	@RequestMapping(value = "/getSlowTraces", method = RequestMethod.GET)
+	public ResponseEntity<ApiResponse> getSlowTraces(HttpServletRequest request) {
+		ApiResponse response = new ApiResponse(path("GET", request));
+		return Utils.setResponseStatus(response, DbQueryExecResult.QUERY_OK, tracing.getSlowTraces());
 	}
 
 
@@ -1,11 +1,21 @@
 package com.eecs3311.songmicroservice;
 
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.List;
+import java.util.Map;
+
 public interface SongDal {
 	DbQueryStatus addSong(Song songToAdd);
+	DbQueryStatus addSongs(List<Song> songsToAdd);
 	DbQueryStatus findSongById(String songId);
 	DbQueryStatus getSongTitleById(String songId);
+	DbQueryStatus getSongTitlesByIds(List<String> songIds);
 	DbQueryStatus deleteSongById(String songId);	
 	DbQueryStatus updateSongFavouritesCount(String songId, boolean shouldDecrement);
 	DbQueryStatus incrementStreamCount(String songId);
+	DbQueryStatus applyFavouritesDeltas(String batchId, Map<String, Long> deltas);
+	DbQueryStatus getSongsAfter(String afterSongId, int limit, List<String> fields);
+	CloseableIterator<Map<String, Object>> streamSongs(List<String> fields);
 
 }
@@ -1,49 +1,139 @@
 package com.eecs3311.songmicroservice;
 
-import com.mongodb.client.result.UpdateResult;
+import com.mongodb.BulkWriteError;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @Repository
 public class SongDalImpl implements SongDal {
 
+	private static final Logger LOG = LogManager.getLogger(SongDalImpl.class);
+
+	private static final String SONG_NAME_ARTIST_INDEX = "songName_songArtistFullName";
+	private static final int DUPLICATE_KEY_ERROR = 11000;
+
+	// Documents fetched per round trip while exporting, large enough that the export is not latency bound
+	private static final int EXPORT_BATCH_SIZE = 1000;
+
+	// The last few favourites batches applied to each song, a batch that is delivered again is not counted twice
+	private static final String APPLIED_FAVOURITES_BATCHES = "appliedFavouritesBatches";
+	static final int APPLIED_FAVOURITES_BATCHES_KEPT = 16;
+
 	private final MongoTemplate db;
+	private final StreamCountBuffer streamCountBuffer;
+	private final SongLeaderboard songLeaderboard;
+	private final SongSearchIndex songSearchIndex;
 
 	@Autowired
-	public SongDalImpl(MongoTemplate mongoTemplate) {
+	public SongDalImpl(MongoTemplate mongoTemplate, StreamCountBuffer streamCountBuffer, SongLeaderboard songLeaderboard,
+					   SongSearchIndex songSearchIndex) {
 		this.db = mongoTemplate;
+		this.streamCountBuffer = streamCountBuffer;
+		this.songLeaderboard = songLeaderboard;
+		this.songSearchIndex = songSearchIndex;
 	}
 
-	@Override
-	public DbQueryStatus addSong(Song songToAdd) {
+	// Songs are unique per name and artist, the index is what rejects duplicates so no lookup is needed before an insert
+	public void initSongDb() {
 		try {
-			// Check if the song already exists
-			Song existingSong = db.findOne(
-					new Query(Criteria.where("songName").is(songToAdd.getSongName())
-							.and("songArtistFullName").is(songToAdd.getSongArtistFullName())),
-					Song.class);
+			db.indexOps(Song.class).ensureIndex(new Index()
+					.on("songName", Sort.Direction.ASC)
+					.on("songArtistFullName", Sort.Direction.ASC)
+					.unique()
+					.named(SONG_NAME_ARTIST_INDEX));
+		} catch (Exception e) {
+			// most likely songs that are already duplicated, inserts still work but duplicates are no longer rejected
+			LOG.warn("Could not create the unique song index: {}", e.getMessage());
+		}
 
-			if (existingSong != null) {
-				// If the song already exists, return a status indicating it cannot be added again
-				return new DbQueryStatus("Song already exists", DbQueryExecResult.QUERY_ERROR_GENERIC);
-			}
+		// Lets the leaderboard seed itself by reading the first few index entries instead of sorting the collection
+		db.indexOps(Song.class).ensureIndex(new Index().on(SongLeaderboard.STREAM_COUNT, Sort.Direction.DESC));
+		db.indexOps(Song.class).ensureIndex(new Index().on(SongLeaderboard.FAVOURITES_COUNT, Sort.Direction.DESC));
+	}
 
+	@Override
+	public DbQueryStatus addSong(Song songToAdd) {
+		try {
 			// Insert the new song document into the database
 			db.insert(songToAdd);
+			songSearchIndex.add(songToAdd);
 
 			// If insert is successful, return a status indicating success
 			return new DbQueryStatus("Song added successfully", DbQueryExecResult.QUERY_OK);
+		} catch (DuplicateKeyException e) {
+			// If the song already exists, return a status indicating it cannot be added again
+			return new DbQueryStatus("Song already exists", DbQueryExecResult.QUERY_ERROR_GENERIC);
 		} catch (Exception e) {
 			// If there's an exception during the database operation, return an error status
 			return new DbQueryStatus("Error adding song: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
 
+	@Override
+	public DbQueryStatus addSongs(List<Song> songsToAdd) {
+		// Ids are assigned up front so every outcome can report the id its song was stored under
+		for (Song song : songsToAdd) {
+			if (song._id == null) {
+				song.setId(new ObjectId());
+			}
+		}
+
+		// Unordered, so one duplicate does not stop the rest of the batch
+		Map<Integer, BulkWriteError> errors = new HashMap<>();
+		try {
+			db.bulkOps(BulkOperations.BulkMode.UNORDERED, Song.class).insert(songsToAdd).execute();
+		} catch (BulkOperationException e) {
+			for (BulkWriteError error : e.getErrors()) {
+				errors.put(error.getIndex(), error);
+			}
+		} catch (Exception e) {
+			return new DbQueryStatus("Error adding songs: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+
+		List<Map<String, Object>> outcomes = new ArrayList<>(songsToAdd.size());
+		for (int i = 0; i < songsToAdd.size(); i++) {
+			Map<String, Object> outcome = new LinkedHashMap<>();
+			BulkWriteError error = errors.get(i);
+			if (error == null) {
+				songSearchIndex.add(songsToAdd.get(i));
+				outcome.put("status", "created");
+				outcome.put("id", songsToAdd.get(i).getId());
+			} else if (error.getCode() == DUPLICATE_KEY_ERROR) {
+				outcome.put("status", "duplicate");
+				outcome.put("message", "Song already exists");
+			} else {
+				outcome.put("status", "error");
+				outcome.put("message", error.getMessage());
+			}
+			outcomes.add(outcome);
+		}
+
+		DbQueryStatus dbQueryStatus = new DbQueryStatus("Songs processed", DbQueryExecResult.QUERY_OK);
+		dbQueryStatus.setData(outcomes); // One outcome per song, in the order they were given
+		return dbQueryStatus;
+	}
+
 
 	@Override
 	public DbQueryStatus findSongById(String songId) {
@@ -88,6 +178,35 @@ public class SongDalImpl implements SongDal {
 		}
 	}
 
+	@Override
+	public DbQueryStatus getSongTitlesByIds(List<String> songIds) {
+		try {
+			// Skip ids that are not valid ObjectIds, they are reported as missing like any other unknown id
+			List<ObjectId> ids = new ArrayList<>(songIds.size());
+			for (String songId : songIds) {
+				if (ObjectId.isValid(songId)) {
+					ids.add(new ObjectId(songId));
+				}
+			}
+
+			// Resolve every id with a single $in query, only fetching the title
+			Map<String, String> titles = new HashMap<>();
+			if (!ids.isEmpty()) {
+				Query query = Query.query(Criteria.where("_id").in(ids));
+				query.fields().include("songName");
+				for (Song song : db.find(query, Song.class)) {
+					titles.put(song.getId(), song.getSongName());
+				}
+			}
+
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Song titles found", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(titles); // Ids that do not exist are left out of the map
+			return dbQueryStatus;
+		} catch (Exception e) {
+			return new DbQueryStatus("Error finding song titles", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
 
 	@Override
 	public DbQueryStatus deleteSongById(String songId) {
@@ -99,6 +218,8 @@ public class SongDalImpl implements SongDal {
 
 			// If a song was found and removed
 			if (song != null) {
+				songLeaderboard.songDeleted(songId);
+				songSearchIndex.remove(songId);
 				return new DbQueryStatus("Song deleted successfully", DbQueryExecResult.QUERY_OK);
 			} else {
 				// If the song was not found
@@ -115,48 +236,80 @@ public class SongDalImpl implements SongDal {
 
 
 	@Override
-	public DbQueryStatus updateSongFavouritesCount(String songId,boolean shouldDecrement){
-		try{
-			// Retrieve the song from MongoDB using the provided ID
-			Song foundSong = db.findById(songId, Song.class);
+	public DbQueryStatus updateSongFavouritesCount(String songId, boolean shouldDecrement) {
+		try {
+			ObjectId id = new ObjectId(songId); // Convert string ID to ObjectId
+
+			// Never take the count below zero
+			Criteria criteria = Criteria.where("_id").is(id);
+			if (shouldDecrement) {
+				criteria = criteria.and("songAmountFavourites").gt(0);
+			}
+			Query query = Query.query(criteria);
+			query.fields().include("songName").include("songAmountFavourites");
 
-			if(foundSong != null){
-				// Update the favorites count based on the shouldDecrement flag
-				long currentFavouritesCount = foundSong.getSongAmountFavourites();
-				foundSong.setSongAmountFavourites(shouldDecrement ? currentFavouritesCount - 1 : currentFavouritesCount + 1);
+			// $inc is applied atomically by the server, so concurrent likes of the same song are never lost
+			Update update = new Update().inc("songAmountFavourites", shouldDecrement ? -1 : 1);
+			Song updatedSong = db.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Song.class);
 
-				// Save the updated song back to MongoDB
-				db.save(foundSong);
+			if (updatedSong != null) {
+				songLeaderboard.favouritesCountChanged(songId, updatedSong.getSongName(), updatedSong.getSongAmountFavourites());
 
-				// Return a success status
-				return new DbQueryStatus("Success",DbQueryExecResult.QUERY_OK);
-			} else {
-				// Return an error status if the song with the given ID is not found
-				return new DbQueryStatus("Error: Song with ID "+songId+" not found",DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+				DbQueryStatus dbQueryStatus = new DbQueryStatus("Success", DbQueryExecResult.QUERY_OK);
+				dbQueryStatus.setData(updatedSong.getSongAmountFavourites()); // Set the data to the new count
+				return dbQueryStatus;
+			}
+
+			// Nothing matched, which for a decrement can also mean the count is already zero
+			if (shouldDecrement && db.exists(Query.query(Criteria.where("_id").is(id)), Song.class)) {
+				DbQueryStatus dbQueryStatus = new DbQueryStatus("Favourites count is already 0", DbQueryExecResult.QUERY_OK);
+				dbQueryStatus.setData(0L);
+				return dbQueryStatus;
 			}
-		}catch(Exception e){
-			// Handle exceptions, log, etc.
-			return new DbQueryStatus("Error: "+e.getMessage(),DbQueryExecResult.QUERY_ERROR_GENERIC);
-		}
 
+			// Return an error status if the song with the given ID is not found
+			return new DbQueryStatus("Error: Song with ID " + songId + " not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+		} catch (IllegalArgumentException e) {
+			// This exception is thrown if the ObjectId is invalid
+			return new DbQueryStatus("Invalid song ID format", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
 	}
 
 	@Override
 	public DbQueryStatus incrementStreamCount(String songId) {
 		try {
 			ObjectId id = new ObjectId(songId); // Convert string ID to ObjectId
+
+			// In write-behind mode the play is only counted in memory, so the song has to be known to exist first. The search
+			// index holds every song without a round trip, only a song it does not have is looked up
+			if (streamCountBuffer.isEnabled()) {
+				if (!songSearchIndex.contains(songId) && !db.exists(Query.query(Criteria.where("_id").is(id)), Song.class)) {
+					return new DbQueryStatus("Song not found or streamCount not incremented", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+				}
+				if (streamCountBuffer.add(id)) {
+					return new DbQueryStatus("Stream count increment queued", DbQueryExecResult.QUERY_OK);
+				}
+			}
+
 			Update update = new Update().inc("streamCount", 1); // Prepare to increment streamCount by 1
 			Query query = Query.query(Criteria.where("_id").is(id));
-			UpdateResult result = db.updateFirst(query, update, Song.class); // Perform the update operation
+			query.fields().include("songName").include("streamCount");
+
+			// Returns the new count in the same round trip so the leaderboard can be updated
+			Song updatedSong = db.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Song.class);
 
-			if(result.getModifiedCount() == 0) {
-				// No documents were updated, either the song doesn't exist or the streamCount is already at maximum
+			if (updatedSong == null) {
+				// No document was updated, the song doesn't exist
 				return new DbQueryStatus("Song not found or streamCount not incremented", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
 			}
-
+			songLeaderboard.streamCountChanged(songId, updatedSong.getSongName(), updatedSong.getStreamCount());
 
 			// Successfully incremented streamCount
-			return new DbQueryStatus("Stream count incremented", DbQueryExecResult.QUERY_OK);
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Stream count incremented", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(updatedSong.getStreamCount()); // The new count, lets the song cache patch its copy
+			return dbQueryStatus;
 
 		} catch (IllegalArgumentException e) {
 			// This exception is thrown if the ObjectId is invalid
@@ -166,4 +319,139 @@ public class SongDalImpl implements SongDal {
 			return new DbQueryStatus("Error incrementing stream count: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
 		}
 	}
+
+	/**
+	 * Adds each song's delta to its favourites count with one unordered bulk write. Every song remembers the batches
+	 * applied to it, so a batch the profile service delivers again after a timeout changes nothing the second time.
+	 * Unknown songs are skipped, and like the single update the count never goes below zero.
+	 */
+	@Override
+	public DbQueryStatus applyFavouritesDeltas(String batchId, Map<String, Long> deltas) {
+		try {
+			BulkOperations bulkOps = db.bulkOps(BulkOperations.BulkMode.UNORDERED, Song.class);
+			List<ObjectId> songIds = new ArrayList<>(deltas.size());
+			for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+				if (!ObjectId.isValid(delta.getKey()) || delta.getValue() == 0) {
+					continue;
+				}
+				ObjectId id = new ObjectId(delta.getKey());
+				songIds.add(id);
+
+				Criteria notApplied = Criteria.where("_id").is(id).and(APPLIED_FAVOURITES_BATCHES).ne(batchId);
+				Update markApplied = new Update();
+				markApplied.push(APPLIED_FAVOURITES_BATCHES).slice(-APPLIED_FAVOURITES_BATCHES_KEPT).each(batchId);
+				if (delta.getValue() > 0) {
+					bulkOps.updateOne(Query.query(notApplied), markApplied.inc("songAmountFavourites", delta.getValue()));
+				} else {
+					// Only one of the two matches, both record the batch so whichever runs first stops the other
+					long decrement = -delta.getValue();
+					bulkOps.updateOne(Query.query(notApplied.and("songAmountFavourites").gte(decrement)), markApplied.inc("songAmountFavourites", delta.getValue()));
+					Update clamp = new Update().set("songAmountFavourites", 0L);
+					clamp.push(APPLIED_FAVOURITES_BATCHES).slice(-APPLIED_FAVOURITES_BATCHES_KEPT).each(batchId);
+					bulkOps.updateOne(Query.query(Criteria.where("_id").is(id).and(APPLIED_FAVOURITES_BATCHES).ne(batchId)
+							.and("songAmountFavourites").lt(decrement)), clamp);
+				}
+			}
+
+			int updated = songIds.isEmpty() ? 0 : bulkOps.execute().getModifiedCount();
+
+			// The new counts are read back with one query so the leaderboard can be updated
+			if (updated > 0) {
+				Query query = Query.query(Criteria.where("_id").in(songIds));
+				query.fields().include("songName").include("songAmountFavourites");
+				for (Song song : db.find(query, Song.class)) {
+					songLeaderboard.favouritesCountChanged(song.getId(), song.getSongName(), song.getSongAmountFavourites());
+				}
+			}
+
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Favourites counts updated", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(updated); // Songs already updated by an earlier delivery of this batch are not counted
+			return dbQueryStatus;
+		} catch (Exception e) {
+			return new DbQueryStatus("Error updating favourites counts: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
+	/**
+	 * Returns up to limit songs with an id greater than afterSongId (or from the start when it is null) in id order,
+	 * along with the cursor for the next page. Seeking on the _id index costs the same on every page, unlike skip
+	 * which has to walk past every song before the page.
+	 */
+	@Override
+	public DbQueryStatus getSongsAfter(String afterSongId, int limit, List<String> fields) {
+		try {
+			Query query = listingQuery(fields);
+			if (afterSongId != null) {
+				query.addCriteria(Criteria.where("_id").gt(new ObjectId(afterSongId)));
+			}
+			query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+
+			List<Map<String, Object>> songs = new ArrayList<>(limit);
+			for (Document song : db.find(query, Document.class, db.getCollectionName(Song.class))) {
+				songs.add(toListing(song));
+			}
+
+			Map<String, Object> page = new LinkedHashMap<>();
+			page.put("songs", songs);
+			// A short page is the last one, a full one may still be followed by an empty page
+			page.put("nextCursor", songs.size() == limit ? songs.get(songs.size() - 1).get("id") : null);
+
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Songs found", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(page);
+			return dbQueryStatus;
+		} catch (IllegalArgumentException e) {
+			// This exception is thrown if the ObjectId is invalid
+			return new DbQueryStatus("Invalid song ID format", DbQueryExecResult.QUERY_ERROR_GENERIC);
+		} catch (Exception e) {
+			return new DbQueryStatus("Error listing songs: " + e.getMessage(), DbQueryExecResult.QUERY_ERROR_GENERIC);
+		}
+	}
+
+	/**
+	 * Iterates over every song in id order, fetching them from the server in batches as the iterator is advanced.
+	 * The caller has to close the iterator, which also closes the server side cursor.
+	 */
+	@Override
+	public CloseableIterator<Map<String, Object>> streamSongs(List<String> fields) {
+		Query query = listingQuery(fields).cursorBatchSize(EXPORT_BATCH_SIZE);
+		query.with(Sort.by(Sort.Direction.ASC, "_id"));
+		CloseableIterator<Document> songs = db.stream(query, Document.class, db.getCollectionName(Song.class));
+
+		return new CloseableIterator<Map<String, Object>>() {
+			@Override
+			public boolean hasNext() {
+				return songs.hasNext();
+			}
+
+			@Override
+			public Map<String, Object> next() {
+				return toListing(songs.next());
+			}
+
+			@Override
+			public void close() {
+				songs.close();
+			}
+		};
+	}
+
+	// Reads raw documents so only the requested fields are fetched and nothing is mapped onto a Song first
+	private static Query listingQuery(List<String> fields) {
+		Query query = new Query();
+		for (String field : fields) {
+			query.fields().include(field);
+		}
+		return query;
+	}
+
+	private static Map<String, Object> toListing(Document song) {
+		Map<String, Object> listing = new LinkedHashMap<>();
+		listing.put("id", song.getObjectId("_id").toHexString());
+		for (Map.Entry<String, Object> field : song.entrySet()) {
+			if (!field.getKey().equals("_id")) {
+				listing.put(field.getKey(), field.getValue());
+			}
+		}
+		return listing;
+	}
 }
\ No newline at end of file
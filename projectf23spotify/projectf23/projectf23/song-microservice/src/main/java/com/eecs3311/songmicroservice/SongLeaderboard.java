@@ -0,0 +1,194 @@
+package com.eecs3311.songmicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory top songs by streams and by favourites. Each list is seeded from an indexed query and then kept up to date
+ * by the writes in {@link SongDalImpl}, so reading it never touches the songs collection.
+ *
+ * Twice as many songs as can be asked for are tracked, so a song that drops out of the top can be replaced without a
+ * query. Songs outside the tracked set are only seen again when they are updated or at the next periodic reseed.
+ */
+@Component
+public class SongLeaderboard {
+
+	private static final Logger LOG = LogManager.getLogger(SongLeaderboard.class);
+
+	public static final String STREAM_COUNT = "streamCount";
+	public static final String FAVOURITES_COUNT = "songAmountFavourites";
+
+	private final MongoTemplate db;
+	private final int size;
+	private final TopSongs mostStreamed;
+	private final TopSongs mostFavourited;
+	private final ScheduledExecutorService reseeder;
+
+	@Autowired
+	public SongLeaderboard(MongoTemplate mongoTemplate,
+						   @Value("${song.leaderboard.size:100}") int size,
+						   @Value("${song.leaderboard.reseed-interval-ms:300000}") long reseedIntervalMs) {
+		this.db = mongoTemplate;
+		this.size = size;
+		this.mostStreamed = new TopSongs(STREAM_COUNT, size * 2, true);
+		this.mostFavourited = new TopSongs(FAVOURITES_COUNT, size * 2, false);
+
+		this.reseeder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "leaderboard-reseeder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.reseeder.scheduleWithFixedDelay(this::seed, reseedIntervalMs, reseedIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Loads both lists from the descending indexes created by SongDalImpl.initSongDb
+	public void seed() {
+		try {
+			mostStreamed.replaceAll(loadTop(STREAM_COUNT, mostStreamed.capacity));
+			mostFavourited.replaceAll(loadTop(FAVOURITES_COUNT, mostFavourited.capacity));
+		} catch (Exception e) {
+			LOG.error("Error seeding the song leaderboard: {}", e.getMessage());
+		}
+	}
+
+	private List<RankedSong> loadTop(String countField, int limit) {
+		Query query = new Query().with(Sort.by(Sort.Direction.DESC, countField)).limit(limit);
+		query.fields().include(Song.KEY_SONG_NAME).include(countField);
+
+		List<RankedSong> songs = new ArrayList<>(limit);
+		for (Song song : db.find(query, Song.class)) {
+			long count = countField.equals(STREAM_COUNT) ? song.getStreamCount() : song.getSongAmountFavourites();
+			songs.add(new RankedSong(song.getId(), song.getSongName(), count));
+		}
+		return songs;
+	}
+
+	public void streamCountChanged(String songId, String songName, long streamCount) {
+		mostStreamed.offer(songId, songName, streamCount);
+	}
+
+	public void favouritesCountChanged(String songId, String songName, long favouritesCount) {
+		mostFavourited.offer(songId, songName, favouritesCount);
+	}
+
+	public void songDeleted(String songId) {
+		mostStreamed.remove(songId);
+		mostFavourited.remove(songId);
+	}
+
+	// The most songs a list can be asked for
+	public int getSize() {
+		return size;
+	}
+
+	public List<Map<String, Object>> getMostStreamed(int limit) {
+		return mostStreamed.top(Math.min(limit, size));
+	}
+
+	public List<Map<String, Object>> getMostFavourited(int limit) {
+		return mostFavourited.top(Math.min(limit, size));
+	}
+
+	@PreDestroy
+	public void close() {
+		reseeder.shutdownNow();
+	}
+
+	private static class RankedSong {
+		private final String songId;
+		private final String songName;
+		private final long count;
+
+		RankedSong(String songId, String songName, long count) {
+			this.songId = songId;
+			this.songName = songName;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Bounded ranking of songs by one count. Updates are O(log n) in the number of tracked songs and reads are O(limit).
+	 */
+	private static class TopSongs {
+		private static final Comparator<RankedSong> RANKING = Comparator
+				.comparingLong((RankedSong song) -> song.count).reversed()
+				.thenComparing(song -> song.songId);
+
+		private final String countField;
+		private final int capacity;
+		// Concurrent updates can report their counts out of order, a count that only grows keeps the highest one seen
+		private final boolean onlyGrows;
+		private final Map<String, RankedSong> bySongId = new HashMap<>();
+		private final TreeSet<RankedSong> ranking = new TreeSet<>(RANKING);
+
+		TopSongs(String countField, int capacity, boolean onlyGrows) {
+			this.countField = countField;
+			this.capacity = capacity;
+			this.onlyGrows = onlyGrows;
+		}
+
+		synchronized void offer(String songId, String songName, long count) {
+			RankedSong existing = bySongId.get(songId);
+			if (existing != null) {
+				if (onlyGrows && count <= existing.count) {
+					return;
+				}
+				ranking.remove(existing);
+			} else if (bySongId.size() >= capacity && count <= ranking.last().count) {
+				// Not tracked and not high enough to displace anything
+				return;
+			}
+
+			RankedSong updated = new RankedSong(songId, songName, count);
+			bySongId.put(songId, updated);
+			ranking.add(updated);
+
+			if (bySongId.size() > capacity) {
+				bySongId.remove(ranking.pollLast().songId);
+			}
+		}
+
+		synchronized void remove(String songId) {
+			RankedSong existing = bySongId.remove(songId);
+			if (existing != null) {
+				ranking.remove(existing);
+			}
+		}
+
+		synchronized void replaceAll(List<RankedSong> songs) {
+			bySongId.clear();
+			ranking.clear();
+			for (RankedSong song : songs) {
+				bySongId.put(song.songId, song);
+				ranking.add(song);
+			}
+		}
+
+		synchronized List<Map<String, Object>> top(int limit) {
+			List<Map<String, Object>> top = new ArrayList<>(Math.min(limit, ranking.size()));
+			for (RankedSong song : ranking) {
+				if (top.size() == limit) {
+					break;
+				}
+				Map<String, Object> result = new LinkedHashMap<>();
+				result.put("id", song.songId);
+				result.put(Song.KEY_SONG_NAME, song.songName);
+				result.put(countField, song.count);
+				top.add(result);
+			}
+			return top;
+		}
+	}
+}
@@ -1,13 +1,54 @@
 package com.eecs3311.songmicroservice;
 
+import com.mongodb.MongoClientOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+import java.util.Arrays;
 
 @SpringBootApplication
 public class SongMicroserviceApplication {
 
+	private static final Logger LOG = LogManager.getLogger(SongMicroserviceApplication.class);
+
 	public static void main(String[] args) {
-		SpringApplication.run(SongMicroserviceApplication.class, args);
-		System.out.println("Song Microservice is running on port 3001");
+		SpringApplication application = new SpringApplication(SongMicroserviceApplication.class);
+
+		// --import-songs=<file> loads a catalogue and exits, it does not need the web server
+		boolean importing = Arrays.stream(args).anyMatch(arg -> arg.startsWith("--" + SongCatalogueImporter.IMPORT_FILE_PROPERTY + "="));
+		if (importing) {
+			application.setWebApplicationType(WebApplicationType.NONE);
+		}
+
+		ConfigurableApplicationContext context = application.run(args);
+
+		if (importing) {
+			Environment environment = context.getEnvironment();
+			boolean imported = context.getBean(SongCatalogueImporter.class).importSongs(
+					environment.getProperty(SongCatalogueImporter.IMPORT_FILE_PROPERTY),
+					environment.getProperty(SongCatalogueImporter.IMPORT_DROP_PROPERTY, Boolean.class, false));
+			context.getBean(SongDalImpl.class).initSongDb();
+			System.exit(SpringApplication.exit(context, () -> imported ? 0 : 1));
+		}
+
+		context.getBean(SongDalImpl.class).initSongDb();
+		context.getBean(SongLeaderboard.class).seed();
+		context.getBean(SongSearchIndex.class).rebuild();
+
+		LOG.info("Song Microservice is running on port 3001");
+	}
+
+	// Picked up by the Mongo auto-configuration, the host, port and database still come from spring.data.mongodb
+	@Bean
+	public MongoClientOptions mongoClientOptions(TracingCommandListener tracingCommandListener) {
+		return MongoClientOptions.builder()
+				.addCommandListener(tracingCommandListener)
+				.build();
 	}
 }
@@ -0,0 +1,541 @@
+package com.eecs3311.songmicroservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * In-memory inverted index over song name, artist and album, built from the songs collection at startup and kept
+ * current by the writes in {@link SongDalImpl}. Every word of the query has to match, and the last word also matches
+ * as a prefix while it is still being typed, so searches never run a regex over the collection.
+ *
+ * Songs are numbered in the order they are added, which keeps every postings list sorted so intersections are a
+ * single merge. Deleted and replaced songs are only marked and filtered out of results. Once they make up more than
+ * compactDeletedFraction of the index it is compacted in the background, the live songs are renumbered into a fresh
+ * index without reading the collection again.
+ */
+@Component
+public class SongSearchIndex {
+
+	private static final Logger LOG = LogManager.getLogger(SongSearchIndex.class);
+
+	private static final int NAME = 1;
+	private static final int ARTIST = 2;
+	private static final int ALBUM = 4;
+
+	private final MongoTemplate db;
+	private final int maxPrefixTerms;
+	private final int maxPrefixPostings;
+	private final int maxPageSize;
+	private final double compactDeletedFraction;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Index index = new Index();
+	// Changes made while a rebuild is reading the collection, replayed in order onto the new index before it is swapped in
+	private List<Consumer<Index>> changedDuringRebuild;
+
+	// One build at a time, the startup rebuild and a compaction would otherwise share changedDuringRebuild
+	private final Object buildLock = new Object();
+	private final ExecutorService compactor;
+	private final AtomicBoolean compactionRequested = new AtomicBoolean();
+	private final AtomicLong compactions = new AtomicLong();
+
+	@Autowired
+	public SongSearchIndex(MongoTemplate mongoTemplate,
+						   @Value("${song.search.max-prefix-terms:5000}") int maxPrefixTerms,
+						   @Value("${song.search.max-prefix-postings:100000}") int maxPrefixPostings,
+						   @Value("${song.search.max-page-size:100}") int maxPageSize,
+						   @Value("${song.search.compact-deleted-fraction:0.25}") double compactDeletedFraction) {
+		this.db = mongoTemplate;
+		this.maxPrefixTerms = maxPrefixTerms;
+		this.maxPrefixPostings = maxPrefixPostings;
+		this.maxPageSize = maxPageSize;
+		this.compactDeletedFraction = compactDeletedFraction;
+
+		this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "search-index-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Streams the whole collection into a fresh index, searches keep using the old one until it is done
+	public void rebuild() {
+		Query query = new Query();
+		query.fields().include(Song.KEY_SONG_NAME).include(Song.KEY_SONG_ARTIST_FULL_NAME).include(Song.KEY_SONG_ALBUM);
+		build(current -> rebuilt -> {
+			try (CloseableIterator<Song> songs = db.stream(query, Song.class)) {
+				while (songs.hasNext()) {
+					rebuilt.add(songs.next());
+				}
+			}
+		});
+	}
+
+	// Renumbers the live songs into a fresh index, dropping the deleted ones, searches keep using the old one until it is done
+	void compact() {
+		try {
+			if (build(current -> {
+				List<Song> liveSongs = current.liveSongs();
+				return rebuilt -> liveSongs.forEach(rebuilt::add);
+			})) {
+				compactions.incrementAndGet();
+			}
+		} finally {
+			compactionRequested.set(false);
+		}
+	}
+
+	/**
+	 * Fills a fresh index, replays the changes made meanwhile onto it and swaps it in. The source is picked under the
+	 * write lock from the current index, so no change falls between what it reads and what is replayed.
+	 */
+	private boolean build(Function<Index, Consumer<Index>> source) {
+		synchronized (buildLock) {
+			Consumer<Index> fill;
+			lock.writeLock().lock();
+			try {
+				changedDuringRebuild = new ArrayList<>();
+				fill = source.apply(index);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			Index rebuilt = new Index();
+			long startedAt = System.nanoTime();
+			try {
+				fill.accept(rebuilt);
+			} catch (Exception e) {
+				LOG.error("Error building the song search index: {}", e.getMessage());
+				rebuilt = null;
+			}
+
+			lock.writeLock().lock();
+			try {
+				if (rebuilt != null) {
+					for (Consumer<Index> change : changedDuringRebuild) {
+						change.accept(rebuilt);
+					}
+					index = rebuilt;
+					LOG.info("Song search index built with {} songs and {} terms in {}ms", rebuilt.liveSongs, rebuilt.terms.size(),
+							(System.nanoTime() - startedAt) / 1000000);
+				}
+				changedDuringRebuild = null;
+				return rebuilt != null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public void add(Song song) {
+		lock.writeLock().lock();
+		try {
+			index.add(song);
+			if (changedDuringRebuild != null) {
+				changedDuringRebuild.add(rebuilt -> rebuilt.add(song));
+			}
+			compactIfMostlyDeleted();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(String songId) {
+		lock.writeLock().lock();
+		try {
+			index.remove(songId);
+			if (changedDuringRebuild != null) {
+				changedDuringRebuild.add(rebuilt -> rebuilt.remove(songId));
+			}
+			compactIfMostlyDeleted();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Called under the write lock. A compaction costs one pass over the live songs and only happens once the deleted
+	// ones are a fixed fraction of the index, so its cost per delete stays constant however large the catalogue is
+	private void compactIfMostlyDeleted() {
+		int deletedSongs = index.songs.size() - index.liveSongs;
+		if (changedDuringRebuild != null || deletedSongs <= compactDeletedFraction * index.songs.size()
+				|| !compactionRequested.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			compactor.execute(this::compact);
+		} catch (RejectedExecutionException e) {
+			compactionRequested.set(false);
+		}
+	}
+
+	// Whether the song is in the index, a song added through another instance or the importer is not until the next rebuild
+	public boolean contains(String songId) {
+		lock.readLock().lock();
+		try {
+			return index.songNumbers.containsKey(songId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		lock.readLock().lock();
+		try {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("songs", index.liveSongs);
+			stats.put("deletedSongs", index.songs.size() - index.liveSongs);
+			stats.put("terms", index.terms.size());
+			stats.put("compactions", compactions.get());
+			return stats;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		compactor.shutdownNow();
+	}
+
+	/**
+	 * Returns one page of the songs matching every word of the query, best matches first. A word found in the name
+	 * counts more than one found in the artist, which counts more than the album, and a whole word beats a prefix.
+	 */
+	public Map<String, Object> search(String text, int page, int size) {
+		size = Math.max(1, Math.min(size, maxPageSize));
+		page = Math.max(0, page);
+
+		List<String> words = tokenize(text);
+		// Until a separator is typed the last word is probably incomplete
+		String prefix = null;
+		if (!words.isEmpty() && !text.isEmpty() && Character.isLetterOrDigit(text.charAt(text.length() - 1))) {
+			prefix = words.remove(words.size() - 1);
+		}
+
+		lock.readLock().lock();
+		try {
+			Matches matches = index.match(new LinkedHashSet<>(words), prefix);
+			List<Map<String, Object>> songs = index.page(matches, page, size);
+
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("total", matches.size);
+			result.put("page", page);
+			result.put("size", size);
+			result.put("songs", songs);
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Lower case words with accents removed, so typing a plain "e" also finds an accented one
+	private static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<>();
+		if (text == null) {
+			return words;
+		}
+
+		String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < normalized.length(); i++) {
+			char c = normalized.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				word.append(c);
+			} else if (Character.getType(c) != Character.NON_SPACING_MARK && word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		if (word.length() > 0) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+
+	private static int weight(int fields) {
+		return ((fields & NAME) != 0 ? 3 : 0) + ((fields & ARTIST) != 0 ? 2 : 0) + ((fields & ALBUM) != 0 ? 1 : 0);
+	}
+
+	/**
+	 * Matching songs as parallel arrays sorted by song number.
+	 */
+	private static class Matches {
+		private int[] songs;
+		private int[] scores;
+		private int size;
+
+		Matches(int capacity) {
+			songs = new int[capacity];
+			scores = new int[capacity];
+		}
+
+		void add(int song, int score) {
+			if (size == songs.length) {
+				songs = Arrays.copyOf(songs, Math.max(8, size * 2));
+				scores = Arrays.copyOf(scores, songs.length);
+			}
+			songs[size] = song;
+			scores[size] = score;
+			size++;
+		}
+	}
+
+	/**
+	 * The songs a term appears in, with the fields it appears in for each of them.
+	 */
+	private static class Postings {
+		private int[] songs = new int[2];
+		private byte[] fields = new byte[2];
+		private int size;
+
+		void add(int song, int songFields) {
+			if (size == songs.length) {
+				songs = Arrays.copyOf(songs, size * 2);
+				fields = Arrays.copyOf(fields, size * 2);
+			}
+			songs[size] = song;
+			fields[size] = (byte) songFields;
+			size++;
+		}
+	}
+
+	private class Index {
+		private final TreeMap<String, Postings> terms = new TreeMap<>();
+		private final Map<String, Integer> songNumbers = new HashMap<>();
+		private final List<Song> songs = new ArrayList<>();
+		private final BitSet deleted = new BitSet();
+		private int liveSongs;
+
+		void add(Song song) {
+			if (song._id == null) {
+				return;
+			}
+			remove(song.getId());
+
+			// Only the searched fields are kept, the counts would go stale
+			Song searchable = new Song(song.getSongName(), song.getSongArtistFullName(), song.getSongAlbum());
+			searchable.setId(song._id);
+
+			int number = songs.size();
+			songs.add(searchable);
+			songNumbers.put(song.getId(), number);
+			liveSongs++;
+
+			for (Map.Entry<String, Integer> term : termsOf(song).entrySet()) {
+				terms.computeIfAbsent(term.getKey(), key -> new Postings()).add(number, term.getValue());
+			}
+		}
+
+		void remove(String songId) {
+			Integer number = songNumbers.remove(songId);
+			if (number != null) {
+				deleted.set(number);
+				liveSongs--;
+			}
+		}
+
+		// In the order they were added, so a compacted index ranks ties the same way
+		List<Song> liveSongs() {
+			List<Song> live = new ArrayList<>(liveSongs);
+			for (int number = 0; number < songs.size(); number++) {
+				if (!deleted.get(number)) {
+					live.add(songs.get(number));
+				}
+			}
+			return live;
+		}
+
+		// Every word of the song with the fields it appears in
+		private Map<String, Integer> termsOf(Song song) {
+			Map<String, Integer> songTerms = new HashMap<>();
+			for (String word : tokenize(song.getSongName())) {
+				songTerms.merge(word, NAME, (a, b) -> a | b);
+			}
+			for (String word : tokenize(song.getSongArtistFullName())) {
+				songTerms.merge(word, ARTIST, (a, b) -> a | b);
+			}
+			for (String word : tokenize(song.getSongAlbum())) {
+				songTerms.merge(word, ALBUM, (a, b) -> a | b);
+			}
+			return songTerms;
+		}
+
+		Matches match(Set<String> words, String prefix) {
+			List<Postings> wordPostings = new ArrayList<>(words.size());
+			for (String word : words) {
+				Postings postings = terms.get(word);
+				if (postings == null) {
+					return new Matches(0);
+				}
+				wordPostings.add(postings);
+			}
+			// Starting from the rarest word keeps every intersection as small as possible
+			wordPostings.sort(Comparator.comparingInt(postings -> postings.size));
+
+			Matches matches = null;
+			for (Postings postings : wordPostings) {
+				matches = matches == null ? all(postings) : intersect(matches, postings);
+			}
+
+			if (prefix != null) {
+				// Checking the few songs left is cheaper than expanding the prefix into every word it starts
+				matches = matches == null ? expand(prefix) : filterByPrefix(matches, prefix);
+			}
+			return matches == null ? new Matches(0) : matches;
+		}
+
+		private Matches all(Postings postings) {
+			Matches matches = new Matches(postings.size);
+			for (int i = 0; i < postings.size; i++) {
+				if (!deleted.get(postings.songs[i])) {
+					matches.add(postings.songs[i], weight(postings.fields[i]) * 2);
+				}
+			}
+			return matches;
+		}
+
+		private Matches intersect(Matches matches, Postings postings) {
+			Matches result = new Matches(Math.min(matches.size, postings.size));
+			int i = 0;
+			int j = 0;
+			while (i < matches.size && j < postings.size) {
+				if (matches.songs[i] < postings.songs[j]) {
+					i++;
+				} else if (matches.songs[i] > postings.songs[j]) {
+					j++;
+				} else {
+					result.add(matches.songs[i], matches.scores[i] + weight(postings.fields[j]) * 2);
+					i++;
+					j++;
+				}
+			}
+			return result;
+		}
+
+		private Matches filterByPrefix(Matches matches, String prefix) {
+			Matches result = new Matches(matches.size);
+			for (int i = 0; i < matches.size; i++) {
+				int best = 0;
+				for (Map.Entry<String, Integer> term : termsOf(songs.get(matches.songs[i])).entrySet()) {
+					if (term.getKey().startsWith(prefix)) {
+						best = Math.max(best, score(term.getKey(), prefix, term.getValue()));
+					}
+				}
+				if (best > 0) {
+					result.add(matches.songs[i], matches.scores[i] + best);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Merges the postings of every word starting with the prefix, up to maxPrefixTerms words. Each postings list is
+		 * already sorted, so a heap holding one position per word merges them in a single pass. A prefix whose words
+		 * appear more than maxPrefixPostings times between them is too short to narrow anything down, it then only
+		 * matches as a whole word.
+		 */
+		private Matches expand(String prefix) {
+			SortedMap<String, Postings> expansion = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+
+			long total = 0;
+			List<String> matchingTerms = new ArrayList<>();
+			List<Postings> matchingPostings = new ArrayList<>();
+			for (Map.Entry<String, Postings> term : expansion.entrySet()) {
+				if (matchingTerms.size() == maxPrefixTerms) {
+					break;
+				}
+				total += term.getValue().size;
+				if (total > maxPrefixPostings) {
+					Postings exact = terms.get(prefix);
+					return exact == null ? new Matches(0) : all(exact);
+				}
+				matchingTerms.add(term.getKey());
+				matchingPostings.add(term.getValue());
+			}
+
+			// Positions are {word, index into its postings}, ordered by the song at that index
+			PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, matchingPostings.size()),
+					Comparator.comparingInt((int[] head) -> matchingPostings.get(head[0]).songs[head[1]]));
+			for (int term = 0; term < matchingPostings.size(); term++) {
+				heads.add(new int[]{term, 0});
+			}
+
+			Matches matches = new Matches(Math.min((int) total, 1024));
+			while (!heads.isEmpty()) {
+				int[] head = heads.poll();
+				Postings postings = matchingPostings.get(head[0]);
+				int song = postings.songs[head[1]];
+				if (!deleted.get(song)) {
+					int score = score(matchingTerms.get(head[0]), prefix, postings.fields[head[1]]);
+					if (matches.size > 0 && matches.songs[matches.size - 1] == song) {
+						matches.scores[matches.size - 1] = Math.max(matches.scores[matches.size - 1], score);
+					} else {
+						matches.add(song, score);
+					}
+				}
+				if (++head[1] < postings.size) {
+					heads.add(head);
+				}
+			}
+			return matches;
+		}
+
+		private int score(String term, String prefix, int fields) {
+			return weight(fields) * 2 - (term.length() == prefix.length() ? 0 : 1);
+		}
+
+		// Picks the requested page with a heap of page + 1 pages, instead of sorting every match
+		List<Map<String, Object>> page(Matches matches, int page, int size) {
+			long wanted = (long) (page + 1) * size;
+			if (wanted > Integer.MAX_VALUE || page * size >= matches.size) {
+				return new ArrayList<>();
+			}
+
+			// Higher score first, then the song added first, both packed into one long so a single comparison orders them
+			PriorityQueue<Long> best = new PriorityQueue<>((int) Math.min(wanted, matches.size) + 1);
+			for (int i = 0; i < matches.size; i++) {
+				long key = ((long) matches.scores[i] << 32) | (Integer.MAX_VALUE - matches.songs[i]);
+				if (best.size() < wanted) {
+					best.add(key);
+				} else if (key > best.peek()) {
+					best.poll();
+					best.add(key);
+				}
+			}
+
+			List<Long> ranked = new ArrayList<>(best);
+			ranked.sort(Collections.reverseOrder());
+
+			List<Map<String, Object>> results = new ArrayList<>(size);
+			for (int i = page * size; i < ranked.size(); i++) {
+				Song song = songs.get(Integer.MAX_VALUE - (int) (ranked.get(i) & 0xFFFFFFFFL));
+				Map<String, Object> result = new LinkedHashMap<>();
+				result.put("id", song.getId());
+				result.put(Song.KEY_SONG_NAME, song.getSongName());
+				result.put(Song.KEY_SONG_ARTIST_FULL_NAME, song.getSongArtistFullName());
+				result.put(Song.KEY_SONG_ALBUM, song.getSongAlbum());
+				result.put("score", ranked.get(i) >>> 32);
+				results.add(result);
+			}
+			return results;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.eecs3311.songmicroservice;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Optional write-behind buffer for stream counts. Plays are summed per song in memory and written as one
+ * unordered bulk $inc per flush, either on a schedule or as soon as batchSize songs are pending.
+ * A failed write puts its counts back so the next flush retries them, up to maxAttempts flushes in a row for a song,
+ * after which its plays are dropped and counted. Closing the buffer flushes whatever is left.
+ */
+@Component
+public class StreamCountBuffer {
+
+	private static final Logger LOG = LogManager.getLogger(StreamCountBuffer.class);
+
+	private final MongoTemplate db;
+	private final SongLeaderboard songLeaderboard;
+	private final boolean enabled;
+	private final long flushIntervalMs;
+	private final int batchSize;
+	private final long shutdownTimeoutMs;
+	private final int maxAttempts;
+
+	// Pending increments per song, merge() is atomic per key so concurrent plays of the same song are never lost
+	private final ConcurrentHashMap<ObjectId, Long> pending = new ConcurrentHashMap<>();
+	private final AtomicLong oldestPendingNanos = new AtomicLong();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final Object flushLock = new Object();
+	private final ScheduledExecutorService flusher;
+	private volatile boolean closed;
+
+	// Flushes in a row that failed to write each song, only touched under flushLock
+	private final Map<ObjectId, Integer> failedAttempts = new HashMap<>();
+
+	// Shared by add() and exclusive to close(), so once close() has set closed every play add() accepted is pending
+	// and the final flush writes it
+	private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong flushedIncrements = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong failedFlushCount = new AtomicLong();
+	private final AtomicLong droppedIncrements = new AtomicLong();
+	private final AtomicLong unmatchedSongs = new AtomicLong();
+	private volatile int lastFlushSongs;
+	private volatile long lastFlushDurationMs;
+	private volatile long lastFlushLagMs;
+
+	@Autowired
+	public StreamCountBuffer(MongoTemplate mongoTemplate, SongLeaderboard songLeaderboard,
+							 @Value("${song.stream-count.write-behind.enabled:false}") boolean enabled,
+							 @Value("${song.stream-count.write-behind.flush-interval-ms:1000}") long flushIntervalMs,
+							 @Value("${song.stream-count.write-behind.batch-size:1000}") int batchSize,
+							 @Value("${song.stream-count.write-behind.shutdown-timeout-ms:10000}") long shutdownTimeoutMs,
+							 @Value("${song.stream-count.write-behind.max-attempts:30}") int maxAttempts) {
+		this(mongoTemplate, songLeaderboard, enabled, flushIntervalMs, batchSize, shutdownTimeoutMs, maxAttempts,
+				enabled ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "stream-count-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}) : null);
+		if (enabled) {
+			this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Tests pass an executor of their own for the early flushes and call flush themselves, nothing is scheduled
+	StreamCountBuffer(MongoTemplate mongoTemplate, SongLeaderboard songLeaderboard, boolean enabled, long flushIntervalMs,
+					  int batchSize, long shutdownTimeoutMs, int maxAttempts, ScheduledExecutorService flusher) {
+		this.db = mongoTemplate;
+		this.songLeaderboard = songLeaderboard;
+		this.enabled = enabled;
+		this.flushIntervalMs = flushIntervalMs;
+		this.batchSize = batchSize;
+		this.shutdownTimeoutMs = shutdownTimeoutMs;
+		this.maxAttempts = maxAttempts;
+		this.flusher = flusher;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Queues one play of the song. Returns false when the buffer is disabled or already closed,
+	 * in which case the caller has to write the increment itself.
+	 */
+	public boolean add(ObjectId songId) {
+		if (!enabled) {
+			return false;
+		}
+
+		closeLock.readLock().lock();
+		try {
+			if (closed) {
+				return false;
+			}
+
+			pending.merge(songId, 1L, Long::sum);
+			oldestPendingNanos.compareAndSet(0, System.nanoTime());
+
+			// Flush early once a full batch is waiting, at most one early flush is queued at a time
+			if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+				try {
+					flusher.execute(() -> {
+						flushRequested.set(false);
+						flushQuietly();
+					});
+				} catch (RejectedExecutionException e) {
+					flushRequested.set(false);
+				}
+			}
+			return true;
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	// Writes every pending increment, returns the number of plays written
+	public long flush() {
+		synchronized (flushLock) {
+			if (pending.isEmpty()) {
+				return 0;
+			}
+
+			long startedAt = System.nanoTime();
+			long oldest = oldestPendingNanos.getAndSet(0);
+
+			// remove() is atomic with merge(), so a play either lands in this flush or stays pending for the next one
+			Map<ObjectId, Long> drained = new LinkedHashMap<>();
+			for (ObjectId songId : pending.keySet()) {
+				Long increments = pending.remove(songId);
+				if (increments != null) {
+					drained.put(songId, increments);
+				}
+			}
+
+			long written = 0;
+			List<Map.Entry<ObjectId, Long>> batch = new ArrayList<>(Math.min(batchSize, drained.size()));
+			for (Map.Entry<ObjectId, Long> entry : drained.entrySet()) {
+				batch.add(entry);
+				if (batch.size() == batchSize) {
+					written += writeBatch(batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				written += writeBatch(batch);
+			}
+
+			lastFlushSongs = drained.size();
+			lastFlushDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+			lastFlushLagMs = oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(startedAt - oldest);
+			flushCount.incrementAndGet();
+			return written;
+		}
+	}
+
+	private long writeBatch(List<Map.Entry<ObjectId, Long>> batch) {
+		BulkOperations bulkOps = db.bulkOps(BulkOperations.BulkMode.UNORDERED, Song.class);
+		for (Map.Entry<ObjectId, Long> entry : batch) {
+			bulkOps.updateOne(Query.query(Criteria.where("_id").is(entry.getKey())), new Update().inc("streamCount", entry.getValue()));
+		}
+
+		long total = 0;
+		for (Map.Entry<ObjectId, Long> entry : batch) {
+			total += entry.getValue();
+		}
+
+		try {
+			com.mongodb.bulk.BulkWriteResult result = bulkOps.execute();
+			written(batch, null);
+			flushedIncrements.addAndGet(total);
+			if (result.wasAcknowledged()) {
+				countUnmatched(batch.size(), result.getMatchedCount());
+			}
+			LOG.debug("Flushed {} stream count increments for {} songs", total, batch.size());
+			updateLeaderboard(batch);
+			return total;
+		} catch (BulkOperationException e) {
+			// Unordered writes carry on past a failure, so only the writes that failed are retried
+			long failed = 0;
+			Set<ObjectId> failedSongs = new HashSet<>();
+			for (BulkWriteError error : e.getErrors()) {
+				Map.Entry<ObjectId, Long> entry = batch.get(error.getIndex());
+				requeue(entry.getKey(), entry.getValue());
+				failedSongs.add(entry.getKey());
+				failed += entry.getValue();
+			}
+			written(batch, failedSongs);
+			failedFlushCount.incrementAndGet();
+			flushedIncrements.addAndGet(total - failed);
+			BulkWriteResult result = e.getResult();
+			if (result != null && result.isAcknowledged()) {
+				countUnmatched(batch.size() - failedSongs.size(), result.getMatchedCount());
+			}
+			LOG.warn("Failed to flush {} stream count increments, they will be retried: {}", failed, e.getMessage());
+			return total - failed;
+		} catch (Exception e) {
+			// The outcome is unknown, retrying may count some plays twice but never drops them before maxAttempts
+			for (Map.Entry<ObjectId, Long> entry : batch) {
+				requeue(entry.getKey(), entry.getValue());
+			}
+			failedFlushCount.incrementAndGet();
+			LOG.warn("Failed to flush stream count increments, they will be retried: {}", e.getMessage());
+			return 0;
+		}
+	}
+
+	// Songs whose plays were written start counting their failed attempts again
+	private void written(List<Map.Entry<ObjectId, Long>> batch, Set<ObjectId> failedSongs) {
+		if (failedAttempts.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<ObjectId, Long> entry : batch) {
+			if (failedSongs == null || !failedSongs.contains(entry.getKey())) {
+				failedAttempts.remove(entry.getKey());
+			}
+		}
+	}
+
+	// A song deleted after its plays were queued matches nothing, its plays have nowhere to go
+	private void countUnmatched(int writtenSongs, int matchedSongs) {
+		if (matchedSongs < writtenSongs) {
+			unmatchedSongs.addAndGet(writtenSongs - matchedSongs);
+		}
+	}
+
+	// A bulk $inc does not return the new counts, so they are read back with one query per batch
+	private void updateLeaderboard(List<Map.Entry<ObjectId, Long>> batch) {
+		try {
+			List<ObjectId> songIds = new ArrayList<>(batch.size());
+			for (Map.Entry<ObjectId, Long> entry : batch) {
+				songIds.add(entry.getKey());
+			}
+			Query query = Query.query(Criteria.where("_id").in(songIds));
+			query.fields().include("songName").include("streamCount");
+			for (Song song : db.find(query, Song.class)) {
+				songLeaderboard.streamCountChanged(song.getId(), song.getSongName(), song.getStreamCount());
+			}
+		} catch (Exception e) {
+			// The counts are already written, the leaderboard catches up at its next reseed
+			LOG.warn("Error updating the leaderboard after a stream count flush: {}", e.getMessage());
+		}
+	}
+
+	private void requeue(ObjectId songId, long increments) {
+		int attempts = failedAttempts.merge(songId, 1, Integer::sum);
+		if (attempts >= maxAttempts) {
+			failedAttempts.remove(songId);
+			droppedIncrements.addAndGet(increments);
+			LOG.error("Dropped {} stream count increments for song {} after {} failed flushes", increments, songId, attempts);
+			return;
+		}
+		pending.merge(songId, increments, Long::sum);
+		oldestPendingNanos.compareAndSet(0, System.nanoTime());
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Exception e) {
+			LOG.error("Error flushing stream counts: {}", e.getMessage());
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		long pendingIncrements = 0;
+		for (Long increments : pending.values()) {
+			pendingIncrements += increments;
+		}
+		long oldest = oldestPendingNanos.get();
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("enabled", enabled);
+		stats.put("flushIntervalMs", flushIntervalMs);
+		stats.put("batchSize", batchSize);
+		stats.put("pendingSongs", pending.size());
+		stats.put("pendingIncrements", pendingIncrements);
+		stats.put("lagMs", oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest));
+		stats.put("flushCount", flushCount.get());
+		stats.put("failedFlushCount", failedFlushCount.get());
+		stats.put("flushedIncrements", flushedIncrements.get());
+		stats.put("droppedIncrements", droppedIncrements.get());
+		stats.put("unmatchedSongs", unmatchedSongs.get());
+		stats.put("lastFlushSongs", lastFlushSongs);
+		stats.put("lastFlushDurationMs", lastFlushDurationMs);
+		stats.put("lastFlushLagMs", lastFlushLagMs);
+		return stats;
+	}
+
+	@PreDestroy
+	public void close() throws InterruptedException {
+		if (!enabled) {
+			return;
+		}
+
+		// Plays that arrive from now on are written directly by the caller, the ones being added right now finish first
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		flusher.shutdown();
+		if (!flusher.awaitTermination(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+			flusher.shutdownNow();
+		}
+
+		// Retry a bounded number of times so a clean shutdown does not give up on the first failed write
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+		while (!pending.isEmpty() && System.nanoTime() < deadline) {
+			flushQuietly();
+			if (!pending.isEmpty()) {
+				Thread.sleep(100);
+			}
+		}
+		if (!pending.isEmpty()) {
+			LOG.warn("Could not flush stream counts for {} songs before shutdown", pending.size());
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.eecs3311.songmicroservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times every call into {@link CachingSongDal}, this is the {@link SongDal} the controllers get injected with.
+ * A call fails when it throws or returns QUERY_ERROR_GENERIC, not found is an answer rather than an error.
+ */
+@Primary
+@Repository
+public class TimedSongDal implements SongDal {
+
+	private final SongDal songDal;
+	private final LatencyMetrics.Family metrics;
+
+	@Autowired
+	public TimedSongDal(CachingSongDal songDal, LatencyMetrics latencyMetrics) {
+		this.songDal = songDal;
+		this.metrics = latencyMetrics.songDal;
+	}
+
+	@Override
+	public DbQueryStatus addSong(Song songToAdd) {
+		return metrics.time("addSong", () -> songDal.addSong(songToAdd), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus addSongs(List<Song> songsToAdd) {
+		return metrics.time("addSongs", () -> songDal.addSongs(songsToAdd), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus findSongById(String songId) {
+		return metrics.time("findSongById", () -> songDal.findSongById(songId), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus getSongTitleById(String songId) {
+		return metrics.time("getSongTitleById", () -> songDal.getSongTitleById(songId), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus getSongTitlesByIds(List<String> songIds) {
+		return metrics.time("getSongTitlesByIds", () -> songDal.getSongTitlesByIds(songIds), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus deleteSongById(String songId) {
+		return metrics.time("deleteSongById", () -> songDal.deleteSongById(songId), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus updateSongFavouritesCount(String songId, boolean shouldDecrement) {
+		return metrics.time("updateSongFavouritesCount", () -> songDal.updateSongFavouritesCount(songId, shouldDecrement), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus incrementStreamCount(String songId) {
+		return metrics.time("incrementStreamCount", () -> songDal.incrementStreamCount(songId), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus applyFavouritesDeltas(String batchId, Map<String, Long> deltas) {
+		return metrics.time("applyFavouritesDeltas", () -> songDal.applyFavouritesDeltas(batchId, deltas), TimedSongDal::failed);
+	}
+
+	@Override
+	public DbQueryStatus getSongsAfter(String afterSongId, int limit, List<String> fields) {
+		return metrics.time("getSongsAfter", () -> songDal.getSongsAfter(afterSongId, limit, fields), TimedSongDal::failed);
+	}
+
+	// Only opening the cursor is timed, the export reads from it for as long as the response is being written
+	@Override
+	public CloseableIterator<Map<String, Object>> streamSongs(List<String> fields) {
+		return metrics.time("streamSongs", () -> songDal.streamSongs(fields));
+	}
+
+	// A null status is not an answer either
+	private static boolean failed(DbQueryStatus dbQueryStatus) {
+		return dbQueryStatus == null || dbQueryStatus.getdbQueryExecResult() == DbQueryExecResult.QUERY_ERROR_GENERIC;
+	}
+}
@@ -0,0 +1,40 @@
+package com.eecs3311.songmicroservice;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds every command MongoTemplate sends to the trace of the request that sent it. The driver is synchronous, so a
+ * command completes on the thread that issued it and the trace current on that thread is the right one. Commands sent
+ * by background work, such as the stream count flush, belong to no request and are not traced.
+ */
+@Component
+public class TracingCommandListener implements CommandListener {
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		Tracing.Trace trace = Tracing.current();
+		if (trace != null) {
+			long end = System.nanoTime();
+			trace.span("mongo", event.getCommandName(), end - event.getElapsedTime(TimeUnit.NANOSECONDS), end, false);
+		}
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		Tracing.Trace trace = Tracing.current();
+		if (trace != null) {
+			long end = System.nanoTime();
+			trace.span("mongo", event.getCommandName(), end - event.getElapsedTime(TimeUnit.NANOSECONDS), end, true);
+		}
+	}
+}
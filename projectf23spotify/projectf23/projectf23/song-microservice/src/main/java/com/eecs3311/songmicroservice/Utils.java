@@ -2,32 +2,62 @@ package com.eecs3311.songmicroservice;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
-import java.util.Map;
-
 public class Utils {
+
+	// Every response entity gets the same empty headers instead of its own, the message converter only reads them
+	private static final HttpHeaders NO_HEADERS = HttpHeaders.readOnlyHttpHeaders(new HttpHeaders());
 	
-	// Used to determine path that was called from within each REST route, you don't need to modify this
+	// Used to determine path that was called from within each REST route
 	public static String getUrl(HttpServletRequest req) {
-		String requestUrl = req.getRequestURL().toString();
+		return getPath(null, req);
+	}
+
+	/**
+	 * The method and the URL that was called, for example "GET http://localhost:3001/getSongById/1?fields=songName".
+	 * The URL is the one getRequestURL gives with the query string added, written into a single buffer of the right
+	 * size. A null method gives just the URL.
+	 */
+	public static String getPath(String method, HttpServletRequest req) {
+		String scheme = req.getScheme();
+		String serverName = req.getServerName();
+		int port = req.getServerPort();
+		String requestUri = req.getRequestURI();
 		String queryString = req.getQueryString();
 
+		// "://" and a port of up to five digits after its colon
+		StringBuilder path = new StringBuilder((method != null ? method.length() + 1 : 0) + scheme.length() + serverName.length()
+				+ requestUri.length() + (queryString != null ? queryString.length() + 1 : 0) + 9);
+		if (method != null) {
+			path.append(method).append(' ');
+		}
+		path.append(scheme).append("://").append(serverName);
+		// Like getRequestURL, the port is left out when it is the scheme's default
+		if (port > 0 && !(port == 80 && "http".equals(scheme)) && !(port == 443 && "https".equals(scheme))) {
+			path.append(':').append(port);
+		}
+		path.append(requestUri);
 		if (queryString != null) {
-			requestUrl += "?" + queryString;
+			path.append('?').append(queryString);
 		}
-		return requestUrl;
+		return path.toString();
+	}
+
+	public static ResponseEntity<ApiResponse> responseEntity(ApiResponse response, HttpStatus status) {
+		return new ResponseEntity<>(response, NO_HEADERS, status);
 	}
 	
 	// Sets the response status and data for a response from the server. You might not always be able to use this function
-	public static ResponseEntity<Map<String, Object>> setResponseStatus(Map<String, Object> response, DbQueryExecResult dbQueryExecResult, Object data) {	
+	public static ResponseEntity<ApiResponse> setResponseStatus(ApiResponse response, DbQueryExecResult dbQueryExecResult, Object data) {	
 		HttpStatus status = HttpStatus.NOT_IMPLEMENTED; // default value of HTTP 501 NOT IMPLEMENTED
 		switch (dbQueryExecResult) {
 			case QUERY_OK:
 				status = HttpStatus.OK;
 				if (data != null) {
-					response.put("data", data);
+					response.setData(data);
 				}
 				break;
 			case QUERY_ERROR_NOT_FOUND:
@@ -37,8 +67,8 @@ public class Utils {
 				status = HttpStatus.INTERNAL_SERVER_ERROR;
 				break;
 		}
-		response.put("status", status);
+		response.setStatus(status);
 		
-		return ResponseEntity.status(status).body(response);
+		return responseEntity(response, status);
 	}
 }
\ No newline at end of file
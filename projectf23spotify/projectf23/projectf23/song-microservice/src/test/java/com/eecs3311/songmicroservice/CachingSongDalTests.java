@@ -0,0 +1,218 @@
+package com.eecs3311.songmicroservice;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachingSongDalTests {
+
+	private final ExecutorService threads = Executors.newFixedThreadPool(2);
+
+	@After
+	public void shutDown() {
+		threads.shutdownNow();
+	}
+
+	@Test
+	public void deleteDuringAMissIsNotUndoneByTheRead() throws Exception {
+		String songId = new ObjectId().toHexString();
+		SlowSongDal songDal = new SlowSongDal(songId);
+		CachingSongDal cache = new CachingSongDal(songDal, 100, 300);
+
+		// The read has fetched the song and is held there while the song is deleted
+		Future<DbQueryStatus> read = threads.submit(() -> cache.findSongById(songId));
+		assertTrue(songDal.reading.await(5, TimeUnit.SECONDS));
+		Future<DbQueryStatus> delete = threads.submit(() -> cache.deleteSongById(songId));
+		assertTrue(songDal.deleted.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		songDal.finishRead.countDown();
+
+		assertEquals(DbQueryExecResult.QUERY_OK, read.get(5, TimeUnit.SECONDS).getdbQueryExecResult());
+		delete.get(5, TimeUnit.SECONDS);
+
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, cache.findSongById(songId).getdbQueryExecResult());
+		assertEquals(2, songDal.reads.get());
+	}
+
+	@Test
+	public void missingSongsAreNotCached() {
+		String songId = new ObjectId().toHexString();
+		SlowSongDal songDal = new SlowSongDal(songId);
+		songDal.finishRead.countDown();
+		CachingSongDal cache = new CachingSongDal(songDal, 100, 300);
+
+		assertEquals(DbQueryExecResult.QUERY_OK, cache.findSongById(songId).getdbQueryExecResult());
+		assertEquals(DbQueryExecResult.QUERY_OK, cache.findSongById(songId).getdbQueryExecResult());
+		assertEquals(1, songDal.reads.get());
+
+		String missingId = new ObjectId().toHexString();
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, cache.findSongById(missingId).getdbQueryExecResult());
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, cache.findSongById(missingId).getdbQueryExecResult());
+		assertEquals(3, songDal.reads.get());
+	}
+
+	@Test
+	public void aFavouritesUpdateDropsTheCachedSong() {
+		StoredSongDal songDal = new StoredSongDal();
+		CachingSongDal cache = new CachingSongDal(songDal, 100, 300);
+		cache.findSongById(songDal.songId);
+
+		// Two likes whose counts come back in the opposite order, the cache must not keep the lower one
+		songDal.song.setSongAmountFavourites(2);
+		songDal.returnedCount = 2L;
+		cache.updateSongFavouritesCount(songDal.songId, false);
+		songDal.returnedCount = 1L;
+		cache.updateSongFavouritesCount(songDal.songId, false);
+
+		assertEquals(2, favourites(cache.findSongById(songDal.songId)));
+		assertEquals(2, songDal.reads.get());
+	}
+
+	@Test
+	public void aPlayKeepsTheHighestStreamCount() {
+		StoredSongDal songDal = new StoredSongDal();
+		CachingSongDal cache = new CachingSongDal(songDal, 100, 300);
+
+		// The miss read the song after the play was written, so the play is already in the cached copy
+		songDal.song.setStreamCount(6);
+		cache.findSongById(songDal.songId);
+		songDal.returnedCount = 6L;
+		cache.incrementStreamCount(songDal.songId);
+		assertEquals(6, streams(cache.findSongById(songDal.songId)));
+
+		// Two plays whose counts come back in the opposite order
+		songDal.returnedCount = 8L;
+		cache.incrementStreamCount(songDal.songId);
+		songDal.returnedCount = 7L;
+		cache.incrementStreamCount(songDal.songId);
+		assertEquals(8, streams(cache.findSongById(songDal.songId)));
+
+		// A play queued in write-behind mode has no count and is not in the database yet
+		songDal.returnedCount = null;
+		cache.incrementStreamCount(songDal.songId);
+		assertEquals(8, streams(cache.findSongById(songDal.songId)));
+		assertEquals(1, songDal.reads.get());
+	}
+
+	@Test
+	public void patchingASongDoesNotPutOffItsExpiry() {
+		StoredSongDal songDal = new StoredSongDal();
+		AtomicLong nanos = new AtomicLong();
+		Ticker ticker = nanos::get;
+		CachingSongDal cache = new CachingSongDal(songDal, 100, 300, ticker);
+		cache.findSongById(songDal.songId);
+
+		for (long streamCount = 1; streamCount <= 10; streamCount++) {
+			nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+			songDal.returnedCount = streamCount;
+			cache.incrementStreamCount(songDal.songId);
+		}
+
+		// Played every minute for ten minutes, it is still read again once the five minutes since it was loaded are up
+		songDal.song.setStreamCount(10);
+		assertEquals(10, streams(cache.findSongById(songDal.songId)));
+		assertEquals(2, songDal.reads.get());
+	}
+
+	private static long favourites(DbQueryStatus dbQueryStatus) {
+		return ((Song) dbQueryStatus.getData()).getSongAmountFavourites();
+	}
+
+	private static long streams(DbQueryStatus dbQueryStatus) {
+		return ((Song) dbQueryStatus.getData()).getStreamCount();
+	}
+
+	// One song, every read returns a copy of it and every update returns returnedCount as its new count
+	private static class StoredSongDal extends SongDalImpl {
+		final String songId = new ObjectId().toHexString();
+		final Song song = new Song("Song", "Artist", "Album");
+		final AtomicInteger reads = new AtomicInteger();
+		volatile Long returnedCount;
+
+		StoredSongDal() {
+			super(null, null, null, null);
+			song.setId(new ObjectId(songId));
+		}
+
+		@Override
+		public DbQueryStatus findSongById(String songId) {
+			reads.incrementAndGet();
+			Song copy = new Song(song.getSongName(), song.getSongArtistFullName(), song.getSongAlbum());
+			copy.setId(new ObjectId(songId));
+			copy.setSongAmountFavourites(song.getSongAmountFavourites());
+			copy.setStreamCount(song.getStreamCount());
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Song found", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(copy);
+			return dbQueryStatus;
+		}
+
+		@Override
+		public DbQueryStatus updateSongFavouritesCount(String songId, boolean shouldDecrement) {
+			return updated();
+		}
+
+		@Override
+		public DbQueryStatus incrementStreamCount(String songId) {
+			return updated();
+		}
+
+		private DbQueryStatus updated() {
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Success", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(returnedCount);
+			return dbQueryStatus;
+		}
+	}
+
+	// One song that exists until it is deleted, every read of it waits for finishRead after fetching it
+	private static class SlowSongDal extends SongDalImpl {
+		private final String songId;
+		private volatile boolean exists = true;
+		final AtomicInteger reads = new AtomicInteger();
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch finishRead = new CountDownLatch(1);
+		final CountDownLatch deleted = new CountDownLatch(1);
+
+		SlowSongDal(String songId) {
+			super(null, null, null, null);
+			this.songId = songId;
+		}
+
+		@Override
+		public DbQueryStatus findSongById(String songId) {
+			reads.incrementAndGet();
+			if (!this.songId.equals(songId) || !exists) {
+				return new DbQueryStatus("Song not found", DbQueryExecResult.QUERY_ERROR_NOT_FOUND);
+			}
+			Song song = new Song("Song", "Artist", "Album");
+			song.setId(new ObjectId(songId));
+			reading.countDown();
+			try {
+				finishRead.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			DbQueryStatus dbQueryStatus = new DbQueryStatus("Song found", DbQueryExecResult.QUERY_OK);
+			dbQueryStatus.setData(song);
+			return dbQueryStatus;
+		}
+
+		@Override
+		public DbQueryStatus deleteSongById(String songId) {
+			exists = false;
+			deleted.countDown();
+			return new DbQueryStatus("Song deleted", DbQueryExecResult.QUERY_OK);
+		}
+	}
+}
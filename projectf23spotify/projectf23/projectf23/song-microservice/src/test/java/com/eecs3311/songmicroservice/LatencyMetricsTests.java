@@ -0,0 +1,79 @@
+package com.eecs3311.songmicroservice;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LatencyMetricsTests {
+
+	private PrometheusMeterRegistry registry;
+	private LatencyMetrics.Family metrics;
+
+	@Before
+	public void createMetrics() {
+		registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		metrics = new LatencyMetrics(registry).songDal;
+	}
+
+	@Test
+	public void recordsLatencyAndErrorsPerName() {
+		metrics.record("findSongById", System.nanoTime(), false);
+		metrics.record("findSongById", System.nanoTime(), true);
+		metrics.record("incrementStreamCount", System.nanoTime(), false);
+
+		assertEquals(2, metrics.timer("findSongById").count());
+		assertEquals(1, metrics.timer("incrementStreamCount").count());
+		assertEquals(1.0, registry.get("song.dal.errors").tag("method", "findSongById").counter().count(), 0.0);
+
+		String scrape = registry.scrape();
+		assertTrue(scrape.contains("song_dal_latency_seconds_bucket{method=\"findSongById\""));
+		assertTrue(scrape.contains("song_dal_errors_total{method=\"findSongById\",}"));
+	}
+
+	@Test
+	public void timedWorkFailsWhenItThrowsOrItsResultIsRejected() {
+		assertEquals("found", metrics.time("findSongById", () -> "found", "error"::equals));
+		assertEquals("error", metrics.time("findSongById", () -> "error", "error"::equals));
+		try {
+			metrics.time("findSongById", () -> {
+				throw new IllegalStateException("MongoDB is not available");
+			});
+			fail("The exception is not swallowed");
+		} catch (IllegalStateException expected) {
+			// Recorded on the way out
+		}
+
+		assertEquals(3, metrics.timer("findSongById").count());
+		assertEquals(2.0, registry.get("song.dal.errors").tag("method", "findSongById").counter().count(), 0.0);
+	}
+
+	@Test
+	public void recordingDoesNotAllocate() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		// The first record registers the meters, everything after it only updates them
+		for (int i = 0; i < 10000; i++) {
+			metrics.record("findSongById", System.nanoTime(), i % 10 == 0);
+		}
+
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			metrics.record("findSongById", System.nanoTime(), i % 10 == 0);
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+		// Reading the counter itself can allocate a little, a per-call allocation would be hundreds of kilobytes
+		assertTrue("Recording allocated " + allocated + " bytes", allocated < 4096);
+	}
+}
@@ -0,0 +1,49 @@
+package com.eecs3311.songmicroservice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LegacyJsonReaderTests {
+
+	@Test
+	public void rewritesShellSyntaxIntoJson() throws IOException {
+		assertEquals("{\"_id\": {\"$oid\":\"5d61728193528481fe5a3124\"}, \"streamCount\": 12, \"songAmountFavourites\": 3}",
+				rewrite("{\"_id\": ObjectId(\"5d61728193528481fe5a3124\"), \"streamCount\": NumberLong(\"12\"), \"songAmountFavourites\": NumberInt(3)}"));
+		assertEquals("[{\"a\": 7}, {\"a\": 8}]", rewrite("[{\"a\": NumberLong( 7 )}, {\"a\": NumberInt(\"8\")}]"));
+	}
+
+	@Test
+	public void leavesStringsAndOtherWordsAlone() throws IOException {
+		String json = "{\"songName\": \"ObjectId(\\\"x\\\") and NumberLong(3)\", \"songAlbum\": \"NumberInt(\", \"live\": true, \"year\": null}";
+		assertEquals(json, rewrite(json));
+	}
+
+	@Test
+	public void rejectsAnUnterminatedCall() {
+		try {
+			rewrite("{\"_id\": ObjectId(\"5d61728193528481fe5a3124\"");
+			fail("Read past the end of the call");
+		} catch (IOException expected) {
+			// The file is truncated, the import stops
+		}
+	}
+
+	// Reads a few characters at a time, so replacements are handed out across several reads
+	private static String rewrite(String legacy) throws IOException {
+		StringBuilder json = new StringBuilder();
+		try (Reader reader = new LegacyJsonReader(new StringReader(legacy))) {
+			char[] buf = new char[3];
+			int n;
+			while ((n = reader.read(buf, 0, buf.length)) != -1) {
+				json.append(buf, 0, n);
+			}
+		}
+		return json.toString();
+	}
+}
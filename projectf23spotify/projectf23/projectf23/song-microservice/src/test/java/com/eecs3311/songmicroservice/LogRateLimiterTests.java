@@ -0,0 +1,38 @@
+package com.eecs3311.songmicroservice;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogRateLimiterTests {
+
+	@Test
+	public void allowsABurstThenSpacesMessagesOut() {
+		LogRateLimiter limiter = new LogRateLimiter(10);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire(start));
+		}
+		assertFalse(limiter.tryAcquire(start));
+		assertFalse(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(50)));
+		assertEquals(2, limiter.takeSuppressed());
+		assertEquals(0, limiter.takeSuppressed());
+
+		// One more every 100ms once the burst is used up
+		assertTrue(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(100)));
+		assertFalse(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(150)));
+		assertTrue(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(200)));
+
+		// A quiet spell earns back no more than one burst
+		long later = start + TimeUnit.SECONDS.toNanos(60);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire(later));
+		}
+		assertFalse(limiter.tryAcquire(later));
+	}
+}
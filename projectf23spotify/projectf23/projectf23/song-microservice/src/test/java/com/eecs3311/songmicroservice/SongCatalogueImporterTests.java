@@ -0,0 +1,134 @@
+package com.eecs3311.songmicroservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Imports into a mocked MongoTemplate that keeps the ids of the songs each bulk write upserted
+public class SongCatalogueImporterTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final MongoTemplate db = mock(MongoTemplate.class);
+	private final List<ObjectId> upserted = new CopyOnWriteArrayList<>();
+	// The bulk write with this number, counted from 1, fails as a whole
+	private final AtomicInteger failingWrite = new AtomicInteger();
+	private final AtomicInteger writes = new AtomicInteger();
+
+	private final List<ObjectId> songIds = new ArrayList<>();
+	private File catalogue;
+
+	@Before
+	public void setUp() throws IOException {
+		when(db.bulkOps(eq(BulkOperations.BulkMode.UNORDERED), eq("songs"))).thenAnswer(invocation -> bulkOps());
+
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 5; i++) {
+			songIds.add(new ObjectId());
+			json.append(i == 0 ? "" : ",\n").append("{\"_id\": ObjectId(\"").append(songIds.get(i).toHexString())
+					.append("\"), \"songName\": \"Song ").append(i).append("\", \"songArtistFullName\": \"Artist\",")
+					.append(" \"songAlbum\": \"Album\", \"songAmountFavourites\": NumberInt(").append(i).append(")}");
+		}
+		catalogue = folder.newFile("MOCK_DATA.json");
+		Files.write(catalogue.toPath(), json.append("]").toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void anImportThatStopsResumesAfterTheLastCheckpoint() throws IOException {
+		SongCatalogueImporter importer = new SongCatalogueImporter(db, new ObjectMapper(), 2, 1, 1000);
+		Path checkpoint = new File(catalogue + ".import-checkpoint").toPath();
+		failingWrite.set(2);
+
+		assertFalse(importer.importSongs(catalogue.toString(), true));
+		assertEquals(songIds.subList(0, 2), upserted);
+		assertEquals("2", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+		verify(db).dropCollection("songs");
+
+		// The songs already written are skipped, and the collection is not dropped again
+		upserted.clear();
+		failingWrite.set(0);
+		assertTrue(importer.importSongs(catalogue.toString(), true));
+		assertEquals(songIds.subList(2, 5), upserted);
+		assertFalse(Files.exists(checkpoint));
+		verify(db).dropCollection(anyString());
+	}
+
+	@Test
+	public void aFreshImportWritesEverySong() {
+		SongCatalogueImporter importer = new SongCatalogueImporter(db, new ObjectMapper(), 2, 4, 1000);
+
+		assertTrue(importer.importSongs(catalogue.toString(), false));
+		assertEquals(5, upserted.size());
+		assertTrue(upserted.containsAll(songIds));
+		verify(db, never()).dropCollection(anyString());
+	}
+
+	@Test
+	public void theCheckpointOnlyMovesPastBatchesThatFinishedInOrder() throws IOException {
+		Path checkpoint = folder.getRoot().toPath().resolve("songs.json.import-checkpoint");
+		SongCatalogueImporter.Checkpointer checkpointer = new SongCatalogueImporter.Checkpointer(checkpoint, 10);
+
+		// Batches 1 and 2 finish while batch 0 is still being written
+		checkpointer.completed(2, 4);
+		checkpointer.completed(1, 5);
+		assertFalse(Files.exists(checkpoint));
+
+		checkpointer.completed(0, 5);
+		assertEquals("24", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+
+		checkpointer.completed(4, 1);
+		checkpointer.completed(3, 5);
+		assertEquals("30", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+	}
+
+	// Collects the ids of the upserts, and keeps them once the bulk write is executed
+	private BulkOperations bulkOps() {
+		List<ObjectId> batch = new ArrayList<>();
+		BulkOperations bulkOps = mock(BulkOperations.class);
+		when(bulkOps.upsert(any(Query.class), any(Update.class))).thenAnswer(invocation -> {
+			Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+			batch.add((ObjectId) query.get("_id"));
+			return bulkOps;
+		});
+		when(bulkOps.execute()).thenAnswer(invocation -> {
+			if (writes.incrementAndGet() == failingWrite.get()) {
+				throw new DataAccessResourceFailureException("MongoDB is not available");
+			}
+			upserted.addAll(batch);
+			return com.mongodb.bulk.BulkWriteResult.acknowledged(0, 0, 0, batch.size(), Collections.emptyList());
+		});
+		return bulkOps;
+	}
+}
@@ -0,0 +1,142 @@
+package com.eecs3311.songmicroservice;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class SongDalImplBulkInsertTests {
+
+	@Autowired
+	private SongDalImpl songDal;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	// Checked once, a ping without a server takes the whole server selection timeout
+	private static Exception mongoUnavailable;
+	private static boolean pinged;
+
+	// Every song a test adds is by this artist, so they can all be removed afterwards
+	private String artist;
+
+	@Before
+	public void createIndexes() {
+		// These tests need the same MongoDB instance the service uses
+		if (!pinged) {
+			pinged = true;
+			try {
+				mongoTemplate.executeCommand("{ ping: 1 }");
+			} catch (Exception e) {
+				mongoUnavailable = e;
+			}
+		}
+		Assume.assumeNoException("MongoDB is not available", mongoUnavailable);
+
+		// The unique index is what rejects duplicates
+		songDal.initSongDb();
+		artist = "Bulk Insert Test " + UUID.randomUUID();
+	}
+
+	@After
+	public void removeSongs() {
+		if (artist != null) {
+			mongoTemplate.remove(Query.query(Criteria.where(Song.KEY_SONG_ARTIST_FULL_NAME).is(artist)), Song.class);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void duplicatesAreReportedPerSongAndTheRestAreAdded() {
+		assertEquals(DbQueryExecResult.QUERY_OK, songDal.addSong(new Song("Existing", artist, "Album")).getdbQueryExecResult());
+
+		DbQueryStatus dbQueryStatus = songDal.addSongs(Arrays.asList(new Song("First", artist, "Album"),
+				new Song("Existing", artist, "Album"), new Song("Second", artist, "Album"), new Song("First", artist, "Album")));
+
+		assertEquals(DbQueryExecResult.QUERY_OK, dbQueryStatus.getdbQueryExecResult());
+		List<Map<String, Object>> outcomes = (List<Map<String, Object>>) dbQueryStatus.getData();
+		assertEquals(4, outcomes.size());
+		assertEquals("created", outcomes.get(0).get("status"));
+		assertEquals("duplicate", outcomes.get(1).get("status"));
+		assertEquals("created", outcomes.get(2).get("status"));
+		assertEquals("duplicate", outcomes.get(3).get("status"));
+
+		// Each created song is stored under the id its outcome reports
+		assertNotNull(mongoTemplate.findById(outcomes.get(0).get("id"), Song.class));
+		assertNotNull(mongoTemplate.findById(outcomes.get(2).get("id"), Song.class));
+		assertEquals(3, songCount());
+	}
+
+	@Test
+	public void addSongsTakesAJsonArray() throws Exception {
+		String songs = "[" + song("First") + ", {\"songName\": \"No artist\"}, " + song("Second") + "]";
+
+		mockMvc.perform(post("/addSongs").contentType(MediaType.APPLICATION_JSON).content(songs))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.message").value("Processed 3 songs"))
+				.andExpect(jsonPath("$.data[0].status").value("created"))
+				.andExpect(jsonPath("$.data[1].index").value(1))
+				.andExpect(jsonPath("$.data[1].status").value("invalid"))
+				.andExpect(jsonPath("$.data[2].status").value("created"));
+		assertEquals(2, songCount());
+	}
+
+	@Test
+	public void addSongsTakesOneSongPerLine() throws Exception {
+		songDal.addSong(new Song("Existing", artist, "Album"));
+		String songs = song("First") + "\n" + song("Existing") + "\n" + song("Second") + "\n";
+
+		mockMvc.perform(post("/addSongs").contentType("application/x-ndjson").content(songs))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.data[0].status").value("created"))
+				.andExpect(jsonPath("$.data[1].status").value("duplicate"))
+				.andExpect(jsonPath("$.data[2].status").value("created"));
+		assertEquals(3, songCount());
+	}
+
+	@Test
+	public void theSongsBeforeAMalformedOneAreStillAdded() throws Exception {
+		String songs = song("First") + "\n" + song("Second") + "\n{\"songName\": \n";
+
+		mockMvc.perform(post("/addSongs").contentType("application/x-ndjson").content(songs))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.data.length()").value(2))
+				.andExpect(jsonPath("$.data[1].status").value("created"));
+		assertEquals(2, songCount());
+	}
+
+	private String song(String songName) {
+		return "{\"songName\": \"" + songName + "\", \"songArtistFullName\": \"" + artist + "\", \"songAlbum\": \"Album\"}";
+	}
+
+	private long songCount() {
+		return mongoTemplate.count(Query.query(Criteria.where(Song.KEY_SONG_ARTIST_FULL_NAME).is(artist)), Song.class);
+	}
+}
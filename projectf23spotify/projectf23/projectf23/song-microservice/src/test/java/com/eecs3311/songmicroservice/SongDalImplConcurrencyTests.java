@@ -0,0 +1,195 @@
+package com.eecs3311.songmicroservice;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class SongDalImplConcurrencyTests {
+
+	private static final int THREADS = 16;
+	private static final int UPDATES_PER_THREAD = 250;
+
+	@Autowired
+	private SongDalImpl songDal;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	private Song song;
+
+	@Before
+	public void insertSong() {
+		// These tests need the same MongoDB instance the service uses
+		try {
+			mongoTemplate.executeCommand("{ ping: 1 }");
+		} catch (Exception e) {
+			Assume.assumeNoException("MongoDB is not available", e);
+		}
+
+		song = new Song("Concurrency Test " + UUID.randomUUID(), "Test Artist", "Test Album");
+		mongoTemplate.insert(song);
+	}
+
+	@After
+	public void removeSong() {
+		if (song != null) {
+			mongoTemplate.remove(song);
+		}
+	}
+
+	@Test
+	public void concurrentLikesAreNeverLost() throws Exception {
+		List<Long> counts = hammer(THREADS, false);
+
+		// Every increment sees a different count, and together they cover 1..n exactly once
+		int total = THREADS * UPDATES_PER_THREAD;
+		assertEquals(total, new HashSet<>(counts).size());
+		assertEquals(total, (long) Collections.max(counts));
+		assertEquals(total, favouritesCount());
+	}
+
+	@Test
+	public void concurrentLikesAndUnlikesCancelOut() throws Exception {
+		hammer(THREADS, false);
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2);
+		try {
+			List<Future<List<Long>>> futures = new ArrayList<>();
+			CountDownLatch start = new CountDownLatch(1);
+			for (int i = 0; i < THREADS * 2; i++) {
+				futures.add(executor.submit(updates(start, i % 2 == 0)));
+			}
+			start.countDown();
+			for (Future<List<Long>> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(THREADS * UPDATES_PER_THREAD, favouritesCount());
+	}
+
+	@Test
+	public void concurrentUnlikesNeverGoBelowZero() throws Exception {
+		List<Long> counts = hammer(THREADS, true);
+
+		for (long count : counts) {
+			assertEquals(0, count);
+		}
+		assertEquals(0, favouritesCount());
+	}
+
+	@Test
+	public void redeliveredFavouritesBatchIsAppliedOnce() {
+		Map<String, Long> deltas = Collections.singletonMap(song.getId(), 3L);
+		String batchId = UUID.randomUUID().toString();
+
+		assertEquals(1, songDal.applyFavouritesDeltas(batchId, deltas).getData());
+		assertEquals(0, songDal.applyFavouritesDeltas(batchId, deltas).getData());
+		assertEquals(3, favouritesCount());
+
+		songDal.applyFavouritesDeltas(UUID.randomUUID().toString(), deltas);
+		assertEquals(6, favouritesCount());
+	}
+
+	@Test
+	public void redeliveredDecrementIsAppliedOnce() {
+		songDal.applyFavouritesDeltas(UUID.randomUUID().toString(), Collections.singletonMap(song.getId(), 5L));
+		String unlikes = UUID.randomUUID().toString();
+		songDal.applyFavouritesDeltas(unlikes, Collections.singletonMap(song.getId(), -2L));
+		songDal.applyFavouritesDeltas(unlikes, Collections.singletonMap(song.getId(), -2L));
+		assertEquals(3, favouritesCount());
+
+		// A batch that was clamped at zero is remembered too
+		String clamped = UUID.randomUUID().toString();
+		songDal.applyFavouritesDeltas(clamped, Collections.singletonMap(song.getId(), -10L));
+		songDal.applyFavouritesDeltas(UUID.randomUUID().toString(), Collections.singletonMap(song.getId(), 4L));
+		assertEquals(0, songDal.applyFavouritesDeltas(clamped, Collections.singletonMap(song.getId(), -10L)).getData());
+		assertEquals(4, favouritesCount());
+	}
+
+	@Test
+	public void onlyTheLatestBatchesAreRemembered() {
+		Map<String, Long> deltas = Collections.singletonMap(song.getId(), 1L);
+		List<String> batchIds = new ArrayList<>();
+		for (int i = 0; i <= SongDalImpl.APPLIED_FAVOURITES_BATCHES_KEPT; i++) {
+			batchIds.add(UUID.randomUUID().toString());
+			songDal.applyFavouritesDeltas(batchIds.get(i), deltas);
+		}
+		int applied = batchIds.size();
+
+		for (String batchId : batchIds.subList(1, batchIds.size())) {
+			assertEquals(0, songDal.applyFavouritesDeltas(batchId, deltas).getData());
+		}
+		assertEquals(applied, favouritesCount());
+
+		// The oldest batch has been dropped, the outbox deletes a batch long before that many newer ones reach the song
+		songDal.applyFavouritesDeltas(batchIds.get(0), deltas);
+		assertEquals(applied + 1, favouritesCount());
+	}
+
+	@Test
+	public void favouritesBatchNeverGoesBelowZero() {
+		songDal.applyFavouritesDeltas(UUID.randomUUID().toString(), Collections.singletonMap(song.getId(), 2L));
+		songDal.applyFavouritesDeltas(UUID.randomUUID().toString(), Collections.singletonMap(song.getId(), -5L));
+		assertEquals(0, favouritesCount());
+	}
+
+	@Test
+	public void unknownSongIsNotFound() {
+		DbQueryStatus dbQueryStatus = songDal.updateSongFavouritesCount(new org.bson.types.ObjectId().toHexString(), false);
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, dbQueryStatus.getdbQueryExecResult());
+	}
+
+	// Runs UPDATES_PER_THREAD updates on every thread at once and returns every count the updates reported
+	private List<Long> hammer(int threads, boolean shouldDecrement) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<Long>>> futures = new ArrayList<>();
+			CountDownLatch start = new CountDownLatch(1);
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(updates(start, shouldDecrement)));
+			}
+			start.countDown();
+
+			List<Long> counts = new ArrayList<>();
+			for (Future<List<Long>> future : futures) {
+				counts.addAll(future.get(60, TimeUnit.SECONDS));
+			}
+			return counts;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<List<Long>> updates(CountDownLatch start, boolean shouldDecrement) {
+		return () -> {
+			start.await();
+			List<Long> counts = new ArrayList<>(UPDATES_PER_THREAD);
+			for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+				DbQueryStatus dbQueryStatus = songDal.updateSongFavouritesCount(song.getId(), shouldDecrement);
+				assertEquals(dbQueryStatus.getMessage(), DbQueryExecResult.QUERY_OK, dbQueryStatus.getdbQueryExecResult());
+				counts.add((Long) dbQueryStatus.getData());
+			}
+			return counts;
+		};
+	}
+
+	private long favouritesCount() {
+		return mongoTemplate.findById(song._id, Song.class).getSongAmountFavourites();
+	}
+}
@@ -0,0 +1,189 @@
+package com.eecs3311.songmicroservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class SongDalImplListingTests {
+
+	// The test songs get ids from the year 2100, so they sort after every real song and pages after FLOOR hold only them
+	private static final long SECONDS = TimeUnit.DAYS.toSeconds(365L * 130);
+	private static final ObjectId FLOOR = new ObjectId(String.format("%08x%016x", SECONDS, 0));
+
+	// Checked once, a ping without a server takes the whole server selection timeout
+	private static Exception mongoUnavailable;
+	private static boolean pinged;
+
+	@Autowired
+	private SongDalImpl songDal;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	// In id order
+	private final List<Song> songs = new ArrayList<>();
+
+	@Before
+	public void insertSongs() {
+		// These tests need the same MongoDB instance the service uses
+		if (!pinged) {
+			pinged = true;
+			try {
+				mongoTemplate.executeCommand("{ ping: 1 }");
+			} catch (Exception e) {
+				mongoUnavailable = e;
+			}
+		}
+		Assume.assumeNoException("MongoDB is not available", mongoUnavailable);
+
+		removeSongs();
+		for (int i = 0; i < 5; i++) {
+			Song song = new Song("Listing Test " + i, "Listing Test Artist", "Album");
+			song.setId(new ObjectId(new Date(TimeUnit.SECONDS.toMillis(SECONDS))));
+			song.setStreamCount(i);
+			mongoTemplate.insert(song);
+			songs.add(song);
+		}
+	}
+
+	@After
+	public void removeSongs() {
+		if (mongoUnavailable == null) {
+			mongoTemplate.remove(Query.query(Criteria.where("_id").gte(FLOOR)), Song.class);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void pagesFollowTheCursorToTheLastPage() {
+		List<String> listed = new ArrayList<>();
+		List<Integer> pageSizes = new ArrayList<>();
+		String cursor = FLOOR.toHexString();
+		do {
+			DbQueryStatus dbQueryStatus = songDal.getSongsAfter(cursor, 2, Collections.singletonList(Song.KEY_SONG_NAME));
+			assertEquals(DbQueryExecResult.QUERY_OK, dbQueryStatus.getdbQueryExecResult());
+			Map<String, Object> page = (Map<String, Object>) dbQueryStatus.getData();
+			List<Map<String, Object>> pageSongs = (List<Map<String, Object>>) page.get("songs");
+			for (Map<String, Object> song : pageSongs) {
+				// Only the id and the fields asked for
+				assertEquals(Arrays.asList("id", Song.KEY_SONG_NAME), new ArrayList<>(song.keySet()));
+				listed.add((String) song.get("id"));
+			}
+			pageSizes.add(pageSongs.size());
+			cursor = (String) page.get("nextCursor");
+		} while (cursor != null);
+
+		assertEquals(Arrays.asList(2, 2, 1), pageSizes);
+		assertEquals(songIds(), listed);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void aFullLastPageIsFollowedByAnEmptyOne() {
+		Map<String, Object> page = (Map<String, Object>) songDal.getSongsAfter(FLOOR.toHexString(), 5, Collections.singletonList(Song.KEY_SONG_NAME)).getData();
+		assertEquals(songs.get(4).getId(), page.get("nextCursor"));
+
+		page = (Map<String, Object>) songDal.getSongsAfter((String) page.get("nextCursor"), 5, Collections.singletonList(Song.KEY_SONG_NAME)).getData();
+		assertEquals(Collections.emptyList(), page.get("songs"));
+		assertNull(page.get("nextCursor"));
+
+		assertEquals(DbQueryExecResult.QUERY_ERROR_GENERIC, songDal.getSongsAfter("not an id", 5, Collections.singletonList(Song.KEY_SONG_NAME)).getdbQueryExecResult());
+	}
+
+	@Test
+	public void streamingEndsWithTheNewestSongs() {
+		List<Map<String, Object>> streamed = new ArrayList<>();
+		try (CloseableIterator<Map<String, Object>> iterator = songDal.streamSongs(Arrays.asList(Song.KEY_SONG_NAME, SongLeaderboard.STREAM_COUNT))) {
+			while (iterator.hasNext()) {
+				Map<String, Object> song = iterator.next();
+				if (songIds().contains(song.get("id"))) {
+					streamed.add(song);
+				}
+			}
+		}
+
+		assertEquals(expectedListings(), streamed);
+	}
+
+	@Test
+	public void exportSongsWritesOneSongPerLine() throws Exception {
+		MvcResult result = mockMvc.perform(get("/exportSongs").param("fields", Song.KEY_SONG_NAME + "," + SongLeaderboard.STREAM_COUNT))
+				.andExpect(status().isOk())
+				.andExpect(content().contentTypeCompatibleWith("application/x-ndjson"))
+				.andReturn();
+
+		String body = result.getResponse().getContentAsString();
+		assertTrue(body.endsWith("\n"));
+		List<Map<String, Object>> exported = new ArrayList<>();
+		for (String line : body.split("\n")) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> song = objectMapper.readValue(line, LinkedHashMap.class);
+			if (songIds().contains(song.get("id"))) {
+				exported.add(song);
+			}
+		}
+		// Read back the way the lines were, small counts come back as ints
+		assertEquals(objectMapper.readValue(objectMapper.writeValueAsString(expectedListings()), List.class), exported);
+
+		mockMvc.perform(get("/exportSongs").param("fields", "password")).andExpect(status().isBadRequest());
+	}
+
+	private List<String> songIds() {
+		List<String> songIds = new ArrayList<>();
+		for (Song song : songs) {
+			songIds.add(song.getId());
+		}
+		return songIds;
+	}
+
+	private List<Map<String, Object>> expectedListings() {
+		List<Map<String, Object>> listings = new ArrayList<>();
+		for (Song song : songs) {
+			Map<String, Object> listing = new LinkedHashMap<>();
+			listing.put("id", song.getId());
+			listing.put(Song.KEY_SONG_NAME, song.getSongName());
+			listing.put(SongLeaderboard.STREAM_COUNT, song.getStreamCount());
+			listings.add(listing);
+		}
+		return listings;
+	}
+}
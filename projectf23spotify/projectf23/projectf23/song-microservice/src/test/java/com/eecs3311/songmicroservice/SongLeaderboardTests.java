@@ -0,0 +1,85 @@
+package com.eecs3311.songmicroservice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class SongLeaderboardTests {
+
+	// Two songs can be asked for, so four are tracked. The reseed never runs, there is no database
+	private final SongLeaderboard leaderboard = new SongLeaderboard(null, 2, Long.MAX_VALUE / 2);
+
+	@After
+	public void close() {
+		leaderboard.close();
+	}
+
+	@Test
+	public void ranksByCountAndBreaksTiesBySongId() {
+		leaderboard.streamCountChanged("b", "Song B", 5);
+		leaderboard.streamCountChanged("c", "Song C", 9);
+		leaderboard.streamCountChanged("a", "Song A", 5);
+
+		assertEquals(Arrays.asList("c", "a"), ids(leaderboard.getMostStreamed(2)));
+		assertEquals(9L, leaderboard.getMostStreamed(1).get(0).get(SongLeaderboard.STREAM_COUNT));
+		assertEquals(Arrays.asList("c"), ids(leaderboard.getMostStreamed(1)));
+		// Never more than the size, however many are tracked
+		assertEquals(2, leaderboard.getMostStreamed(10).size());
+	}
+
+	@Test
+	public void updatesMoveASongAndDeletesDropIt() {
+		leaderboard.favouritesCountChanged("a", "Song A", 3);
+		leaderboard.favouritesCountChanged("b", "Song B", 2);
+		leaderboard.favouritesCountChanged("b", "Song B", 4);
+		assertEquals(Arrays.asList("b", "a"), ids(leaderboard.getMostFavourited(2)));
+
+		leaderboard.songDeleted("b");
+		assertEquals(Arrays.asList("a"), ids(leaderboard.getMostFavourited(2)));
+		// The other list is kept separately
+		assertEquals(0, leaderboard.getMostStreamed(2).size());
+	}
+
+	@Test
+	public void aStreamCountReportedLateDoesNotMoveASongBack() {
+		leaderboard.streamCountChanged("a", "Song A", 7);
+		leaderboard.streamCountChanged("b", "Song B", 6);
+		// The play that made it 5 finished after the ones that made it 7
+		leaderboard.streamCountChanged("a", "Song A", 5);
+		assertEquals(Arrays.asList("a", "b"), ids(leaderboard.getMostStreamed(2)));
+		assertEquals(7L, leaderboard.getMostStreamed(1).get(0).get(SongLeaderboard.STREAM_COUNT));
+
+		// Unlikes do lower the favourites count
+		leaderboard.favouritesCountChanged("a", "Song A", 7);
+		leaderboard.favouritesCountChanged("a", "Song A", 5);
+		assertEquals(5L, leaderboard.getMostFavourited(1).get(0).get(SongLeaderboard.FAVOURITES_COUNT));
+	}
+
+	@Test
+	public void tracksTwiceTheSizeSoADroppedSongCanBeReplaced() {
+		for (int i = 1; i <= 5; i++) {
+			leaderboard.streamCountChanged("song" + i, "Song " + i, i * 10);
+		}
+		// song1 was pushed out when song5 arrived, a count no higher than the lowest tracked one is not taken in
+		leaderboard.streamCountChanged("song0", "Song 0", 20);
+
+		leaderboard.songDeleted("song5");
+		leaderboard.songDeleted("song4");
+		leaderboard.songDeleted("song3");
+		assertEquals(Arrays.asList("song2"), ids(leaderboard.getMostStreamed(2)));
+	}
+
+	private static List<String> ids(List<Map<String, Object>> songs) {
+		List<String> ids = new ArrayList<>();
+		for (Map<String, Object> song : songs) {
+			ids.add((String) song.get("id"));
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,185 @@
+package com.eecs3311.songmicroservice;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SongSearchIndexTests {
+
+	private final SongSearchIndex searchIndex = new SongSearchIndex(null, 5000, 100000, 100, 1);
+
+	@Test
+	public void everyWordMustMatchAndTheLastOneMayBeAPrefix() {
+		Song hello = add(searchIndex, "Hello", "Adele", "25");
+		Song help = add(searchIndex, "Help", "The Beatles", "Rubber Soul");
+		add(searchIndex, "Yesterday", "The Beatles", "Rubber Soul");
+
+		assertEquals(ids(hello, help), search("hel"));
+		// A trailing separator means the word is complete
+		assertEquals(ids(hello), search("hello "));
+		assertEquals(ids(hello), search("adele hel"));
+		assertEquals(ids(), search("adele yes"));
+		// Accents and case are ignored
+		assertEquals(ids(hello), search("ADÉLE "));
+	}
+
+	@Test
+	public void nameBeatsArtistAndAWholeWordBeatsAPrefix() {
+		Song byArtist = add(searchIndex, "Something", "Blue", "Album");
+		Song byName = add(searchIndex, "Blue", "Someone", "Album");
+		Song byPrefix = add(searchIndex, "Blues", "Someone", "Album");
+
+		assertEquals(ids(byName, byArtist), search("blue "));
+		assertEquals(ids(byName, byPrefix, byArtist), search("blue"));
+	}
+
+	@Test
+	public void deletedSongsAreNotFoundAndReAddingReplacesTheOldWords() {
+		Song song = add(searchIndex, "Old Name", "Artist", "Album");
+		searchIndex.remove(song.getId());
+		assertEquals(ids(), search("old"));
+
+		Song renamed = new Song("New Name", "Artist", "Album");
+		renamed.setId(song._id);
+		searchIndex.add(renamed);
+		assertEquals(ids(renamed), search("name"));
+		assertEquals(ids(), search("old"));
+	}
+
+	@Test
+	public void aPrefixOfTooManyPostingsOnlyMatchesAsAWholeWord() {
+		SongSearchIndex capped = new SongSearchIndex(null, 5000, 2, 100, 1);
+		Song love = add(capped, "Love", "Artist", "Album");
+		add(capped, "Lovely", "Artist", "Album");
+		add(capped, "Lover", "Artist", "Album");
+
+		assertEquals(ids(love), ids(capped.search("love", 0, 10)));
+		assertEquals(ids(), ids(capped.search("lov", 0, 10)));
+	}
+
+	@Test
+	public void changesDuringARebuildAreReplayedInOrder() {
+		MongoTemplate db = mock(MongoTemplate.class);
+		SongSearchIndex rebuilding = new SongSearchIndex(db, 5000, 100000, 100, 1);
+
+		Song kept = song("Kept", "Artist", "Album");
+		Song deleted = song("Deleted", "Artist", "Album");
+		Song readded = song("Before", "Artist", "Album");
+		Song added = song("Added", "Artist", "Album");
+		when(db.stream(any(Query.class), eq(Song.class))).thenAnswer(invocation -> {
+			// Written while the rebuild reads, after the stream has already passed these songs
+			rebuilding.remove(deleted.getId());
+			rebuilding.add(added);
+			rebuilding.remove(readded.getId());
+			Song renamed = new Song("After", "Artist", "Album");
+			renamed.setId(readded._id);
+			rebuilding.add(renamed);
+			return iterator(kept, deleted, readded);
+		});
+		rebuilding.rebuild();
+
+		assertEquals(ids(kept), ids(rebuilding.search("kept", 0, 10)));
+		assertEquals(ids(), ids(rebuilding.search("deleted", 0, 10)));
+		assertEquals(ids(added), ids(rebuilding.search("added", 0, 10)));
+		assertEquals(ids(readded), ids(rebuilding.search("after", 0, 10)));
+		assertEquals(ids(), ids(rebuilding.search("before", 0, 10)));
+	}
+
+	@Test
+	public void deletedSongsAreCompactedAwayOnceTheyPassTheFraction() throws Exception {
+		SongSearchIndex compacting = new SongSearchIndex(null, 5000, 100000, 100, 0.5);
+		Song first = add(compacting, "First", "Artist", "Album");
+		Song second = add(compacting, "Second", "Artist", "Album");
+		Song third = add(compacting, "Third", "Artist", "Album");
+		Song fourth = add(compacting, "Fourth", "Artist", "Album");
+
+		// Every replaced song leaves a deleted entry behind as well
+		compacting.remove(second.getId());
+		compacting.add(third);
+		compacting.add(third);
+		assertEquals(0L, compacting.getStats().get("compactions"));
+		assertEquals(3, compacting.getStats().get("deletedSongs"));
+
+		compacting.remove(fourth.getId());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((Long) compacting.getStats().get("compactions") == 0) {
+			assertTrue("Timed out", System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+		compacting.close();
+
+		assertEquals(2, compacting.getStats().get("songs"));
+		assertEquals(0, compacting.getStats().get("deletedSongs"));
+		// Ties still rank the song added first first
+		assertEquals(ids(first, third), ids(compacting.search("artist ", 0, 10)));
+		assertEquals(ids(), ids(compacting.search("second ", 0, 10)));
+	}
+
+	private List<String> search(String text) {
+		return ids(searchIndex.search(text, 0, 10));
+	}
+
+	private static Song add(SongSearchIndex index, String name, String artist, String album) {
+		Song song = song(name, artist, album);
+		index.add(song);
+		return song;
+	}
+
+	private static Song song(String name, String artist, String album) {
+		Song song = new Song(name, artist, album);
+		song.setId(new ObjectId());
+		return song;
+	}
+
+	private static List<String> ids(Song... songs) {
+		List<String> ids = new ArrayList<>();
+		for (Song song : songs) {
+			ids.add(song.getId());
+		}
+		return ids;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> ids(Map<String, Object> result) {
+		List<String> ids = new ArrayList<>();
+		for (Map<String, Object> song : (List<Map<String, Object>>) result.get("songs")) {
+			ids.add((String) song.get("id"));
+		}
+		return ids;
+	}
+
+	private static CloseableIterator<Song> iterator(Song... songs) {
+		Iterator<Song> iterator = Arrays.asList(songs).iterator();
+		return new CloseableIterator<Song>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public Song next() {
+				return iterator.next();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,255 @@
+package com.eecs3311.songmicroservice;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BasicDBObject;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Flushes against a mocked MongoTemplate that keeps the counts each bulk write would have added
+public class StreamCountBufferTests {
+
+	private final MongoTemplate db = mock(MongoTemplate.class);
+	private final Map<ObjectId, Long> written = new ConcurrentHashMap<>();
+	private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+	// Songs whose write the server rejects, and songs that no longer exist
+	private final Set<ObjectId> rejected = ConcurrentHashMap.newKeySet();
+	private final Set<ObjectId> deleted = ConcurrentHashMap.newKeySet();
+	// The next bulk writes that fail as a whole
+	private final AtomicInteger unavailableWrites = new AtomicInteger();
+
+	private final ObjectId a = new ObjectId();
+	private final ObjectId b = new ObjectId();
+	private final ObjectId c = new ObjectId();
+
+	@Before
+	public void setUp() {
+		when(db.bulkOps(any(BulkOperations.BulkMode.class), eq(Song.class))).thenAnswer(invocation -> bulkOps());
+		when(db.find(any(Query.class), eq(Song.class))).thenReturn(Collections.emptyList());
+	}
+
+	@Test
+	public void playsAreSummedPerSongAndWrittenInBatches() {
+		StreamCountBuffer buffer = buffer(2, 3, mock(ScheduledExecutorService.class));
+		add(buffer, a, a, a, b, c);
+
+		assertEquals(5, buffer.flush());
+		assertEquals(Arrays.asList(2, 1), batchSizes);
+		assertEquals(counts(a, 3L, b, 1L, c, 1L), written);
+		assertEquals(0, buffer.getStats().get("pendingSongs"));
+		assertEquals(5L, buffer.getStats().get("flushedIncrements"));
+
+		// Nothing pending, nothing written
+		assertEquals(0, buffer.flush());
+		assertEquals(2, batchSizes.size());
+	}
+
+	@Test
+	public void onlyTheWritesThatFailedAreRetried() {
+		StreamCountBuffer buffer = buffer(10, 3, mock(ScheduledExecutorService.class));
+		rejected.add(b);
+		add(buffer, a, b, b);
+
+		assertEquals(1, buffer.flush());
+		assertEquals(counts(a, 1L), written);
+		assertEquals(2L, buffer.getStats().get("pendingIncrements"));
+		assertEquals(1L, buffer.getStats().get("failedFlushCount"));
+
+		rejected.clear();
+		assertEquals(2, buffer.flush());
+		assertEquals(counts(a, 1L, b, 2L), written);
+	}
+
+	@Test
+	public void aSongThatKeepsFailingIsDroppedAndCounted() {
+		StreamCountBuffer buffer = buffer(10, 3, mock(ScheduledExecutorService.class));
+		unavailableWrites.set(3);
+		add(buffer, a, a);
+
+		buffer.flush();
+		buffer.flush();
+		assertEquals(2L, buffer.getStats().get("pendingIncrements"));
+		buffer.flush();
+		assertEquals(0L, buffer.getStats().get("pendingIncrements"));
+		assertEquals(2L, buffer.getStats().get("droppedIncrements"));
+
+		// A later play of the song starts over
+		add(buffer, a);
+		assertEquals(1, buffer.flush());
+		assertEquals(counts(a, 1L), written);
+	}
+
+	@Test
+	public void playsOfASongDeletedBeforeTheFlushAreCountedAsUnmatched() {
+		StreamCountBuffer buffer = buffer(10, 3, mock(ScheduledExecutorService.class));
+		deleted.add(c);
+		add(buffer, a, c);
+
+		buffer.flush();
+		assertEquals(1L, buffer.getStats().get("unmatchedSongs"));
+		assertEquals(0L, buffer.getStats().get("droppedIncrements"));
+	}
+
+	@Test
+	public void closingWritesEveryPlayThatWasAccepted() throws Exception {
+		StreamCountBuffer buffer = buffer(20, 1000, Executors.newSingleThreadScheduledExecutor());
+		List<ObjectId> songs = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			songs.add(new ObjectId());
+		}
+		// The last flushes fail at first, close has to retry them
+		unavailableWrites.set(2);
+
+		ExecutorService players = Executors.newFixedThreadPool(4);
+		CountDownLatch playing = new CountDownLatch(4);
+		List<Future<Long>> accepted = new ArrayList<>();
+		try {
+			for (int i = 0; i < 4; i++) {
+				accepted.add(players.submit(() -> {
+					long plays = 0;
+					playing.countDown();
+					while (buffer.add(songs.get(ThreadLocalRandom.current().nextInt(songs.size())))) {
+						plays++;
+					}
+					return plays;
+				}));
+			}
+			assertTrue(playing.await(5, TimeUnit.SECONDS));
+			Thread.sleep(50);
+			buffer.close();
+
+			long total = 0;
+			for (Future<Long> plays : accepted) {
+				total += plays.get(5, TimeUnit.SECONDS);
+			}
+			long writtenTotal = 0;
+			for (long count : written.values()) {
+				writtenTotal += count;
+			}
+			assertEquals(total, writtenTotal);
+			assertEquals(0L, buffer.getStats().get("pendingIncrements"));
+			assertFalse(buffer.add(songs.get(0)));
+		} finally {
+			players.shutdownNow();
+		}
+	}
+
+	@Test
+	public void onlyPlaysOfSongsThatExistAreQueued() {
+		StreamCountBuffer buffer = buffer(10, 3, mock(ScheduledExecutorService.class));
+		SongSearchIndex songSearchIndex = new SongSearchIndex(db, 5000, 100000, 100, 1);
+		SongDalImpl songDal = new SongDalImpl(db, buffer, mock(SongLeaderboard.class), songSearchIndex);
+		Song indexed = new Song("Indexed", "Artist", "Album");
+		indexed.setId(a);
+		songSearchIndex.add(indexed);
+		when(db.exists(any(Query.class), eq(Song.class))).thenAnswer(invocation ->
+				((Query) invocation.getArgument(0)).getQueryObject().get("_id").equals(b));
+
+		// In the search index, no lookup needed
+		assertEquals(DbQueryExecResult.QUERY_OK, songDal.incrementStreamCount(a.toHexString()).getdbQueryExecResult());
+		verify(db, never()).exists(any(Query.class), eq(Song.class));
+		// Added through another instance, found in the collection
+		assertEquals(DbQueryExecResult.QUERY_OK, songDal.incrementStreamCount(b.toHexString()).getdbQueryExecResult());
+		assertEquals(DbQueryExecResult.QUERY_ERROR_NOT_FOUND, songDal.incrementStreamCount(c.toHexString()).getdbQueryExecResult());
+
+		assertEquals(2L, buffer.getStats().get("pendingIncrements"));
+	}
+
+	private StreamCountBuffer buffer(int batchSize, int maxAttempts, ScheduledExecutorService flusher) {
+		return new StreamCountBuffer(db, mock(SongLeaderboard.class), true, 1000, batchSize, 5000, maxAttempts, flusher);
+	}
+
+	private static void add(StreamCountBuffer buffer, ObjectId... plays) {
+		for (ObjectId songId : plays) {
+			assertTrue(buffer.add(songId));
+		}
+	}
+
+	private static Map<ObjectId, Long> counts(Object... songsAndCounts) {
+		Map<ObjectId, Long> counts = new HashMap<>();
+		for (int i = 0; i < songsAndCounts.length; i += 2) {
+			counts.put((ObjectId) songsAndCounts[i], (Long) songsAndCounts[i + 1]);
+		}
+		return counts;
+	}
+
+	// Collects the $inc of every updateOne, and applies them when the bulk write is executed
+	private BulkOperations bulkOps() {
+		List<ObjectId> songIds = new ArrayList<>();
+		List<Long> increments = new ArrayList<>();
+		BulkOperations bulkOps = mock(BulkOperations.class);
+		when(bulkOps.updateOne(any(Query.class), any(Update.class))).thenAnswer(invocation -> {
+			songIds.add((ObjectId) ((Query) invocation.getArgument(0)).getQueryObject().get("_id"));
+			Document inc = (Document) ((Update) invocation.getArgument(1)).getUpdateObject().get("$inc");
+			increments.add(((Number) inc.get("streamCount")).longValue());
+			return bulkOps;
+		});
+		when(bulkOps.execute()).thenAnswer(invocation -> {
+			batchSizes.add(songIds.size());
+			if (unavailableWrites.getAndDecrement() > 0) {
+				throw new DataAccessResourceFailureException("MongoDB is not available");
+			}
+
+			List<BulkWriteError> errors = new ArrayList<>();
+			int matched = 0;
+			for (int i = 0; i < songIds.size(); i++) {
+				if (rejected.contains(songIds.get(i))) {
+					errors.add(new BulkWriteError(121, "Document failed validation", new BasicDBObject(), i));
+				} else if (!deleted.contains(songIds.get(i))) {
+					written.merge(songIds.get(i), increments.get(i), Long::sum);
+					matched++;
+				}
+			}
+			if (!errors.isEmpty()) {
+				throw bulkOperationException(errors, matched);
+			}
+			return com.mongodb.bulk.BulkWriteResult.acknowledged(0, matched, 0, matched, Collections.emptyList());
+		});
+		return bulkOps;
+	}
+
+	// Neither exception has a public constructor
+	private static BulkOperationException bulkOperationException(List<BulkWriteError> errors, int matched) {
+		com.mongodb.BulkWriteResult result = mock(com.mongodb.BulkWriteResult.class, invocation ->
+				invocation.getMethod().getName().equals("getMatchedCount") ? matched
+						: invocation.getMethod().getName().equals("isAcknowledged") ? Boolean.TRUE : null);
+		return mock(BulkOperationException.class, invocation ->
+				invocation.getMethod().getName().equals("getErrors") ? errors
+						: invocation.getMethod().getName().equals("getResult") ? result : null);
+	}
+}